@@ -0,0 +1,236 @@
+package com.meeple.citybuild.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+import org.joml.Vector3f;
+
+import com.meeple.citybuild.server.BuildingRegistry;
+import com.meeple.citybuild.server.Buildings;
+import com.meeple.citybuild.server.Buildings.BuildingInstance;
+import com.meeple.citybuild.server.Buildings.BuildingTemplate;
+import com.meeple.citybuild.server.Buildings.Person;
+import com.meeple.citybuild.server.GameManager;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.assign.AssignmentSolver;
+import com.meeple.citybuild.server.economy.Recipes;
+import com.meeple.citybuild.server.entity.Component;
+
+/**
+ * Gives tens of thousands of people homes and jobs with the {@link AssignmentSolver}, ticking it the way the level thread does. <br>
+ * Then some houses and workplaces are removed and new houses built, and the time to rebalance is compared with solving everyone again
+ * from scratch. After each step the entities and buildings are checked against the limits: no building over its hard people limit,
+ * nobody living with more people than they will live with, and the people of every building matching its {@link BuildingInstance#currentPeople}
+ * and the scale of its recipe. <br>
+ * Usage: AssignmentBenchmark [people] [houses] [workplaces]
+ */
+public class AssignmentBenchmark {
+	private static Logger logger = Logger.getLogger(AssignmentBenchmark.class);
+
+	/**
+	 * world units across the square the city is in
+	 */
+	private static final float citySize = 16 * LevelData.fullChunkSize;
+
+	private static class Site {
+		final int handle;
+		final BuildingTemplate template;
+		final float x, y;
+
+		Site(int handle, BuildingTemplate template, float x, float y) {
+			this.handle = handle;
+			this.template = template;
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		Benchmarks.setupLogger();
+		int peopleCount = Benchmarks.intArg(args, 0, 50_000);
+		int houseCount = Benchmarks.intArg(args, 1, 10_000);
+		int workplaceCount = Benchmarks.intArg(args, 2, 1_000);
+		LevelData level = new LevelData();
+		Random random = new Random(5);
+
+		Map<Integer, Site> sites = new HashMap<>();
+		for (int i = 0; i < houseCount + workplaceCount; i++) {
+			Site site = build(level, random, i < houseCount ? Buildings.houseTemplate : Buildings.stockpileTemplate);
+			sites.put(site.handle, site);
+		}
+		int mask = Component.mask(Component.Position, Component.Owner, Component.Job);
+		Map<Integer, Person> people = new HashMap<>();
+		for (int i = 0; i < peopleCount; i++) {
+			int id = level.entities.create(mask);
+			level.entities.setPosition(id, random.nextFloat() * citySize, random.nextFloat() * citySize, 0);
+			level.entities.setOwner(id, BuildingRegistry.none);
+			level.entities.setJob(id, BuildingRegistry.none);
+			Person person = new Person();
+			person.coHabbitantLimits.set(1, 6 + random.nextInt(7));
+			person.coHabbitantPreference.set(2 + random.nextInt(3), 4 + random.nextInt(4));
+			people.put(id, person);
+		}
+		logger.info(String.format("Assignment benchmark, %d people, %d houses and %d workplaces", peopleCount, houseCount, workplaceCount));
+
+		AssignmentSolver solver = new AssignmentSolver(level);
+		long start = System.nanoTime();
+		feed(level, solver, sites, people);
+		long[] tickTime = new long[1];
+		int ticks = solve(solver, tickTime);
+		long firstTime = System.nanoTime() - start;
+		logger.info(String.format("First solve: %s over %d ticks, %d rounds, the longest tick spent %s applying results. %d housed, %d employed", Benchmarks.millis(firstTime),
+			ticks, solver.rounds, Benchmarks.millis(tickTime[0]), solver.housed, solver.employed));
+		check(level, sites, people);
+
+		int[] before = snapshot(level);
+		List<Integer> handles = new ArrayList<>(sites.keySet());
+		int removedHouses = 0, removedWorkplaces = 0;
+		for (int i = 0; i < handles.size() && (removedHouses < houseCount / 100 || removedWorkplaces < workplaceCount / 50); i++) {
+			Site site = sites.get(handles.get(random.nextInt(handles.size())));
+			if (site == null) {
+				continue;
+			}
+			boolean house = site.template == Buildings.houseTemplate;
+			if (house ? removedHouses < houseCount / 100 : removedWorkplaces < workplaceCount / 50) {
+				sites.remove(site.handle);
+				GameManager.removeBuilding(level, site.handle);
+				solver.removeBuilding(site.handle);
+				if (house) {
+					removedHouses++;
+				} else {
+					removedWorkplaces++;
+				}
+			}
+		}
+		for (int i = 0; i < removedHouses; i++) {
+			Site site = build(level, random, Buildings.houseTemplate);
+			sites.put(site.handle, site);
+			solver.addBuilding(site.handle, site.template, site.x, site.y);
+		}
+		long roundsBefore = solver.rounds, movesBefore = solver.moves;
+		start = System.nanoTime();
+		tickTime[0] = 0;
+		ticks = solve(solver, tickTime);
+		long rebalanceTime = System.nanoTime() - start;
+		int[] after = snapshot(level);
+		int changed = 0;
+		for (int i = 0; i < before.length; i += 2) {
+			if (before[i] != after[i] || before[i + 1] != after[i + 1]) {
+				changed++;
+			}
+		}
+		logger.info(String.format("Removed %d houses and %d workplaces, built %d houses: rebalanced in %s over %d ticks, %d rounds, %d better moves, the longest tick spent %s applying results. "
+			+ "%d people changed home or job, %d housed, %d employed", removedHouses, removedWorkplaces, removedHouses, Benchmarks.millis(rebalanceTime), ticks, solver.rounds - roundsBefore,
+			solver.moves - movesBefore, Benchmarks.millis(tickTime[0]), changed, solver.housed, solver.employed));
+		check(level, sites, people);
+		solver.close();
+
+		AssignmentSolver fresh = new AssignmentSolver(level);
+		start = System.nanoTime();
+		feed(level, fresh, sites, people);
+		solve(fresh, tickTime);
+		long freshTime = System.nanoTime() - start;
+		logger.info(String.format("Solving everyone again from scratch: %s", Benchmarks.millis(freshTime)));
+		fresh.close();
+	}
+
+	private static Site build(LevelData level, Random random, BuildingTemplate template) {
+		int handle = level.buildings.add(new BuildingInstance());
+		level.economy.assign(handle, template == Buildings.houseTemplate ? Recipes.housing : Recipes.woodcutter, 0);
+		return new Site(handle, template, random.nextFloat() * citySize, random.nextFloat() * citySize);
+	}
+
+	private static void feed(LevelData level, AssignmentSolver solver, Map<Integer, Site> sites, Map<Integer, Person> people) {
+		for (Site site : sites.values()) {
+			solver.addBuilding(site.handle, site.template, site.x, site.y);
+		}
+		Vector3f position = new Vector3f();
+		for (Map.Entry<Integer, Person> entry : people.entrySet()) {
+			level.entities.getPosition(entry.getKey(), position);
+			solver.addPerson(entry.getKey(), entry.getValue(), position.x, position.y);
+		}
+	}
+
+	/**
+	 * Ticks the solver once a millisecond until it is idle
+	 * @param tickTime set to the longest tick
+	 * @return ticks it took
+	 */
+	private static int solve(AssignmentSolver solver, long[] tickTime) throws InterruptedException {
+		int ticks = 0;
+		do {
+			long start = System.nanoTime();
+			solver.tick();
+			tickTime[0] = Math.max(tickTime[0], System.nanoTime() - start);
+			ticks++;
+			Thread.sleep(1);
+		} while (!solver.isIdle());
+		return ticks;
+	}
+
+	/**
+	 * @return home and job of every entity
+	 */
+	private static int[] snapshot(LevelData level) {
+		int[] result = new int[level.entities.idLimit() * 2];
+		for (int id = 0; id < level.entities.idLimit(); id++) {
+			if (level.entities.isAlive(id)) {
+				result[id * 2] = level.entities.getOwner(id);
+				result[id * 2 + 1] = level.entities.getJob(id);
+			}
+		}
+		return result;
+	}
+
+	private static void check(LevelData level, Map<Integer, Site> sites, Map<Integer, Person> people) {
+		Map<Integer, List<Person>> residents = new HashMap<>();
+		double distance = 0;
+		int housed = 0, preferred = 0, unknown = 0;
+		Vector3f position = new Vector3f();
+		for (Map.Entry<Integer, Person> entry : people.entrySet()) {
+			int id = entry.getKey();
+			for (int handle : new int[] { level.entities.getOwner(id), level.entities.getJob(id) }) {
+				if (handle != BuildingRegistry.none) {
+					if (!sites.containsKey(handle)) {
+						unknown++;
+					} else {
+						residents.computeIfAbsent(handle, (k) -> new ArrayList<>()).add(entry.getValue());
+					}
+				}
+			}
+			Site home = sites.get(level.entities.getOwner(id));
+			if (home != null) {
+				level.entities.getPosition(id, position);
+				distance += Math.hypot(home.x - position.x, home.y - position.y);
+				housed++;
+			}
+		}
+		int overHard = 0, overLimit = 0, wrongCount = 0;
+		for (Site site : sites.values()) {
+			List<Person> list = residents.getOrDefault(site.handle, new ArrayList<>());
+			if (list.size() > site.template.hardPoepleLimitUpper()) {
+				overHard++;
+			}
+			if (level.buildings.get(site.handle).currentPeople != list.size() || level.economy.getScale(site.handle) != list.size()) {
+				wrongCount++;
+			}
+			if (site.template == Buildings.houseTemplate) {
+				for (Person person : list) {
+					if (list.size() > person.coHabbitantLimits.y) {
+						overLimit++;
+					}
+					if (list.size() >= person.coHabbitantPreference.x && list.size() <= person.coHabbitantPreference.y) {
+						preferred++;
+					}
+				}
+			}
+		}
+		logger.info(String.format("Check: average %.0f world units from home, %d%% living with as many people as they like. "
+			+ "%d buildings over their hard limit, %d people over their co-habitant limit, %d buildings with the wrong people count, %d people at removed buildings",
+			distance / Math.max(1, housed), preferred * 100L / Math.max(1, housed), overHard, overLimit, wrongCount, unknown));
+	}
+}
@@ -0,0 +1,66 @@
+package com.meeple.citybuild.benchmark;
+
+import com.meeple.citybuild.server.HeadlessMain;
+import com.meeple.shared.utils.FrameUtils;
+
+/**
+ * Small helpers shared by the headless benchmark programs in this package. <br>
+ * Each benchmark is a plain main class so it can be run straight from the IDE without a GL context.
+ */
+public class Benchmarks {
+
+	public static void setupLogger() {
+		HeadlessMain.setupLogger();
+	}
+
+	/**
+	 * Runs the garbage collector a few times and returns the heap currently in use
+	 * @return used heap in bytes
+	 */
+	public static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Runs the task {@code warmups} times untimed then {@code runs} times timed.
+	 * @return average nanos per timed run
+	 */
+	public static long time(int warmups, int runs, Runnable task) {
+		for (int i = 0; i < warmups; i++) {
+			task.run();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < runs; i++) {
+			task.run();
+		}
+		return (System.nanoTime() - start) / runs;
+	}
+
+	public static String millis(long nanos) {
+		return String.format("%.3fms", nanos / (double) FrameUtils.nanoToMilli);
+	}
+
+	public static String megabytes(long bytes) {
+		return String.format("%.2fMB", bytes / (1024d * 1024d));
+	}
+
+	public static int intArg(String[] args, int index, int defaultValue) {
+		if (args != null && args.length > index) {
+			try {
+				return Integer.parseInt(args[index]);
+			} catch (NumberFormatException e) {
+				// fall through to default
+			}
+		}
+		return defaultValue;
+	}
+}
@@ -0,0 +1,205 @@
+package com.meeple.citybuild.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.BuildingRegistry;
+import com.meeple.citybuild.server.Buildings.BuildingInstance;
+import com.meeple.citybuild.server.GameManager;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.LevelData.Chunk.Tile;
+import com.meeple.citybuild.server.WorldGenerator;
+import com.meeple.citybuild.server.save.EditJournal;
+import com.meeple.citybuild.server.save.LevelSaveSystem;
+
+/**
+ * Places tens of thousands of buildings in the {@link BuildingRegistry} of a generated world and measures
+ * looking up the building of every tile against a boxed map, and finding the buildings of every chunk from the index against reading its tiles. <br>
+ * Then half the buildings are removed and new ones placed in the freed slots, checking the handles of the removed ones no longer resolve,
+ * and the level is saved and loaded again to check the index comes back the same. <br>
+ * Usage: BuildingRegistryBenchmark [radius] [buildings]
+ */
+public class BuildingRegistryBenchmark {
+	private static Logger logger = Logger.getLogger(BuildingRegistryBenchmark.class);
+
+	public static void main(String[] args) throws IOException {
+		Benchmarks.setupLogger();
+		int radius = Benchmarks.intArg(args, 0, 8);
+		int buildings = Benchmarks.intArg(args, 1, 50_000);
+		WorldGenerator generator = new WorldGenerator();
+		generator.radius = radius;
+		LevelData level = GameManager.newGame(generator, 42);
+		Path journalPath = Files.createTempFile("journal", EditJournal.extension);
+		level.journal = EditJournal.create(level, journalPath);
+		logger.info(String.format("Building registry benchmark, %d buildings on %d chunks", buildings, level.chunks.size()));
+
+		Random random = new Random(7);
+		int[] handles = new int[buildings];
+		long start = System.nanoTime();
+		for (int i = 0; i < buildings; i++) {
+			handles[i] = place(level, random, radius);
+		}
+		long placeTime = System.nanoTime() - start;
+
+		Map<Integer, BuildingInstance> boxed = new HashMap<>();
+		for (int handle : handles) {
+			boxed.put(handle, level.buildings.get(handle));
+		}
+		Chunk[] chunks = level.chunks.values().toArray(new Chunk[0]);
+		long[] sink = new long[1];
+		long registryTime = Benchmarks.time(2, 5, () -> {
+			int people = 0;
+			for (Chunk chunk : chunks) {
+				for (int index = 0; index < LevelData.chunkTiles; index++) {
+					BuildingInstance building = level.buildings.get(chunk.getBuildingID(index));
+					if (building != null) {
+						people += building.currentPeople;
+					}
+				}
+			}
+			sink[0] += people;
+		});
+		long boxedTime = Benchmarks.time(2, 5, () -> {
+			int people = 0;
+			for (Chunk chunk : chunks) {
+				for (int index = 0; index < LevelData.chunkTiles; index++) {
+					BuildingInstance building = boxed.get(chunk.getBuildingID(index));
+					if (building != null) {
+						people += building.currentPeople;
+					}
+				}
+			}
+			sink[0] += people;
+		});
+		long tiles = (long) chunks.length * LevelData.chunkTiles;
+		logger.info(String.format("Placed in %s. Building of every tile: registry %.2fns/tile, boxed map %.2fns/tile", Benchmarks.millis(placeTime),
+			registryTime / (double) tiles, boxedTime / (double) tiles));
+
+		int[] result = new int[1024];
+		long indexTime = Benchmarks.time(2, 5, () -> {
+			int found = 0;
+			for (Chunk chunk : chunks) {
+				found += level.buildings.buildingsIn(chunk.chunkX, chunk.chunkY, result);
+			}
+			sink[0] += found;
+		});
+		long scanTime = Benchmarks.time(1, 3, () -> {
+			int found = 0;
+			for (Chunk chunk : chunks) {
+				found += scan(level, chunk).size();
+			}
+			sink[0] += found;
+		});
+		logger.info(String.format("Buildings of every chunk: index %.2fus/chunk, reading the tiles %.2fus/chunk, %d mismatches", indexTime / 1e3 / chunks.length,
+			scanTime / 1e3 / chunks.length, mismatches(level, chunks, result)));
+
+		//remove every other building, then place as many again which reuse their slots
+		for (int i = 0; i < buildings; i += 2) {
+			level.buildings.remove(handles[i]);
+		}
+		int stale = 0;
+		for (int i = 0; i < buildings; i += 2) {
+			if (level.buildings.get(handles[i]) != null) {
+				stale++;
+			}
+		}
+		for (int i = 0; i < buildings; i += 2) {
+			place(level, random, radius);
+		}
+		for (int i = 0; i < buildings; i += 2) {
+			if (level.buildings.isValid(handles[i])) {
+				stale++;
+			}
+		}
+		logger.info(String.format("After replacing half: %d buildings in %d slots, %d removed handles still resolve, %d mismatches", level.buildings.size(),
+			level.buildings.slotLimit(), stale, mismatches(level, chunks, result)));
+
+		File file = Files.createTempFile("buildings", LevelSaveSystem.extension).toFile();
+		start = System.nanoTime();
+		LevelSaveSystem.save(level, file);
+		LevelData loaded = LevelSaveSystem.load(file, false);
+		Chunk[] loadedChunks = loaded.chunks.values().toArray(new Chunk[0]);
+		logger.info(String.format("Saved and loaded in %s: %d buildings, %d mismatches", Benchmarks.millis(System.nanoTime() - start), loaded.buildings.size(),
+			mismatches(loaded, loadedChunks, result)));
+
+		logger.info("(checksum " + sink[0] + ")");
+
+		//saving moved the journal next to the save
+		level.journal.close();
+		Files.deleteIfExists(journalPath);
+		Files.deleteIfExists(EditJournal.journalPath(file));
+		Files.delete(file.toPath());
+		try (Stream<Path> walk = Files.walk(LevelSaveSystem.regionFolder(file))) {
+			walk.sorted(Comparator.reverseOrder()).forEach((p) -> p.toFile().delete());
+		}
+	}
+
+	/**
+	 * Adds a building covering a random square of 2 to 4 tiles a side, taking the tiles over from any building already there
+	 * @return handle of the building
+	 */
+	private static int place(LevelData level, Random random, int radius) {
+		BuildingInstance building = new BuildingInstance();
+		building.currentPeople = random.nextInt(50);
+		int handle = level.buildings.add(building);
+		int size = 2 + random.nextInt(3);
+		int range = radius * LevelData.chunkSize;
+		int x = random.nextInt(range * 2 - size) - range;
+		int y = random.nextInt(range * 2 - size) - range;
+		for (int tx = x; tx < x + size; tx++) {
+			for (int ty = y; ty < y + size; ty++) {
+				Chunk chunk = level.chunks.get(Math.floorDiv(tx, LevelData.chunkSize), Math.floorDiv(ty, LevelData.chunkSize));
+				if (chunk != null) {
+					Tile tile = chunk.getTile(Math.floorMod(tx, LevelData.chunkSize), Math.floorMod(ty, LevelData.chunkSize));
+					GameManager.setBuildingID(level, tile, handle);
+				}
+			}
+		}
+		return handle;
+	}
+
+	/**
+	 * @return the valid buildings found on the tiles of the chunk
+	 */
+	private static Set<Integer> scan(LevelData level, Chunk chunk) {
+		Set<Integer> found = new HashSet<>();
+		for (int index = 0; index < LevelData.chunkTiles; index++) {
+			int handle = chunk.getBuildingID(index);
+			if (level.buildings.isValid(handle)) {
+				found.add(handle);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return chunks whose indexed buildings are not the ones found on their tiles
+	 */
+	private static int mismatches(LevelData level, Chunk[] chunks, int[] result) {
+		int mismatches = 0;
+		for (Chunk chunk : chunks) {
+			int count = level.buildings.buildingsIn(chunk.chunkX, chunk.chunkY, result);
+			Set<Integer> indexed = new HashSet<>();
+			for (int handle : Arrays.copyOf(result, Math.min(count, result.length))) {
+				indexed.add(handle);
+			}
+			if (count > result.length || !indexed.equals(scan(level, chunk))) {
+				mismatches++;
+			}
+		}
+		return mismatches;
+	}
+}
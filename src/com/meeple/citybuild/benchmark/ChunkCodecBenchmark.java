@@ -0,0 +1,130 @@
+package com.meeple.citybuild.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.GameManager;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.WorldGenerator;
+import com.meeple.citybuild.server.WorldGenerator.TerrainType;
+import com.meeple.citybuild.server.WorldGenerator.Tiles;
+import com.meeple.citybuild.server.save.ChunkCodec;
+
+/**
+ * Measures the {@link ChunkCodec} compression ratio and encode/decode throughput against the raw tile layout. <br>
+ * Runs on freshly generated worlds and on the same worlds after placing random buildings,
+ * as a built up chunk has a much larger palette. <br>
+ * Usage: ChunkCodecBenchmark [worlds]
+ */
+public class ChunkCodecBenchmark {
+	private static Logger logger = Logger.getLogger(ChunkCodecBenchmark.class);
+
+	public static void main(String[] args) throws IOException {
+		Benchmarks.setupLogger();
+		int worlds = Benchmarks.intArg(args, 0, 32);
+		WorldGenerator generator = new WorldGenerator();
+
+		List<Chunk> generated = new ArrayList<>();
+		List<Chunk> built = new ArrayList<>();
+		for (int i = 0; i < worlds; i++) {
+			generated.addAll(GameManager.newGame(generator, i).chunks.values());
+			LevelData level = GameManager.newGame(generator, i);
+			Random random = new Random(i);
+			for (Chunk chunk : level.chunks.values()) {
+				build(chunk, random);
+			}
+			built.addAll(level.chunks.values());
+		}
+		logger.info("Chunk codec benchmark with " + generated.size() + " chunks per set");
+		run("generated", generated);
+		run("built up", built);
+	}
+
+	/**
+	 * Places rectangular buildings over roughly half of the chunk and digs a little water
+	 */
+	private static void build(Chunk chunk, Random random) {
+		Tiles[] tiles = Tiles.values();
+		for (int b = 0; b < 40; b++) {
+			int x = random.nextInt(LevelData.chunkSize - 8);
+			int y = random.nextInt(LevelData.chunkSize - 8);
+			int w = 2 + random.nextInt(6);
+			int h = 2 + random.nextInt(6);
+			Tiles type = tiles[random.nextInt(tiles.length)];
+			byte id = (byte) random.nextInt(120);
+			for (int tx = x; tx < x + w; tx++) {
+				for (int ty = y; ty < y + h; ty++) {
+					int index = LevelData.tileIndex(tx, ty);
+					chunk.setType(index, type);
+					chunk.setBuildingID(index, id);
+				}
+			}
+		}
+		for (int i = 0; i < 200; i++) {
+			chunk.setTerrain(random.nextInt(LevelData.chunkTiles), TerrainType.Water);
+		}
+	}
+
+	private static void run(String name, List<Chunk> chunks) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(ChunkCodec.maxBytes);
+		long encoded = 0;
+		for (Chunk chunk : chunks) {
+			buffer.clear();
+			encoded += chunk.writePacked(buffer);
+		}
+		long raw = (long) chunks.size() * LevelData.rawBytes;
+
+		long encodeNanos = Benchmarks.time(5, 20, () -> {
+			for (Chunk chunk : chunks) {
+				buffer.clear();
+				chunk.writePacked(buffer);
+			}
+		});
+
+		List<byte[]> records = new ArrayList<>();
+		for (Chunk chunk : chunks) {
+			buffer.clear();
+			chunk.writePacked(buffer);
+			byte[] record = new byte[buffer.position()];
+			buffer.flip();
+			buffer.get(record);
+			records.add(record);
+		}
+		LevelData level = new LevelData();
+		Chunk target = level.new Chunk(0, 0);
+		long decodeNanos = Benchmarks.time(5, 20, () -> {
+			for (byte[] record : records) {
+				try {
+					target.readPacked(ByteBuffer.wrap(record));
+				} catch (IOException err) {
+					throw new IllegalStateException(err);
+				}
+			}
+		});
+
+		long rawNanos = Benchmarks.time(5, 20, () -> {
+			ByteBuffer rawBuffer = ByteBuffer.allocate(LevelData.rawBytes);
+			for (Chunk chunk : chunks) {
+				rawBuffer.clear();
+				chunk.writeTo(rawBuffer);
+			}
+		});
+
+		logger.info(String.format("%-9s raw %s, encoded %s, ratio %.1fx, %d bytes/chunk", name,
+			Benchmarks.megabytes(raw), Benchmarks.megabytes(encoded), raw / (double) encoded, encoded / chunks.size()));
+		logger.info(String.format("%-9s encode %s (%.0fMB/s of tiles), decode %s (%.0fMB/s), raw copy %s", name,
+			Benchmarks.millis(encodeNanos), throughput(raw, encodeNanos),
+			Benchmarks.millis(decodeNanos), throughput(raw, decodeNanos),
+			Benchmarks.millis(rawNanos)));
+	}
+
+	private static double throughput(long bytes, long nanos) {
+		return bytes / (1024d * 1024d) / (nanos / 1e9);
+	}
+}
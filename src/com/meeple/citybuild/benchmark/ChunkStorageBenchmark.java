@@ -0,0 +1,112 @@
+package com.meeple.citybuild.benchmark;
+
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.WorldGenerator.TerrainType;
+import com.meeple.citybuild.server.WorldGenerator.Tiles;
+
+/**
+ * Compares the struct-of-arrays {@link Chunk} storage against the old {@code Tile[][]} object-per-tile layout. <br>
+ * Reports the retained heap for N chunks and the time to scan and randomly edit every chunk. <br>
+ * Usage: ChunkStorageBenchmark [chunkCount]
+ */
+public class ChunkStorageBenchmark {
+	private static Logger logger = Logger.getLogger(ChunkStorageBenchmark.class);
+
+	/**
+	 * Copy of the old layout, kept here so the two can be measured side by side. <br>
+	 * The tile is a non-static inner class like the original so it pays for the outer reference too.
+	 */
+	static class LegacyChunk {
+		LegacyTile[][] tiles = new LegacyTile[LevelData.chunkSize][LevelData.chunkSize];
+
+		LegacyChunk() {
+			for (int x = 0; x < LevelData.chunkSize; x++) {
+				for (int y = 0; y < LevelData.chunkSize; y++) {
+					tiles[x][y] = new LegacyTile();
+				}
+			}
+		}
+
+		class LegacyTile {
+			TerrainType terrain;
+			Tiles type;
+			int height = 0;
+			byte UUID = -1;
+		}
+	}
+
+	public static void main(String[] args) {
+		Benchmarks.setupLogger();
+		int count = Benchmarks.intArg(args, 0, 1024);
+		logger.info("Chunk storage benchmark with " + count + " chunks");
+
+		long base = Benchmarks.usedMemory();
+		LegacyChunk[] legacy = new LegacyChunk[count];
+		for (int i = 0; i < count; i++) {
+			legacy[i] = new LegacyChunk();
+		}
+		long legacyBytes = Benchmarks.usedMemory() - base;
+
+		LevelData level = new LevelData();
+		base = Benchmarks.usedMemory();
+		Chunk[] packed = new Chunk[count];
+		for (int i = 0; i < count; i++) {
+			packed[i] = level.new Chunk(i, 0);
+		}
+		long packedBytes = Benchmarks.usedMemory() - base;
+
+		logger.info("Tile[][] layout:         " + Benchmarks.megabytes(legacyBytes) + " (" + legacyBytes / count + " bytes/chunk)");
+		logger.info("Struct-of-arrays layout: " + Benchmarks.megabytes(packedBytes) + " (" + packedBytes / count + " bytes/chunk)");
+
+		long[] sink = new long[1];
+		long legacyScan = Benchmarks.time(3, 10, () -> {
+			long sum = 0;
+			for (LegacyChunk c : legacy) {
+				for (int x = 0; x < LevelData.chunkSize; x++) {
+					for (int y = 0; y < LevelData.chunkSize; y++) {
+						LegacyChunk.LegacyTile t = c.tiles[x][y];
+						sum += t.height + t.UUID;
+					}
+				}
+			}
+			sink[0] += sum;
+		});
+		long packedScan = Benchmarks.time(3, 10, () -> {
+			long sum = 0;
+			for (Chunk c : packed) {
+				for (int i = 0; i < LevelData.chunkTiles; i++) {
+					sum += c.getHeight(i) + c.getBuildingID(i);
+				}
+			}
+			sink[0] += sum;
+		});
+		logger.info("Full scan       Tile[][]: " + Benchmarks.millis(legacyScan) + " packed: " + Benchmarks.millis(packedScan));
+
+		int edits = 1_000_000;
+		long legacyEdit = Benchmarks.time(3, 10, () -> {
+			Random random = new Random(1);
+			for (int i = 0; i < edits; i++) {
+				LegacyChunk c = legacy[random.nextInt(count)];
+				LegacyChunk.LegacyTile t = c.tiles[random.nextInt(LevelData.chunkSize)][random.nextInt(LevelData.chunkSize)];
+				t.terrain = TerrainType.Water;
+				t.height = i & 3;
+			}
+		});
+		long packedEdit = Benchmarks.time(3, 10, () -> {
+			Random random = new Random(1);
+			for (int i = 0; i < edits; i++) {
+				Chunk c = packed[random.nextInt(count)];
+				int index = LevelData.tileIndex(random.nextInt(LevelData.chunkSize), random.nextInt(LevelData.chunkSize));
+				c.setTerrain(index, TerrainType.Water);
+				c.setHeight(index, i & 3);
+			}
+		});
+		logger.info("1M random edits Tile[][]: " + Benchmarks.millis(legacyEdit) + " packed: " + Benchmarks.millis(packedEdit));
+		logger.info("(checksum " + sink[0] + ")");
+	}
+}
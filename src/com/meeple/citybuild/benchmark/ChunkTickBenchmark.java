@@ -0,0 +1,114 @@
+package com.meeple.citybuild.benchmark;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.GameManager;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.WorldGenerator;
+import com.meeple.citybuild.server.sim.ChunkSystem;
+import com.meeple.citybuild.server.sim.ChunkTickContext;
+import com.meeple.citybuild.server.sim.ChunkTickExecutor;
+import com.meeple.shared.Delta;
+
+/**
+ * Measures how the {@link ChunkTickExecutor} scales with the number of threads on a large generated world. <br>
+ * The system ticked is a synthetic erosion that reads the neighbouring tiles across chunk borders and sends
+ * messages to neighbouring chunks, standing in for the real simulation. Each pool size runs the same ticks on a fresh copy
+ * of the world and the height checksums must match, which shows the result does not depend on the thread count. <br>
+ * Usage: ChunkTickBenchmark [radius] [ticks] [max threads]
+ */
+public class ChunkTickBenchmark {
+	private static Logger logger = Logger.getLogger(ChunkTickBenchmark.class);
+
+	public static void main(String[] args) {
+		Benchmarks.setupLogger();
+		int radius = Benchmarks.intArg(args, 0, 12);
+		int ticks = Benchmarks.intArg(args, 1, 20);
+		int maxThreads = Benchmarks.intArg(args, 2, Runtime.getRuntime().availableProcessors());
+		WorldGenerator generator = new WorldGenerator();
+		generator.radius = radius;
+		logger.info(String.format("Chunk tick benchmark, %d chunks, %d ticks, %d cores", radius * radius * 4, ticks, Runtime.getRuntime().availableProcessors()));
+
+		double single = 0;
+		Long expected = null;
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			LevelData level = GameManager.newGame(generator, 42);
+			ChunkTickExecutor executor = new ChunkTickExecutor(level);
+			executor.systems.add(new Erosion());
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			executor.pool = pool;
+			Delta delta = new Delta();
+			delta.nanos = level.scheduler.getTickNanos();
+
+			//warm up on the same world, counted in the checksum like the timed ticks
+			for (int i = 0; i < 3; i++) {
+				executor.tick(delta);
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < ticks; i++) {
+				executor.tick(delta);
+			}
+			double mspt = (System.nanoTime() - start) / (double) ticks / 1e6;
+			pool.shutdown();
+
+			long checksum = checksum(level);
+			if (threads == 1) {
+				single = mspt;
+				expected = checksum;
+			}
+			logger.info(String.format("%2d threads: %.2fms/tick, speedup %.2fx, %d messages/tick, checksum %016x%s", threads, mspt, single / mspt,
+				executor.lastMessages, checksum, checksum == expected ? "" : " MISMATCH"));
+			if (threads < maxThreads && threads * 2 > maxThreads) {
+				threads = maxThreads / 2;
+			}
+		}
+	}
+
+	private static long checksum(LevelData level) {
+		long[] sum = new long[1];
+		level.chunks.forEach((x, y, chunk) -> {
+			long h = LevelData.chunkKey(x, y);
+			for (int i = 0; i < LevelData.chunkTiles; i++) {
+				h = h * 31 + chunk.getHeight(i);
+			}
+			sum[0] += h * 0x9E3779B97F4A7C15L;
+		});
+		return sum[0];
+	}
+
+	/**
+	 * Moves each tile a little towards the average of its four neighbours, and now and then drops sediment on a neighbouring chunk
+	 */
+	static class Erosion implements ChunkSystem {
+
+		@Override
+		public void tick(ChunkTickContext context, Chunk chunk) {
+			int size = LevelData.chunkSize;
+			Chunk west = context.neighbour(-1, 0), east = context.neighbour(1, 0);
+			Chunk south = context.neighbour(0, -1), north = context.neighbour(0, 1);
+			for (int x = 0; x < size; x++) {
+				for (int y = 0; y < size; y++) {
+					int index = LevelData.tileIndex(x, y);
+					int h = chunk.getHeight(index);
+					int w = x > 0 ? chunk.getHeight(index - size) : west == null ? h : west.getHeight(LevelData.tileIndex(size - 1, y));
+					int e = x < size - 1 ? chunk.getHeight(index + size) : east == null ? h : east.getHeight(LevelData.tileIndex(0, y));
+					int s = y > 0 ? chunk.getHeight(index - 1) : south == null ? h : south.getHeight(LevelData.tileIndex(x, size - 1));
+					int n = y < size - 1 ? chunk.getHeight(index + 1) : north == null ? h : north.getHeight(LevelData.tileIndex(x, 0));
+					int target = (w + e + s + n) >> 2;
+					if (target != h) {
+						chunk.setHeight(index, h + (target > h ? 1 : -1));
+					}
+				}
+			}
+			if (context.random().nextInt(4) == 0) {
+				int dx = context.random().nextInt(3) - 1;
+				int dy = context.random().nextInt(3) - 1;
+				int tile = context.random().nextInt(LevelData.chunkTiles);
+				context.send(chunk.chunkX + dx, chunk.chunkY + dy, (target) -> target.setHeight(tile, target.getHeight(tile) + 1));
+			}
+		}
+	}
+}
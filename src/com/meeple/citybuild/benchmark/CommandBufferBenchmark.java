@@ -0,0 +1,112 @@
+package com.meeple.citybuild.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.GameManager;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.WorldGenerator;
+import com.meeple.citybuild.server.WorldGenerator.Tiles;
+import com.meeple.citybuild.server.command.CommandBuffer;
+import com.meeple.citybuild.server.command.TileEdit;
+import com.meeple.citybuild.server.save.EditJournal;
+
+/**
+ * Submits world edits to the {@link CommandBuffer} of a generated level the way the UI does and applies them the way the level thread does. <br>
+ * First a mouse drag painting tiles every frame, three frames per tick, reporting how many edits were coalesced and how many chunks were rebaked,
+ * and checking every painted tile ends up with the last type painted on it. <br>
+ * Then several threads submit edits to random tiles at once, and the time to submit each and to apply them all in one batch is reported. <br>
+ * Usage: CommandBufferBenchmark [producer threads] [edits per thread]
+ */
+public class CommandBufferBenchmark {
+	private static Logger logger = Logger.getLogger(CommandBufferBenchmark.class);
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Benchmarks.setupLogger();
+		int threads = Benchmarks.intArg(args, 0, 4);
+		int perThread = Benchmarks.intArg(args, 1, 250_000);
+		WorldGenerator generator = new WorldGenerator();
+		generator.radius = 4;
+		LevelData level = GameManager.newGame(generator, 42);
+		Path journalPath = Files.createTempFile("journal", EditJournal.extension);
+		level.journal = EditJournal.create(level, journalPath);
+		Chunk[] chunks = level.chunks.values().toArray(new Chunk[0]);
+		logger.info(String.format("Command buffer benchmark, %d chunks, %d producers submitting %d edits each", chunks.length, threads, perThread));
+
+		CommandBuffer commands = level.commands;
+		Tiles[] types = Tiles.values();
+		//a brush of 8x8 tiles dragged across two chunks, one step every 3 frames
+		int frames = 600, rebaked = 0, wrong = 0;
+		Chunk left = level.chunks.get(0, 0), right = level.chunks.get(1, 0);
+		for (int frame = 0; frame < frames; frame++) {
+			int step = frame / 3;
+			Tiles type = types[step % types.length];
+			for (int i = 0; i < 64; i++) {
+				int x = (step + i / 8) % (LevelData.chunkSize * 2), y = 20 + i % 8;
+				Chunk chunk = x < LevelData.chunkSize ? left : right;
+				commands.setType(chunk.getTile(x % LevelData.chunkSize, y), type);
+			}
+			if (frame % 3 == 2) {
+				for (Chunk chunk : chunks) {
+					chunk.rebake.set(false);
+				}
+				commands.apply();
+				for (Chunk chunk : chunks) {
+					rebaked += chunk.rebake.get() ? 1 : 0;
+				}
+			}
+		}
+		int lastStep = (frames - 1) / 3;
+		for (int i = 0; i < 64; i++) {
+			int x = (lastStep + i / 8) % (LevelData.chunkSize * 2), y = 20 + i % 8;
+			Chunk chunk = x < LevelData.chunkSize ? left : right;
+			wrong += chunk.getType(LevelData.tileIndex(x % LevelData.chunkSize, y)) == types[lastStep % types.length] ? 0 : 1;
+		}
+		logger.info(String.format("Mouse drag: %d edits submitted over %d ticks, %d applied, %d coalesced, %d chunk rebakes. %d painted tiles with the wrong type",
+			commands.submitted.get(), frames / 3, commands.applied, commands.coalesced, rebaked, wrong));
+
+		long submittedBefore = commands.submitted.get(), appliedBefore = commands.applied, coalescedBefore = commands.coalesced;
+		long submitTime = submit(threads, perThread, chunks, commands);
+		long start = System.nanoTime();
+		commands.apply();
+		long applyTime = System.nanoTime() - start;
+		logger.info(String.format("%d threads submitting: %d ns for every edit. Applying %d edits took %s, %d changed the world and %d were coalesced",
+			threads, submitTime / (threads * (long) perThread), commands.submitted.get() - submittedBefore, Benchmarks.millis(applyTime), commands.applied - appliedBefore,
+			commands.coalesced - coalescedBefore));
+
+		level.journal.close();
+		Files.deleteIfExists(journalPath);
+	}
+
+	/**
+	 * Submits height edits to random tiles from several threads at once
+	 * @return nanos until every thread was done
+	 */
+	private static long submit(int threads, int perThread, Chunk[] chunks, CommandBuffer commands) throws InterruptedException {
+		List<Thread> producers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			Random random = new Random(t);
+			producers.add(new Thread(() -> {
+				for (int i = 0; i < perThread; i++) {
+					Chunk chunk = chunks[random.nextInt(chunks.length)];
+					commands.submit(new TileEdit(chunk.chunkX, chunk.chunkY, random.nextInt(LevelData.chunkTiles), EditJournal.fieldHeight, random.nextInt(16)));
+				}
+			}, "Producer-" + t));
+		}
+		long start = System.nanoTime();
+		for (Thread producer : producers) {
+			producer.start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,171 @@
+package com.meeple.citybuild.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.BuildingRegistry;
+import com.meeple.citybuild.server.Buildings.BuildingInstance;
+import com.meeple.citybuild.server.economy.Economy;
+import com.meeple.citybuild.server.economy.Recipe;
+import com.meeple.citybuild.server.economy.Recipes;
+import com.meeple.citybuild.server.economy.Resources;
+
+/**
+ * Ticks the {@link Economy} with tens of thousands of buildings: producers of raw resources, workshops refining them and houses consuming food and drink. <br>
+ * Reports the time per tick, and checks the settlement totals kept as stock changes against adding up the stock of every building. <br>
+ * For comparison the same buildings are ticked as objects holding their stock in a map, with the totals added up again every tick. <br>
+ * Usage: EconomyBenchmark [buildings] [ticks]
+ */
+public class EconomyBenchmark {
+	private static Logger logger = Logger.getLogger(EconomyBenchmark.class);
+
+	/**
+	 * A building ticking itself, the way it would be written without the economy
+	 */
+	private static class ObjectBuilding {
+		final Recipe recipe;
+		final int scale;
+		final int[] inputs, inputAmounts, outputs, outputAmounts;
+		int progress;
+		final Map<Integer, Integer> stock = new HashMap<>();
+
+		ObjectBuilding(Recipe recipe, int scale, int progress, int[] inputs, int[] inputAmounts, int[] outputs, int[] outputAmounts) {
+			this.recipe = recipe;
+			this.scale = scale;
+			this.progress = progress;
+			this.inputs = inputs;
+			this.inputAmounts = inputAmounts;
+			this.outputs = outputs;
+			this.outputAmounts = outputAmounts;
+		}
+
+		void tick() {
+			if (++progress < recipe.duration) {
+				return;
+			}
+			for (int k = 0; k < inputs.length; k++) {
+				if (stock.getOrDefault(inputs[k], 0) < inputAmounts[k] * scale) {
+					progress = recipe.duration - 1;
+					return;
+				}
+			}
+			for (int k = 0; k < outputs.length; k++) {
+				if (stock.getOrDefault(outputs[k], 0) + outputAmounts[k] * scale > Economy.stockLimit) {
+					progress = recipe.duration - 1;
+					return;
+				}
+			}
+			for (int k = 0; k < inputs.length; k++) {
+				stock.merge(inputs[k], -inputAmounts[k] * scale, Integer::sum);
+			}
+			for (int k = 0; k < outputs.length; k++) {
+				stock.merge(outputs[k], outputAmounts[k] * scale, Integer::sum);
+			}
+			progress = 0;
+		}
+	}
+
+	public static void main(String[] args) {
+		Benchmarks.setupLogger();
+		int count = Benchmarks.intArg(args, 0, 50_000);
+		int ticks = Benchmarks.intArg(args, 1, 1000);
+		Recipe[] recipes = Recipes.values();
+		Recipe[] producers = Arrays.copyOf(recipes, 8);
+		Recipe[] workshops = { Recipes.kitchen, Recipes.brewery, Recipes.tailor };
+
+		BuildingRegistry registry = new BuildingRegistry();
+		Economy economy = new Economy(registry);
+		Random random = new Random(11);
+		int[] handles = new int[count];
+		for (int i = 0; i < count; i++) {
+			int handle = registry.add(new BuildingInstance());
+			handles[i] = handle;
+			int kind = random.nextInt(10);
+			if (kind < 4) {
+				economy.assign(handle, producers[random.nextInt(producers.length)], 1 + random.nextInt(4));
+			} else {
+				if (kind < 7) {
+					economy.assign(handle, workshops[random.nextInt(workshops.length)], 1 + random.nextInt(4));
+				} else {
+					economy.assign(handle, Recipes.housing, 1 + random.nextInt(8));
+				}
+				//workshops and houses start with some of everything, only the inputs of their recipe matter
+				for (int r = 0; r < Resources.count; r++) {
+					economy.addStock(handle, r, random.nextInt(Economy.stockLimit / 2));
+				}
+			}
+		}
+		logger.info(String.format("Economy benchmark, %d buildings running %d recipes, %d resources", count, recipes.length, Resources.count));
+
+		List<ObjectBuilding> objects = new ArrayList<>();
+		for (int handle : handles) {
+			objects.add(copy(economy, handle));
+		}
+
+		for (int t = 0; t < 100; t++) {
+			economy.tick();
+		}
+		long[] times = new long[ticks];
+		for (int t = 0; t < ticks; t++) {
+			long start = System.nanoTime();
+			economy.tick();
+			times[t] = System.nanoTime() - start;
+		}
+		Arrays.sort(times);
+		long sum = 0;
+		for (long time : times) {
+			sum += time;
+		}
+		logger.info(String.format("Economy tick: average %s, median %s, 99th %s, worst %s. %d cycles, %d buildings stalled on the last tick", Benchmarks.millis(sum / ticks),
+			Benchmarks.millis(times[ticks / 2]), Benchmarks.millis(times[ticks * 99 / 100]), Benchmarks.millis(times[ticks - 1]), economy.cycles, economy.stalled));
+
+		int mismatches = 0;
+		StringBuilder totals = new StringBuilder();
+		for (int r = 0; r < Resources.count; r++) {
+			long total = 0;
+			for (int handle : handles) {
+				total += economy.getStock(handle, r);
+			}
+			if (total != economy.total(r)) {
+				mismatches++;
+			}
+			totals.append(Resources.name(r)).append(' ').append(economy.total(r)).append(r + 1 < Resources.count ? ", " : "");
+		}
+		logger.info(String.format("Totals: %s. %d differ from adding up every building", totals, mismatches));
+
+		long[] objectTotals = new long[Resources.count];
+		int objectTicks = Math.max(1, ticks / 10);
+		long objectTime = Benchmarks.time(1, 1, () -> {
+			for (int t = 0; t < objectTicks; t++) {
+				for (ObjectBuilding building : objects) {
+					building.tick();
+				}
+				Arrays.fill(objectTotals, 0);
+				for (ObjectBuilding building : objects) {
+					for (Map.Entry<Integer, Integer> entry : building.stock.entrySet()) {
+						objectTotals[entry.getKey()] += entry.getValue();
+					}
+				}
+			}
+		});
+		logger.info(String.format("Buildings as objects, summing the totals every tick: %s per tick", Benchmarks.millis(objectTime / objectTicks)));
+	}
+
+	private static ObjectBuilding copy(Economy economy, int handle) {
+		Recipe recipe = economy.getRecipe(handle);
+		ObjectBuilding building = new ObjectBuilding(recipe, economy.getScale(handle), economy.getProgress(handle), recipe.getInputs(), recipe.getInputAmounts(),
+			recipe.getOutputs(), recipe.getOutputAmounts());
+		for (int r = 0; r < Resources.count; r++) {
+			if (economy.getStock(handle, r) > 0) {
+				building.stock.put(r, economy.getStock(handle, r));
+			}
+		}
+		return building;
+	}
+}
@@ -0,0 +1,64 @@
+package com.meeple.citybuild.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.GameManager;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.LevelData.Chunk.Tile;
+import com.meeple.citybuild.server.WorldGenerator;
+import com.meeple.citybuild.server.WorldGenerator.Tiles;
+import com.meeple.citybuild.server.save.EditJournal;
+
+/**
+ * Measures the cost of journaling tile edits against editing the tiles directly, and how long replaying the journal takes. <br>
+ * The edits sweep every tile of the generated chunks like a long drag-paint, with the background sync running. <br>
+ * Usage: EditJournalBenchmark [edits]
+ */
+public class EditJournalBenchmark {
+	private static Logger logger = Logger.getLogger(EditJournalBenchmark.class);
+
+	public static void main(String[] args) throws IOException {
+		Benchmarks.setupLogger();
+		int edits = Benchmarks.intArg(args, 0, 1_000_000);
+		LevelData level = GameManager.newGame(new WorldGenerator(), 1);
+		Chunk[] chunks = level.chunks.values().toArray(new Chunk[0]);
+		Tiles[] tiles = Tiles.values();
+		Path path = Files.createTempFile("journal", EditJournal.extension);
+
+		try (EditJournal journal = EditJournal.create(level, path)) {
+			long direct = Benchmarks.time(2, 5, () -> {
+				for (int i = 0; i < edits; i++) {
+					Chunk chunk = chunks[(i / LevelData.chunkTiles) % chunks.length];
+					chunk.setType(i % LevelData.chunkTiles, tiles[i % tiles.length]);
+				}
+			});
+			level.journal = journal;
+			long journaled = Benchmarks.time(2, 5, () -> {
+				for (int i = 0; i < edits; i++) {
+					Chunk chunk = chunks[(i / LevelData.chunkTiles) % chunks.length];
+					Tile tile = chunk.getTile(0, 0);
+					int index = i % LevelData.chunkTiles;
+					tile.moveTo(index / LevelData.chunkSize, index % LevelData.chunkSize);
+					GameManager.setType(level, tile, tiles[i % tiles.length]);
+				}
+			});
+			journal.sync();
+			logger.info(String.format("%d edits: direct %s (%.1fns/edit), journaled %s (%.1fns/edit)", edits,
+				Benchmarks.millis(direct), direct / (double) edits,
+				Benchmarks.millis(journaled), journaled / (double) edits));
+			logger.info("Journal holds " + journal.records() + " records, " + Benchmarks.megabytes(Files.size(path)));
+		}
+
+		long start = System.nanoTime();
+		try (EditJournal replayed = EditJournal.open(level, path)) {
+			long nanos = System.nanoTime() - start;
+			logger.info(String.format("Replayed %d records in %s (%.1fns/record)", replayed.records(), Benchmarks.millis(nanos), nanos / (double) replayed.records()));
+		}
+		Files.delete(path);
+	}
+}
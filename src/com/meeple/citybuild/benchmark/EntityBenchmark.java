@@ -0,0 +1,160 @@
+package com.meeple.citybuild.benchmark;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.log4j.Logger;
+import org.joml.Vector3f;
+
+import com.meeple.citybuild.server.Entity;
+import com.meeple.citybuild.server.entity.Archetype;
+import com.meeple.citybuild.server.entity.Component;
+import com.meeple.citybuild.server.entity.EntityStore;
+import com.meeple.citybuild.server.entity.EntitySystem;
+import com.meeple.shared.utils.CollectionSuppliers;
+
+/**
+ * Compares moving entities stored as a synchronized set of {@link Entity} objects against the archetype {@link EntityStore}. <br>
+ * Each update integrates velocity into position for every entity, serially and as parallel systems on the common pool.
+ * A third of the entities also have an owner and a job, so the store holds several archetypes like a real city would. <br>
+ * Usage: EntityBenchmark [entities] [updates]
+ */
+public class EntityBenchmark {
+	private static Logger logger = Logger.getLogger(EntityBenchmark.class);
+
+	public static void main(String[] args) {
+		Benchmarks.setupLogger();
+		int entities = Benchmarks.intArg(args, 0, 100_000);
+		int updates = Benchmarks.intArg(args, 1, 20);
+		float dt = 0.05f;
+		logger.info(String.format("Entity benchmark, %d entities, %d updates per run, %d cores", entities, updates, Runtime.getRuntime().availableProcessors()));
+
+		Random random = new Random(1);
+		Set<Entity> set = new CollectionSuppliers.SetSupplier<Entity>().get();
+		final Vector3f[] velocities = new Vector3f[entities];
+		long before = Benchmarks.usedMemory();
+		for (int i = 0; i < entities; i++) {
+			Entity e = new Entity();
+			e.position.set(random.nextFloat() * 1000, random.nextFloat() * 1000, 0);
+			set.add(e);
+			velocities[i] = new Vector3f(random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, 0);
+		}
+		long setMemory = Benchmarks.usedMemory() - before;
+		long setTime = Benchmarks.time(2, 5, () -> {
+			for (int u = 0; u < updates; u++) {
+				synchronized (set) {
+					int i = 0;
+					for (Entity e : set) {
+						e.position.fma(dt, velocities[i++]);
+					}
+				}
+			}
+		});
+		set.clear();
+
+		random = new Random(1);
+		EntityStore store = new EntityStore();
+		int walker = Component.mask(Component.Position, Component.Rotation, Component.Velocity);
+		int citizen = walker | Component.mask(Component.Owner, Component.Job);
+		before = Benchmarks.usedMemory();
+		for (int i = 0; i < entities; i++) {
+			int id = store.create(i % 3 == 0 ? citizen : walker);
+			store.setPosition(id, random.nextFloat() * 1000, random.nextFloat() * 1000, 0);
+			store.setVelocity(id, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, 0);
+		}
+		long storeMemory = Benchmarks.usedMemory() - before;
+		EntitySystem move = new Move(dt);
+		EntitySystem face = new Face();
+		long serialTime = Benchmarks.time(2, 5, () -> {
+			for (int u = 0; u < updates; u++) {
+				store.forEach(move.reads() | move.writes(), move::run);
+			}
+		});
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		long parallelTime = Benchmarks.time(2, 5, () -> {
+			for (int u = 0; u < updates; u++) {
+				store.run(pool, move);
+			}
+		});
+		long systemsTime = Benchmarks.time(2, 5, () -> {
+			for (int u = 0; u < updates; u++) {
+				store.run(pool, move, face);
+			}
+		});
+
+		int[] ids = new int[entities / 10];
+		long churnTime = Benchmarks.time(2, 5, () -> {
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = i * 10;
+				store.destroy(ids[i]);
+			}
+			for (int i = 0; i < ids.length; i++) {
+				store.create(i % 3 == 0 ? citizen : walker);
+			}
+		});
+
+		logger.info(String.format("Set<Entity>: %s per update (%.1fns/entity), %s", Benchmarks.millis(setTime / updates), setTime / (double) updates / entities,
+			Benchmarks.megabytes(setMemory)));
+		logger.info(String.format("EntityStore serial: %s per update (%.1fns/entity), %s", Benchmarks.millis(serialTime / updates), serialTime / (double) updates / entities,
+			Benchmarks.megabytes(storeMemory)));
+		logger.info(String.format("EntityStore parallel: %s per update, with a second system %s per update", Benchmarks.millis(parallelTime / updates),
+			Benchmarks.millis(systemsTime / updates)));
+		logger.info(String.format("Destroy and create %d entities: %s (%.1fns/entity)", ids.length, Benchmarks.millis(churnTime), churnTime / (double) ids.length / 2));
+	}
+
+	/**
+	 * position += velocity * dt
+	 */
+	static class Move implements EntitySystem {
+		final float dt;
+
+		Move(float dt) {
+			this.dt = dt;
+		}
+
+		@Override
+		public int reads() {
+			return Component.Velocity.mask;
+		}
+
+		@Override
+		public int writes() {
+			return Component.Position.mask;
+		}
+
+		@Override
+		public void run(Archetype archetype, int from, int to) {
+			float[] position = archetype.floats(Component.Position);
+			float[] velocity = archetype.floats(Component.Velocity);
+			for (int i = from * 3; i < to * 3; i++) {
+				position[i] += velocity[i] * dt;
+			}
+		}
+	}
+
+	/**
+	 * Turns to face along the velocity. Does not touch position so it runs alongside {@link Move}
+	 */
+	static class Face implements EntitySystem {
+
+		@Override
+		public int reads() {
+			return Component.Velocity.mask;
+		}
+
+		@Override
+		public int writes() {
+			return Component.Rotation.mask;
+		}
+
+		@Override
+		public void run(Archetype archetype, int from, int to) {
+			float[] rotation = archetype.floats(Component.Rotation);
+			float[] velocity = archetype.floats(Component.Velocity);
+			for (int row = from; row < to; row++) {
+				rotation[row * 3 + 2] = (float) Math.atan2(velocity[row * 3 + 1], velocity[row * 3]);
+			}
+		}
+	}
+}
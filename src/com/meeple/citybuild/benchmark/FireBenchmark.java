@@ -0,0 +1,202 @@
+package com.meeple.citybuild.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiPredicate;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.GameManager;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.WorldGenerator;
+import com.meeple.citybuild.server.WorldGenerator.Tiles;
+import com.meeple.citybuild.server.save.EditJournal;
+import com.meeple.citybuild.server.sim.ChunkSystem;
+import com.meeple.citybuild.server.sim.ChunkTickContext;
+import com.meeple.citybuild.server.sim.ChunkTickExecutor;
+import com.meeple.citybuild.server.sim.FireSystem;
+import com.meeple.shared.Delta;
+
+/**
+ * Starts fires in a generated world scattered with houses, tents, farms and mines and lets them spread through the {@link FireSystem}. <br>
+ * Reports the time per tick against a fire that scans every tile of every chunk each tick, checks no tick works on more burning tiles
+ * than the budget, and burns the same world again with a different number of threads to check the result matches. <br>
+ * Usage: FireBenchmark [radius] [ticks] [tiles per tick]
+ */
+public class FireBenchmark {
+	private static Logger logger = Logger.getLogger(FireBenchmark.class);
+
+	public static void main(String[] args) throws IOException {
+		Benchmarks.setupLogger();
+		int radius = Benchmarks.intArg(args, 0, 8);
+		int ticks = Benchmarks.intArg(args, 1, 300);
+		int tilesPerTick = Benchmarks.intArg(args, 2, 16384);
+		logger.info(String.format("Fire benchmark, %d chunks, %d ticks, %d burning tiles per tick at most", radius * radius * 4, ticks, tilesPerTick));
+
+		long[] single = burn(radius, ticks, tilesPerTick, 1, true);
+		int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+		long[] parallel = burn(radius, ticks, tilesPerTick, threads, false);
+		logger.info(String.format("Burnt tile checksum with 1 thread %016x, with %d threads %016x%s", single[0], threads, parallel[0], single[0] == parallel[0] ? "" : " MISMATCH"));
+
+		LevelData level = world(radius);
+		ChunkTickExecutor executor = new ChunkTickExecutor(level);
+		executor.systems.add(new ScanningFire(level));
+		Delta delta = new Delta();
+		delta.nanos = level.scheduler.getTickNanos();
+		long start = System.nanoTime();
+		for (int t = 0; t < ticks; t++) {
+			executor.tick(delta);
+		}
+		logger.info(String.format("Scanning every tile each tick: %s per tick", Benchmarks.millis((System.nanoTime() - start) / ticks)));
+	}
+
+	/**
+	 * Burns a fresh world
+	 * @return checksum of the burnt tiles
+	 */
+	private static long[] burn(int radius, int ticks, int tilesPerTick, int threads, boolean report) throws IOException {
+		LevelData level = world(radius);
+		Path journalPath = Files.createTempFile("journal", EditJournal.extension);
+		level.journal = EditJournal.create(level, journalPath);
+		ChunkTickExecutor executor = new ChunkTickExecutor(level);
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		executor.pool = pool;
+		FireSystem fire = new FireSystem(level);
+		fire.tilesPerTick = tilesPerTick;
+		executor.systems.add(fire);
+		ignite(level, fire::ignite);
+		Delta delta = new Delta();
+		delta.nanos = level.scheduler.getTickNanos();
+
+		long total = 0, worst = 0;
+		int mostProcessed = 0, mostBurning = 0, mostChunks = 0;
+		for (int t = 0; t < ticks; t++) {
+			long start = System.nanoTime();
+			executor.tick(delta);
+			long time = System.nanoTime() - start;
+			total += time;
+			worst = Math.max(worst, time);
+			mostProcessed = Math.max(mostProcessed, fire.lastProcessed);
+			mostBurning = Math.max(mostBurning, fire.burning);
+			mostChunks = Math.max(mostChunks, fire.burningChunks);
+			if (report && (t + 1) % (ticks / 5) == 0) {
+				logger.info(String.format("tick %d: %d tiles burning in %d chunks, %d worked on last tick", t + 1, fire.burning, fire.burningChunks, fire.lastProcessed));
+			}
+		}
+		pool.shutdown();
+		fire.close();
+
+		long checksum = 0;
+		int burnt = 0;
+		for (Chunk chunk : level.chunks.values()) {
+			long h = LevelData.chunkKey(chunk.chunkX, chunk.chunkY);
+			for (int index = 0; index < LevelData.chunkTiles; index++) {
+				if (fire.isBurnt(chunk, index)) {
+					h = h * 31 + index;
+					burnt++;
+				}
+				h = h * 31 + (fire.isBurning(chunk, index) ? 1 : 0);
+			}
+			checksum += h * 0x9E3779B97F4A7C15L;
+		}
+		if (report) {
+			logger.info(String.format("Active set, %d thread: average %s per tick, worst %s. At most %d tiles burning in %d chunks and %d worked on in a tick, %d burnt",
+				threads, Benchmarks.millis(total / ticks), Benchmarks.millis(worst), mostBurning, mostChunks, mostProcessed, burnt));
+		}
+		level.journal.close();
+		Files.deleteIfExists(journalPath);
+		return new long[] { checksum };
+	}
+
+	/**
+	 * @return a generated world with blocks of buildings scattered over it
+	 */
+	private static LevelData world(int radius) {
+		WorldGenerator generator = new WorldGenerator();
+		generator.radius = radius;
+		LevelData level = GameManager.newGame(generator, 42);
+		Tiles[] types = { Tiles.House, Tiles.Tent, Tiles.TreeFarm, Tiles.CropFarm, Tiles.StoneMine };
+		for (Chunk chunk : level.chunks.values()) {
+			Random random = new Random(WorldGenerator.chunkSeed(7, chunk.chunkX, chunk.chunkY));
+			for (int block = 0; block < 24; block++) {
+				Tiles type = types[random.nextInt(types.length)];
+				int bx = random.nextInt(LevelData.chunkSize - 8), by = random.nextInt(LevelData.chunkSize - 8);
+				for (int x = bx; x < bx + 8; x++) {
+					for (int y = by; y < by + 8; y++) {
+						chunk.setType(LevelData.tileIndex(x, y), type);
+					}
+				}
+			}
+		}
+		return level;
+	}
+
+	private static void ignite(LevelData level, BiPredicate<Chunk, Integer> lighter) {
+		Random random = new Random(3);
+		Chunk[] chunks = level.chunks.values().toArray(new Chunk[0]);
+		int lit = 0;
+		while (lit < 20) {
+			Chunk chunk = chunks[random.nextInt(chunks.length)];
+			if (lighter.test(chunk, random.nextInt(LevelData.chunkTiles))) {
+				lit++;
+			}
+		}
+	}
+
+	/**
+	 * The same rules without the active set: every tile of every chunk is looked at each tick to find the burning ones.
+	 * Fire does not cross into other chunks, which only makes it cheaper
+	 */
+	private static class ScanningFire implements ChunkSystem {
+		static final byte none = 0, burning = 1, burnt = 2;
+		final Map<Long, byte[]> states = new ConcurrentHashMap<>();
+
+		ScanningFire(LevelData level) {
+			for (Chunk chunk : level.chunks.values()) {
+				states.put(LevelData.chunkKey(chunk.chunkX, chunk.chunkY), new byte[LevelData.chunkTiles]);
+			}
+			ignite(level, (chunk, index) -> {
+				byte[] state = states.get(LevelData.chunkKey(chunk.chunkX, chunk.chunkY));
+				if (FireSystem.ignition(chunk, index) == 0 || state[index] != none) {
+					return false;
+				}
+				state[index] = burning;
+				return true;
+			});
+		}
+
+		@Override
+		public void tick(ChunkTickContext context, Chunk chunk) {
+			byte[] state = states.get(LevelData.chunkKey(chunk.chunkX, chunk.chunkY));
+			byte[] next = state.clone();
+			int size = LevelData.chunkSize;
+			for (int x = 0; x < size; x++) {
+				for (int y = 0; y < size; y++) {
+					int index = LevelData.tileIndex(x, y);
+					if (state[index] != burning) {
+						continue;
+					}
+					for (int side = 0; side < 4; side++) {
+						int nx = x + (side == 0 ? -1 : side == 1 ? 1 : 0), ny = y + (side == 2 ? -1 : side == 3 ? 1 : 0);
+						if (nx >= 0 && nx < size && ny >= 0 && ny < size) {
+							int n = LevelData.tileIndex(nx, ny);
+							if (next[n] == none && context.random().nextInt(256) < FireSystem.ignition(chunk, n)) {
+								next[n] = burning;
+							}
+						}
+					}
+					if (context.random().nextInt(256) < FireSystem.burnOutChance) {
+						next[index] = burnt;
+					}
+				}
+			}
+			System.arraycopy(next, 0, state, 0, next.length);
+		}
+	}
+}
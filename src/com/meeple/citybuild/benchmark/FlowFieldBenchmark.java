@@ -0,0 +1,167 @@
+package com.meeple.citybuild.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.GameManager;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.LevelData.Chunk.Tile;
+import com.meeple.citybuild.server.WorldGenerator;
+import com.meeple.citybuild.server.WorldGenerator.TerrainType;
+import com.meeple.citybuild.server.path.FlowField;
+import com.meeple.citybuild.server.path.Pathfinder;
+import com.meeple.citybuild.server.save.EditJournal;
+
+/**
+ * Walks a crowd of agents to one destination by sampling a {@link FlowField}, against searching a path for each of them. <br>
+ * Every agent follows the field one tile at a time and must arrive in exactly the distance the field gave, on walkable tiles.
+ * The distances are compared with the shortest ones from a breadth first search over every tile. <br>
+ * Then a tile is edited and the crowd walked again to show how many chunks of the field were rebuilt. <br>
+ * Usage: FlowFieldBenchmark [radius] [agents]
+ */
+public class FlowFieldBenchmark {
+	private static Logger logger = Logger.getLogger(FlowFieldBenchmark.class);
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Benchmarks.setupLogger();
+		int radius = Benchmarks.intArg(args, 0, 12);
+		int agents = Benchmarks.intArg(args, 1, 1000);
+		WorldGenerator generator = new WorldGenerator();
+		generator.radius = radius;
+		LevelData level = GameManager.newGame(generator, 42);
+		Path journalPath = Files.createTempFile("journal", EditJournal.extension);
+		level.journal = EditJournal.create(level, journalPath);
+		Pathfinder paths = new Pathfinder(level);
+		do {
+			paths.tick();
+			Thread.sleep(1);
+		} while (paths.isRebuilding());
+
+		int min = -radius * LevelData.chunkSize;
+		int width = radius * 2 * LevelData.chunkSize;
+		List<int[]> land = new ArrayList<>();
+		boolean[] walkable = PathfindingBenchmark.walkable(level, radius, land);
+		int[] distance = new int[width * width];
+		int[] queue = new int[width * width];
+		List<int[]> island = PathfindingBenchmark.largestIsland(walkable, width, min, land, distance, queue);
+		Random random = new Random(5);
+		int[] goal = island.get(random.nextInt(island.size()));
+		int[][] starts = new int[agents][];
+		for (int i = 0; i < agents; i++) {
+			starts[i] = island.get(random.nextInt(island.size()));
+		}
+		logger.info(String.format("Flow field benchmark, %d agents heading to %d, %d on an island of %d tiles", agents, goal[0], goal[1], island.size()));
+
+		long start = System.nanoTime();
+		FlowField field = paths.flowField(goal[0], goal[1]);
+		long create = System.nanoTime() - start;
+		start = System.nanoTime();
+		long steps = walk(field, starts, walkable, width, min);
+		long first = System.nanoTime() - start;
+		int chunks = field.chunksBuilt;
+		start = System.nanoTime();
+		walk(field, starts, walkable, width, min);
+		long again = System.nanoTime() - start;
+		logger.info(String.format("Portal search %s, first walk %s building %d chunks, walking again %s (%.1fns/step over %d steps)", Benchmarks.millis(create),
+			Benchmarks.millis(first), chunks, Benchmarks.millis(again), again / (double) steps, steps));
+
+		flood(walkable, width, min, goal, distance, queue);
+		double stretch = 0, worst = 1;
+		for (int[] s : starts) {
+			int shortest = distance[(s[0] - min) * width + s[1] - min];
+			if (shortest > 0) {
+				double ratio = field.distance(s[0], s[1]) / (double) shortest;
+				stretch += ratio;
+				worst = Math.max(worst, ratio);
+			}
+		}
+		logger.info(String.format("Distance against shortest: average %.3fx, worst %.3fx", stretch / agents, worst));
+
+		start = System.nanoTime();
+		for (int[] s : starts) {
+			paths.find(s[0], s[1], goal[0], goal[1]);
+		}
+		logger.info(String.format("Searching a path for every agent instead: %s", Benchmarks.millis(System.nanoTime() - start)));
+
+		//block a tile along the way of the first agent
+		int x = starts[0][0], y = starts[0][1];
+		for (int i = 0; i < field.distance(starts[0][0], starts[0][1]) / 2; i++) {
+			int direction = field.direction(x, y);
+			x += FlowField.stepX(direction);
+			y += FlowField.stepY(direction);
+		}
+		Chunk chunk = level.chunks.get(Math.floorDiv(x, LevelData.chunkSize), Math.floorDiv(y, LevelData.chunkSize));
+		Tile tile = chunk.getTile(Math.floorMod(x, LevelData.chunkSize), Math.floorMod(y, LevelData.chunkSize));
+		GameManager.setTerrain(level, tile, TerrainType.Water);
+		walkable[(x - min) * width + y - min] = false;
+		do {
+			paths.tick();
+			Thread.sleep(1);
+		} while (paths.isRebuilding());
+		int before = field.chunksBuilt;
+		walk(field, starts, walkable, width, min);
+		logger.info(String.format("After blocking %d, %d the walk rebuilt %d of %d chunks", x, y, field.chunksBuilt - before, chunks));
+
+		paths.close();
+		level.journal.close();
+		Files.delete(journalPath);
+	}
+
+	/**
+	 * Walks every agent to the destination
+	 * @return total steps taken
+	 */
+	private static long walk(FlowField field, int[][] starts, boolean[] walkable, int width, int min) {
+		long steps = 0;
+		int lost = 0;
+		for (int[] s : starts) {
+			int x = s[0], y = s[1];
+			int expected = field.distance(x, y);
+			int taken = 0;
+			int direction;
+			while ((direction = field.direction(x, y)) != FlowField.none && taken <= expected) {
+				x += FlowField.stepX(direction);
+				y += FlowField.stepY(direction);
+				taken++;
+				if (!walkable[(x - min) * width + y - min]) {
+					break;
+				}
+			}
+			if (expected < 0 || taken != expected || x != field.toX || y != field.toY) {
+				lost++;
+			}
+			steps += taken;
+		}
+		if (lost > 0) {
+			logger.warn(lost + " agents did not reach the destination as expected");
+		}
+		return steps;
+	}
+
+	private static void flood(boolean[] walkable, int width, int min, int[] goal, int[] distance, int[] queue) {
+		Arrays.fill(distance, -1);
+		int head = 0, tail = 0;
+		int start = (goal[0] - min) * width + goal[1] - min;
+		queue[tail++] = start;
+		distance[start] = 0;
+		while (head < tail) {
+			int index = queue[head++];
+			int x = index / width, y = index % width;
+			for (int side = 0; side < 4; side++) {
+				int nx = x + (side == 0 ? 1 : side == 1 ? -1 : 0), ny = y + (side == 2 ? 1 : side == 3 ? -1 : 0);
+				if (nx >= 0 && ny >= 0 && nx < width && ny < width && walkable[nx * width + ny] && distance[nx * width + ny] < 0) {
+					distance[nx * width + ny] = distance[index] + 1;
+					queue[tail++] = nx * width + ny;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package com.meeple.citybuild.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.GameManager;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.LevelData.Chunk.Tile;
+import com.meeple.citybuild.server.WorldGenerator;
+import com.meeple.citybuild.server.WorldGenerator.TerrainType;
+import com.meeple.citybuild.server.path.Pathfinder;
+import com.meeple.citybuild.server.save.EditJournal;
+
+/**
+ * Measures the {@link Pathfinder} on a generated world: building the graph, searching between random walkable tiles,
+ * serving the same searches from the cache and as batched requests, and rebuilding after an edit. <br>
+ * Every path is checked to be walkable and step by step, and its length compared with the shortest path found
+ * by a breadth first search over every tile of the level. <br>
+ * Usage: PathfindingBenchmark [radius] [searches]
+ */
+public class PathfindingBenchmark {
+	private static Logger logger = Logger.getLogger(PathfindingBenchmark.class);
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Benchmarks.setupLogger();
+		int radius = Benchmarks.intArg(args, 0, 12);
+		int count = Benchmarks.intArg(args, 1, 200);
+		WorldGenerator generator = new WorldGenerator();
+		generator.radius = radius;
+		LevelData level = GameManager.newGame(generator, 42);
+		Path journalPath = Files.createTempFile("journal", EditJournal.extension);
+		level.journal = EditJournal.create(level, journalPath);
+		Pathfinder paths = new Pathfinder(level);
+
+		long start = System.nanoTime();
+		long maxTick = 0;
+		do {
+			long tick = System.nanoTime();
+			paths.tick();
+			maxTick = Math.max(maxTick, System.nanoTime() - tick);
+			Thread.sleep(1);
+		} while (paths.isRebuilding());
+		logger.info(String.format("Built %d clusters in %s, longest tick %s", paths.clusterCount(), Benchmarks.millis(System.nanoTime() - start), Benchmarks.millis(maxTick)));
+
+		int min = -radius * LevelData.chunkSize;
+		int width = radius * 2 * LevelData.chunkSize;
+		List<int[]> land = new ArrayList<>();
+		boolean[] walkable = walkable(level, radius, land);
+		//most searches go between tiles on the largest island, the rest have no path
+		int[] distance = new int[width * width];
+		int[] queue = new int[width * width];
+		List<int[]> island = largestIsland(walkable, width, min, land, distance, queue);
+		logger.info(String.format("%d walkable tiles, %d on the largest island", land.size(), island.size()));
+		Random random = new Random(3);
+		int[][] pairs = new int[count][];
+		for (int i = 0; i < count; i++) {
+			int[] from = island.get(random.nextInt(island.size()));
+			int[] to = (i % 10 == 0 ? land : island).get(random.nextInt(i % 10 == 0 ? land.size() : island.size()));
+			pairs[i] = new int[] { from[0], from[1], to[0], to[1] };
+		}
+
+		long searchTime = 0, slowest = 0;
+		int found = 0, invalid = 0, missed = 0;
+		double stretch = 0, worst = 1;
+		for (int[] pair : pairs) {
+			long t = System.nanoTime();
+			com.meeple.citybuild.server.path.Path path = paths.find(pair[0], pair[1], pair[2], pair[3]);
+			t = System.nanoTime() - t;
+			searchTime += t;
+			slowest = Math.max(slowest, t);
+			int shortest = shortest(walkable, width, min, pair, distance, queue);
+			if (path.found != shortest >= 0) {
+				missed++;
+				continue;
+			}
+			if (!path.found) {
+				continue;
+			}
+			found++;
+			if (!valid(path, walkable, width, min)) {
+				invalid++;
+			}
+			if (shortest > 0) {
+				double ratio = path.length() / (double) shortest;
+				stretch += ratio;
+				worst = Math.max(worst, ratio);
+			}
+		}
+		logger.info(String.format("%d searches, %d found: %.1fus/search, slowest %s. %d invalid, %d disagree with the full search", count, found,
+			searchTime / (double) count / 1e3, Benchmarks.millis(slowest), invalid, missed));
+		logger.info(String.format("Path length against shortest: average %.3fx, worst %.3fx", stretch / Math.max(1, found), worst));
+
+		long cached = Benchmarks.time(1, 3, () -> {
+			for (int[] pair : pairs) {
+				paths.find(pair[0], pair[1], pair[2], pair[3]);
+			}
+		});
+		logger.info(String.format("Cached: %.2fus/search, %d hits", cached / (double) count / 1e3, paths.cacheHits.get()));
+
+		int[] delivered = { 0 };
+		start = System.nanoTime();
+		maxTick = 0;
+		for (int[] pair : pairs) {
+			paths.request(pair[2], pair[3], pair[0], pair[1], (path) -> delivered[0]++);
+		}
+		while (paths.pending() > 0) {
+			long tick = System.nanoTime();
+			paths.tick();
+			maxTick = Math.max(maxTick, System.nanoTime() - tick);
+			Thread.sleep(1);
+		}
+		logger.info(String.format("%d requests delivered in %s, longest tick %s", delivered[0], Benchmarks.millis(System.nanoTime() - start), Benchmarks.millis(maxTick)));
+
+		Chunk chunk = level.chunks.get(0, 0);
+		edit(level, paths, chunk.getTile(10, 10), "inside a chunk");
+		edit(level, paths, chunk.getTile(LevelData.chunkSize - 1, 10), "on the side of a chunk");
+
+		paths.close();
+		level.journal.close();
+		Files.delete(journalPath);
+	}
+
+	private static void edit(LevelData level, Pathfinder paths, Tile tile, String where) throws InterruptedException {
+		long before = paths.clustersBuilt.get();
+		TerrainType old = tile.getTerrain();
+		GameManager.setTerrain(level, tile, old == TerrainType.Water ? TerrainType.Grass : TerrainType.Water);
+		do {
+			paths.tick();
+			Thread.sleep(1);
+		} while (paths.isRebuilding());
+		logger.info(String.format("Edit %s rebuilt %d clusters in %s", where, paths.clustersBuilt.get() - before, Benchmarks.millis(paths.lastRebuildNanos)));
+	}
+
+	/**
+	 * Every tile of the level in one grid for the reference search, indexed by (x - min) * width + y - min
+	 * where min is -radius * {@link LevelData#chunkSize} and width twice that
+	 * @param land filled with x, y of every walkable tile
+	 */
+	static boolean[] walkable(LevelData level, int radius, List<int[]> land) {
+		int min = -radius * LevelData.chunkSize;
+		int width = radius * 2 * LevelData.chunkSize;
+		boolean[] walkable = new boolean[width * width];
+		level.chunks.forEach((cx, cy, chunk) -> {
+			for (int x = 0; x < LevelData.chunkSize; x++) {
+				for (int y = 0; y < LevelData.chunkSize; y++) {
+					TerrainType terrain = chunk.getTerrain(LevelData.tileIndex(x, y));
+					if (terrain != TerrainType.Empty && terrain != TerrainType.Water) {
+						int gx = cx * LevelData.chunkSize + x, gy = cy * LevelData.chunkSize + y;
+						walkable[(gx - min) * width + gy - min] = true;
+						land.add(new int[] { gx, gy });
+					}
+				}
+			}
+		});
+		return walkable;
+	}
+
+	private static boolean valid(com.meeple.citybuild.server.path.Path path, boolean[] walkable, int width, int min) {
+		int x = path.fromX, y = path.fromY;
+		for (int i = 0; i < path.length(); i++) {
+			int nx = path.getX(i), ny = path.getY(i);
+			if (Math.abs(nx - x) + Math.abs(ny - y) != 1 || !walkable[(nx - min) * width + ny - min]) {
+				return false;
+			}
+			x = nx;
+			y = ny;
+		}
+		return x == path.toX && y == path.toY;
+	}
+
+	static List<int[]> largestIsland(boolean[] walkable, int width, int min, List<int[]> land, int[] label, int[] queue) {
+		Arrays.fill(label, -1);
+		int best = -1, bestSize = 0, next = 0;
+		for (int[] tile : land) {
+			int start = (tile[0] - min) * width + tile[1] - min;
+			if (label[start] >= 0) {
+				continue;
+			}
+			int head = 0, tail = 0;
+			queue[tail++] = start;
+			label[start] = next;
+			while (head < tail) {
+				int index = queue[head++];
+				int x = index / width, y = index % width;
+				for (int side = 0; side < 4; side++) {
+					int nx = x + (side == 0 ? 1 : side == 1 ? -1 : 0), ny = y + (side == 2 ? 1 : side == 3 ? -1 : 0);
+					if (nx >= 0 && ny >= 0 && nx < width && ny < width && walkable[nx * width + ny] && label[nx * width + ny] < 0) {
+						label[nx * width + ny] = next;
+						queue[tail++] = nx * width + ny;
+					}
+				}
+			}
+			if (tail > bestSize) {
+				bestSize = tail;
+				best = next;
+			}
+			next++;
+		}
+		List<int[]> island = new ArrayList<>();
+		for (int[] tile : land) {
+			if (label[(tile[0] - min) * width + tile[1] - min] == best) {
+				island.add(tile);
+			}
+		}
+		return island;
+	}
+
+	/**
+	 * @return steps of the shortest path over every tile, -1 if there is none
+	 */
+	static int shortest(boolean[] walkable, int width, int min, int[] pair, int[] distance, int[] queue) {
+		Arrays.fill(distance, -1);
+		int start = (pair[0] - min) * width + pair[1] - min;
+		int goal = (pair[2] - min) * width + pair[3] - min;
+		int head = 0, tail = 0;
+		queue[tail++] = start;
+		distance[start] = 0;
+		while (head < tail) {
+			int index = queue[head++];
+			if (index == goal) {
+				return distance[index];
+			}
+			int x = index / width, y = index % width;
+			for (int side = 0; side < 4; side++) {
+				int nx = x + (side == 0 ? 1 : side == 1 ? -1 : 0), ny = y + (side == 2 ? 1 : side == 3 ? -1 : 0);
+				if (nx < 0 || ny < 0 || nx >= width || ny >= width) {
+					continue;
+				}
+				int next = nx * width + ny;
+				if (walkable[next] && distance[next] < 0) {
+					distance[next] = distance[index] + 1;
+					queue[tail++] = next;
+				}
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,179 @@
+package com.meeple.citybuild.benchmark;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.client.net.ServerConnection;
+import com.meeple.citybuild.server.CityGameManager;
+import com.meeple.citybuild.server.GameManager;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.WorldGenerator;
+import com.meeple.citybuild.server.WorldGenerator.TerrainType;
+import com.meeple.citybuild.server.command.TileEdit;
+import com.meeple.citybuild.server.net.ChunkReplicator;
+import com.meeple.citybuild.server.net.DedicatedServer;
+import com.meeple.citybuild.server.save.EditJournal;
+import com.meeple.shared.Delta;
+
+/**
+ * Serves a generated level on 127.0.0.1 to clients that replicate it while other clients paint tiles the way a mouse drag does. <br>
+ * Reports the bytes and time for the clients to be sent the level when they join, then the bytes sent per tick and per changed tile
+ * while the painters edit, against the bytes of sending every changed chunk whole each tick. At the end every replica is checked
+ * tile by tile against the level. <br>
+ * Usage: ReplicationBenchmark [ticks] [replicating clients] [painting clients] [edits per painter per tick]
+ */
+public class ReplicationBenchmark {
+	private static Logger logger = Logger.getLogger(ReplicationBenchmark.class);
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Benchmarks.setupLogger();
+		Logger.getLogger(DedicatedServer.class).setLevel(Level.WARN);
+		Logger.getLogger(ServerConnection.class).setLevel(Level.WARN);
+		int ticks = Benchmarks.intArg(args, 0, 200);
+		int replicaCount = Benchmarks.intArg(args, 1, 4);
+		int painterCount = Benchmarks.intArg(args, 2, 2);
+		int editsPerTick = Benchmarks.intArg(args, 3, 32);
+		WorldGenerator generator = new WorldGenerator();
+		generator.radius = 4;
+		LevelData level = GameManager.newGame(generator, 42);
+		Path journalPath = Files.createTempFile("journal", EditJournal.extension);
+		level.journal = EditJournal.create(level, journalPath);
+		Chunk[] chunks = level.chunks.values().toArray(new Chunk[0]);
+		DedicatedServer server = new DedicatedServer(level, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		ChunkReplicator replication = server.replication;
+		CityGameManager city = new CityGameManager(level);
+		Delta delta = new Delta();
+		delta.nanos = level.scheduler.getTickNanos();
+		logger.info(String.format("Replication benchmark, %d chunks, %d replicating clients, %d painters drawing %d tiles a tick each, %d ticks",
+			chunks.length, replicaCount, painterCount, editsPerTick, ticks));
+
+		//joining
+		List<ServerConnection> replicas = new ArrayList<>();
+		long joinStart = System.nanoTime();
+		for (int i = 0; i < replicaCount; i++) {
+			replicas.add(ServerConnection.connect(server.getAddress(), true));
+		}
+		city.levelTick(delta);
+		server.tick();
+		boolean joined = false;
+		while (!joined && System.nanoTime() - joinStart < 10_000_000_000l) {
+			joined = true;
+			for (ServerConnection replica : replicas) {
+				joined &= replica.chunksIn >= chunks.length;
+			}
+			Thread.sleep(1);
+		}
+		long joinNanos = System.nanoTime() - joinStart;
+		long joinBytes = server.bytesOut.get();
+		long chunkBytes = joinBytes / Math.max(1, replication.chunksSent);
+		logger.info(String.format("Join: %s to send %d chunks to %d clients, %s in all, %d bytes a chunk against %d raw",
+			Benchmarks.millis(joinNanos), replication.chunksSent, replicaCount, Benchmarks.megabytes(joinBytes), chunkBytes, LevelData.rawBytes));
+
+		//painting
+		List<ServerConnection> painters = new ArrayList<>();
+		List<int[]> strokes = new ArrayList<>();
+		int terrainTypes = TerrainType.values().length;
+		Random random = new Random(1);
+		for (int i = 0; i < painterCount; i++) {
+			painters.add(ServerConnection.connect(server.getAddress(), false));
+			strokes.add(new int[] { random.nextInt(chunks.length), random.nextInt(LevelData.chunkTiles) });
+		}
+		long bytesBefore = server.bytesOut.get(), editsBefore = server.editsIn;
+		long sectionsBefore = replication.sectionsSent, tilesBefore = replication.tilesSent, chunksBefore = replication.chunksSent;
+		long[] times = new long[ticks];
+		long next = System.nanoTime();
+		for (int t = 0; t < ticks; t++) {
+			for (int p = 0; p < painters.size(); p++) {
+				//a drag walks along the tiles of a chunk and now and then onto another chunk
+				int[] stroke = strokes.get(p);
+				if (random.nextInt(20) == 0) {
+					stroke[0] = random.nextInt(chunks.length);
+				}
+				Chunk chunk = chunks[stroke[0]];
+				for (int i = 0; i < editsPerTick; i++) {
+					stroke[1] = (stroke[1] + 1) % LevelData.chunkTiles;
+					if (i % 2 == 0) {
+						painters.get(p).submit(new TileEdit(chunk.chunkX, chunk.chunkY, stroke[1], EditJournal.fieldHeight, random.nextInt(16)));
+					} else {
+						painters.get(p).submit(new TileEdit(chunk.chunkX, chunk.chunkY, stroke[1], EditJournal.fieldTerrain, random.nextInt(terrainTypes)));
+					}
+				}
+			}
+			long tickStart = System.nanoTime();
+			city.levelTick(delta);
+			server.tick();
+			times[t] = System.nanoTime() - tickStart;
+			next += delta.nanos;
+			long wait = next - System.nanoTime();
+			if (wait > 0) {
+				Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+			}
+		}
+		//let the last edits in and the last tiles out
+		Thread.sleep(500);
+		city.levelTick(delta);
+		server.tick();
+		Thread.sleep(500);
+
+		long bytes = server.bytesOut.get() - bytesBefore;
+		long tiles = replication.tilesSent - tilesBefore;
+		long changedChunks = replication.sectionsSent - sectionsBefore + replication.chunksSent - chunksBefore;
+		long wholeBytes = changedChunks * chunkBytes;
+		double seconds = (ticks + 1) * delta.nanos / 1e9;
+		long total = 0;
+		for (long time : times) {
+			total += time;
+		}
+		logger.info(String.format("Painting: tick avg %s. %d edits in, %d tiles sent, %s out (%s/s), %.1f bytes a tile",
+			Benchmarks.millis(total / ticks), server.editsIn - editsBefore, tiles, Benchmarks.megabytes(bytes), Benchmarks.megabytes((long) (bytes / seconds)),
+			bytes / (double) Math.max(1, tiles)));
+		logger.info(String.format("Sending changed chunks whole instead: %s out (%s/s), %.1fx the bytes",
+			Benchmarks.megabytes(wholeBytes), Benchmarks.megabytes((long) (wholeBytes / seconds)), wholeBytes / (double) Math.max(1, bytes)));
+		logger.info(String.format("Pool: %d buffers allocated, %d reused, %d chunks and sections encoded", server.pool.allocated.get(),
+			server.pool.reused.get(), replication.encoded));
+
+		//check the replicas
+		int wrong = 0, missing = 0;
+		for (ServerConnection replica : replicas) {
+			if (!replica.isConnected()) {
+				missing += chunks.length;
+				continue;
+			}
+			for (Chunk chunk : level.chunks.values()) {
+				Chunk copy = replica.world.chunks.get(chunk.chunkX, chunk.chunkY);
+				if (copy == null) {
+					missing++;
+					continue;
+				}
+				for (int i = 0; i < LevelData.chunkTiles; i++) {
+					if (copy.getTerrain(i) != chunk.getTerrain(i) || copy.getType(i) != chunk.getType(i) || copy.getHeight(i) != chunk.getHeight(i)
+						|| copy.getBuildingID(i) != chunk.getBuildingID(i)) {
+						wrong++;
+					}
+				}
+			}
+		}
+		logger.info(String.format("Replicas: %d chunks missing, %d tiles different from the level", missing, wrong));
+
+		for (ServerConnection client : replicas) {
+			client.close();
+		}
+		for (ServerConnection client : painters) {
+			client.close();
+		}
+		server.close();
+		city.levelClosed();
+		level.journal.close();
+		Files.deleteIfExists(journalPath);
+	}
+}
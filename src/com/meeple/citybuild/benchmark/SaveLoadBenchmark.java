@@ -0,0 +1,92 @@
+package com.meeple.citybuild.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.GameManager;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.WorldGenerator;
+import com.meeple.citybuild.server.save.LevelSaveSystem;
+
+/**
+ * Saves a generated world of about 10,000 chunks with {@link LevelSaveSystem} into a temporary folder, then loads it back eagerly
+ * and paged. Each is timed over several runs and the loaded tiles are checked against the saved ones. <br>
+ * Usage: SaveLoadBenchmark [world radius] [runs]
+ */
+public class SaveLoadBenchmark {
+	private static Logger logger = Logger.getLogger(SaveLoadBenchmark.class);
+
+	public static void main(String[] args) throws IOException {
+		Benchmarks.setupLogger();
+		int radius = Benchmarks.intArg(args, 0, 50);
+		int runs = Benchmarks.intArg(args, 1, 5);
+		WorldGenerator generator = new WorldGenerator();
+		generator.radius = radius;
+		LevelData level = GameManager.newGame(generator, 42);
+		level.name = "benchmark";
+		Path folder = Files.createTempDirectory("saves");
+		File file = folder.resolve("benchmark" + LevelSaveSystem.extension).toFile();
+		logger.info(String.format("Save and load benchmark, %d chunks, %d runs", level.chunks.size(), runs));
+
+		long saveNanos = Benchmarks.time(1, runs, () -> {
+			try {
+				//a full save each run rather than only the chunks modified since the last
+				level.saveFile = null;
+				LevelSaveSystem.save(level, file);
+			} catch (IOException err) {
+				throw new IllegalStateException(err);
+			}
+		});
+		long bytes = file.length();
+		try (Stream<Path> files = Files.walk(LevelSaveSystem.regionFolder(file))) {
+			bytes += files.filter(Files::isRegularFile).mapToLong((path) -> path.toFile().length()).sum();
+		}
+		logger.info(String.format("Save: %s, %s on disk", Benchmarks.millis(saveNanos), Benchmarks.megabytes(bytes)));
+
+		LevelData[] loaded = new LevelData[1];
+		long loadNanos = Benchmarks.time(1, runs, () -> {
+			try {
+				loaded[0] = LevelSaveSystem.load(file, false);
+			} catch (IOException err) {
+				throw new IllegalStateException(err);
+			}
+		});
+		logger.info(String.format("Load: %s for %d chunks", Benchmarks.millis(loadNanos), loaded[0].chunks.size()));
+
+		long pagedNanos = Benchmarks.time(1, runs, () -> {
+			try {
+				LevelData paged = LevelSaveSystem.load(file, true);
+				for (Chunk chunk : level.chunks.values()) {
+					paged.chunkProvider.load(chunk.chunkX, chunk.chunkY);
+				}
+				paged.chunkProvider.close();
+			} catch (IOException err) {
+				throw new IllegalStateException(err);
+			}
+		});
+		logger.info(String.format("Paged load of every chunk: %s", Benchmarks.millis(pagedNanos)));
+
+		int wrong = 0;
+		for (Chunk chunk : level.chunks.values()) {
+			Chunk copy = loaded[0].chunks.get(chunk.chunkX, chunk.chunkY);
+			for (int i = 0; i < LevelData.chunkTiles; i++) {
+				if (copy == null || copy.getTerrain(i) != chunk.getTerrain(i) || copy.getType(i) != chunk.getType(i)
+					|| copy.getHeight(i) != chunk.getHeight(i) || copy.getBuildingID(i) != chunk.getBuildingID(i)) {
+					wrong++;
+				}
+			}
+		}
+		logger.info(String.format("%d tiles different after loading", wrong));
+
+		try (Stream<Path> files = Files.walk(folder)) {
+			files.sorted(Comparator.reverseOrder()).forEach((path) -> path.toFile().delete());
+		}
+	}
+}
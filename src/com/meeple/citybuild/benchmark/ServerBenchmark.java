@@ -0,0 +1,120 @@
+package com.meeple.citybuild.benchmark;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.client.net.ServerConnection;
+import com.meeple.citybuild.server.CityGameManager;
+import com.meeple.citybuild.server.GameManager;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.WorldGenerator;
+import com.meeple.citybuild.server.command.TileEdit;
+import com.meeple.citybuild.server.net.DedicatedServer;
+import com.meeple.citybuild.server.save.EditJournal;
+import com.meeple.shared.Delta;
+
+/**
+ * Serves a generated level on 127.0.0.1 and connects more and more clients to it, each painting tiles the way a mouse drag does. <br>
+ * The level is ticked at its tick rate the way {@link DedicatedServer#startGame(LevelData, DedicatedServer)} does and the time per tick
+ * is reported for each number of clients, with the edits and bytes the server took in. Every edit a client sent is checked to have
+ * reached the server and every client to have been sent the ticks. <br>
+ * Usage: ServerBenchmark [ticks per step] [edits per client per tick]
+ */
+public class ServerBenchmark {
+	private static Logger logger = Logger.getLogger(ServerBenchmark.class);
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Benchmarks.setupLogger();
+		Logger.getLogger(DedicatedServer.class).setLevel(Level.WARN);
+		Logger.getLogger(ServerConnection.class).setLevel(Level.WARN);
+		int ticks = Benchmarks.intArg(args, 0, 100);
+		int editsPerTick = Benchmarks.intArg(args, 1, 64);
+		WorldGenerator generator = new WorldGenerator();
+		generator.radius = 4;
+		LevelData level = GameManager.newGame(generator, 42);
+		Path journalPath = Files.createTempFile("journal", EditJournal.extension);
+		level.journal = EditJournal.create(level, journalPath);
+		Chunk[] chunks = level.chunks.values().toArray(new Chunk[0]);
+		DedicatedServer server = new DedicatedServer(level, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		CityGameManager city = new CityGameManager(level);
+		Delta delta = new Delta();
+		delta.nanos = level.scheduler.getTickNanos();
+		logger.info(String.format("Server benchmark, %d chunks, %d ticks for each number of clients, %d edits a tick from each client", chunks.length, ticks, editsPerTick));
+
+		List<ServerConnection> clients = new ArrayList<>();
+		Random random = new Random(1);
+		for (int count : new int[] { 0, 1, 4, 16 }) {
+			while (clients.size() < count) {
+				clients.add(ServerConnection.connect(server.getAddress(), false));
+			}
+			long editsBefore = server.editsIn, bytesInBefore = server.bytesIn.get(), bytesOutBefore = server.bytesOut.get();
+			long sentBefore = 0;
+			for (ServerConnection client : clients) {
+				sentBefore += client.editsOut;
+			}
+			long[] times = new long[ticks];
+			long next = System.nanoTime();
+			for (int t = 0; t < ticks; t++) {
+				for (ServerConnection client : clients) {
+					Chunk chunk = chunks[random.nextInt(chunks.length)];
+					int start = random.nextInt(LevelData.chunkTiles - editsPerTick);
+					for (int i = 0; i < editsPerTick; i++) {
+						client.submit(new TileEdit(chunk.chunkX, chunk.chunkY, start + i, EditJournal.fieldHeight, random.nextInt(16)));
+					}
+				}
+				long tickStart = System.nanoTime();
+				city.levelTick(delta);
+				server.tick();
+				times[t] = System.nanoTime() - tickStart;
+				next += delta.nanos;
+				long wait = next - System.nanoTime();
+				if (wait > 0) {
+					Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+				}
+			}
+			//let the last edits and ticks arrive
+			Thread.sleep(500);
+			city.levelTick(delta);
+			server.tick();
+			Thread.sleep(200);
+
+			long sent = -sentBefore;
+			for (ServerConnection client : clients) {
+				sent += client.editsOut;
+			}
+			long lagging = 0;
+			long serverTick = clients.isEmpty() ? 0 : clients.get(0).serverTick;
+			for (ServerConnection client : clients) {
+				if (client.serverTick != serverTick || !client.isConnected()) {
+					lagging++;
+				}
+			}
+			Arrays.sort(times);
+			long total = 0;
+			for (long time : times) {
+				total += time;
+			}
+			logger.info(String.format("%2d clients: tick avg %s p50 %s p99 %s. %d edits sent, %d received, %s in and %s out, %d clients missing ticks or disconnected",
+				count, Benchmarks.millis(total / ticks), Benchmarks.millis(times[ticks / 2]), Benchmarks.millis(times[(int) Math.ceil(ticks * 0.99) - 1]), sent,
+				server.editsIn - editsBefore, Benchmarks.megabytes(server.bytesIn.get() - bytesInBefore), Benchmarks.megabytes(server.bytesOut.get() - bytesOutBefore), lagging));
+		}
+		for (ServerConnection client : clients) {
+			client.close();
+		}
+		server.close();
+		city.levelClosed();
+		level.journal.close();
+		Files.deleteIfExists(journalPath);
+	}
+}
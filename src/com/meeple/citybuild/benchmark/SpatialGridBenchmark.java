@@ -0,0 +1,121 @@
+package com.meeple.citybuild.benchmark;
+
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.entity.Component;
+import com.meeple.citybuild.server.entity.EntityStore;
+import com.meeple.citybuild.server.entity.SpatialGrid;
+
+/**
+ * Measures radius, box and nearest queries on the {@link SpatialGrid} against scanning every position, and the cost of
+ * keeping the grid up to date as every entity moves. <br>
+ * Entities are spread evenly over a square of chunks, the results of the grid are checked against the scan. <br>
+ * Usage: SpatialGridBenchmark [entities] [chunks wide] [radius] [nearest]
+ */
+public class SpatialGridBenchmark {
+	private static Logger logger = Logger.getLogger(SpatialGridBenchmark.class);
+
+	public static void main(String[] args) {
+		Benchmarks.setupLogger();
+		int entities = Benchmarks.intArg(args, 0, 100_000);
+		int chunks = Benchmarks.intArg(args, 1, 8);
+		float radius = Benchmarks.intArg(args, 2, 32);
+		int k = Benchmarks.intArg(args, 3, 16);
+		int queries = 1000;
+		float world = chunks * LevelData.fullChunkSize;
+		logger.info(String.format("Spatial grid benchmark, %d entities over %.0f world units square, radius %.0f, %d nearest", entities, world, radius, k));
+
+		Random random = new Random(7);
+		EntityStore store = new EntityStore();
+		int mask = Component.mask(Component.Position, Component.Velocity);
+		long start = System.nanoTime();
+		for (int i = 0; i < entities; i++) {
+			int id = store.create(mask);
+			store.setPosition(id, random.nextFloat() * world, random.nextFloat() * world, random.nextFloat() * 10);
+			store.setVelocity(id, random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, 0);
+		}
+		logger.info("Built grid in " + Benchmarks.millis(System.nanoTime() - start));
+
+		float[] points = new float[queries * 2];
+		for (int i = 0; i < points.length; i++) {
+			points[i] = random.nextFloat() * world;
+		}
+		int[] result = new int[entities];
+		float[] distances = new float[k];
+		int[] nearest = new int[k];
+		SpatialGrid grid = store.grid;
+		long[] found = new long[1];
+
+		long gridRadius = Benchmarks.time(2, 5, () -> {
+			for (int q = 0; q < queries; q++) {
+				found[0] += grid.radius(points[q * 2], points[q * 2 + 1], 5, radius, result);
+			}
+		});
+		long scanRadius = Benchmarks.time(1, 3, () -> {
+			for (int q = 0; q < queries; q += 10) {
+				found[0] += scan(store, points[q * 2], points[q * 2 + 1], 5, radius * radius);
+			}
+		}) * 10;
+		long gridBox = Benchmarks.time(2, 5, () -> {
+			for (int q = 0; q < queries; q++) {
+				float x = points[q * 2], y = points[q * 2 + 1];
+				found[0] += grid.box(x - radius, y - radius, 0, x + radius, y + radius, 10, result);
+			}
+		});
+		long gridNearest = Benchmarks.time(2, 5, () -> {
+			for (int q = 0; q < queries; q++) {
+				found[0] += grid.nearest(points[q * 2], points[q * 2 + 1], 5, nearest, distances);
+			}
+		});
+
+		int mismatches = 0;
+		for (int q = 0; q < queries; q += 10) {
+			float x = points[q * 2], y = points[q * 2 + 1];
+			if (grid.radius(x, y, 5, radius, result) != scan(store, x, y, 5, radius * radius)) {
+				mismatches++;
+			}
+			grid.nearest(x, y, 5, nearest, distances);
+			//exactly the entities found can be at least as close as the furthest one found
+			float furthest = distances[k - 1];
+			if (scan(store, x, y, 5, furthest) < k || scan(store, x, y, 5, Math.nextDown(furthest)) >= k) {
+				mismatches++;
+			}
+		}
+
+		//move every entity by its velocity and pick the changes up like a tick would
+		long update = Benchmarks.time(2, 5, () -> {
+			store.forEach(mask, (archetype, from, to) -> {
+				float[] position = archetype.floats(Component.Position);
+				float[] velocity = archetype.floats(Component.Velocity);
+				for (int i = from * 3; i < to * 3; i++) {
+					position[i] += velocity[i] * 4;
+				}
+			});
+			store.updateGrid();
+		});
+
+		logger.info(String.format("radius: grid %.1fus/query, scan %.1fus/query", gridRadius / (double) queries / 1e3, scanRadius / (double) queries / 1e3));
+		logger.info(String.format("box: grid %.1fus/query", gridBox / (double) queries / 1e3));
+		logger.info(String.format("%d nearest: grid %.1fus/query", k, gridNearest / (double) queries / 1e3));
+		logger.info(String.format("move all and update grid: %s, %d mismatches against the scan (%d found)", Benchmarks.millis(update), mismatches, found[0]));
+	}
+
+	private static int scan(EntityStore store, float x, float y, float z, float radiusSq) {
+		int[] found = { 0 };
+		store.forEach(Component.Position.mask, (archetype, from, to) -> {
+			float[] position = archetype.floats(Component.Position);
+			for (int row = from; row < to; row++) {
+				float dx = position[row * 3] - x;
+				float dy = position[row * 3 + 1] - y;
+				float dz = position[row * 3 + 2] - z;
+				if (dx * dx + dy * dy + dz * dz <= radiusSq) {
+					found[0]++;
+				}
+			}
+		});
+		return found[0];
+	}
+}
@@ -0,0 +1,88 @@
+package com.meeple.citybuild.benchmark;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.LevelData.Chunk.Tile;
+import com.meeple.citybuild.server.WorldGenerator;
+import com.meeple.citybuild.server.WorldGenerator.TerrainType;
+import com.meeple.citybuild.server.gen.NoiseTerrainGenerator;
+import com.meeple.citybuild.server.gen.RandomTerrainGenerator;
+import com.meeple.citybuild.server.gen.SimplexNoise;
+import com.meeple.citybuild.server.gen.TerrainGenerator;
+
+/**
+ * Reports the tiles per second of the terrain generators on a single thread. <br>
+ * The noise generator evaluates each noise field a chunk row at a time, it is compared against the same fields 
+ * evaluated point by point through {@link Tile} cursors, and against the original random generator. <br>
+ * Usage: TerrainGenBenchmark [chunks]
+ */
+public class TerrainGenBenchmark {
+	private static Logger logger = Logger.getLogger(TerrainGenBenchmark.class);
+
+	/**
+	 * Same fields and rules as {@link NoiseTerrainGenerator}, evaluated one tile at a time
+	 */
+	static class PerTileNoiseGenerator implements TerrainGenerator {
+		final NoiseTerrainGenerator settings = new NoiseTerrainGenerator();
+
+		@Override
+		public void generate(Chunk chunk, long seed) {
+			NoiseTerrainGenerator s = settings;
+			SimplexNoise elevation = new SimplexNoise(WorldGenerator.chunkSeed(seed, 0, 1));
+			SimplexNoise moisture = new SimplexNoise(WorldGenerator.chunkSeed(seed, 0, 2));
+			SimplexNoise river = new SimplexNoise(WorldGenerator.chunkSeed(seed, 0, 3));
+			Tile tile = chunk.getTile(0, 0);
+			for (int tx = 0; tx < LevelData.chunkSize; tx++) {
+				for (int ty = 0; ty < LevelData.chunkSize; ty++) {
+					tile.moveTo(tx, ty);
+					double x = (double) chunk.chunkX * LevelData.chunkSize + tx;
+					double y = (double) chunk.chunkY * LevelData.chunkSize + ty;
+					double e = elevation.fractal(x * s.elevationScale, y * s.elevationScale, s.elevationOctaves, s.lacunarity, s.gain);
+					double m = moisture.fractal(x * s.moistureScale, y * s.moistureScale, s.moistureOctaves, s.lacunarity, s.gain);
+					double r = Math.abs(river.fractal(x * s.riverScale, y * s.riverScale, s.riverOctaves, s.lacunarity, s.gain));
+					int height = (int) ((e + 1) * 0.5 * s.maxHeight);
+					if (height < s.seaLevel) {
+						tile.setTerrain(TerrainType.Water);
+						height = s.seaLevel;
+					} else if (r < s.riverWidth) {
+						tile.setTerrain(TerrainType.Water);
+						height = Math.max(s.seaLevel, height - (int) ((1 - r / s.riverWidth) * s.riverDepth) - 1);
+					} else if (height < s.seaLevel + s.beachHeight || m < s.dryMoisture) {
+						tile.setTerrain(TerrainType.Sand);
+					} else {
+						tile.setTerrain(TerrainType.Grass);
+					}
+					tile.setHeight(height);
+				}
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		Benchmarks.setupLogger();
+		int count = Benchmarks.intArg(args, 0, 256);
+		logger.info("Terrain generation benchmark, " + count + " chunks per run");
+		LevelData level = new LevelData();
+		Chunk[] chunks = new Chunk[count];
+		int width = (int) Math.ceil(Math.sqrt(count));
+		for (int i = 0; i < count; i++) {
+			chunks[i] = level.new Chunk(i % width, i / width);
+		}
+
+		run("noise, row batched", new NoiseTerrainGenerator(), chunks);
+		run("noise, per tile", new PerTileNoiseGenerator(), chunks);
+		run("random (original)", new RandomTerrainGenerator(), chunks);
+	}
+
+	private static void run(String name, TerrainGenerator generator, Chunk[] chunks) {
+		long nanos = Benchmarks.time(2, 5, () -> {
+			for (Chunk chunk : chunks) {
+				generator.generate(chunk, 1234);
+			}
+		});
+		double tiles = (double) chunks.length * LevelData.chunkTiles;
+		logger.info(String.format("%-20s %s, %.1fM tiles/s", name, Benchmarks.millis(nanos), tiles / (nanos / 1e9) / 1e6));
+	}
+}
@@ -0,0 +1,66 @@
+package com.meeple.citybuild.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.WorldGenerator;
+
+/**
+ * Times {@link WorldGenerator#create(LevelData, long)} for a square world on pools of 1 up to all available cores, 
+ * and checks every run produced the same world. <br>
+ * Usage: WorldGenBenchmark [radius in chunks] [seed]
+ */
+public class WorldGenBenchmark {
+	private static Logger logger = Logger.getLogger(WorldGenBenchmark.class);
+
+	public static void main(String[] args) {
+		Benchmarks.setupLogger();
+		int radius = Benchmarks.intArg(args, 0, 32);
+		long seed = Benchmarks.intArg(args, 1, 1234);
+		int cores = Runtime.getRuntime().availableProcessors();
+		logger.info(String.format("World generation benchmark, %dx%d chunks, %d cores", radius * 2, radius * 2, cores));
+
+		WorldGenerator generator = new WorldGenerator();
+		generator.radius = radius;
+		long serialNanos = 0;
+		long expected = 0;
+		for (int threads = 1; threads <= cores; threads *= 2) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			generator.pool = pool;
+			long[] checksum = new long[1];
+			long nanos = Benchmarks.time(1, 3, () -> {
+				LevelData level = new LevelData();
+				generator.create(level, seed);
+				checksum[0] = checksum(level);
+			});
+			pool.shutdown();
+			if (threads == 1) {
+				serialNanos = nanos;
+				expected = checksum[0];
+			}
+			logger.info(String.format("%2d threads: %s, speedup %.2fx, %s", threads, Benchmarks.millis(nanos), serialNanos / (double) nanos,
+				checksum[0] == expected ? "identical world" : "DIFFERENT WORLD"));
+			if (threads < cores && threads * 2 > cores) {
+				threads = cores / 2;
+			}
+		}
+	}
+
+	static long checksum(LevelData level) {
+		ByteBuffer buffer = ByteBuffer.allocate(LevelData.rawBytes);
+		long[] sum = new long[1];
+		level.chunks.forEach((x, y, chunk) -> {
+			buffer.clear();
+			chunk.writeTo(buffer);
+			CRC32 crc = new CRC32();
+			crc.update(buffer.array(), 0, buffer.position());
+			//order independent combination of the chunk checksums
+			sum[0] += crc.getValue() * (31L * x + 17L * y + 1);
+		});
+		return sum[0];
+	}
+}
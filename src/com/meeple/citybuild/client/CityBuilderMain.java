@@ -1,9 +1,15 @@
 package com.meeple.citybuild.client;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
@@ -19,12 +25,15 @@ import com.meeple.citybuild.client.gui.GameUI;
 import com.meeple.citybuild.client.gui.LoadingScreen;
 import com.meeple.citybuild.client.gui.MainMenuScreen;
 import com.meeple.citybuild.client.gui.PauseScreen;
+import com.meeple.citybuild.client.net.ServerConnection;
 import com.meeple.citybuild.client.render.LevelRenderer;
 import com.meeple.citybuild.client.render.Screen;
 import com.meeple.citybuild.server.Buildings;
 import com.meeple.citybuild.server.GameManager;
 import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.TickScheduler.Speed;
 import com.meeple.citybuild.server.WorldGenerator;
+import com.meeple.citybuild.server.net.DedicatedServer;
 import com.meeple.shared.ClientOptionSystem;
 import com.meeple.shared.Delta;
 import com.meeple.shared.RayHelper;
@@ -70,6 +79,18 @@ public class CityBuilderMain implements Consumer<ExecutorService> {
 
 	public LevelData level;
 	WorldGenerator worldGen = new WorldGenerator();
+	/**
+	 * Runs the level thread, see {@link DedicatedServer#startGame(LevelData, DedicatedServer)}
+	 */
+	ExecutorService executorService;
+	/**
+	 * the level thread of the current level, null until the game is started
+	 */
+	Future<?> levelThread;
+	/**
+	 * connection to the server running the current level, over loopback in single player. Null until the game is started
+	 */
+	public ServerConnection connection;
 
 	public static void main(String[] args) throws Exception {
 
@@ -95,6 +116,7 @@ public class CityBuilderMain implements Consumer<ExecutorService> {
 	public void accept(ExecutorService executorService) {
 
 		logger.info("Starting City builder client");
+		this.executorService = executorService;
 		KeyInputSystem keyInput = new KeyInputSystem();
 		ClientOptionSystem optionsSystem = new ClientOptionSystem();
 
@@ -118,6 +140,10 @@ public class CityBuilderMain implements Consumer<ExecutorService> {
 						}
 					}
 				}
+				//number keys pick the simulation speed
+				if (level != null && action == GLFW.GLFW_PRESS && key >= GLFW.GLFW_KEY_1 && key < GLFW.GLFW_KEY_1 + Speed.values().length) {
+					level.scheduler.setSpeed(Speed.values()[key - GLFW.GLFW_KEY_1]);
+				}
 			}
 		});
 
@@ -188,6 +214,7 @@ public class CityBuilderMain implements Consumer<ExecutorService> {
 			case GameLoad:
 				//TODO implement loading screen
 				if (param != null) {
+					stopLevel();
 					if (param instanceof File) {
 						level = GameManager.loadLevel((File) param);
 					} else if (param instanceof Number) {
@@ -220,6 +247,7 @@ public class CityBuilderMain implements Consumer<ExecutorService> {
 			case GameStart:
 				loadingScreen.setChild(gameRenderScreen);
 				gameUI.clearChild();
+				startLevel();
 				break;
 			case GoToMainMenu:
 				loadingScreen.setChild(mainMenuScreen);
@@ -237,6 +265,51 @@ public class CityBuilderMain implements Consumer<ExecutorService> {
 
 	}
 
+	/**
+	 * Starts the level thread for the current level if it is not running, and unpauses the level
+	 */
+	void startLevel() {
+		if (level == null) {
+			return;
+		}
+		if (levelThread == null || levelThread.isDone()) {
+			LevelData running = level;
+			try {
+				//single player is a server only this client can reach, the client draws the level itself so it is not replicated
+				DedicatedServer server = new DedicatedServer(running, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+				levelThread = executorService.submit(() -> DedicatedServer.startGame(running, server));
+				connection = ServerConnection.connect(server.getAddress(), false);
+			} catch (IOException err) {
+				logger.error("Could not connect to the local server, the level is not running", err);
+				return;
+			}
+		}
+		GameManager.resumeGame(level);
+	}
+
+	/**
+	 * Quits the current level so another can replace it. <br>
+	 * Waits for its thread to save it on the way out, as the level being loaded may be the same save.
+	 */
+	void stopLevel() {
+		if (connection != null) {
+			connection.close();
+			connection = null;
+		}
+		if (level != null && levelThread != null && !levelThread.isDone()) {
+			GameManager.quitGame(level);
+			try {
+				levelThread.get(30, TimeUnit.SECONDS);
+			} catch (InterruptedException err) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException | TimeoutException err) {
+				logger.error("Level thread did not finish cleanly", err);
+			}
+		}
+		levelThread = null;
+		level = null;
+	}
+
 	Wrapper<Buildings> placement = new WrapperImpl<>();
 
 
@@ -33,6 +33,7 @@ import org.lwjgl.nuklear.Nuklear;
 import org.lwjgl.opengl.GL46;
 import org.lwjgl.system.MemoryStack;
 
+import com.meeple.citybuild.client.net.ServerConnection;
 import com.meeple.citybuild.client.render.Screen;
 import com.meeple.citybuild.client.render.ShaderProgramDefinitions;
 import com.meeple.citybuild.client.render.ShaderProgramDefinitions.ShaderProgramDefinition_UI;
@@ -523,7 +524,7 @@ public class GameUI extends Screen {
 		}
 	}
 
-	public void preRenderMouseUI(Map<Integer,Long> mousePressTicks, ShaderProgram program, RayHelper rayHelper) {
+	public void preRenderMouseUI(Map<Integer,Long> mousePressTicks, ShaderProgram program, RayHelper rayHelper, ServerConnection server) {
 
 		GL46.glEnable(GL46.GL_DEPTH_TEST);
 
@@ -534,20 +535,14 @@ public class GameUI extends Screen {
 				if (mouseLeftClick > 0) {
 					Tile t = rayHelper.getCurrentTile();
 					// TODO check if mouse over UI
-					if (t != null) {
-						boolean hasChanged = false;
-						if(currentAction!=null && t.type != currentAction){
-							t.type = currentAction;
-							hasChanged = true;
+					//not connected when the local server could not be started
+					if (t != null && server != null && server.isConnected()) {
+						//applied by the servers level thread, which skips edits that change nothing and rebakes the chunk
+						if (currentAction != null) {
+							server.setType(t, currentAction);
 						}
-						if(currentTerrainType!=null && t.terrain != currentTerrainType){
-							t.terrain = currentTerrainType;
-							hasChanged = true;
-						}
-						if(hasChanged){
-							rayHelper.getCurrentChunk().rebake.set(true);
-							logger.info("Need to queue to baked chunk set");
-							logger.trace("Also need to do complex checks if placeable etc.");
+						if (currentTerrainType != null) {
+							server.setTerrain(t, currentTerrainType);
 						}
 					}
 				}
@@ -3,23 +3,76 @@ package com.meeple.citybuild.client.gui;
 import static org.lwjgl.nuklear.Nuklear.*;
 import static org.lwjgl.system.MemoryStack.*;
 
+import java.io.File;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.List;
+
 import org.apache.log4j.Logger;
 import org.joml.Math;
 import org.lwjgl.nuklear.NkColor;
+import org.lwjgl.nuklear.NkCommandBuffer;
 import org.lwjgl.nuklear.NkContext;
 import org.lwjgl.nuklear.NkRect;
 import org.lwjgl.system.MemoryStack;
 
 import com.meeple.citybuild.client.render.Screen;
+import com.meeple.citybuild.server.GameManager;
+import com.meeple.citybuild.server.save.SaveHeader;
 import com.meeple.shared.Delta;
 import com.meeple.shared.frame.OGL.GLContext;
+import com.meeple.shared.frame.nuklear.NuklearManager;
 import com.meeple.shared.frame.window.ClientWindowSystem.ClientWindow;
+import com.meeple.shared.frame.window.ClientWindowSystem.LevelPreview;
 import com.meeple.shared.frame.window.ClientWindowSystem.WindowEvent;
 import com.meeple.shared.utils.FrameUtils;
 
 public class MainMenuScreen extends Screen {
 	public static Logger logger = Logger.getLogger(MainMenuScreen.class);
 
+	/**
+	 * Saves listed from their headers only, re-read whenever the save folder changes
+	 */
+	LevelPreview[] saves = new LevelPreview[0];
+	long savesModified = Long.MIN_VALUE;
+	int selectedSave = -1;
+	/**
+	 * screen pixels per thumbnail pixel
+	 */
+	int thumbnailScale = 4;
+
+	/**
+	 * Reads the save headers again if the save folder has changed since they were last read
+	 */
+	void refreshSaves() {
+		File folder = GameManager.saveFolder();
+		long modified = folder.lastModified();
+		if (modified == savesModified) {
+			return;
+		}
+		savesModified = modified;
+		List<SaveHeader> headers = GameManager.listSaves();
+		LevelPreview[] previews = new LevelPreview[headers.size()];
+		DateFormat format = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+		for (int i = 0; i < previews.length; i++) {
+			SaveHeader header = headers.get(i);
+			LevelPreview preview = new LevelPreview();
+			preview.index = i;
+			preview.name = header.name;
+			preview.file = header.file;
+			long minutes = header.activeTime / FrameUtils.secondsToNanos(60);
+			preview.details = String.format("%dh %02dm played, %d chunks, population %s, saved %s",
+				minutes / 60, minutes % 60, header.chunkCount,
+				header.population < 0 ? "?" : Integer.toString(header.population),
+				format.format(new Date(header.savedAt)));
+			preview.thumbnail = header.thumbnail;
+			preview.thumbnailSize = SaveHeader.thumbnailSize;
+			previews[i] = preview;
+		}
+		saves = previews;
+		selectedSave = -1;
+	}
+
 	@Override
 	public void render(ClientWindow window, GLContext glContext, Delta delta) {
 
@@ -67,6 +120,82 @@ public class MainMenuScreen extends Screen {
 			}
 			nk_end(ctx);
 			nk_style_pop_color(ctx);
+
+			refreshSaves();
+			if (saves.length > 0) {
+				renderSaves(window, ctx, stack);
+			}
+		}
+	}
+
+	private void renderSaves(ClientWindow window, NkContext ctx, MemoryStack stack) {
+		long width = (long) (window.bounds.width * 0.4f);
+		long height = (long) (window.bounds.height * 0.8f);
+		long x = window.bounds.width / 2 + (window.bounds.width / 2 - width) / 2;
+		long y = (window.bounds.height - height) / 2;
+		NkRect rect = NkRect.mallocStack(stack);
+		if (nk_begin(ctx, "Saves", nk_rect(x, y, width, height, rect), NK_WINDOW_BORDER | NK_WINDOW_TITLE | NK_WINDOW_NO_SCROLLBAR)) {
+			int thumbnail = SaveHeader.thumbnailSize * thumbnailScale;
+			nk_layout_row_dynamic(ctx, height - thumbnail - 120, 1);
+			if (nk_group_begin(ctx, "Save list", NK_WINDOW_BORDER)) {
+				NkColor active = ctx.style().button().active().data().color();
+				nk_layout_row_dynamic(ctx, 30, 1);
+				for (int i = 0; i < saves.length; i++) {
+					LevelPreview save = saves[i];
+					if (i == selectedSave) {
+						NuklearManager.styledButton(ctx, active, () -> {
+							nk_button_label(ctx, save.name);
+						});
+					} else if (nk_button_label(ctx, save.name)) {
+						selectedSave = i;
+					}
+				}
+				nk_group_end(ctx);
+			}
+
+			if (selectedSave >= 0 && selectedSave < saves.length) {
+				LevelPreview save = saves[selectedSave];
+				nk_layout_row_dynamic(ctx, 20, 1);
+				nk_label(ctx, save.details, NK_TEXT_ALIGN_LEFT);
+				nk_layout_row_static(ctx, thumbnail, thumbnail, 1);
+				drawThumbnail(ctx, stack, save);
+				nk_layout_row_dynamic(ctx, 40, 1);
+				if (nk_button_label(ctx, "Load")) {
+					window.sendEvent(WindowEvent.GameLoad, save.file);
+					window.sendEvent(WindowEvent.GameStart);
+				}
+			}
+		}
+		nk_end(ctx);
+	}
+
+	/**
+	 * Draws the heightmap thumbnail as a block of filled rectangles, water in blue and land shaded from green to white by height
+	 */
+	private void drawThumbnail(NkContext ctx, MemoryStack stack, LevelPreview save) {
+		NkRect bounds = NkRect.mallocStack(stack);
+		if (nk_widget(bounds, ctx) == NK_WIDGET_INVALID || save.thumbnail == null) {
+			return;
+		}
+		NkCommandBuffer canvas = nk_window_get_canvas(ctx);
+		NkRect pixelRect = NkRect.mallocStack(stack);
+		NkColor colour = NkColor.mallocStack(stack);
+		int size = save.thumbnailSize;
+		for (int py = 0; py < size; py++) {
+			for (int px = 0; px < size; px++) {
+				int pixel = save.thumbnail[px + py * size] & 0xFF;
+				if (pixel == SaveHeader.pixelNone) {
+					continue;
+				}
+				if (pixel == SaveHeader.pixelWater) {
+					NuklearManager.setNkColour(colour, 40, 90, 200, 255);
+				} else {
+					float h = (pixel - SaveHeader.pixelLand) / (float) (255 - SaveHeader.pixelLand);
+					NuklearManager.setNkColour(colour, (int) (60 + 195 * h), (int) (140 + 115 * h), (int) (50 + 205 * h), 255);
+				}
+				nk_rect(bounds.x() + px * thumbnailScale, bounds.y() + py * thumbnailScale, thumbnailScale, thumbnailScale, pixelRect);
+				nk_fill_rect(canvas, pixelRect, 0, colour);
+			}
 		}
 	}
 
@@ -0,0 +1,320 @@
+package com.meeple.citybuild.client.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.LevelData.Chunk.Tile;
+import com.meeple.citybuild.server.WorldGenerator.TerrainType;
+import com.meeple.citybuild.server.WorldGenerator.Tiles;
+import com.meeple.citybuild.server.command.TileEdit;
+import com.meeple.citybuild.server.net.DedicatedServer;
+import com.meeple.citybuild.server.net.Protocol;
+import com.meeple.shared.utils.CollectionSuppliers;
+import com.meeple.shared.utils.FrameUtils;
+
+/**
+ * The clients end of a connection to a {@link DedicatedServer}, local or remote. <br>
+ * Edits are {@link #submit(TileEdit)}ted from any thread without waiting on the socket, a writer thread sends every edit queued since
+ * it last woke in one write. A reader thread handles the packets of the server and keeps the servers tick and time up to date. <br>
+ * A connection that asked to replicate the level keeps a copy of its tiles in {@link #world}, sent whole when it joins and then
+ * only the tiles that changed each tick.
+ */
+public class ServerConnection {
+	private static Logger logger = Logger.getLogger(ServerConnection.class);
+
+	private static final long handshakeTimeout = 10;
+
+	/**
+	 * called on the reader thread after every tick of the server
+	 */
+	public final Set<Consumer<ServerConnection>> tickListeners = new CollectionSuppliers.SetSupplier<Consumer<ServerConnection>>().get();
+	/**
+	 * called on the reader thread with every chunk of {@link #world} that was sent or changed
+	 */
+	public final Set<Consumer<Chunk>> chunkListeners = new CollectionSuppliers.SetSupplier<Consumer<Chunk>>().get();
+
+	private static final TerrainType[] terrainValues = TerrainType.values();
+	private static final Tiles[] tilesValues = Tiles.values();
+
+	private final SocketChannel channel;
+	private final Queue<TileEdit> edits = new ConcurrentLinkedQueue<>();
+	private final CountDownLatch handshake = new CountDownLatch(1);
+	private final Thread reader, writer;
+	private volatile boolean closed = false;
+	private volatile String refusal;
+
+	public volatile int clientID;
+	public volatile int tickRate;
+	public volatile long seed;
+	/**
+	 * ticks of the server since it started serving
+	 */
+	public volatile long serverTick;
+	/**
+	 * active time of the level as of the last tick
+	 */
+	public volatile long activeTime;
+	/**
+	 * duration of the servers last tick in nanos
+	 */
+	public volatile long lastTickNanos;
+	public volatile long bytesIn = 0, bytesOut = 0;
+	public volatile long editsOut = 0;
+	public volatile long chunksIn = 0, tilesIn = 0;
+
+	/**
+	 * tiles of the servers level, written by the reader thread only. Null unless the connection replicates
+	 */
+	public final LevelData world;
+
+	private ServerConnection(SocketChannel channel, boolean replicate) {
+		this.channel = channel;
+		this.world = replicate ? new LevelData() : null;
+		this.reader = new Thread(this::read, "Server Connection Reader");
+		this.writer = new Thread(this::write, "Server Connection Writer");
+		reader.setDaemon(true);
+		writer.setDaemon(true);
+	}
+
+	/**
+	 * Connects to the server and waits for it to welcome the client
+	 * @param replicate true to be sent the tiles of the level into {@link #world}
+	 * @throws IOException if the server could not be reached, refused the client or did not answer in time
+	 */
+	public static ServerConnection connect(InetSocketAddress address, boolean replicate) throws IOException {
+		SocketChannel channel = SocketChannel.open(address);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		ServerConnection connection = new ServerConnection(channel, replicate);
+		ByteBuffer hello = ByteBuffer.allocate(Protocol.headerBytes + 4 + 1);
+		int start = Protocol.begin(hello, Protocol.hello);
+		hello.putInt(Protocol.version);
+		hello.put(replicate ? Protocol.flagReplicate : 0);
+		Protocol.end(hello, start);
+		hello.flip();
+		while (hello.hasRemaining()) {
+			channel.write(hello);
+		}
+		connection.reader.start();
+		try {
+			if (!connection.handshake.await(handshakeTimeout, TimeUnit.SECONDS)) {
+				connection.close();
+				throw new IOException("Server at " + address + " did not answer");
+			}
+		} catch (InterruptedException err) {
+			connection.close();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while connecting to " + address);
+		}
+		if (connection.closed) {
+			throw new IOException(connection.refusal == null ? "Server at " + address + " closed the connection" : connection.refusal);
+		}
+		connection.writer.start();
+		logger.info("Connected to " + address + " as client " + connection.clientID);
+		return connection;
+	}
+
+	/**
+	 * Queues the edit to be sent to the server, which applies it on its next tick
+	 */
+	public void submit(TileEdit edit) {
+		if (closed) {
+			return;
+		}
+		edits.add(edit);
+		LockSupport.unpark(writer);
+	}
+
+	public void setTerrain(Tile tile, TerrainType value) {
+		submit(TileEdit.terrain(tile, value));
+	}
+
+	public void setType(Tile tile, Tiles value) {
+		submit(TileEdit.type(tile, value));
+	}
+
+	public void setHeight(Tile tile, int value) {
+		submit(TileEdit.height(tile, value));
+	}
+
+	public void setBuildingID(Tile tile, int handle) {
+		submit(TileEdit.building(tile, handle));
+	}
+
+	/**
+	 * @return false once the connection was closed by either end
+	 */
+	public boolean isConnected() {
+		return !closed;
+	}
+
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		handshake.countDown();
+		LockSupport.unpark(writer);
+		try {
+			channel.close();
+		} catch (IOException err) {
+			logger.trace("IO Exception while closing the server connection", err);
+		}
+	}
+
+	private void write() {
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		try {
+			while (!closed) {
+				TileEdit edit;
+				while (buffer.remaining() >= Protocol.headerBytes + Protocol.editBytes && (edit = edits.poll()) != null) {
+					int start = Protocol.begin(buffer, Protocol.edit);
+					Protocol.putEdit(buffer, edit);
+					Protocol.end(buffer, start);
+					editsOut++;
+				}
+				if (buffer.position() == 0) {
+					LockSupport.park(this);
+					continue;
+				}
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					bytesOut += channel.write(buffer);
+				}
+				buffer.clear();
+			}
+		} catch (IOException err) {
+			if (!closed) {
+				logger.warn("Lost the connection to the server", err);
+			}
+			close();
+		}
+	}
+
+	private void read() {
+		ByteBuffer input = ByteBuffer.allocate(Protocol.maxPacket + 4);
+		try {
+			while (!closed) {
+				int read = channel.read(input);
+				if (read < 0) {
+					throw new EOFException("closed by the server");
+				}
+				bytesIn += read;
+				input.flip();
+				while (input.remaining() >= 4) {
+					int length = input.getInt(input.position());
+					if (length < 1 || length > Protocol.maxPacket) {
+						throw new IOException("bad packet length " + length);
+					}
+					if (input.remaining() < 4 + length) {
+						break;
+					}
+					int end = input.position() + 4 + length;
+					ByteBuffer packet = input.duplicate();
+					packet.position(input.position() + 4).limit(end);
+					input.position(end);
+					handle(packet.get(), packet);
+				}
+				input.compact();
+			}
+		} catch (IOException err) {
+			if (!closed) {
+				logger.info("Disconnected from the server: " + err.getMessage());
+			}
+		} finally {
+			close();
+		}
+	}
+
+	private void handle(byte type, ByteBuffer packet) throws IOException {
+		switch (type) {
+			case Protocol.welcome:
+				clientID = packet.getInt();
+				tickRate = packet.getInt();
+				seed = packet.getLong();
+				activeTime = packet.getLong();
+				handshake.countDown();
+				break;
+			case Protocol.refused:
+				refusal = Protocol.getString(packet);
+				throw new IOException("refused: " + refusal);
+			case Protocol.tick:
+				serverTick = packet.getLong();
+				activeTime = packet.getLong();
+				lastTickNanos = packet.getInt() * 1000l;
+				FrameUtils.iterateConsumer(tickListeners, this, false);
+				break;
+			case Protocol.chunk:
+				readChunk(packet);
+				break;
+			case Protocol.deltas:
+				readDeltas(packet);
+				break;
+			default:
+				throw new IOException("unexpected packet " + type);
+		}
+	}
+
+	private void readChunk(ByteBuffer packet) throws IOException {
+		if (world == null) {
+			throw new IOException("sent a chunk without asking for it");
+		}
+		int chunkX = packet.getInt();
+		int chunkY = packet.getInt();
+		Chunk chunk = world.chunks.get(chunkX, chunkY);
+		if (chunk == null) {
+			chunk = world.new Chunk(chunkX, chunkY);
+			world.chunks.put(chunkX, chunkY, chunk);
+		}
+		chunk.readPacked(packet);
+		chunk.rebake.set(true);
+		chunksIn++;
+		FrameUtils.iterateConsumer(chunkListeners, chunk, false);
+	}
+
+	private void readDeltas(ByteBuffer packet) throws IOException {
+		if (world == null) {
+			throw new IOException("sent tiles without asking for them");
+		}
+		packet.getLong();
+		int sections = packet.getShort() & 0xFFFF;
+		for (int s = 0; s < sections; s++) {
+			int chunkX = packet.getInt();
+			int chunkY = packet.getInt();
+			int count = packet.getShort() & 0xFFFF;
+			Chunk chunk = world.chunks.get(chunkX, chunkY);
+			if (chunk == null) {
+				throw new IOException("sent tiles of chunk " + chunkX + ", " + chunkY + " before the chunk");
+			}
+			for (int i = 0; i < count; i++) {
+				int index = packet.getShort() & 0xFFFF;
+				int terrain = packet.get() & 0xFF;
+				int type = packet.get() & 0xFF;
+				if (index >= LevelData.chunkTiles || terrain >= terrainValues.length || type > tilesValues.length) {
+					throw new IOException("bad tile in chunk " + chunkX + ", " + chunkY);
+				}
+				chunk.setTerrain(index, terrainValues[terrain]);
+				chunk.setType(index, type == 0 ? null : tilesValues[type - 1]);
+				chunk.setHeight(index, packet.getShort());
+				chunk.setBuildingID(index, packet.getInt());
+			}
+			chunk.rebake.set(true);
+			tilesIn += count;
+			FrameUtils.iterateConsumer(chunkListeners, chunk, false);
+		}
+	}
+}
@@ -10,6 +10,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.function.Consumer;
 
 import org.apache.log4j.Logger;
 import org.joml.FrustumIntersection;
@@ -60,8 +61,33 @@ public class LevelRenderer {
 	}
 
 	Set<Chunk> processedChunks = new CollectionSuppliers.SetSupplier<Chunk>().get();
+	/**
+	 * Chunks unloaded by the level thread whose meshes still need to be freed on the GL thread
+	 */
+	Set<Chunk> unloadedChunks = new CollectionSuppliers.SetSupplier<Chunk>().get();
+	private final Consumer<Chunk> unloadListener = unloadedChunks::add;
+	private LevelData listeningTo;
 
 	public void preRender(LevelData level, GLContext glContext, ShaderProgram program) {
+		if (listeningTo != level) {
+			if (listeningTo != null) {
+				listeningTo.chunkUnloadListeners.remove(unloadListener);
+			}
+			level.chunkUnloadListeners.add(unloadListener);
+			listeningTo = level;
+		}
+		synchronized (unloadedChunks) {
+			for (Iterator<Chunk> i = unloadedChunks.iterator(); i.hasNext();) {
+				Chunk chunk = i.next();
+				i.remove();
+				queuedChunksToBindToProgram.remove(chunk);
+				needsToBeBaked.remove(chunk);
+				RenderableVAO chunkMesh = baked.remove(chunk);
+				if (chunkMesh != null) {
+					ShaderProgramSystem.unloadVAO(glContext, program, chunkMesh);
+				}
+			}
+		}
 		for (Entry<Chunk, RenderableVAO> queuedChunkMeshEntry : queuedChunksToBindToProgram.entrySet()) {
 			logger.trace("Uploading chunk mesh to GPU");
 			Chunk chunk = queuedChunkMeshEntry.getKey();
@@ -77,7 +103,11 @@ public class LevelRenderer {
 		for (Iterator<Vector2i> i = set.iterator(); i.hasNext();) {
 
 			Vector2i loc = i.next();
-			Chunk chunk = level.chunks.get(loc);
+			Chunk chunk = level.chunks.get(loc.x, loc.y);
+			if (chunk == null) {
+				continue;
+			}
+			chunk.touch();
 			RenderableVAO m = baked.get(chunk);
 
 			if (chunk.rebake.get()) {
@@ -125,12 +155,10 @@ public class LevelRenderer {
 	}
 
 	private ShaderProgramDefinitions.ShaderProgramDefinition_3D_unlit_flat.Mesh createChunkMesh(Chunk chunk) {
-		Vector2i chunkIndex = chunk.chunkIndex.get();
-		
-		logger.trace(String.format("Initialising chunk [%d, %d]'s mesh", chunkIndex.x, chunkIndex.y));
+		logger.trace(String.format("Initialising chunk [%d, %d]'s mesh", chunk.chunkX, chunk.chunkY));
 
 		ShaderProgramDefinitions.ShaderProgramDefinition_3D_unlit_flat.Mesh chunkMesh = ShaderProgramDefinitions.collection._3D_unlit_flat.createMesh();
-		Vector3f chunkPosition = new Vector3f(chunkIndex.x * LevelData.fullChunkSize, chunkIndex.y * LevelData.fullChunkSize, 0);
+		Vector3f chunkPosition = new Vector3f(chunk.chunkX * LevelData.fullChunkSize, chunk.chunkY * LevelData.fullChunkSize, 0);
 		FrameUtils.appendToList(chunkMesh.meshTransformAttribute.data, new Matrix4f().translate(chunkPosition));
 		chunkMesh.modelRenderType = GLDrawMode.Triangles;
 		chunkMesh.vertexCount = 0;
@@ -141,8 +169,7 @@ public class LevelRenderer {
 	}
 
 	private void bakeChunk(ShaderProgramDefinition_3D_unlit_flat.Mesh mesh, Chunk chunk) {
-		Vector2i chunkIndex = chunk.chunkIndex.get();
-		logger.trace(String.format("Rebaking chunk [%d, %d]' mesh", chunkIndex.x, chunkIndex.y));
+		logger.trace(String.format("Rebaking chunk [%d, %d]' mesh", chunk.chunkX, chunk.chunkY));
 		// Clear
 		{
 			for (BufferObject buffer : new BufferObject[] { mesh.vertexAttribute, mesh.colourAttribute, mesh.elementAttribute }) {
@@ -156,7 +183,8 @@ public class LevelRenderer {
 		final int subdivisions = 1;
 		for (int x = 0; x < LevelData.chunkSize; x++) {
 			for (int y = 0; y < LevelData.chunkSize; y++) {
-				TerrainType tile = chunk.tiles[x][y].terrain;
+				int tileIndex = LevelData.tileIndex(x, y);
+				TerrainType tile = chunk.getTerrain(tileIndex);
 				if (tile != TerrainType.Empty) {
 					Map<Vector3i, Integer> visibleVertices = visibleVerticesByTileType.get(tile);
 					if (visibleVertices == null) {
@@ -171,7 +199,7 @@ public class LevelRenderer {
 							// only the outside edges, dont need middle points
 							if (ix == 0 || ix == subdivisions || iy == 0 || iy == subdivisions) {
 								Vector3i v = new Vector3i(x * subdivisions + ix, y * subdivisions + iy,
-										chunk.tiles[x][y].height);
+										chunk.getHeight(tileIndex));
 								Vector3f vertex = calculateFromVecI(v, subdivisions);
 
 								// get face index, or set it if it didnt have one
@@ -192,6 +220,9 @@ public class LevelRenderer {
 										case Water:
 											colour = new Vector4f(0.1f, 0f, 0.7f, 1f);
 											break;
+										case Sand:
+											colour = new Vector4f(0.8f, 0.75f, 0.45f, 1f);
+											break;
 										default:
 											break;
 
@@ -259,13 +290,7 @@ public class LevelRenderer {
 			Vector3f chunkPos = new Vector3f(current.x * LevelData.fullChunkSize, current.y * LevelData.fullChunkSize,
 					0);
 
-			Chunk chunk = GameManager.getChunk(
-					level,
-					chunkPos.add(
-							LevelData.fullChunkSize / 2,
-							LevelData.fullChunkSize / 2,
-							0,
-							new Vector3f()));
+			Chunk chunk = GameManager.getChunk(level, current.x, current.y);
 			if (chunk == null) {
 				continue;
 			}
@@ -287,7 +312,7 @@ public class LevelRenderer {
 						for (int x = -1; x < 1; x++) {
 							for (int y = -1; y < 1; y++) {
 								Vector2i next = current.add(x, y, new Vector2i());
-								if (!searched.contains(next) && level.chunks.containsKey(next)) {
+								if (!searched.contains(next) && GameManager.chunkExists(level, next.x, next.y)) {
 									toSearch.add(next);
 								}
 							}
@@ -434,7 +459,7 @@ public class LevelRenderer {
 				// TODO level clear colour
 				cityBuilder.window.clearColour.set(0f, 0f, 0f, 0f);
 				preRender(cityBuilder.level, glContext, program);
-				cityBuilder.gameUI.preRenderMouseUI(cityBuilder.window.mousePressTicks, uiProgram, rh);
+				cityBuilder.gameUI.preRenderMouseUI(cityBuilder.window.mousePressTicks, uiProgram, rh, cityBuilder.connection);
 
 				// MeshExt mesh = new MeshExt();
 				// bakeChunk(level.chunks.get(new Vector2i()), mesh);
@@ -0,0 +1,346 @@
+package com.meeple.citybuild.server;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.meeple.citybuild.server.Buildings.BuildingInstance;
+
+/**
+ * Every building of a level, addressed by an int handle. <br>
+ * Buildings are kept in a slab of slots, the slots of removed buildings are handed out again from a free list.
+ * A handle holds the slot and the generation of the slot when the building was created, removing the building bumps the generation
+ * so handles still held elsewhere, eg by tiles, no longer resolve to anything instead of to whatever building reuses the slot. <br>
+ * Also indexes which buildings cover tiles of each chunk, kept up to date by {@link GameManager#setBuildingID(LevelData, LevelData.Chunk.Tile, int)},
+ * so the buildings of a chunk can be found without reading its tiles. <br>
+ * Changes are made from the level thread, synchronized on the registry so a save can capture it from another thread.
+ */
+public class BuildingRegistry {
+
+	/**
+	 * handle stored for tiles without a building
+	 */
+	public static final int none = -1;
+	/**
+	 * low bits of a handle holding the slot, the rest hold the generation
+	 */
+	static final int slotBits = 20;
+	public static final int maxBuildings = 1 << slotBits;
+	private static final int slotMask = maxBuildings - 1;
+	/**
+	 * generations wrap within the bits left, keeping handles positive
+	 */
+	private static final int generationMask = (1 << (31 - slotBits)) - 1;
+
+	/**
+	 * Handles of the buildings covering tiles of one chunk and how many tiles each covers
+	 */
+	private static class ChunkBuildings {
+		int[] handles = new int[4];
+		int[] tiles = new int[4];
+		int size = 0;
+
+		int indexOf(int handle) {
+			for (int i = 0; i < size; i++) {
+				if (handles[i] == handle) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	private BuildingInstance[] instances = new BuildingInstance[16];
+	private int[] generations = new int[16];
+	/**
+	 * chunk keys each slot covers tiles of, see {@link LevelData#chunkKey(int, int)}
+	 */
+	private long[][] chunksOf = new long[16][];
+	private int[] chunkCounts = new int[16];
+	private int nextSlot = 0;
+	private int[] free = new int[16];
+	private int freeCount = 0;
+	private volatile int count = 0;
+	/**
+	 * bumped by every change, see {@link #changeCount()}
+	 */
+	private volatile long changes = 0;
+	private final Map<Long, ChunkBuildings> byChunk = new HashMap<>();
+
+	public static int slot(int handle) {
+		return handle & slotMask;
+	}
+
+	public static int generation(int handle) {
+		return (handle >>> slotBits) & generationMask;
+	}
+
+	private int handle(int slot) {
+		return (generations[slot] << slotBits) | slot;
+	}
+
+	/**
+	 * @return number of buildings
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return a count bumped by every change to the buildings or the chunks they cover. The same count means nothing changed in between
+	 */
+	public long changeCount() {
+		return changes;
+	}
+
+	/**
+	 * @return one more than the largest slot handed out so far
+	 */
+	public int slotLimit() {
+		return nextSlot;
+	}
+
+	/**
+	 * @return the handle of the building in the slot, {@link #none} if the slot is free
+	 */
+	public int handleAt(int slot) {
+		return slot < nextSlot && instances[slot] != null ? handle(slot) : none;
+	}
+
+	/**
+	 * @return true if the handle is of a building that has not been removed
+	 */
+	public boolean isValid(int handle) {
+		if (handle < 0) {
+			return false;
+		}
+		int slot = slot(handle);
+		return slot < nextSlot && instances[slot] != null && generations[slot] == generation(handle);
+	}
+
+	/**
+	 * @return the building, null if the handle is {@link #none} or the building was removed
+	 */
+	public BuildingInstance get(int handle) {
+		return isValid(handle) ? instances[slot(handle)] : null;
+	}
+
+	/**
+	 * Adds the building
+	 * @return handle of the building
+	 * @throws IllegalStateException if there are already {@link #maxBuildings}
+	 */
+	public synchronized int add(BuildingInstance building) {
+		int slot;
+		if (freeCount > 0) {
+			slot = free[--freeCount];
+		} else {
+			if (nextSlot == maxBuildings) {
+				throw new IllegalStateException("No more than " + maxBuildings + " buildings");
+			}
+			slot = nextSlot++;
+			ensureSlots(nextSlot);
+		}
+		instances[slot] = building;
+		count++;
+		changes++;
+		return handle(slot);
+	}
+
+	/**
+	 * Adds a building with a given handle, used when loading a save so handles held by tiles stay valid
+	 * @param handle whose slot is not in use
+	 */
+	public synchronized void restore(int handle, BuildingInstance building) {
+		int slot = slot(handle);
+		if (slot < nextSlot && instances[slot] != null) {
+			throw new IllegalArgumentException("Building slot " + slot + " is already in use");
+		}
+		if (slot >= nextSlot) {
+			ensureSlots(slot + 1);
+			for (int s = nextSlot; s < slot; s++) {
+				pushFree(s);
+			}
+			nextSlot = slot + 1;
+		} else {
+			for (int i = 0; i < freeCount; i++) {
+				if (free[i] == slot) {
+					free[i] = free[--freeCount];
+					break;
+				}
+			}
+		}
+		generations[slot] = generation(handle);
+		instances[slot] = building;
+		count++;
+		changes++;
+	}
+
+	/**
+	 * Sets the {@link BuildingInstance#currentPeople} of the building, does nothing if the handle is not valid
+	 */
+	public synchronized void setPeople(int handle, int people) {
+		BuildingInstance building = get(handle);
+		if (building != null && building.currentPeople != people) {
+			building.currentPeople = people;
+			changes++;
+		}
+	}
+
+	/**
+	 * Removes the building, any handle to it stops resolving. Tiles still holding the handle are left as they are
+	 * @return the building, null if the handle was not valid
+	 */
+	public synchronized BuildingInstance remove(int handle) {
+		if (!isValid(handle)) {
+			return null;
+		}
+		int slot = slot(handle);
+		BuildingInstance building = instances[slot];
+		long[] chunks = chunksOf[slot];
+		for (int i = 0; i < chunkCounts[slot]; i++) {
+			ChunkBuildings index = byChunk.get(chunks[i]);
+			int at = index.indexOf(handle);
+			removeAt(chunks[i], index, at);
+		}
+		chunkCounts[slot] = 0;
+		instances[slot] = null;
+		generations[slot] = (generations[slot] + 1) & generationMask;
+		pushFree(slot);
+		count--;
+		changes++;
+		return building;
+	}
+
+	/**
+	 * Moves a tile of the chunk from one building to another, either may be {@link #none} or no longer valid
+	 */
+	public synchronized void tileChanged(int chunkX, int chunkY, int from, int to) {
+		if (from == to) {
+			return;
+		}
+		long key = LevelData.chunkKey(chunkX, chunkY);
+		if (isValid(from)) {
+			ChunkBuildings index = byChunk.get(key);
+			int at = index == null ? -1 : index.indexOf(from);
+			if (at >= 0 && --index.tiles[at] == 0) {
+				removeAt(key, index, at);
+				removeChunk(slot(from), key);
+			}
+		}
+		if (isValid(to)) {
+			addTiles(key, to, 1);
+		}
+		changes++;
+	}
+
+	/**
+	 * Records that the building covers tiles of the chunk, used when loading a save
+	 */
+	public synchronized void restoreTiles(int handle, int chunkX, int chunkY, int tiles) {
+		if (isValid(handle) && tiles > 0) {
+			addTiles(LevelData.chunkKey(chunkX, chunkY), handle, tiles);
+			changes++;
+		}
+	}
+
+	private void addTiles(long key, int handle, int tiles) {
+		ChunkBuildings index = byChunk.get(key);
+		if (index == null) {
+			index = new ChunkBuildings();
+			byChunk.put(key, index);
+		}
+		int at = index.indexOf(handle);
+		if (at >= 0) {
+			index.tiles[at] += tiles;
+			return;
+		}
+		if (index.size == index.handles.length) {
+			index.handles = Arrays.copyOf(index.handles, index.size * 2);
+			index.tiles = Arrays.copyOf(index.tiles, index.size * 2);
+		}
+		index.handles[index.size] = handle;
+		index.tiles[index.size++] = tiles;
+		int slot = slot(handle);
+		long[] chunks = chunksOf[slot];
+		if (chunks == null || chunkCounts[slot] == chunks.length) {
+			chunks = chunksOf[slot] = chunks == null ? new long[2] : Arrays.copyOf(chunks, chunks.length * 2);
+		}
+		chunks[chunkCounts[slot]++] = key;
+	}
+
+	private void removeAt(long key, ChunkBuildings index, int at) {
+		index.size--;
+		index.handles[at] = index.handles[index.size];
+		index.tiles[at] = index.tiles[index.size];
+		if (index.size == 0) {
+			byChunk.remove(key);
+		}
+	}
+
+	private void removeChunk(int slot, long key) {
+		long[] chunks = chunksOf[slot];
+		for (int i = 0; i < chunkCounts[slot]; i++) {
+			if (chunks[i] == key) {
+				chunks[i] = chunks[--chunkCounts[slot]];
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Finds the buildings covering any tile of the chunk
+	 * @param result filled with the handles found, as many as fit
+	 * @return number of buildings found, may be more than the length of result
+	 */
+	public synchronized int buildingsIn(int chunkX, int chunkY, int[] result) {
+		ChunkBuildings index = byChunk.get(LevelData.chunkKey(chunkX, chunkY));
+		if (index == null) {
+			return 0;
+		}
+		System.arraycopy(index.handles, 0, result, 0, Math.min(index.size, result.length));
+		return index.size;
+	}
+
+	/**
+	 * @return tiles of the chunk the building covers
+	 */
+	public synchronized int tilesIn(int handle, int chunkX, int chunkY) {
+		ChunkBuildings index = byChunk.get(LevelData.chunkKey(chunkX, chunkY));
+		int at = index == null ? -1 : index.indexOf(handle);
+		return at < 0 ? 0 : index.tiles[at];
+	}
+
+	/**
+	 * @param result filled with the chunk keys the building covers tiles of, as many as fit
+	 * @return number of chunks, 0 if the handle is not valid
+	 */
+	public synchronized int chunksOf(int handle, long[] result) {
+		if (!isValid(handle)) {
+			return 0;
+		}
+		int slot = slot(handle);
+		if (chunkCounts[slot] == 0) {
+			return 0;
+		}
+		System.arraycopy(chunksOf[slot], 0, result, 0, Math.min(chunkCounts[slot], result.length));
+		return chunkCounts[slot];
+	}
+
+	private void pushFree(int slot) {
+		if (freeCount == free.length) {
+			free = Arrays.copyOf(free, free.length * 2);
+		}
+		free[freeCount++] = slot;
+	}
+
+	private void ensureSlots(int slots) {
+		if (slots > instances.length) {
+			int length = Math.max(slots, instances.length * 2);
+			instances = Arrays.copyOf(instances, length);
+			generations = Arrays.copyOf(generations, length);
+			chunksOf = Arrays.copyOf(chunksOf, length);
+			chunkCounts = Arrays.copyOf(chunkCounts, length);
+		}
+	}
+}
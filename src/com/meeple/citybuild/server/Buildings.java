@@ -61,21 +61,76 @@ public class Buildings {
 
 	};
 
-	class Person {
-		Vector2f personalAreaLimits = new Vector2f();
-		Vector2f personalAreaPreference = new Vector2f();
-		Vector2i coHabbitantLimits = new Vector2i(1, 50);
-		Vector2i coHabbitantPreference = new Vector2i(4, 7);
-		EnumSet<BuildingType> buildingAccessRequired;
-		EnumSet<BuildingType> buildingAccessPreference;
+	public static BuildingTemplate houseTemplate = new BuildingTemplate() {
+
+		@Override
+		public BuildingType getType() {
+			return BuildingType.Housing;
+		}
+
+		@Override
+		public int hardPeopleLimitLower() {
+			return 0;
+		}
+
+		@Override
+		public int hardPoepleLimitUpper() {
+			return 12;
+		}
+
+		@Override
+		public int softPeopleLimitLower() {
+			return 2;
+		}
+
+		@Override
+		public int softPeopleLimitUpper() {
+			return 6;
+		}
+
+		@Override
+		public int hardAreaLimitLower() {
+			return 4;
+		}
+
+		@Override
+		public int hardAreaLimitUpper() {
+			return 24;
+		}
+
+		@Override
+		public int softAreaLimitLower() {
+			return 6;
+		}
+
+		@Override
+		public int softAreaLimitUpper() {
+			return 12;
+		}
+
+	};
+
+	public static class Person {
+		public Vector2f personalAreaLimits = new Vector2f();
+		public Vector2f personalAreaPreference = new Vector2f();
+		/**
+		 * fewest and most people, themselves included, this person will live with
+		 */
+		public Vector2i coHabbitantLimits = new Vector2i(1, 50);
+		/**
+		 * fewest and most people, themselves included, this person would like to live with
+		 */
+		public Vector2i coHabbitantPreference = new Vector2i(4, 7);
+		public EnumSet<BuildingType> buildingAccessRequired;
+		public EnumSet<BuildingType> buildingAccessPreference;
 
 	}
 
-	enum ItemQuality {
+	public enum ItemQuality {
 		Low, Medium, High;
 	}
 
-	enum ItemType {
+	public enum ItemType {
 		Clothing, Food, Drink;
 	}
 
@@ -89,23 +144,23 @@ public class Buildings {
 		boolean isLuxury = false;
 	}
 
-	enum RawMaterial {
+	public enum RawMaterial {
 		Fiber, Wood, Stone, Metal
 	}
 
-	enum RawNutritian {
+	public enum RawNutritian {
 		Meat, Fruit, Vegtable, Fungi
 	}
 
-	enum BuildingType {
+	public enum BuildingType {
 		Social, Exersize, Nourishment, Housing, Work, Education, ResourceGathering, ResourceRefining, Storage;
 	}
 
-	interface BuildingTemplate extends BuildingLimits {
+	public interface BuildingTemplate extends BuildingLimits {
 		public BuildingType getType();
 	}
 
-	interface BuildingLimits {
+	public interface BuildingLimits {
 		/**
 		 * This denotes the absolute min people capacity of a building.
 		 * @return the hard min people-capacity value 
@@ -159,7 +214,7 @@ public class Buildings {
 		public int softAreaLimitUpper();
 	}
 
-	class BuildingInstance implements Serializable {
+	public static class BuildingInstance implements Serializable {
 		/**
 		 * 
 		 */
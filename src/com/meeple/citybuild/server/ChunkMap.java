@@ -0,0 +1,258 @@
+package com.meeple.citybuild.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.meeple.citybuild.server.LevelData.Chunk;
+
+/**
+ * Index of the resident chunks of a level keyed by the chunk index packed into a long, see {@link LevelData#chunkKey(int, int)}. <br>
+ * Open addressing with linear probing. Reads never lock or allocate, so the render and level threads can look chunks up every frame
+ * without contending. Updates are serialized on the map (single writer at a time) and publish a slot by writing its key before its chunk,
+ * removed slots are left as tombstones until the next rebuild. <br>
+ * Iteration with {@link #forEach(Visitor)} walks the table as it is, it does not lock and is weakly consistent.
+ */
+public class ChunkMap {
+
+	/**
+	 * Called with every chunk in the map
+	 */
+	public static interface Visitor {
+		public void visit(int chunkX, int chunkY, Chunk chunk);
+	}
+
+	/**
+	 * Marks a slot whose chunk was removed. The probe for other keys continues past it
+	 */
+	private static final Object tombstone = new Object();
+	private static final int minCapacity = 64;
+
+	private static class Table {
+		final AtomicLongArray keys;
+		/**
+		 * null for a slot that was never used, {@link ChunkMap#tombstone} or the chunk
+		 */
+		final AtomicReferenceArray<Object> values;
+		final int mask;
+
+		Table(int capacity) {
+			keys = new AtomicLongArray(capacity);
+			values = new AtomicReferenceArray<>(capacity);
+			mask = capacity - 1;
+		}
+	}
+
+	private volatile Table table = new Table(minCapacity);
+	private volatile int size = 0;
+	/**
+	 * used slots, live and tombstones. Only touched by the writer
+	 */
+	private int used = 0;
+
+	private static int slot(long key, int mask) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key & mask;
+	}
+
+	public static int keyX(long key) {
+		return (int) (key >> 32);
+	}
+
+	public static int keyY(long key) {
+		return (int) key;
+	}
+
+	/**
+	 * @return the chunk at the chunk index or null. Lock and allocation free
+	 */
+	public Chunk get(int chunkX, int chunkY) {
+		return get(LevelData.chunkKey(chunkX, chunkY));
+	}
+
+	/**
+	 * @param key from {@link LevelData#chunkKey(int, int)}
+	 * @return the chunk at the key or null. Lock and allocation free
+	 */
+	public Chunk get(long key) {
+		Table t = table;
+		int i = slot(key, t.mask);
+		while (true) {
+			Object value = t.values.get(i);
+			if (value == null) {
+				return null;
+			}
+			if (value != tombstone && t.keys.get(i) == key) {
+				//the slot may have been reused between reading the value and the key
+				if (t.values.get(i) == value) {
+					return (Chunk) value;
+				}
+				continue;
+			}
+			i = (i + 1) & t.mask;
+		}
+	}
+
+	public boolean contains(int chunkX, int chunkY) {
+		return get(chunkX, chunkY) != null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Adds or replaces the chunk at the chunk index
+	 * @return the chunk it replaced or null
+	 */
+	public synchronized Chunk put(int chunkX, int chunkY, Chunk chunk) {
+		return put(LevelData.chunkKey(chunkX, chunkY), chunk, false);
+	}
+
+	/**
+	 * Adds the chunk unless there already is one at the chunk index
+	 * @return the chunk already there, or null if the chunk was added
+	 */
+	public synchronized Chunk putIfAbsent(int chunkX, int chunkY, Chunk chunk) {
+		return put(LevelData.chunkKey(chunkX, chunkY), chunk, true);
+	}
+
+	private Chunk put(long key, Chunk chunk, boolean onlyIfAbsent) {
+		if (chunk == null) {
+			throw new NullPointerException("chunk");
+		}
+		Table t = table;
+		int i = slot(key, t.mask);
+		int free = -1;
+		while (true) {
+			Object value = t.values.get(i);
+			if (value == null) {
+				break;
+			}
+			if (value == tombstone) {
+				if (free < 0) {
+					free = i;
+				}
+			} else if (t.keys.get(i) == key) {
+				if (!onlyIfAbsent) {
+					t.values.set(i, chunk);
+				}
+				return (Chunk) value;
+			}
+			i = (i + 1) & t.mask;
+		}
+		if (free >= 0) {
+			i = free;
+		} else {
+			used++;
+		}
+		t.keys.set(i, key);
+		t.values.set(i, chunk);
+		size++;
+		if (used * 2 > t.mask + 1) {
+			rebuild();
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the chunk at the chunk index
+	 * @return the chunk removed or null
+	 */
+	public synchronized Chunk remove(int chunkX, int chunkY) {
+		return remove(LevelData.chunkKey(chunkX, chunkY), null);
+	}
+
+	/**
+	 * Removes the chunk at the chunk index only if it is the expected chunk
+	 * @return true if it was removed
+	 */
+	public synchronized boolean remove(int chunkX, int chunkY, Chunk expected) {
+		return expected != null && remove(LevelData.chunkKey(chunkX, chunkY), expected) != null;
+	}
+
+	private Chunk remove(long key, Chunk expected) {
+		Table t = table;
+		int i = slot(key, t.mask);
+		while (true) {
+			Object value = t.values.get(i);
+			if (value == null) {
+				return null;
+			}
+			if (value != tombstone && t.keys.get(i) == key) {
+				if (expected != null && value != expected) {
+					return null;
+				}
+				t.values.set(i, tombstone);
+				size--;
+				return (Chunk) value;
+			}
+			i = (i + 1) & t.mask;
+		}
+	}
+
+	public synchronized void clear() {
+		table = new Table(minCapacity);
+		size = 0;
+		used = 0;
+	}
+
+	/**
+	 * Copies the live chunks into a table sized for them, dropping the tombstones.
+	 * Readers keep using the old table until the new one is published
+	 */
+	private void rebuild() {
+		int capacity = minCapacity;
+		while (size * 4 > capacity) {
+			capacity <<= 1;
+		}
+		Table old = table;
+		Table t = new Table(capacity);
+		for (int i = 0; i <= old.mask; i++) {
+			Object value = old.values.get(i);
+			if (value != null && value != tombstone) {
+				long key = old.keys.get(i);
+				int j = slot(key, t.mask);
+				while (t.values.get(j) != null) {
+					j = (j + 1) & t.mask;
+				}
+				t.keys.set(j, key);
+				t.values.set(j, value);
+			}
+		}
+		used = size;
+		table = t;
+	}
+
+	/**
+	 * Visits every chunk without locking. Chunks added or removed while iterating may or may not be visited
+	 */
+	public void forEach(Visitor visitor) {
+		Table t = table;
+		for (int i = 0; i <= t.mask; i++) {
+			Object value = t.values.get(i);
+			if (value != null && value != tombstone) {
+				long key = t.keys.get(i);
+				if (t.values.get(i) == value) {
+					visitor.visit(keyX(key), keyY(key), (Chunk) value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return a copy of the chunks currently in the map
+	 */
+	public List<Chunk> values() {
+		List<Chunk> values = new ArrayList<>(size);
+		forEach((x, y, chunk) -> values.add(chunk));
+		return values;
+	}
+}
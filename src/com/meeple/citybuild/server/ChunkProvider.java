@@ -0,0 +1,51 @@
+package com.meeple.citybuild.server;
+
+import java.io.IOException;
+
+import com.meeple.citybuild.server.LevelData.Chunk;
+
+/**
+ * Source of the chunks of a level that are not resident in {@link LevelData#chunks}. <br>
+ * Chunks are requested the first time something asks for them and arrive in {@link LevelData#chunks} later,
+ * until then they are pending and callers should skip them.
+ */
+public interface ChunkProvider {
+
+	/**
+	 * @return true if the chunk exists, whether or not it is resident
+	 */
+	public boolean exists(int chunkX, int chunkY);
+
+	/**
+	 * Starts loading the chunk in the background if it exists, is not resident and is not already pending. Returns immediately.
+	 */
+	public void request(int chunkX, int chunkY);
+
+	/**
+	 * @return true if the chunk has been requested and has not arrived yet
+	 */
+	public boolean isPending(int chunkX, int chunkY);
+
+	/**
+	 * Loads the chunk on the calling thread and adds it to the level, returning the resident chunk if it already is.
+	 * 
+	 * @return the chunk or null if it does not exist
+	 * @throws IOException
+	 */
+	public Chunk load(int chunkX, int chunkY) throws IOException;
+
+	/**
+	 * @return number of chunks loaded since the provider was opened
+	 */
+	public long loadedCount();
+
+	/**
+	 * Called after the backing save has been written to, any cached file data must be re-read.
+	 */
+	public void refresh();
+
+	/**
+	 * Stops any background loading and releases the backing files.
+	 */
+	public void close();
+}
@@ -0,0 +1,49 @@
+package com.meeple.citybuild.server;
+
+import com.meeple.citybuild.server.assign.AssignmentSolver;
+import com.meeple.citybuild.server.path.Pathfinder;
+import com.meeple.citybuild.server.sim.ChunkTickExecutor;
+import com.meeple.citybuild.server.sim.FireSystem;
+import com.meeple.shared.Delta;
+
+/**
+ * Simulation of a city level, ticked by {@link GameManager#startGame(LevelData, GameManager)} at the levels fixed tick rate. <br>
+ * Per chunk simulation is added as systems of {@link #chunkTicks} and runs across all cores, such as {@link #fire}.
+ * Paths are found by {@link #paths} and people are given homes and jobs by {@link #assignments}.
+ */
+public class CityGameManager extends GameManager {
+
+	private final LevelData level;
+	public final ChunkTickExecutor chunkTicks;
+	public final FireSystem fire;
+	public final Pathfinder paths;
+	public final AssignmentSolver assignments;
+
+	public CityGameManager(LevelData level) {
+		this.level = level;
+		this.chunkTicks = new ChunkTickExecutor(level);
+		this.fire = new FireSystem(level);
+		chunkTicks.systems.add(fire);
+		this.paths = new Pathfinder(level);
+		this.assignments = new AssignmentSolver(level);
+	}
+
+	@Override
+	public void levelTick(Delta delta) {
+		level.activeTime += delta.nanos;
+		level.commands.apply();
+		chunkTicks.tick(delta);
+		level.economy.tick();
+		level.entities.updateGrid();
+		paths.tick();
+		assignments.tick();
+	}
+
+	@Override
+	public void levelClosed() {
+		paths.close();
+		assignments.close();
+		fire.close();
+	}
+
+}
@@ -1,27 +1,29 @@
 package com.meeple.citybuild.server;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.file.NoSuchFileException;
 import java.text.DateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.Random;
-import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.joml.Vector2i;
 import org.joml.Vector3f;
 
+import com.meeple.citybuild.server.Buildings.BuildingInstance;
 import com.meeple.citybuild.server.LevelData.Chunk;
 import com.meeple.citybuild.server.LevelData.Chunk.Tile;
+import com.meeple.citybuild.server.WorldGenerator.TerrainType;
+import com.meeple.citybuild.server.WorldGenerator.Tiles;
+import com.meeple.citybuild.server.entity.EntityStore;
+import com.meeple.citybuild.server.save.AutosaveService;
+import com.meeple.citybuild.server.save.ChunkResidencyManager;
+import com.meeple.citybuild.server.save.EditJournal;
+import com.meeple.citybuild.server.save.LevelSaveSystem;
+import com.meeple.citybuild.server.save.SaveHeader;
 import com.meeple.shared.Delta;
-import com.meeple.shared.frame.wrapper.Wrapper;
-import com.meeple.shared.frame.wrapper.WrapperImpl;
-import com.meeple.shared.utils.CollectionSuppliers;
 import com.meeple.shared.utils.FrameUtils;
 
 public abstract class GameManager {
@@ -30,9 +32,14 @@ public abstract class GameManager {
 	static final String LevelFolder = "saves/";
 	static final String LevelExt = ".sv";
 	static final long wait = 10l;
+	/**
+	 * Heap the resident chunks of a running level may use before the least recently used are unloaded
+	 */
+	public static long chunkMemoryBudget = 256l * 1024 * 1024;
 
 	public static synchronized LevelData newGame(WorldGenerator worldGen, long seed) {
 		LevelData level = new LevelData();
+		level.seed = seed;
 		level.random = new Random(seed);
 		worldGen.create(level, seed);
 		logger.trace("todo: new game "); //TODO finish writing new game
@@ -42,6 +49,8 @@ public abstract class GameManager {
 	/**
 	 * Reads the provided {@linkplain File} and converts to a
 	 * {@linkplain LevelData}.<br>
+	 * Chunks are paged in from the save as they are first asked for, see {@link #getChunk(LevelData, Vector3f)}.<br>
+	 * Edits made after the last save are replayed from the levels {@link EditJournal}.<br>
 	 * Returns null if failed to read.
 	 * 
 	 * @param fileIn
@@ -54,42 +63,67 @@ public abstract class GameManager {
 			return null;
 		}
 		logger.trace("Loading level from file: " + fileIn.toString());
-		try (ObjectInputStream oos = new ObjectInputStream(new FileInputStream(fileIn))) {
-			return (LevelData) oos.readObject();
-		} catch (FileNotFoundException err) {
+		try {
+			LevelData level = LevelSaveSystem.load(fileIn, true);
+			try {
+				level.journal = EditJournal.open(level, EditJournal.journalPath(fileIn));
+			} catch (IOException err) {
+				logger.error("IO Exception while replaying edit journal, edits since the last save are lost", err);
+			}
+			return level;
+		} catch (NoSuchFileException err) {
 			logger.error("File not found while loading", err);
 		} catch (IOException err) {
 			logger.error("IO Exception while loading", err);
-		} catch (ClassNotFoundException err) {
-			logger.error("Class not found while loading", err);
 		}
 		return null;
 	}
 
-	public static synchronized void saveGame(LevelData level) {
+	/**
+	 * Returns the save file of the level, naming the level after the current date if it has no name yet.
+	 * 
+	 * @param level to find the file of
+	 * @return file the level saves to
+	 */
+	public static File levelFile(LevelData level) {
+		String name = level.name;
+		if (name == null || name.isEmpty()) {
 
-		if (level != null) {
-			String name = level.name;
-			if (name == null || name.isEmpty()) {
+			Date date = new Date();
+			name = "Save_" + DateFormat.getInstance().format(date);
+			name = name.replace('/', '_');
+			name = name.replace(':', '_');
+			level.name = name;
+		}
+		return new File(LevelFolder + name + LevelExt);
+	}
 
-				Date date = new Date();
-				name = "Save_" + DateFormat.getInstance().format(date);
-				name = name.replace('/', '_');
-				name = name.replace(':', '_');
+	/**
+	 * Reads the headers of every save in the save folder without loading any of them
+	 * 
+	 * @return headers, most recently saved first
+	 */
+	public static List<SaveHeader> listSaves() {
+		return SaveHeader.list(saveFolder());
+	}
 
-			}
-			File fileOut = new File(LevelFolder + name + LevelExt);
+	/**
+	 * @return folder the level files are saved in
+	 */
+	public static File saveFolder() {
+		return new File(LevelFolder);
+	}
+
+	public static synchronized void saveGame(LevelData level) {
+
+		if (level != null) {
+			File fileOut = levelFile(level);
 			fileOut.getParentFile().mkdirs();
 			logger.trace("Saving level to file: " + fileOut.toString());
-			logger.error("we arent saving!");
-			if (false) {
-				try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(fileOut))) {
-					// oos.writeObject(level.getWrapped());
-				} catch (FileNotFoundException err) {
-					logger.error("File not found while loading", err);
-				} catch (IOException err) {
-					logger.error("IO Exception while loading", err);
-				}
+			try {
+				LevelSaveSystem.save(level, fileOut);
+			} catch (IOException err) {
+				logger.error("IO Exception while saving", err);
 			}
 		} else {
 			logger.error("Cannot save game, no save game data to save");
@@ -97,49 +131,68 @@ public abstract class GameManager {
 
 	}
 
-	public static synchronized void startGame(LevelData level) {
-		//levelThread = Thread.currentThread();
+	/**
+	 * Runs the level loop for a {@link CityGameManager} of the level
+	 * 
+	 * @param level to run
+	 */
+	public static void startGame(LevelData level) {
+		startGame(level, new CityGameManager(level));
+	}
+
+	/**
+	 * Runs the level loop on the current thread until the level is quit. <br>
+	 * {@link #levelTick(Delta)} of the game is called at the fixed rate of the levels {@link TickScheduler}, 
+	 * catching up with several ticks in a row when the thread falls behind. <br>
+	 * Modified chunks are autosaved in the background between ticks, and the level is saved when the loop ends. <br>
+	 * Chunks that have not been used for a while are unloaded once {@link #chunkMemoryBudget} is exceeded.
+	 * 
+	 * @param level to run
+	 * @param game  simulation to tick
+	 */
+	public static void startGame(LevelData level, GameManager game) {
 		if (level == null) {
 			logger.error("No game loaded. cannot start game");
 			return;
 		}
-		Wrapper<Long> prev = new WrapperImpl<>();
-		Delta delta = new Delta();
+		TickScheduler scheduler = level.scheduler;
+		AutosaveService autosave = new AutosaveService(level);
+		ChunkResidencyManager residency = new ChunkResidencyManager(level, chunkMemoryBudget);
 
 		try {
 			while (!Thread.currentThread().isInterrupted() && !level.quit.get()) {
 				if (!level.pause.get()) {
 
-					/// Time management
-					long curr = System.nanoTime();
-					delta.nanos = curr - prev.getOrDefault(curr);
-					delta.seconds = FrameUtils.nanosToSeconds(delta.nanos);
-					delta.totalNanos += delta.nanos;
-					prev.set(curr);
-					// logger.trace("level tick");
-
-					if (level.frameTimeManager != null)
-						level.frameTimeManager.run();
+					if (scheduler.advance(game::levelTick) > 0) {
+						autosave.tick(levelFile(level));
+						residency.tick();
+					}
+					scheduler.waitForNextTick();
 				} else {
 
-					if (level.gamePauseLock == null) {
-						Thread.sleep(wait);
-					} else {
-						synchronized (level.gamePauseLock) {
-							while (level.pause.get()) {
-								level.gamePauseLock.wait(wait);
-							}
-							prev.set(null);
+					synchronized (level.gamePauseLock) {
+						while (level.pause.get() && !level.quit.get()) {
+							level.gamePauseLock.wait(wait);
+							//the world can still be edited while paused
+							level.commands.apply();
 						}
-
 					}
+					scheduler.reset();
 				}
 			}
-			logger.trace("Level thread closing normally");
+			logger.trace("Level thread closing normally. " + scheduler.report());
 		} catch (InterruptedException err) {
 			logger.trace("Level thread interupted", err);
 		} finally {
+			game.levelClosed();
+			autosave.close();
 			saveGame(level);
+			if (level.journal != null) {
+				level.journal.close();
+			}
+			if (level.chunkProvider != null) {
+				level.chunkProvider.close();
+			}
 		}
 	}
 
@@ -190,14 +243,139 @@ public abstract class GameManager {
 	 * 
 	 * @param level       to search
 	 * @param worldCoords position to find
-	 * @return Chunk that owns the coords
+	 * @return Chunk that owns the coords or null if it does not exist or is still being paged in
 	 */
 	public static Chunk getChunk(LevelData level, Vector3f worldCoords) {
-		Vector2i chunkLoc = new Vector2i(chunk(worldCoords.x), chunk(worldCoords.y));
-		Chunk c = level.chunks.get(chunkLoc);
+		return getChunk(level, chunk(worldCoords.x), chunk(worldCoords.y));
+	}
+
+	/**
+	 * Finds the chunk at the chunk index. <br>
+	 * Marks the chunk as in use so it is not unloaded. 
+	 * If the chunk is in the save but not paged in yet it is requested and null is returned, it will be in the level on a later call.
+	 * 
+	 * @param level  to search
+	 * @param chunkX chunk index x
+	 * @param chunkY chunk index y
+	 * @return Chunk at the index or null if it does not exist or is still being paged in
+	 */
+	public static Chunk getChunk(LevelData level, int chunkX, int chunkY) {
+		Chunk c = level.chunks.get(chunkX, chunkY);
+		if (c != null) {
+			c.touch();
+		} else {
+			ChunkProvider provider = level.chunkProvider;
+			if (provider != null) {
+				provider.request(chunkX, chunkY);
+			}
+		}
 		return c;
 	}
 
+	/**
+	 * Checks if there is a chunk at the chunk index, whether or not it has been paged in
+	 * 
+	 * @param level  to search
+	 * @param chunkX chunk index x
+	 * @param chunkY chunk index y
+	 * @return true if the chunk exists
+	 */
+	public static boolean chunkExists(LevelData level, int chunkX, int chunkY) {
+		if (level.chunks.contains(chunkX, chunkY)) {
+			return true;
+		}
+		ChunkProvider provider = level.chunkProvider;
+		return provider != null && provider.exists(chunkX, chunkY);
+	}
+
+	/**
+	 * Returns the edit journal of the level, starting one on the first edit. <br>
+	 * A level that has been saved before continues the journal next to its save, a new level starts an empty one.
+	 * 
+	 * @param level to journal
+	 * @return the journal or null if it could not be opened
+	 */
+	private static EditJournal journal(LevelData level) {
+		EditJournal journal = level.journal;
+		if (journal == null) {
+			synchronized (level) {
+				journal = level.journal;
+				if (journal == null) {
+					try {
+						if (level.saveFile == null) {
+							journal = EditJournal.create(level, EditJournal.journalPath(levelFile(level)));
+						} else {
+							journal = EditJournal.open(level, EditJournal.journalPath(level.saveFile));
+						}
+						level.journal = journal;
+					} catch (IOException err) {
+						logger.error("IO Exception while opening edit journal, edits will only be kept by saving", err);
+					}
+				}
+			}
+		}
+		return journal;
+	}
+
+	/**
+	 * Sets the terrain of the tile and records the edit in the levels {@link EditJournal}. <br>
+	 * Player edits go through these setters so they survive a crash, world generation and loading write to the chunks directly.
+	 * 
+	 * @param level owning the tile
+	 * @param tile  to edit
+	 * @param value new terrain
+	 */
+	public static void setTerrain(LevelData level, Tile tile, TerrainType value) {
+		tile.setTerrain(value);
+		EditJournal journal = journal(level);
+		if (journal != null) {
+			journal.appendTerrain(tile.getChunk(), tile.getIndex(), value);
+		}
+		FrameUtils.iterateConsumer(level.tileEditListeners, tile, false);
+	}
+
+	public static void setType(LevelData level, Tile tile, Tiles value) {
+		tile.setType(value);
+		EditJournal journal = journal(level);
+		if (journal != null) {
+			journal.appendType(tile.getChunk(), tile.getIndex(), value);
+		}
+		FrameUtils.iterateConsumer(level.tileEditListeners, tile, false);
+	}
+
+	public static void setHeight(LevelData level, Tile tile, int value) {
+		tile.setHeight(value);
+		EditJournal journal = journal(level);
+		if (journal != null) {
+			journal.appendHeight(tile.getChunk(), tile.getIndex(), value);
+		}
+		FrameUtils.iterateConsumer(level.tileEditListeners, tile, false);
+	}
+
+	/**
+	 * Removes the building from the economy and the registry. Tiles still holding its handle no longer resolve to it
+	 * @return the building, null if the handle was not valid
+	 */
+	public static BuildingInstance removeBuilding(LevelData level, int handle) {
+		level.economy.unassign(handle);
+		return level.buildings.remove(handle);
+	}
+
+	/**
+	 * Sets the building handle of the tile, keeping the chunks index of {@link LevelData#buildings} up to date
+	 * @param value handle from {@link BuildingRegistry#add(com.meeple.citybuild.server.Buildings.BuildingInstance)}, {@link BuildingRegistry#none} to clear it
+	 */
+	public static void setBuildingID(LevelData level, Tile tile, int value) {
+		int old = tile.getBuildingID();
+		tile.setBuildingID(value);
+		level.buildings.tileChanged(tile.getChunk().chunkX, tile.getChunk().chunkY, old, value);
+		EditJournal journal = journal(level);
+		if (journal != null) {
+			journal.appendBuildingID(tile.getChunk(), tile.getIndex(), value);
+		}
+		FrameUtils.iterateConsumer(level.tileEditListeners, tile, false);
+	}
+
 	/**
 	 * Finds the tile that contains the world coord passed
 	 * 
@@ -209,8 +387,7 @@ public abstract class GameManager {
 		Tile result = null;
 		Chunk c = getChunk(level,worldCoords);
 		if (c != null) {
-			Vector2i index = new Vector2i(tileIndex(worldCoords.x), tileIndex(worldCoords.y));
-			result = c.tiles[index.x][index.y];
+			result = c.getTile(tileIndex(worldCoords.x), tileIndex(worldCoords.y));
 		}
 		return result;
 	}
@@ -218,7 +395,7 @@ public abstract class GameManager {
 	public static Tile getTile(Chunk c, Vector2i index) {
 		Tile result = null;
 		if (index != null) {
-			result = c.tiles[index.x][index.y];
+			result = c.getTile(index.x, index.y);
 		}
 		return result;
 	}
@@ -232,22 +409,16 @@ public abstract class GameManager {
 	}
 
 	/**
-	 * Searches the sphere for all entities and returns a set containing any found.
+	 * Searches the sphere for all entities with a position using the {@link EntityStore#grid} of the level.
 	 * 
 	 * @param level       level to search
 	 * @param worldCoords sphere center
 	 * @param radius      of sphere
-	 * @return set of entities found
+	 * @param result      filled with the ids of the entities found, as many as fit
+	 * @return number of entities found, may be more than the length of result
 	 */
-	public static Set<Entity> getEntities(LevelData level, Vector3f worldCoords, float radius) {
-		Set<Entity> result = new CollectionSuppliers.SetSupplier<Entity>().get();
-		for (Entity e : level.entities) {
-			if (e.position.distance(worldCoords) <= radius) {
-				result.add(e);
-			}
-		}
-		logger.warn("not implimented");
-		return result;
+	public static int getEntities(LevelData level, Vector3f worldCoords, float radius, int[] result) {
+		return level.entities.grid.radius(worldCoords.x, worldCoords.y, worldCoords.z, radius, result);
 	}
 
 	public static int chunk(float world) {
@@ -272,4 +443,10 @@ public abstract class GameManager {
 
 	public abstract void levelTick(Delta delta);
 
+	/**
+	 * Called on the level thread once the level loop has ended, before the level is saved
+	 */
+	public void levelClosed() {
+	}
+
 }
@@ -0,0 +1,158 @@
+package com.meeple.citybuild.server;
+
+import java.io.File;
+import java.util.Locale;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.ConsoleAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+
+import com.meeple.citybuild.server.TickScheduler.Speed;
+import com.meeple.citybuild.server.net.DedicatedServer;
+import com.meeple.shared.Delta;
+import com.meeple.shared.utils.FrameUtils;
+
+/**
+ * Runs a level with no window or GL context for balancing and soak tests. <br>
+ * The level is ticked by the same {@link GameManager#startGame(LevelData, GameManager)} loop the client runs through
+ * {@link DedicatedServer#startGame(LevelData, DedicatedServer)}, without serving it to any clients, at {@link Speed#Max} unless
+ * another speed is given, until the level has been simulated for the given number of minutes. It is then saved and ticks per second
+ * and the milliseconds per tick (MSPT) percentiles of every tick of the run are reported. <br>
+ * Usage: HeadlessMain [simulated minutes] [1x | 2x | 4x | max] [save file | world radius] [seed]
+ */
+public class HeadlessMain {
+	private static Logger logger = Logger.getLogger(HeadlessMain.class);
+
+	private static String consoleLayout = "[%d{HH:mm:ss:SSS}][%t][%p] %m%n";
+	private static final long progressNanos = FrameUtils.secondsToNanos(10);
+
+	/**
+	 * Counts tick durations in buckets of {@link #bucketNanos}, so percentiles of runs of any length take the same memory.
+	 * Ticks longer than the last bucket are counted in it
+	 */
+	static class TickHistogram {
+		static final long bucketNanos = 10_000;
+		final long[] buckets = new long[100_000];
+		long count = 0, total = 0, max = 0;
+
+		void record(long nanos) {
+			buckets[(int) Math.min(buckets.length - 1, nanos / bucketNanos)]++;
+			count++;
+			total += nanos;
+			max = Math.max(max, nanos);
+		}
+
+		/**
+		 * @param percentile between 0 and 100
+		 * @return upper bound of the bucket the percentile falls in, in milliseconds
+		 */
+		double percentile(double percentile) {
+			long rank = (long) Math.ceil(percentile / 100d * count);
+			long seen = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				seen += buckets[i];
+				if (seen >= rank && seen > 0) {
+					return Math.min(max, (i + 1) * bucketNanos) / (double) FrameUtils.nanoToMilli;
+				}
+			}
+			return max / (double) FrameUtils.nanoToMilli;
+		}
+	}
+
+	/**
+	 * Logs INFO and above to the console, for the programs that run without the client
+	 */
+	public static void setupLogger() {
+		Logger.getRootLogger().setLevel(Level.INFO);
+		Appender a = new ConsoleAppender(new PatternLayout(consoleLayout));
+		BasicConfigurator.configure(a);
+	}
+
+	public static void main(String[] args) {
+		setupLogger();
+
+		long minutes = args.length > 0 ? Long.parseLong(args[0]) : 60;
+		Speed speed = args.length > 1 ? speed(args[1]) : Speed.Max;
+		LevelData level;
+		if (args.length > 2 && new File(args[2]).isFile()) {
+			level = GameManager.loadLevel(new File(args[2]));
+			if (level == null) {
+				return;
+			}
+		} else {
+			WorldGenerator generator = new WorldGenerator();
+			if (args.length > 2) {
+				generator.radius = Integer.parseInt(args[2]);
+			}
+			long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+			level = GameManager.newGame(generator, seed);
+			level.name = "Headless_" + seed;
+		}
+		level.scheduler.setSpeed(speed);
+		run(level, minutes * 60 * FrameUtils.nanoToSeconds);
+	}
+
+	/**
+	 * Runs the level on the current thread until it has been simulated for the duration, then reports on the run
+	 * @param duration simulated nanos to run for
+	 */
+	public static void run(LevelData level, long duration) {
+		TickScheduler scheduler = level.scheduler;
+		CityGameManager city = new CityGameManager(level);
+		TickHistogram histogram = new TickHistogram();
+		long end = level.activeTime + duration;
+		long start = System.nanoTime();
+		long[] lastProgress = { start };
+		logger.info(String.format("Running %d chunks for %.1f simulated minutes at %s speed, %d TPS", level.chunks.size(), duration / (double) FrameUtils.secondsToNanos(60),
+			scheduler.getSpeed(), scheduler.getTickRate()));
+
+		//levels start paused until the client shows them
+		GameManager.resumeGame(level);
+		GameManager.startGame(level, new GameManager() {
+
+			@Override
+			public void levelTick(Delta delta) {
+				long tickStart = System.nanoTime();
+				city.levelTick(delta);
+				long now = System.nanoTime();
+				histogram.record(now - tickStart);
+				if (now - lastProgress[0] > progressNanos) {
+					lastProgress[0] = now;
+					logger.info(String.format("%.1f of %.1f simulated minutes. %s", (duration - (end - level.activeTime)) / (double) FrameUtils.secondsToNanos(60),
+						duration / (double) FrameUtils.secondsToNanos(60), scheduler.report()));
+				}
+				if (level.activeTime - end >= 0) {
+					GameManager.quitGame(level);
+				}
+			}
+
+			@Override
+			public void levelClosed() {
+				city.levelClosed();
+			}
+		});
+
+		long wall = System.nanoTime() - start;
+		double seconds = wall / (double) FrameUtils.nanoToSeconds;
+		logger.info(String.format("%d ticks in %.1fs: %.1f TPS, %.1fx real time, %d dropped", histogram.count, seconds, histogram.count / seconds,
+			duration / (double) wall, scheduler.droppedTicks));
+		logger.info(String.format("MSPT avg %.3f p50 %.3f p90 %.3f p99 %.3f p99.9 %.3f max %.3f", histogram.total / (double) Math.max(1, histogram.count) / FrameUtils.nanoToMilli,
+			histogram.percentile(50), histogram.percentile(90), histogram.percentile(99), histogram.percentile(99.9), histogram.max / (double) FrameUtils.nanoToMilli));
+	}
+
+	/**
+	 * @param name of the speed or its multiplier, eg "max", "quadruple", "4x" or "4"
+	 */
+	private static Speed speed(String name) {
+		String lower = name.toLowerCase(Locale.ROOT);
+		for (Speed speed : Speed.values()) {
+			if (speed.name().toLowerCase(Locale.ROOT).equals(lower) || (speed.multiplier + "x").equals(lower) || Integer.toString(speed.multiplier).equals(lower)) {
+				return speed;
+			}
+		}
+		throw new IllegalArgumentException("Unknown speed " + name + ", one of 1x, 2x, 4x or max");
+	}
+}
@@ -1,18 +1,24 @@
 package com.meeple.citybuild.server;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
-import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
-import org.joml.Vector2i;
-
-import com.meeple.citybuild.server.Buildings.BuildingInstance;
 import com.meeple.citybuild.server.WorldGenerator.TerrainType;
+import com.meeple.citybuild.server.command.CommandBuffer;
+import com.meeple.citybuild.server.economy.Economy;
+import com.meeple.citybuild.server.entity.EntityStore;
+import com.meeple.citybuild.server.save.ChunkCodec;
+import com.meeple.citybuild.server.save.EditJournal;
 import com.meeple.citybuild.server.WorldGenerator.Tiles;
-import com.meeple.shared.frame.component.FrameTimeManager;
 import com.meeple.shared.utils.CollectionSuppliers;
 
 public class LevelData implements Serializable {
@@ -27,84 +33,520 @@ public class LevelData implements Serializable {
 	public static final int chunkSize = 64;
 	public static final float tileSize = 4;
 	public static final float fullChunkSize = chunkSize * tileSize;
+	public static final int chunkTiles = chunkSize * chunkSize;
+	/**
+	 * Size of a chunk written by {@link Chunk#writeTo(java.nio.ByteBuffer)}
+	 */
+	public static final int rawBytes = chunkTiles * 8;
+	/**
+	 * Estimated heap used by a resident chunk, the tile arrays plus object, array header and map entry overhead
+	 */
+	public static final int chunkMemoryBytes = rawBytes + 256;
 
 	/**
 	 * Name of the save. 
 	 */
 	public String name;
+	/**
+	 * The file this level was last loaded from or saved to. <br>
+	 * When saving to the same file again only the modified chunks need to be written.
+	 */
+	public transient volatile File saveFile;
+	/**
+	 * Seed the level was generated from
+	 */
+	public long seed;
 	/**
 	 * Levels random
 	 */
 	public Random random;
 	/**
-	 * Chunk storage
+	 * Chunk storage, resident chunks by chunk index. Safe to read from any thread without locking
+	 */
+	public final ChunkMap chunks = new ChunkMap();
+	/**
+	 * Loads chunks that exist in the save but are not in {@link #chunks} yet, null if every chunk is resident
 	 */
-	public Map<Vector2i, Chunk> chunks = new CollectionSuppliers.MapSupplier<Vector2i,Chunk>().get();
+	public transient volatile ChunkProvider chunkProvider;
+	/**
+	 * Called with every chunk that is removed from {@link #chunks} to free memory, eg to release its mesh
+	 */
+	public transient final Set<Consumer<Chunk>> chunkUnloadListeners = new CollectionSuppliers.SetSupplier<Consumer<Chunk>>().get();
+	/**
+	 * Called with every tile edited through the {@link GameManager} setters, on the thread making the edit. 
+	 * The tile is a cursor that is moved on afterwards, listeners must not keep it
+	 */
+	public transient final Set<Consumer<Chunk.Tile>> tileEditListeners = new CollectionSuppliers.SetSupplier<Consumer<Chunk.Tile>>().get();
+	/**
+	 * Number of save snapshots taken that have not finished writing. Chunks must not be unloaded while this is above zero, 
+	 * as their last changes may not be on disk yet
+	 */
+	public transient final AtomicInteger pendingSaves = new AtomicInteger();
+	/**
+	 * Journal of the edits made since the last save, null until the first edit of a new level
+	 */
+	public transient volatile EditJournal journal;
 	/**
 	 * Holds the "dictionary" of all the tile types. <br>
 	 * This is usually populated at the world generation and never touched.
 	 */
 	public Map<Byte, Object> tileTypes = new CollectionSuppliers.MapSupplier<Byte,Object>().get();
 	/**
-	 * ID indexed map of all the unique buildings. <br>
+	 * Every building, by the handle stored in the tiles it covers. <br>
 	 * This is added to as soon as a new building is placed. 
 	 */
-	public Map<Byte, BuildingInstance> buildings = new CollectionSuppliers.MapSupplier<Byte,BuildingInstance>().get();
+	public transient final BuildingRegistry buildings = new BuildingRegistry();
 	/**
-	 * All the entities 
+	 * Stock of the buildings and what they make, see {@link Economy}
 	 */
-	public Set<Entity> entities = new CollectionSuppliers.SetSupplier<Entity>().get();
+	public transient final Economy economy = new Economy(buildings);
+	/**
+	 * All the entities, stored by their set of components. Written by the level thread only, see {@link EntityStore}
+	 */
+	public transient final EntityStore entities = new EntityStore();
+	/**
+	 * Edits to the world from outside the level thread, applied between ticks. See {@link CommandBuffer}
+	 */
+	public transient final CommandBuffer commands = new CommandBuffer(this);
 
 	public class PlayerData {
 		Map<Buildings, Boolean> unlocked = new CollectionSuppliers.MapSupplier<Buildings,Boolean>().get();
 	}
 
 	/**
-	 * Chunk contains a 2d array of {@link Tile}
+	 * Converts a tile position inside a chunk to the index used by the {@link Chunk} tile arrays.
+	 * 
+	 * @param x tile x inside the chunk
+	 * @param y tile y inside the chunk
+	 * @return flat index of the tile, x * chunkSize + y
+	 */
+	public static int tileIndex(int x, int y) {
+		return x * chunkSize + y;
+	}
+
+	/**
+	 * Packs a chunk index into a single long, x in the high 32 bits and y in the low 32 bits.
+	 * 
+	 * @param chunkX chunk index x
+	 * @param chunkY chunk index y
+	 * @return packed key
+	 */
+	public static long chunkKey(int chunkX, int chunkY) {
+		return ((long) chunkX << 32) | (chunkY & 0xFFFFFFFFL);
+	}
+
+	private static final ThreadLocal<ByteBuffer> packScratch = ThreadLocal.withInitial(() -> ByteBuffer.allocate(ChunkCodec.maxBytes));
+	private static final TerrainType[] terrainValues = TerrainType.values();
+	private static final Tiles[] tilesValues = Tiles.values();
+
+	/**
+	 * Chunk stores its tiles as flat primitive arrays (struct-of-arrays), indexed by {@link LevelData#tileIndex(int, int)}. <br>
+	 * Single tiles are accessed through a {@link Tile} cursor which only holds the index, so no per-tile objects are kept alive.
 	 * @author Megan
 	 *
 	 */
 	public class Chunk implements Serializable {
 		public AtomicBoolean rebake = new AtomicBoolean(true);
-		private static final long serialVersionUID = 5810527395504498634L;
-		public transient WeakReference<Vector2i> chunkIndex;
+		private static final long serialVersionUID = 3247460126440587245L;
 		/**
-		 * Map of the tiles used in the chunk
+		 * chunk index of this chunk in {@link LevelData#chunks}
 		 */
-		public Tile[][] tiles;
+		public final int chunkX, chunkY;
+		/**
+		 * Set whenever a tile changes, cleared when the chunk is captured by {@link #snapshot()} for saving
+		 */
+		public final AtomicBoolean modified = new AtomicBoolean(true);
+		/**
+		 * true while a {@link #snapshot()} still shares the tile arrays. The next write copies them first (copy-on-write)
+		 */
+		private transient volatile boolean shared = false;
+		/**
+		 * {@link System#nanoTime()} of the last time the chunk was rendered, simulated or picked, see {@link #touch()}
+		 */
+		public transient volatile long lastAccess = System.nanoTime();
+		/**
+		 * The tiles encoded by {@link ChunkCodec} while the chunk is packed, see {@link #pack()}. 
+		 * The tile arrays are null while this is set
+		 */
+		private transient volatile byte[] packed;
+		/**
+		 * {@link TerrainType} ordinal of each tile
+		 */
+		private byte[] terrain = new byte[chunkTiles];
+		/**
+		 * {@link Tiles} ordinal + 1 of each tile, 0 when the tile has no type
+		 */
+		private byte[] type = new byte[chunkTiles];
+		private short[] height = new short[chunkTiles];
+		/**
+		 * building handle of each tile - links to {@link LevelData#buildings}, {@link BuildingRegistry#none} when no building
+		 */
+		private int[] building = new int[chunkTiles];
+
+		public Chunk(int chunkX, int chunkY) {
+			this.chunkX = chunkX;
+			this.chunkY = chunkY;
+			Arrays.fill(building, BuildingRegistry.none);
+		}
+
+		/**
+		 * Records that the chunk is in use so it is not unloaded
+		 */
+		public void touch() {
+			lastAccess = System.nanoTime();
+		}
+
+		private Chunk(Chunk source) {
+			this.chunkX = source.chunkX;
+			this.chunkY = source.chunkY;
+			this.packed = source.packed;
+			this.terrain = source.terrain;
+			this.type = source.type;
+			this.height = source.height;
+			this.building = source.building;
+			this.shared = true;
+			this.modified.set(false);
+		}
 
-		public Chunk(Vector2i chunkIndex) {
-			this.chunkIndex = new WeakReference<Vector2i>(chunkIndex);
-			tiles = new Tile[chunkSize][chunkSize];
-			for (int x = 0; x < chunkSize; x++) {
-				for (int y = 0; y < chunkSize; y++) {
-					tiles[x][y] = new Tile();
+		/**
+		 * Captures the current tiles without copying them. <br>
+		 * The returned chunk shares the arrays with this one until the next write to either, 
+		 * which copies them first. This makes it cheap enough to call on the level thread at a tick boundary 
+		 * and hand the snapshot to another thread.<br>
+		 * Clears {@link #modified}.
+		 * @return read-only view of the tiles as they are now
+		 */
+		public synchronized Chunk snapshot() {
+			Chunk copy = new Chunk(this);
+			shared = true;
+			modified.set(false);
+			return copy;
+		}
+
+		/**
+		 * Copies the arrays if a snapshot still references them
+		 */
+		private void beforeWrite() {
+			if (packed != null) {
+				unpack();
+			}
+			if (shared) {
+				synchronized (this) {
+					if (shared) {
+						terrain = terrain.clone();
+						type = type.clone();
+						height = height.clone();
+						building = building.clone();
+						shared = false;
+					}
 				}
 			}
 		}
 
 		/**
-		 * A single tile holds 2 pieces of information. <br>
+		 * @return true while the tiles are held encoded
+		 */
+		public boolean isPacked() {
+			return packed != null;
+		}
+
+		/**
+		 * @return approximate heap used by the tiles of this chunk
+		 */
+		public int memoryBytes() {
+			byte[] p = packed;
+			return p == null ? chunkMemoryBytes : p.length + (chunkMemoryBytes - rawBytes);
+		}
+
+		/**
+		 * Encodes the tiles with {@link ChunkCodec} and releases the arrays, to keep inactive chunks small. <br>
+		 * The tiles are decoded again by the next read or write. Should be called from the level thread, 
+		 * as a write racing with packing on another thread could be lost.
+		 * @return true if the chunk was packed, false if it already was or would not get smaller
+		 */
+		public synchronized boolean pack() {
+			if (packed != null) {
+				return false;
+			}
+			ByteBuffer buffer = packScratch.get();
+			buffer.clear();
+			int bytes = ChunkCodec.encode(terrain, type, height, building, buffer);
+			if (bytes >= rawBytes) {
+				return false;
+			}
+			packed = Arrays.copyOf(buffer.array(), bytes);
+			terrain = null;
+			type = null;
+			height = null;
+			building = null;
+			shared = false;
+			return true;
+		}
+
+		/**
+		 * Decodes the packed tiles back into arrays
+		 */
+		private synchronized void unpack() {
+			byte[] p = packed;
+			if (p == null) {
+				return;
+			}
+			byte[] terrain = new byte[chunkTiles];
+			byte[] type = new byte[chunkTiles];
+			short[] height = new short[chunkTiles];
+			int[] building = new int[chunkTiles];
+			try {
+				ChunkCodec.decode(ByteBuffer.wrap(p), terrain, type, height, building);
+			} catch (IOException err) {
+				//only ever decodes what pack() encoded
+				throw new IllegalStateException("Packed chunk could not be decoded", err);
+			}
+			this.terrain = terrain;
+			this.type = type;
+			this.height = height;
+			this.building = building;
+			shared = false;
+			packed = null;
+		}
+
+		private byte[] terrain() {
+			byte[] a = terrain;
+			if (a == null) {
+				unpack();
+				a = terrain;
+			}
+			return a;
+		}
+
+		private byte[] type() {
+			byte[] a = type;
+			if (a == null) {
+				unpack();
+				a = type;
+			}
+			return a;
+		}
+
+		private short[] height() {
+			short[] a = height;
+			if (a == null) {
+				unpack();
+				a = height;
+			}
+			return a;
+		}
+
+		private int[] building() {
+			int[] a = building;
+			if (a == null) {
+				unpack();
+				a = building;
+			}
+			return a;
+		}
+
+		private void afterWrite() {
+			if (!modified.get()) {
+				modified.set(true);
+			}
+		}
+
+		public TerrainType getTerrain(int index) {
+			return terrainValues[terrain()[index]];
+		}
+
+		public void setTerrain(int index, TerrainType value) {
+			beforeWrite();
+			terrain()[index] = (byte) value.ordinal();
+			afterWrite();
+		}
+
+		public Tiles getType(int index) {
+			int value = type()[index];
+			return value == 0 ? null : tilesValues[value - 1];
+		}
+
+		public void setType(int index, Tiles value) {
+			beforeWrite();
+			type()[index] = (byte) (value == null ? 0 : value.ordinal() + 1);
+			afterWrite();
+		}
+
+		public int getHeight(int index) {
+			return height()[index];
+		}
+
+		public void setHeight(int index, int value) {
+			beforeWrite();
+			height()[index] = (short) value;
+			afterWrite();
+		}
+
+		public int getBuildingID(int index) {
+			return building()[index];
+		}
+
+		public void setBuildingID(int index, int value) {
+			beforeWrite();
+			building()[index] = value;
+			afterWrite();
+		}
+
+		/**
+		 * Writes the raw tile arrays into the buffer, {@link LevelData#rawBytes} bytes in total.
+		 * @param buffer to write to
+		 */
+		public void writeTo(ByteBuffer buffer) {
+			buffer.put(terrain());
+			buffer.put(type());
+			buffer.asShortBuffer().put(height());
+			buffer.position(buffer.position() + chunkTiles * 2);
+			buffer.asIntBuffer().put(building());
+			buffer.position(buffer.position() + chunkTiles * 4);
+		}
+
+		/**
+		 * Reads the raw tile arrays written by {@link #writeTo(ByteBuffer)}
+		 * @param buffer to read from
+		 */
+		public void readFrom(ByteBuffer buffer) {
+			beforeWrite();
+			buffer.get(terrain);
+			buffer.get(type);
+			buffer.asShortBuffer().get(height);
+			buffer.position(buffer.position() + chunkTiles * 2);
+			buffer.asIntBuffer().get(building);
+			buffer.position(buffer.position() + chunkTiles * 4);
+		}
+
+		/**
+		 * Writes the tiles encoded by {@link ChunkCodec}. A packed chunk is written as is without decoding it.
+		 * @param buffer to write to, needs {@link ChunkCodec#maxBytes} remaining
+		 * @return bytes written
+		 */
+		public int writePacked(ByteBuffer buffer) {
+			synchronized (this) {
+				byte[] p = packed;
+				if (p != null) {
+					buffer.put(p);
+					return p.length;
+				}
+				return ChunkCodec.encode(terrain, type, height, building, buffer);
+			}
+		}
+
+		/**
+		 * Reads tiles written by {@link #writePacked(ByteBuffer)}
+		 * @param buffer to read from
+		 * @throws IOException if the data is corrupt
+		 */
+		public void readPacked(ByteBuffer buffer) throws IOException {
+			beforeWrite();
+			ChunkCodec.decode(buffer, terrain, type, height, building);
+		}
+
+		/**
+		 * Creates a new cursor pointing at the tile
+		 * @param x tile x inside the chunk
+		 * @param y tile y inside the chunk
+		 * @return cursor to the tile
+		 */
+		public Tile getTile(int x, int y) {
+			return new Tile(tileIndex(x, y));
+		}
+
+		/**
+		 * A single tile holds 4 pieces of information. <br>
 		 * <ol>
-		 * 	<li>the tile type, eg building-type-hospital - links to {@link SaveFile#tiles}</li>
-		 * 	<li>the building ID - links to {@link SaveFile#buildings}</li>
+		 * 	<li>the terrain type</li>
+		 * 	<li>the tile type, eg building-type-hospital - links to {@link LevelData#tileTypes}</li>
+		 * 	<li>the height</li>
+		 * 	<li>the building ID - links to {@link LevelData#buildings}</li>
 		 * </ol>
+		 * This is only a flyweight cursor into the owning chunks arrays, use {@link #moveTo(int, int)} to reuse it while iterating.
 		 * @author Megan
 		 */
-		public class Tile implements Serializable {
-			/**
-			 * 
-			 */
-			private static final long serialVersionUID = 4696596418608513610L;
-			public TerrainType terrain;
-			public Tiles type;
-			public int height = 0;
-			public byte UUID = -1;
+		public class Tile {
+			private int index;
+
+			private Tile(int index) {
+				this.index = index;
+			}
+
+			public Tile moveTo(int x, int y) {
+				this.index = tileIndex(x, y);
+				return this;
+			}
+
+			public Chunk getChunk() {
+				return Chunk.this;
+			}
+
+			public int getIndex() {
+				return index;
+			}
+
+			public int getX() {
+				return index / chunkSize;
+			}
+
+			public int getY() {
+				return index % chunkSize;
+			}
+
+			public TerrainType getTerrain() {
+				return Chunk.this.getTerrain(index);
+			}
+
+			public void setTerrain(TerrainType value) {
+				Chunk.this.setTerrain(index, value);
+			}
+
+			public Tiles getType() {
+				return Chunk.this.getType(index);
+			}
+
+			public void setType(Tiles value) {
+				Chunk.this.setType(index, value);
+			}
+
+			public int getHeight() {
+				return Chunk.this.getHeight(index);
+			}
+
+			public void setHeight(int value) {
+				Chunk.this.setHeight(index, value);
+			}
+
+			public int getBuildingID() {
+				return Chunk.this.getBuildingID(index);
+			}
+
+			public void setBuildingID(int value) {
+				Chunk.this.setBuildingID(index, value);
+			}
+
+			@Override
+			public int hashCode() {
+				return System.identityHashCode(Chunk.this) * 31 + index;
+			}
+
+			@Override
+			public boolean equals(Object obj) {
+				if (obj instanceof Tile) {
+					Tile other = (Tile) obj;
+					return other.getChunk() == Chunk.this && other.index == index;
+				}
+				return false;
+			}
 		}
 
 	}
 
-	public final FrameTimeManager frameTimeManager = new FrameTimeManager();
+	/**
+	 * Fixed timestep the level is ticked at, see {@link GameManager#startGame(LevelData, GameManager)}
+	 */
+	public transient final TickScheduler scheduler = new TickScheduler();
 	public final Object gamePauseLock = new Object();
 	public final AtomicBoolean quit = new AtomicBoolean(false), pause = new AtomicBoolean(true);
 
@@ -0,0 +1,289 @@
+package com.meeple.citybuild.server;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.shared.Delta;
+import com.meeple.shared.utils.FrameUtils;
+
+/**
+ * Runs the simulation at a fixed tick rate independent of how long each loop of the level thread takes. <br>
+ * Ticks are scheduled against absolute deadlines so the rate does not drift with how long the thread actually slept.
+ * When the level thread falls behind it catches up by running several ticks back to back, at most {@link #maxTicksPerFrame},
+ * and drops the rest rather than building up an ever growing backlog. <br>
+ * Every tick gets the same fixed {@link Delta}. The render thread can read {@link #alpha(long)} to interpolate between the last two ticks. <br>
+ * The duration of the last {@link #sampleCount} ticks is kept to report milliseconds per tick (MSPT). <br>
+ * The {@link Speed} runs the ticks more often without changing the delta each tick simulates, each tick is the same only there are more
+ * of them every second. At {@link Speed#Max} ticks run back to back without waiting, as fast as the level thread can go.
+ */
+public class TickScheduler {
+	private static Logger logger = Logger.getLogger(TickScheduler.class);
+
+	public enum Speed {
+		Normal(1), Double(2), Quadruple(4),
+		/**
+		 * no waiting between ticks
+		 */
+		Max(0);
+
+		/**
+		 * ticks run in the wall clock time of one tick, 0 for as many as the level thread can
+		 */
+		public final int multiplier;
+
+		private Speed(int multiplier) {
+			this.multiplier = multiplier;
+		}
+	}
+
+	/**
+	 * number of tick durations kept for {@link #averageMspt()} and {@link #maxMspt()}
+	 */
+	public static final int sampleCount = 128;
+	private static final long behindWarningNanos = FrameUtils.secondsToNanos(5);
+
+	/**
+	 * most ticks run in a row to catch up before the backlog is dropped
+	 */
+	public int maxTicksPerFrame = 5;
+
+	private volatile int tickRate;
+	private volatile long tickNanos;
+	private volatile Speed speed = Speed.Normal;
+	/**
+	 * deadline of the next tick, in {@link System#nanoTime()}
+	 */
+	private volatile long nextTick;
+	private volatile boolean started = false;
+	private final Delta delta = new Delta();
+
+	private final long[] samples = new long[sampleCount];
+	private int sampleIndex = 0;
+	private long lastWarning = 0;
+
+	/**
+	 * ticks run since the level started
+	 */
+	public volatile long ticks = 0;
+	/**
+	 * ticks dropped because the level thread could not catch up
+	 */
+	public volatile long droppedTicks = 0;
+	public volatile long lastTickNanos = 0;
+	/**
+	 * fraction of the way from the last tick to the next when the last {@link #advance(Consumer)} returned
+	 */
+	public volatile float alpha = 0;
+
+	public TickScheduler() {
+		setTickRate(20);
+	}
+
+	/**
+	 * Sets the ticks per second. Takes effect from the next tick
+	 */
+	public void setTickRate(int tickRate) {
+		if (tickRate <= 0) {
+			throw new IllegalArgumentException("Tick rate must be positive: " + tickRate);
+		}
+		this.tickRate = tickRate;
+		this.tickNanos = FrameUtils.nanoToSeconds / tickRate;
+	}
+
+	public int getTickRate() {
+		return tickRate;
+	}
+
+	/**
+	 * Sets how many times faster than the tick rate the ticks run. Takes effect from the next {@link #advance(Consumer)},
+	 * ticks that were due at the old speed are not caught up on.
+	 */
+	public void setSpeed(Speed speed) {
+		if (speed == null) {
+			throw new IllegalArgumentException("Speed must not be null");
+		}
+		if (this.speed != speed) {
+			this.speed = speed;
+			reset();
+			logger.trace("Level speed set to " + speed);
+		}
+	}
+
+	public Speed getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * @return simulated nanos per tick
+	 */
+	public long getTickNanos() {
+		return tickNanos;
+	}
+
+	/**
+	 * @return wall clock nanos between ticks at the current speed, 0 at {@link Speed#Max}
+	 */
+	public long getIntervalNanos() {
+		int multiplier = speed.multiplier;
+		return multiplier == 0 ? 0 : tickNanos / multiplier;
+	}
+
+	/**
+	 * Forgets the schedule so the next {@link #advance(Consumer)} starts afresh, eg after the level was paused.
+	 * Without this the time spent paused would be caught up on.
+	 */
+	public void reset() {
+		started = false;
+	}
+
+	/**
+	 * Runs every tick that is due, up to {@link #maxTicksPerFrame}. Call from the level thread.
+	 * @param tick run once per due tick with the fixed delta
+	 * @return number of ticks run
+	 */
+	public int advance(Consumer<Delta> tick) {
+		long now = System.nanoTime();
+		if (!started) {
+			nextTick = now;
+			started = true;
+		}
+		long step = tickNanos;
+		long interval = getIntervalNanos();
+		int ran = 0;
+		while (now - nextTick >= 0 && ran < maxTicksPerFrame) {
+			delta.nanos = step;
+			delta.seconds = FrameUtils.nanosToSeconds(step);
+			delta.totalNanos += step;
+			tick.accept(delta);
+			long end = System.nanoTime();
+			record(end - now);
+			nextTick += interval;
+			ran++;
+			now = end;
+		}
+		if (interval == 0) {
+			//as fast as possible, there is no schedule to fall behind
+			nextTick = now;
+		} else if (now - nextTick >= 0) {
+			//still behind after catching up as much as allowed, drop the backlog
+			long behind = now - nextTick;
+			long dropped = behind / interval + 1;
+			droppedTicks += dropped;
+			nextTick += dropped * interval;
+			if (now - lastWarning > behindWarningNanos) {
+				lastWarning = now;
+				logger.warn(String.format("Level is running %.1fms behind, dropped %d ticks. %s", behind / (double) FrameUtils.nanoToMilli, dropped, report()));
+			}
+		}
+		alpha = alpha(now);
+		return ran;
+	}
+
+	private void record(long nanos) {
+		lastTickNanos = nanos;
+		synchronized (samples) {
+			samples[sampleIndex] = nanos;
+			sampleIndex = (sampleIndex + 1) % sampleCount;
+		}
+		ticks++;
+	}
+
+	/**
+	 * Parks the level thread until the next tick is due
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void waitForNextTick() throws InterruptedException {
+		long wait;
+		while ((wait = nextTick - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(this, wait);
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * Interpolation factor for rendering at the time, safe to call from any thread
+	 * @param now {@link System#nanoTime()} of the frame being rendered
+	 * @return 0 at the last tick up to 1 at the next tick
+	 */
+	public float alpha(long now) {
+		long step = getIntervalNanos();
+		if (step == 0) {
+			return 1f;
+		}
+		float a = (now - (nextTick - step)) / (float) step;
+		return Math.max(0f, Math.min(1f, a));
+	}
+
+	/**
+	 * @return tick durations of the last {@link #sampleCount} ticks, oldest first, in nanos
+	 */
+	public long[] samples() {
+		long count = Math.min(ticks, sampleCount);
+		long[] result = new long[(int) count];
+		synchronized (samples) {
+			for (int i = 0; i < count; i++) {
+				result[i] = samples[(int) ((sampleIndex - count + i + sampleCount) % sampleCount)];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return average milliseconds per tick over the last {@link #sampleCount} ticks
+	 */
+	public double averageMspt() {
+		long[] s = samples();
+		if (s.length == 0) {
+			return 0;
+		}
+		long total = 0;
+		for (long nanos : s) {
+			total += nanos;
+		}
+		return total / (double) s.length / FrameUtils.nanoToMilli;
+	}
+
+	/**
+	 * @return slowest tick of the last {@link #sampleCount} ticks in milliseconds
+	 */
+	public double maxMspt() {
+		long max = 0;
+		for (long nanos : samples()) {
+			max = Math.max(max, nanos);
+		}
+		return max / (double) FrameUtils.nanoToMilli;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return tick duration at the percentile of the last {@link #sampleCount} ticks in milliseconds
+	 */
+	public double percentileMspt(double percentile) {
+		long[] s = samples();
+		if (s.length == 0) {
+			return 0;
+		}
+		Arrays.sort(s);
+		int index = (int) Math.ceil(percentile / 100d * s.length) - 1;
+		return s[Math.max(0, Math.min(s.length - 1, index))] / (double) FrameUtils.nanoToMilli;
+	}
+
+	/**
+	 * @return true if the average tick takes longer than the tick interval, so the level can not keep its tick rate at the current speed.
+	 *         Never at {@link Speed#Max}
+	 */
+	public boolean isOverloaded() {
+		long interval = getIntervalNanos();
+		return interval > 0 && averageMspt() * FrameUtils.nanoToMilli > interval;
+	}
+
+	public String report() {
+		return String.format("%d TPS target at %s speed, MSPT avg %.2f max %.2f (budget %.2f), %d ticks, %d dropped",
+			tickRate, speed, averageMspt(), maxMspt(), getIntervalNanos() / (double) FrameUtils.nanoToMilli, ticks, droppedTicks);
+	}
+}
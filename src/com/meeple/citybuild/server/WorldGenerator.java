@@ -2,12 +2,13 @@ package com.meeple.citybuild.server;
 
 import java.lang.ref.WeakReference;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
-
-import org.joml.Vector2i;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.gen.NoiseTerrainGenerator;
+import com.meeple.citybuild.server.gen.TerrainGenerator;
 import com.meeple.shared.utils.CollectionSuppliers;
 import com.meeple.shared.utils.FrameUtils;
 
@@ -85,30 +86,94 @@ public class WorldGenerator {
 		TerrainType b = TerrainType.Empty;
 	}
 
-	//TODO customise this
+	/**
+	 * Chunks generated on each side of the origin, the world is (2 * radius) x (2 * radius) chunks
+	 */
+	public int radius = 2;
+	/**
+	 * Fills in the terrain of each chunk
+	 */
+	public TerrainGenerator terrain = new NoiseTerrainGenerator();
+	/**
+	 * Pool the chunks are generated on
+	 */
+	public ForkJoinPool pool = ForkJoinPool.commonPool();
+	/**
+	 * Chunks generated by a single fork/join task before it stops splitting
+	 */
+	static final int chunksPerTask = 4;
+
+	/**
+	 * Generates every chunk in the radius in parallel and adds them to the level. <br>
+	 * The {@link TerrainGenerator} only sees the world seed and the chunk index (chunks needing randomness seed it with {@link #chunkSeed(long, int, int)}), 
+	 * so the world only depends on the seed and not on the order or the thread the chunks are generated on.
+	 * @param level to fill
+	 * @param seed world seed
+	 */
 	public void create(LevelData level, long seed) {
-		
-		int radi = 2;
-		int minRadi = 2;
-		Random random = new Random(seed);
-		for (int x = -minRadi; x < radi; x++) {
-			for (int y = -minRadi; y < radi; y++) {
-				Vector2i chunkIndex = new Vector2i(x, y);
-				Chunk mainChunk = level.new Chunk(chunkIndex);
-				for (int tx = 0; tx < mainChunk.tiles.length; tx++) {
-					for (int ty = 0; ty < mainChunk.tiles[tx].length; ty++) {
-
-						//if (tx == 0 || ty == 0 || tx == mainChunk.tiles.length - 1 || ty == mainChunk.tiles[0].length - 1 ) {
-						//	mainChunk.tiles[tx][ty].type = Tiles.Hole;
-						//} else {
-							mainChunk.tiles[tx][ty].terrain = TerrainType.Grass;
-							mainChunk.tiles[tx][ty].height = random.nextInt(5);
-							//mainChunk.tiles[tx][ty].type = Tiles.Ground;
-						//}
-					}
-				}
+		int width = radius * 2;
+		Chunk[] generated = new Chunk[width * width];
+		pool.invoke(new GenerateTask(level, seed, radius, generated, 0, generated.length));
+		for (Chunk chunk : generated) {
+			level.chunks.put(chunk.chunkX, chunk.chunkY, chunk);
+		}
+	}
 
-				level.chunks.put(chunkIndex, mainChunk);
+	/**
+	 * Generates a single chunk, only depends on the arguments
+	 */
+	public Chunk generateChunk(LevelData level, long seed, int chunkX, int chunkY) {
+		Chunk chunk = level.new Chunk(chunkX, chunkY);
+		terrain.generate(chunk, seed);
+		return chunk;
+	}
+
+	/**
+	 * Mixes the chunk index into the world seed so neighbouring chunks get unrelated seeds
+	 */
+	public static long chunkSeed(long seed, int chunkX, int chunkY) {
+		return mix(seed ^ mix(LevelData.chunkKey(chunkX, chunkY) + 0x9E3779B97F4A7C15L));
+	}
+
+	/**
+	 * 64 bit finalizer from SplitMix64
+	 */
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Splits the flat range of chunk slots in half until it is small enough to generate directly
+	 */
+	private class GenerateTask extends RecursiveAction {
+		private static final long serialVersionUID = -3512386510424381787L;
+		final LevelData level;
+		final long seed;
+		final int radius;
+		final Chunk[] generated;
+		final int from, to;
+
+		GenerateTask(LevelData level, long seed, int radius, Chunk[] generated, int from, int to) {
+			this.level = level;
+			this.seed = seed;
+			this.radius = radius;
+			this.generated = generated;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= chunksPerTask) {
+				int width = radius * 2;
+				for (int i = from; i < to; i++) {
+					generated[i] = generateChunk(level, seed, i / width - radius, i % width - radius);
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new GenerateTask(level, seed, radius, generated, from, mid), new GenerateTask(level, seed, radius, generated, mid, to));
 			}
 		}
 	}
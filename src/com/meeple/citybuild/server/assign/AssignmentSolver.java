@@ -0,0 +1,736 @@
+package com.meeple.citybuild.server.assign;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.BuildingRegistry;
+import com.meeple.citybuild.server.Buildings.BuildingInstance;
+import com.meeple.citybuild.server.Buildings.BuildingLimits;
+import com.meeple.citybuild.server.Buildings.BuildingTemplate;
+import com.meeple.citybuild.server.Buildings.BuildingType;
+import com.meeple.citybuild.server.Buildings.Person;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.entity.Component;
+import com.meeple.citybuild.server.entity.EntityStore;
+
+/**
+ * Finds every person a home and a job. <br>
+ * Homes are buildings of type {@link BuildingType#Housing}, every other building employs people. A building never gets more people than its
+ * hard upper people limit, filling it past its soft upper limit costs more and a building under its soft lower limit is preferred, so each one
+ * gets the people it needs to run. A person never lives with more people than the upper co-habitant limit of anyone living there,
+ * and living with more or fewer than they prefer costs them, see {@link Person}. <br>
+ * Each person takes the building costing them least, mostly the distance to it, found by searching outwards through a grid of the buildings
+ * with room left. Only the people a change touches are worked out again: people of a removed building look for a new one, people living near
+ * a new building check whether it suits them better and people left behind by someone moving out check whether they still want to stay. <br>
+ * Changes can be made from any thread and are solved in rounds on a thread of their own. The level thread calls {@link #tick()} which applies
+ * the results of a finished round to the {@link Component#Owner} and {@link Component#Job} of the people, the
+ * {@link BuildingInstance#currentPeople} of the buildings and the scale they run their recipe at, so they only change at a tick boundary.
+ */
+public class AssignmentSolver {
+	private static Logger logger = Logger.getLogger(AssignmentSolver.class);
+
+	/**
+	 * world units across one cell of the grid buildings are found in
+	 */
+	public static float cellSize = LevelData.fullChunkSize / 4;
+	/**
+	 * cost of each co-habitant more or fewer than a person prefers, in world units of distance
+	 */
+	public static float preferenceCost = 200;
+	/**
+	 * cost of each person over the soft upper people limit of a building
+	 */
+	public static float overSoftCost = 25;
+	/**
+	 * taken off the cost of a building under its soft lower people limit
+	 */
+	public static float underSoftBonus = 100;
+	/**
+	 * a person only moves if it lowers their cost by more than this, so people do not keep moving back and forth
+	 */
+	public static float moveThreshold = 50;
+
+	/**
+	 * people checked for a better home or job in one round, spreads the work of a big change over several rounds
+	 */
+	public int reviewsPerRound = 4096;
+	/**
+	 * people whose home and job are set in one tick, a big round is applied over several ticks
+	 */
+	public int peoplePerTick = 8192;
+
+	private static class Site {
+		final int handle;
+		final boolean home;
+		final float x, y;
+		final int cellX, cellY;
+		final int hardUpper, softLower, softUpper;
+		Resident[] members = new Resident[4];
+		int size;
+		/**
+		 * lowest upper co-habitant limit of the people living here
+		 */
+		int memberLimit = Integer.MAX_VALUE;
+		boolean changed;
+
+		Site(int handle, boolean home, BuildingLimits limits, float x, float y) {
+			this.handle = handle;
+			this.home = home;
+			this.x = x;
+			this.y = y;
+			this.cellX = cell(x);
+			this.cellY = cell(y);
+			this.hardUpper = Math.max(0, limits.hardPoepleLimitUpper());
+			this.softLower = clamp(limits.softPeopleLimitLower(), Math.max(0, limits.hardPeopleLimitLower()), hardUpper);
+			this.softUpper = clamp(limits.softPeopleLimitUpper(), softLower, hardUpper);
+		}
+
+		void updateLimit() {
+			memberLimit = Integer.MAX_VALUE;
+			for (int i = 0; i < size; i++) {
+				memberLimit = Math.min(memberLimit, members[i].limit);
+			}
+		}
+	}
+
+	private static class Resident {
+		final int id;
+		float x, y;
+		int limit, preferMin, preferMax;
+		Site home, job;
+		boolean changed;
+
+		Resident(int id) {
+			this.id = id;
+		}
+
+		void set(Person person, float x, float y) {
+			this.x = x;
+			this.y = y;
+			this.limit = Math.max(1, person.coHabbitantLimits.y);
+			this.preferMin = Math.max(person.coHabbitantLimits.x, person.coHabbitantPreference.x);
+			this.preferMax = Math.max(preferMin, person.coHabbitantPreference.y);
+		}
+	}
+
+	/**
+	 * Homes or workplaces by grid cell
+	 */
+	private static class Index {
+		/**
+		 * buildings with room left
+		 */
+		final Map<Long, List<Site>> vacant = new HashMap<>();
+		final Map<Long, List<Site>> all = new HashMap<>();
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+		/**
+		 * free places across every building, and buildings with at least one
+		 */
+		int vacancies, vacantSites;
+		/**
+		 * counts up whenever a place is freed, people waiting only look again once it has changed
+		 */
+		long version;
+		long triedVersion = -1;
+
+		void add(Site site) {
+			add(all, site);
+			if (site.size < site.hardUpper) {
+				addVacant(site);
+			}
+			vacancies += site.hardUpper - site.size;
+			version++;
+			minX = Math.min(minX, site.cellX);
+			minY = Math.min(minY, site.cellY);
+			maxX = Math.max(maxX, site.cellX);
+			maxY = Math.max(maxY, site.cellY);
+		}
+
+		void remove(Site site) {
+			remove(all, site);
+			if (site.size < site.hardUpper) {
+				removeVacant(site);
+			}
+			vacancies -= site.hardUpper - site.size;
+		}
+
+		void addVacant(Site site) {
+			add(vacant, site);
+			vacantSites++;
+		}
+
+		void removeVacant(Site site) {
+			remove(vacant, site);
+			vacantSites--;
+		}
+
+		static void add(Map<Long, List<Site>> cells, Site site) {
+			cells.computeIfAbsent(LevelData.chunkKey(site.cellX, site.cellY), (k) -> new ArrayList<>(4)).add(site);
+		}
+
+		static void remove(Map<Long, List<Site>> cells, Site site) {
+			long key = LevelData.chunkKey(site.cellX, site.cellY);
+			List<Site> list = cells.get(key);
+			list.remove(site);
+			if (list.isEmpty()) {
+				cells.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Assignments that changed in one round
+	 */
+	private static class Result {
+		/**
+		 * entity id, home handle and job handle of each person
+		 */
+		final int[] people;
+		/**
+		 * handle and people of each building
+		 */
+		final int[] sites;
+
+		Result(int[] people, int[] sites) {
+			this.people = people;
+			this.sites = sites;
+		}
+	}
+
+	private final LevelData level;
+	private final ExecutorService worker;
+	private final AtomicBoolean solving = new AtomicBoolean();
+	private volatile boolean moreWork = false;
+
+	/**
+	 * changes from any thread, run on the worker at the start of a round
+	 */
+	private final Queue<Runnable> changes = new ConcurrentLinkedQueue<>();
+	private final Queue<Result> completed = new ConcurrentLinkedQueue<>();
+	/**
+	 * level thread only: result being applied and how many of its people have been
+	 */
+	private Result applying;
+	private int applied;
+
+	/**
+	 * worker only from here on
+	 */
+	private final Map<Integer, Site> sites = new HashMap<>();
+	private final Map<Integer, Resident> people = new HashMap<>();
+	private final Index homes = new Index(), jobs = new Index();
+	private final Set<Resident> needHome = new LinkedHashSet<>(), needJob = new LinkedHashSet<>();
+	private final Set<Resident> review = new LinkedHashSet<>();
+	private final List<Resident> changedPeople = new ArrayList<>();
+	private final List<Site> changedSites = new ArrayList<>();
+	/**
+	 * cost of the building last found by {@link #find(Resident, boolean, Site)}
+	 */
+	private float foundCost;
+
+	public volatile int housed = 0;
+	public volatile int employed = 0;
+	public volatile int population = 0;
+	/**
+	 * people that moved to a better home or job after they had one
+	 */
+	public volatile long moves = 0;
+	public volatile long rounds = 0;
+	public volatile long lastRoundNanos = 0;
+
+	public AssignmentSolver(LevelData level) {
+		this.level = level;
+		this.worker = Executors.newSingleThreadExecutor((r) -> {
+			Thread t = new Thread(r, "Assignment");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Adds a building people can live or work at, or changes it if it was already added. Can be called from any thread.
+	 * @param x world position of the building
+	 */
+	public void addBuilding(int handle, BuildingTemplate template, float x, float y) {
+		addBuilding(handle, template.getType(), template, x, y);
+	}
+
+	/**
+	 * Adds a building people can live or work at, or changes it if it was already added. Can be called from any thread.
+	 * @param type {@link BuildingType#Housing} for a home, anything else for a workplace
+	 * @param limits how many people the building takes
+	 * @param x world position of the building
+	 */
+	public void addBuilding(int handle, BuildingType type, BuildingLimits limits, float x, float y) {
+		Site site = new Site(handle, type == BuildingType.Housing, limits, x, y);
+		changes.add(() -> addSite(site));
+	}
+
+	/**
+	 * Moves everyone out of the building. Can be called from any thread.
+	 */
+	public void removeBuilding(int handle) {
+		changes.add(() -> removeSite(handle));
+	}
+
+	/**
+	 * Adds a person needing a home and a job, or changes them if they were already added. Can be called from any thread.
+	 * @param entity id in {@link LevelData#entities}, given the {@link Component#Owner} and {@link Component#Job} it has
+	 * @param x world position the person looks for a home from
+	 */
+	public void addPerson(int entity, Person person, float x, float y) {
+		//copied so the caller can keep changing theirs
+		Person copy = new Person();
+		copy.coHabbitantLimits.set(person.coHabbitantLimits);
+		copy.coHabbitantPreference.set(person.coHabbitantPreference);
+		changes.add(() -> addResident(entity, copy, x, y));
+	}
+
+	/**
+	 * Takes the person out of their home and job. Can be called from any thread.
+	 */
+	public void removePerson(int entity) {
+		changes.add(() -> removeResident(entity));
+	}
+
+	/**
+	 * @return true once every change made so far has been solved and applied
+	 */
+	public boolean isIdle() {
+		return !solving.get() && !moreWork && changes.isEmpty() && completed.isEmpty() && applying == null;
+	}
+
+	/**
+	 * Applies the results of finished rounds and starts the next one if there is anything to do. Call from the level thread once per tick.
+	 */
+	public void tick() {
+		int budget = peoplePerTick;
+		while (budget > 0) {
+			if (applying == null) {
+				applying = completed.poll();
+				applied = 0;
+				if (applying == null) {
+					break;
+				}
+				applySites(applying);
+			}
+			int count = Math.min(budget, applying.people.length / 3 - applied);
+			applyPeople(applying, applied, count);
+			applied += count;
+			budget -= count;
+			if (applied * 3 == applying.people.length) {
+				applying = null;
+			}
+		}
+		if ((moreWork || !changes.isEmpty()) && solving.compareAndSet(false, true)) {
+			worker.execute(() -> {
+				try {
+					round();
+				} catch (RuntimeException err) {
+					logger.error("Failed to assign people", err);
+				} finally {
+					solving.set(false);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stops the worker, a round in progress is dropped
+	 */
+	public void close() {
+		worker.shutdownNow();
+	}
+
+	private void applyPeople(Result result, int from, int count) {
+		EntityStore entities = level.entities;
+		int[] people = result.people;
+		for (int i = from * 3; i < (from + count) * 3; i += 3) {
+			int id = people[i];
+			if (!entities.isAlive(id)) {
+				//destroyed without being removed from the solver
+				removePerson(id);
+				continue;
+			}
+			int mask = entities.getMask(id);
+			if (Component.Owner.in(mask)) {
+				entities.setOwner(id, people[i + 1]);
+			}
+			if (Component.Job.in(mask)) {
+				entities.setJob(id, people[i + 2]);
+			}
+		}
+	}
+
+	private void applySites(Result result) {
+		int[] sites = result.sites;
+		for (int i = 0; i < sites.length; i += 2) {
+			int handle = sites[i];
+			BuildingInstance building = level.buildings.get(handle);
+			if (building == null) {
+				removeBuilding(handle);
+				continue;
+			}
+			level.buildings.setPeople(handle, sites[i + 1]);
+			if (level.economy.contains(handle)) {
+				level.economy.setScale(handle, sites[i + 1]);
+			}
+		}
+	}
+
+	private void round() {
+		long start = System.nanoTime();
+		Runnable change;
+		while ((change = changes.poll()) != null) {
+			change.run();
+		}
+		place(needHome, homes, true);
+		place(needJob, jobs, false);
+		int reviews = 0;
+		long moves = 0;
+		for (; !review.isEmpty() && reviews < reviewsPerRound; reviews++) {
+			//moving someone adds the people they left behind, so take one at a time
+			Resident resident = review.iterator().next();
+			review.remove(resident);
+			moves += improve(resident, true) ? 1 : 0;
+			moves += improve(resident, false) ? 1 : 0;
+		}
+		//people moving may have made room for the ones waiting
+		place(needHome, homes, true);
+		place(needJob, jobs, false);
+		publish();
+		this.moves += moves;
+		this.moreWork = !review.isEmpty() || (!needHome.isEmpty() && homes.version != homes.triedVersion) || (!needJob.isEmpty() && jobs.version != jobs.triedVersion);
+		this.lastRoundNanos = System.nanoTime() - start;
+		this.rounds++;
+	}
+
+	private void addSite(Site site) {
+		if (sites.containsKey(site.handle)) {
+			removeSite(site.handle);
+		}
+		sites.put(site.handle, site);
+		(site.home ? homes : jobs).add(site);
+		//people living close by may be better off here
+		for (int x = site.cellX - 1; x <= site.cellX + 1; x++) {
+			for (int y = site.cellY - 1; y <= site.cellY + 1; y++) {
+				List<Site> list = homes.all.get(LevelData.chunkKey(x, y));
+				if (list != null) {
+					for (Site near : list) {
+						review.addAll(Arrays.asList(near.members).subList(0, near.size));
+					}
+				}
+			}
+		}
+	}
+
+	private void removeSite(int handle) {
+		Site site = sites.remove(handle);
+		if (site == null) {
+			return;
+		}
+		(site.home ? homes : jobs).remove(site);
+		for (int i = 0; i < site.size; i++) {
+			Resident resident = site.members[i];
+			if (site.home) {
+				resident.home = null;
+			} else {
+				resident.job = null;
+			}
+			waitFor(resident, site.home);
+			markChanged(resident);
+		}
+		site.size = 0;
+	}
+
+	private void addResident(int id, Person person, float x, float y) {
+		Resident resident = people.get(id);
+		if (resident == null) {
+			resident = new Resident(id);
+			resident.set(person, x, y);
+			people.put(id, resident);
+			waitFor(resident, true);
+			waitFor(resident, false);
+			return;
+		}
+		resident.set(person, x, y);
+		Site home = resident.home;
+		if (home != null) {
+			home.updateLimit();
+			if (home.size > home.memberLimit) {
+				leave(resident, true);
+				waitFor(resident, true);
+			}
+		}
+		review.add(resident);
+	}
+
+	private void removeResident(int id) {
+		Resident resident = people.remove(id);
+		if (resident == null) {
+			return;
+		}
+		leave(resident, true);
+		leave(resident, false);
+		needHome.remove(resident);
+		needJob.remove(resident);
+		review.remove(resident);
+	}
+
+	private void waitFor(Resident resident, boolean home) {
+		if (home ? needHome.add(resident) : needJob.add(resident)) {
+			//someone new to place, even if no place was freed
+			(home ? homes : jobs).triedVersion = -1;
+		}
+	}
+
+	/**
+	 * Gives the waiting people the best building with room for them, if there is room anywhere
+	 */
+	private void place(Set<Resident> waiting, Index index, boolean home) {
+		if (waiting.isEmpty() || index.version == index.triedVersion) {
+			return;
+		}
+		for (Iterator<Resident> it = waiting.iterator(); it.hasNext() && index.vacancies > 0;) {
+			Resident resident = it.next();
+			Site site = find(resident, home, null);
+			if (site != null) {
+				it.remove();
+				join(resident, site);
+				if (home) {
+					//the first people in a house may be better off joining others, and the way to work changed
+					review.add(resident);
+				}
+			}
+		}
+		index.triedVersion = index.version;
+	}
+
+	/**
+	 * Moves the person to a better home or job if there is one
+	 * @return true if they moved
+	 */
+	private boolean improve(Resident resident, boolean home) {
+		Site current = home ? resident.home : resident.job;
+		if (current == null) {
+			waitFor(resident, home);
+			return false;
+		}
+		float currentCost = cost(resident, current, current.size, home);
+		Site better = find(resident, home, current);
+		if (better == null || foundCost >= currentCost - moveThreshold) {
+			return false;
+		}
+		leave(resident, home);
+		join(resident, better);
+		return true;
+	}
+
+	/**
+	 * Searches the grid outwards from the person until no building further out could cost less than the best found.
+	 * Once more cells have been searched than there are buildings with room, they are all checked instead.
+	 * @param current building the person is already at, skipped
+	 * @return the building with room for the person costing them least, null if none has room
+	 */
+	private Site find(Resident resident, boolean home, Site current) {
+		Index index = home ? homes : jobs;
+		foundCost = Float.MAX_VALUE;
+		if (index.vacancies == 0) {
+			return null;
+		}
+		float x = fromX(resident, home), y = fromY(resident, home);
+		int cx = cell(x), cy = cell(y);
+		int rings = Math.max(Math.max(cx - index.minX, index.maxX - cx), Math.max(cy - index.minY, index.maxY - cy));
+		Site best = null;
+		for (int d = 0; d <= rings; d++) {
+			if (best != null && foundCost <= (d - 1) * cellSize - underSoftBonus) {
+				break;
+			}
+			if (index.vacantSites <= (2 * d + 1) * (2 * d + 1)) {
+				for (List<Site> list : index.vacant.values()) {
+					best = check(list, resident, home, current, best);
+				}
+				break;
+			}
+			for (int i = -d; i <= d; i++) {
+				best = check(index, cx + i, cy - d, resident, home, current, best);
+				if (d > 0) {
+					best = check(index, cx + i, cy + d, resident, home, current, best);
+				}
+			}
+			for (int j = -d + 1; j < d; j++) {
+				best = check(index, cx - d, cy + j, resident, home, current, best);
+				best = check(index, cx + d, cy + j, resident, home, current, best);
+			}
+		}
+		return best;
+	}
+
+	private Site check(Index index, int cellX, int cellY, Resident resident, boolean home, Site current, Site best) {
+		List<Site> list = index.vacant.get(LevelData.chunkKey(cellX, cellY));
+		return list == null ? best : check(list, resident, home, current, best);
+	}
+
+	private Site check(List<Site> list, Resident resident, boolean home, Site current, Site best) {
+		for (int i = 0; i < list.size(); i++) {
+			Site site = list.get(i);
+			if (site == current || (home && (site.size >= resident.limit || site.size >= site.memberLimit))) {
+				continue;
+			}
+			float cost = cost(resident, site, site.size + 1, home);
+			if (cost < foundCost) {
+				foundCost = cost;
+				best = site;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @param people at the building with the person counted
+	 */
+	private float cost(Resident resident, Site site, int people, boolean home) {
+		float dx = site.x - fromX(resident, home), dy = site.y - fromY(resident, home);
+		float cost = (float) Math.sqrt(dx * dx + dy * dy);
+		if (people > site.softUpper) {
+			cost += overSoftCost * (people - site.softUpper);
+		}
+		if (people <= site.softLower) {
+			cost -= underSoftBonus;
+		}
+		if (home) {
+			if (people < resident.preferMin) {
+				cost += preferenceCost * (resident.preferMin - people);
+			} else if (people > resident.preferMax) {
+				cost += preferenceCost * (people - resident.preferMax);
+			}
+		}
+		return cost;
+	}
+
+	/**
+	 * People look for a home from where they are and for a job from their home
+	 */
+	private static float fromX(Resident resident, boolean home) {
+		return !home && resident.home != null ? resident.home.x : resident.x;
+	}
+
+	private static float fromY(Resident resident, boolean home) {
+		return !home && resident.home != null ? resident.home.y : resident.y;
+	}
+
+	private void join(Resident resident, Site site) {
+		Index index = site.home ? homes : jobs;
+		if (site.size == site.members.length) {
+			site.members = Arrays.copyOf(site.members, site.members.length * 2);
+		}
+		site.members[site.size++] = resident;
+		if (site.home) {
+			resident.home = site;
+			site.memberLimit = Math.min(site.memberLimit, resident.limit);
+		} else {
+			resident.job = site;
+		}
+		index.vacancies--;
+		if (site.size == site.hardUpper) {
+			index.removeVacant(site);
+		}
+		markChanged(resident);
+		markChanged(site);
+	}
+
+	private void leave(Resident resident, boolean home) {
+		Site site = home ? resident.home : resident.job;
+		if (site == null) {
+			return;
+		}
+		Index index = home ? homes : jobs;
+		for (int i = 0; i < site.size; i++) {
+			if (site.members[i] == resident) {
+				site.members[i] = site.members[--site.size];
+				site.members[site.size] = null;
+				break;
+			}
+		}
+		if (home) {
+			resident.home = null;
+			if (resident.limit == site.memberLimit) {
+				site.updateLimit();
+			}
+			//the people left behind may want to live with more or fewer
+			review.addAll(Arrays.asList(site.members).subList(0, site.size));
+		} else {
+			resident.job = null;
+		}
+		index.vacancies++;
+		index.version++;
+		if (site.size == site.hardUpper - 1) {
+			index.addVacant(site);
+		}
+		markChanged(resident);
+		markChanged(site);
+	}
+
+	private void markChanged(Resident resident) {
+		if (!resident.changed) {
+			resident.changed = true;
+			changedPeople.add(resident);
+		}
+	}
+
+	private void markChanged(Site site) {
+		if (!site.changed) {
+			site.changed = true;
+			changedSites.add(site);
+		}
+	}
+
+	private void publish() {
+		int[] people = new int[changedPeople.size() * 3];
+		int p = 0;
+		for (Resident resident : changedPeople) {
+			resident.changed = false;
+			people[p++] = resident.id;
+			people[p++] = resident.home == null ? BuildingRegistry.none : resident.home.handle;
+			people[p++] = resident.job == null ? BuildingRegistry.none : resident.job.handle;
+		}
+		int[] sites = new int[changedSites.size() * 2];
+		int s = 0;
+		for (Site site : changedSites) {
+			site.changed = false;
+			if (this.sites.get(site.handle) == site) {
+				sites[s++] = site.handle;
+				sites[s++] = site.size;
+			}
+		}
+		changedPeople.clear();
+		changedSites.clear();
+		if (p > 0 || s > 0) {
+			completed.add(new Result(people, Arrays.copyOf(sites, s)));
+		}
+		population = this.people.size();
+		housed = population - needHome.size();
+		employed = population - needJob.size();
+	}
+
+	private static int cell(float position) {
+		return (int) Math.floor(position / cellSize);
+	}
+
+	private static int clamp(int value, int min, int max) {
+		return Math.max(min, Math.min(max, value));
+	}
+}
@@ -0,0 +1,183 @@
+package com.meeple.citybuild.server.command;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.meeple.citybuild.server.BuildingRegistry;
+import com.meeple.citybuild.server.GameManager;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.LevelData.Chunk.Tile;
+import com.meeple.citybuild.server.WorldGenerator.TerrainType;
+import com.meeple.citybuild.server.WorldGenerator.Tiles;
+import com.meeple.citybuild.server.save.EditJournal;
+
+/**
+ * Edits to the world from any thread, applied by the level thread between ticks. <br>
+ * The UI and anything else outside the simulation {@link #submit(TileEdit)} edits instead of writing the tiles, so the level thread
+ * never sees a tile change halfway through a tick. Submitting is a lock free add to a queue and never waits on the level thread. <br>
+ * {@link #apply()} drains the queue once per tick. Edits to the same field of the same tile in one batch are coalesced into the last one,
+ * edits that would not change anything are dropped, the rest are checked and applied through the {@link GameManager} setters so they
+ * are journaled and seen by the {@link LevelData#tileEditListeners}. Each chunk that changed is rebaked once per batch. <br>
+ * Edits read from clients of a server are submitted here too, so the same checks apply to them: the chunk must be resident,
+ * the value in range and a building handle valid.
+ */
+public class CommandBuffer {
+
+	private static final TerrainType[] terrainValues = TerrainType.values();
+	private static final Tiles[] tilesValues = Tiles.values();
+
+	public final AtomicLong submitted = new AtomicLong();
+	public volatile long applied = 0;
+	/**
+	 * edits replaced by a later edit to the same field of the same tile, or that would not have changed it
+	 */
+	public volatile long coalesced = 0;
+	/**
+	 * edits to chunks that are not resident or with values out of range
+	 */
+	public volatile long rejected = 0;
+
+	private final LevelData level;
+	private final Queue<TileEdit> queue = new ConcurrentLinkedQueue<>();
+
+	public CommandBuffer(LevelData level) {
+		this.level = level;
+	}
+
+	/**
+	 * Queues the edit for the next tick. Can be called from any thread
+	 */
+	public void submit(TileEdit edit) {
+		queue.add(edit);
+		submitted.incrementAndGet();
+	}
+
+	public void setTerrain(Tile tile, TerrainType value) {
+		submit(TileEdit.terrain(tile, value));
+	}
+
+	public void setType(Tile tile, Tiles value) {
+		submit(TileEdit.type(tile, value));
+	}
+
+	public void setHeight(Tile tile, int value) {
+		submit(TileEdit.height(tile, value));
+	}
+
+	public void setBuildingID(Tile tile, int handle) {
+		submit(TileEdit.building(tile, handle));
+	}
+
+	/**
+	 * @return true if no edits are waiting for {@link #apply()}
+	 */
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+
+	/**
+	 * Applies every edit submitted so far. Call from the level thread only
+	 * @return number of edits that changed the world
+	 */
+	public int apply() {
+		if (queue.isEmpty()) {
+			return 0;
+		}
+		//chunk key to tile index and field to the last edit, chunks in the order they were first edited
+		Map<Long, Map<Integer, TileEdit>> byChunk = new LinkedHashMap<>();
+		long coalesced = 0, rejected = 0;
+		TileEdit edit;
+		while ((edit = queue.poll()) != null) {
+			if (edit.index < 0 || edit.index >= LevelData.chunkTiles) {
+				rejected++;
+				continue;
+			}
+			Map<Integer, TileEdit> edits = byChunk.computeIfAbsent(LevelData.chunkKey(edit.chunkX, edit.chunkY), (k) -> new LinkedHashMap<>());
+			if (edits.put(edit.index << 3 | edit.field, edit) != null) {
+				coalesced++;
+			}
+		}
+
+		int done = 0;
+		for (Map.Entry<Long, Map<Integer, TileEdit>> entry : byChunk.entrySet()) {
+			Chunk chunk = level.chunks.get(entry.getKey());
+			if (chunk == null) {
+				rejected += entry.getValue().size();
+				continue;
+			}
+			Tile tile = chunk.getTile(0, 0);
+			boolean changed = false;
+			for (TileEdit e : entry.getValue().values()) {
+				tile.moveTo(e.index / LevelData.chunkSize, e.index % LevelData.chunkSize);
+				if (!valid(e)) {
+					rejected++;
+				} else if (!applyTo(tile, e)) {
+					coalesced++;
+				} else {
+					done++;
+					changed = true;
+				}
+			}
+			if (changed) {
+				chunk.rebake.set(true);
+			}
+		}
+		this.applied += done;
+		this.coalesced += coalesced;
+		this.rejected += rejected;
+		return done;
+	}
+
+	private boolean valid(TileEdit edit) {
+		switch (edit.field) {
+			case EditJournal.fieldTerrain:
+				return edit.value >= 0 && edit.value < terrainValues.length;
+			case EditJournal.fieldType:
+				return edit.value >= 0 && edit.value <= tilesValues.length;
+			case EditJournal.fieldHeight:
+				return true;
+			case EditJournal.fieldBuilding:
+				return edit.value == BuildingRegistry.none || level.buildings.isValid(edit.value);
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * @return false if the tile already had the value
+	 */
+	private boolean applyTo(Tile tile, TileEdit edit) {
+		switch (edit.field) {
+			case EditJournal.fieldTerrain:
+				TerrainType terrain = terrainValues[edit.value];
+				if (tile.getTerrain() == terrain) {
+					return false;
+				}
+				GameManager.setTerrain(level, tile, terrain);
+				return true;
+			case EditJournal.fieldType:
+				Tiles type = edit.value == 0 ? null : tilesValues[edit.value - 1];
+				if (tile.getType() == type) {
+					return false;
+				}
+				GameManager.setType(level, tile, type);
+				return true;
+			case EditJournal.fieldHeight:
+				if (tile.getHeight() == edit.value) {
+					return false;
+				}
+				GameManager.setHeight(level, tile, edit.value);
+				return true;
+			default:
+				if (tile.getBuildingID() == edit.value) {
+					return false;
+				}
+				GameManager.setBuildingID(level, tile, edit.value);
+				return true;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.meeple.citybuild.server.command;
+
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk.Tile;
+import com.meeple.citybuild.server.WorldGenerator.TerrainType;
+import com.meeple.citybuild.server.WorldGenerator.Tiles;
+import com.meeple.citybuild.server.save.EditJournal;
+
+/**
+ * One change to one field of a tile, submitted to a {@link CommandBuffer}. <br>
+ * The field is one of the {@link EditJournal} fields and the value is stored the way the journal stores it:
+ * the ordinal of the terrain, the ordinal of the tile type plus one (0 for no type), the height or the building handle.
+ */
+public class TileEdit {
+	public final int chunkX, chunkY;
+	/**
+	 * index of the tile in its chunk, see {@link LevelData#tileIndex(int, int)}
+	 */
+	public final int index;
+	public final byte field;
+	public final int value;
+
+	public TileEdit(int chunkX, int chunkY, int index, byte field, int value) {
+		this.chunkX = chunkX;
+		this.chunkY = chunkY;
+		this.index = index;
+		this.field = field;
+		this.value = value;
+	}
+
+	private TileEdit(Tile tile, byte field, int value) {
+		this(tile.getChunk().chunkX, tile.getChunk().chunkY, tile.getIndex(), field, value);
+	}
+
+	public static TileEdit terrain(Tile tile, TerrainType value) {
+		return new TileEdit(tile, EditJournal.fieldTerrain, value.ordinal());
+	}
+
+	/**
+	 * @param value null to clear the type
+	 */
+	public static TileEdit type(Tile tile, Tiles value) {
+		return new TileEdit(tile, EditJournal.fieldType, value == null ? 0 : value.ordinal() + 1);
+	}
+
+	public static TileEdit height(Tile tile, int value) {
+		return new TileEdit(tile, EditJournal.fieldHeight, value);
+	}
+
+	public static TileEdit building(Tile tile, int handle) {
+		return new TileEdit(tile, EditJournal.fieldBuilding, handle);
+	}
+
+	@Override
+	public String toString() {
+		return "TileEdit [chunk " + chunkX + ", " + chunkY + " tile " + index + " field " + field + " = " + value + "]";
+	}
+}
@@ -0,0 +1,346 @@
+package com.meeple.citybuild.server.economy;
+
+import java.util.Arrays;
+
+import com.meeple.citybuild.server.BuildingRegistry;
+
+/**
+ * Stock of every building and the {@link Recipe} each one runs. <br>
+ * Stock is one flat int array, {@link Resources#count} entries per building slot of the {@link BuildingRegistry}.
+ * The buildings running a recipe are kept in one list per recipe, so a tick is one pass over each list doing the same
+ * checks and sums for every building instead of a method call per building. <br>
+ * Totals over the whole settlement are kept up to date as stock changes, a pass adds up what its buildings made and used
+ * and applies it to the totals once. A copy of the totals is published after each tick for the UI to read from any thread. <br>
+ * Changes are made from the level thread, synchronized on the economy so a save can capture it from another thread.
+ */
+public class Economy {
+
+	/**
+	 * most of one resource a building can hold, a cycle that would go over it waits
+	 */
+	public static int stockLimit = 1000;
+
+	private static final int resources = Resources.count;
+	private static final Recipe[] recipes = Recipes.values();
+
+	private final BuildingRegistry buildings;
+	/**
+	 * handle of the building in each slot, {@link BuildingRegistry#none} if the slot is not in the economy
+	 */
+	private int[] handles = new int[0];
+	private int[] recipeOf = new int[0];
+	private int[] scale = new int[0];
+	/**
+	 * ticks into the current cycle
+	 */
+	private int[] progress = new int[0];
+	/**
+	 * index of each slot in the list of its recipe
+	 */
+	private int[] memberIndex = new int[0];
+	private int[] stock = new int[0];
+	/**
+	 * slots running each recipe
+	 */
+	private final int[][] members = new int[recipes.length][];
+	private final int[] memberCounts = new int[recipes.length];
+	private final long[] totals = new long[resources];
+	private volatile long[] published = new long[resources];
+	private int count = 0;
+	/**
+	 * bumped by every change, see {@link #changeCount()}
+	 */
+	private volatile long changes = 0;
+
+	/**
+	 * buildings that had to wait for inputs or room for outputs in the last tick
+	 */
+	public volatile int stalled = 0;
+	/**
+	 * cycles finished in total
+	 */
+	public volatile long cycles = 0;
+
+	public Economy(BuildingRegistry buildings) {
+		this.buildings = buildings;
+		for (int r = 0; r < recipes.length; r++) {
+			members[r] = new int[16];
+		}
+	}
+
+	/**
+	 * @return a count bumped by every change to the buildings, their stock or progress. The same count means nothing changed in between
+	 */
+	public long changeCount() {
+		return changes;
+	}
+
+	/**
+	 * @return number of buildings in the economy
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return number of slots to go through with {@link #handleAt(int)}
+	 */
+	public int slotLimit() {
+		return handles.length;
+	}
+
+	/**
+	 * @return the handle of the building in the slot, {@link BuildingRegistry#none} if the slot is not in the economy
+	 */
+	public int handleAt(int slot) {
+		return slot < handles.length ? handles[slot] : BuildingRegistry.none;
+	}
+
+	/**
+	 * @return true if the building is in the economy
+	 */
+	public boolean contains(int handle) {
+		int slot = BuildingRegistry.slot(handle);
+		return handle >= 0 && slot < handles.length && handles[slot] == handle;
+	}
+
+	/**
+	 * @return the recipe the building runs
+	 */
+	public Recipe getRecipe(int handle) {
+		return recipes[recipeOf[check(handle)]];
+	}
+
+	public int getScale(int handle) {
+		return scale[check(handle)];
+	}
+
+	/**
+	 * @return ticks into the current cycle of the building
+	 */
+	public int getProgress(int handle) {
+		return progress[check(handle)];
+	}
+
+	public int getStock(int handle, int resource) {
+		return stock[check(handle) * resources + resource];
+	}
+
+	/**
+	 * @return settlement wide stock of the resource as of the last tick, safe to call from any thread
+	 */
+	public long total(int resource) {
+		return published[resource];
+	}
+
+	private int check(int handle) {
+		if (!contains(handle)) {
+			throw new IllegalArgumentException("Building " + handle + " is not in the economy");
+		}
+		return BuildingRegistry.slot(handle);
+	}
+
+	/**
+	 * Sets the recipe the building runs, adding it to the economy with no stock if it was not already
+	 * @param scale multiplies the amounts of the recipe, eg the workers or residents of the building
+	 */
+	public synchronized void assign(int handle, Recipe recipe, int scale) {
+		if (!buildings.isValid(handle)) {
+			throw new IllegalArgumentException("No building " + handle);
+		}
+		int slot = BuildingRegistry.slot(handle);
+		ensureSlots(slot + 1);
+		if (handles[slot] != handle) {
+			if (handles[slot] != BuildingRegistry.none) {
+				//a removed building that was never taken out of the economy
+				unassign(handles[slot]);
+			}
+			handles[slot] = handle;
+			//spread the cycles out so every building of a recipe does not finish on the same tick
+			progress[slot] = slot % recipe.duration;
+			count++;
+		} else {
+			leave(slot);
+			progress[slot] = Math.min(progress[slot], recipe.duration - 1);
+		}
+		recipeOf[slot] = recipe.id;
+		this.scale[slot] = scale;
+		join(slot);
+		changes++;
+	}
+
+	/**
+	 * Changes how many times over the building runs its recipe, eg when people move in or out
+	 */
+	public synchronized void setScale(int handle, int scale) {
+		int slot = check(handle);
+		if (this.scale[slot] != scale) {
+			this.scale[slot] = scale;
+			changes++;
+		}
+	}
+
+	/**
+	 * Restores a building from a save, its stock is added with {@link #addStock(int, int, int)}
+	 */
+	public synchronized void restore(int handle, Recipe recipe, int scale, int progress) {
+		assign(handle, recipe, scale);
+		this.progress[BuildingRegistry.slot(handle)] = Math.min(progress, recipe.duration - 1);
+	}
+
+	/**
+	 * Takes the building out of the economy, its stock is lost
+	 */
+	public synchronized void unassign(int handle) {
+		if (!contains(handle)) {
+			return;
+		}
+		int slot = BuildingRegistry.slot(handle);
+		leave(slot);
+		int base = slot * resources;
+		for (int r = 0; r < resources; r++) {
+			totals[r] -= stock[base + r];
+			stock[base + r] = 0;
+		}
+		handles[slot] = BuildingRegistry.none;
+		count--;
+		changes++;
+	}
+
+	private void join(int slot) {
+		int recipe = recipeOf[slot];
+		int[] list = members[recipe];
+		if (memberCounts[recipe] == list.length) {
+			list = members[recipe] = Arrays.copyOf(list, list.length * 2);
+		}
+		memberIndex[slot] = memberCounts[recipe];
+		list[memberCounts[recipe]++] = slot;
+	}
+
+	private void leave(int slot) {
+		int recipe = recipeOf[slot];
+		int[] list = members[recipe];
+		int last = list[--memberCounts[recipe]];
+		list[memberIndex[slot]] = last;
+		memberIndex[last] = memberIndex[slot];
+	}
+
+	/**
+	 * Adds to the stock of the building, as much as fits under {@link #stockLimit}. A negative amount takes from it, as much as there is
+	 * @return amount actually added, or taken as a negative
+	 */
+	public synchronized int addStock(int handle, int resource, int amount) {
+		int index = check(handle) * resources + resource;
+		int next = Math.max(0, Math.min(stockLimit, stock[index] + amount));
+		int added = next - stock[index];
+		stock[index] = next;
+		totals[resource] += added;
+		if (added != 0) {
+			changes++;
+		}
+		return added;
+	}
+
+	/**
+	 * Moves stock from one building to another, as much as the source has and the target has room for
+	 * @return amount moved
+	 */
+	public synchronized int transfer(int from, int to, int resource, int amount) {
+		int fromIndex = check(from) * resources + resource;
+		int toIndex = check(to) * resources + resource;
+		int moved = Math.max(0, Math.min(amount, Math.min(stock[fromIndex], stockLimit - stock[toIndex])));
+		stock[fromIndex] -= moved;
+		stock[toIndex] += moved;
+		if (moved != 0) {
+			changes++;
+		}
+		return moved;
+	}
+
+	/**
+	 * Runs one tick of every recipe. A building finishing its cycle takes its inputs and adds its outputs,
+	 * or waits at the end of the cycle until it has the inputs and the room for the outputs.
+	 */
+	public synchronized void tick() {
+		int stalled = 0;
+		long cycles = 0;
+		int[] stock = this.stock;
+		int[] progress = this.progress;
+		int[] scale = this.scale;
+		for (int r = 0; r < recipes.length; r++) {
+			Recipe recipe = recipes[r];
+			int[] list = members[r];
+			int size = memberCounts[r];
+			int duration = recipe.duration;
+			int[] inputs = recipe.inputs, inputAmounts = recipe.inputAmounts;
+			int[] outputs = recipe.outputs, outputAmounts = recipe.outputAmounts;
+			//cycles finished this pass times their scale
+			long runs = 0;
+			for (int i = 0; i < size; i++) {
+				int slot = list[i];
+				int p = progress[slot] + 1;
+				if (p < duration) {
+					progress[slot] = p;
+					continue;
+				}
+				int s = scale[slot];
+				int base = slot * resources;
+				boolean ready = true;
+				for (int k = 0; k < inputs.length && ready; k++) {
+					ready = stock[base + inputs[k]] >= inputAmounts[k] * s;
+				}
+				for (int k = 0; k < outputs.length && ready; k++) {
+					ready = stock[base + outputs[k]] + outputAmounts[k] * s <= stockLimit;
+				}
+				if (!ready) {
+					progress[slot] = duration - 1;
+					stalled++;
+					continue;
+				}
+				for (int k = 0; k < inputs.length; k++) {
+					stock[base + inputs[k]] -= inputAmounts[k] * s;
+				}
+				for (int k = 0; k < outputs.length; k++) {
+					stock[base + outputs[k]] += outputAmounts[k] * s;
+				}
+				progress[slot] = 0;
+				runs += s;
+				cycles++;
+			}
+			for (int k = 0; k < inputs.length; k++) {
+				totals[inputs[k]] -= inputAmounts[k] * runs;
+			}
+			for (int k = 0; k < outputs.length; k++) {
+				totals[outputs[k]] += outputAmounts[k] * runs;
+			}
+		}
+		publishTotals();
+		if (count > 0) {
+			//every building moves along its cycle
+			changes++;
+		}
+		this.stalled = stalled;
+		this.cycles += cycles;
+	}
+
+	/**
+	 * Makes the current totals visible to {@link #total(int)}, done at the end of every tick
+	 */
+	public synchronized void publishTotals() {
+		published = totals.clone();
+	}
+
+	private void ensureSlots(int slots) {
+		if (slots > handles.length) {
+			int length = Math.max(slots, handles.length * 2);
+			int from = handles.length;
+			handles = Arrays.copyOf(handles, length);
+			Arrays.fill(handles, from, length, BuildingRegistry.none);
+			recipeOf = Arrays.copyOf(recipeOf, length);
+			scale = Arrays.copyOf(scale, length);
+			progress = Arrays.copyOf(progress, length);
+			memberIndex = Arrays.copyOf(memberIndex, length);
+			stock = Arrays.copyOf(stock, length * resources);
+		}
+	}
+}
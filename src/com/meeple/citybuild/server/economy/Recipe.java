@@ -0,0 +1,112 @@
+package com.meeple.citybuild.server.economy;
+
+import java.util.Arrays;
+
+/**
+ * What a building turns into what every cycle, see {@link Economy}. <br>
+ * Amounts are per cycle at a scale of one, the {@link Economy} multiplies them by the scale of each building, eg its workers or residents.
+ * A recipe without outputs only consumes, like people living in a house.
+ */
+public class Recipe {
+
+	/**
+	 * Collects the inputs and outputs of a recipe
+	 */
+	public static class Builder {
+		private final String name;
+		private final int duration;
+		private int[] inputs = new int[0], inputAmounts = new int[0];
+		private int[] outputs = new int[0], outputAmounts = new int[0];
+
+		/**
+		 * @param duration ticks one cycle takes
+		 */
+		public Builder(String name, int duration) {
+			if (duration < 1) {
+				throw new IllegalArgumentException("Recipe " + name + " must take at least one tick");
+			}
+			this.name = name;
+			this.duration = duration;
+		}
+
+		/**
+		 * @param resource id from {@link Resources}
+		 */
+		public Builder input(int resource, int amount) {
+			inputs = append(inputs, resource);
+			inputAmounts = append(inputAmounts, amount);
+			return this;
+		}
+
+		/**
+		 * @param resource id from {@link Resources}
+		 */
+		public Builder output(int resource, int amount) {
+			outputs = append(outputs, resource);
+			outputAmounts = append(outputAmounts, amount);
+			return this;
+		}
+
+		private static int[] append(int[] array, int value) {
+			int[] grown = Arrays.copyOf(array, array.length + 1);
+			grown[array.length] = value;
+			return grown;
+		}
+
+		/**
+		 * @param id index of the recipe in {@link Recipes#values()}
+		 */
+		Recipe build(int id) {
+			return new Recipe(id, this);
+		}
+	}
+
+	/**
+	 * index in {@link Recipes#values()}, saved with each building
+	 */
+	public final int id;
+	public final String name;
+	/**
+	 * ticks one cycle takes
+	 */
+	public final int duration;
+	final int[] inputs, inputAmounts;
+	final int[] outputs, outputAmounts;
+
+	private Recipe(int id, Builder builder) {
+		this.id = id;
+		this.name = builder.name;
+		this.duration = builder.duration;
+		this.inputs = builder.inputs;
+		this.inputAmounts = builder.inputAmounts;
+		this.outputs = builder.outputs;
+		this.outputAmounts = builder.outputAmounts;
+	}
+
+	/**
+	 * @return resource id of each input
+	 */
+	public int[] getInputs() {
+		return inputs.clone();
+	}
+
+	public int[] getInputAmounts() {
+		return inputAmounts.clone();
+	}
+
+	/**
+	 * @return resource id of each output
+	 */
+	public int[] getOutputs() {
+		return outputs.clone();
+	}
+
+	public int[] getOutputAmounts() {
+		return outputAmounts.clone();
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -0,0 +1,55 @@
+package com.meeple.citybuild.server.economy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.meeple.citybuild.server.Buildings.ItemQuality;
+import com.meeple.citybuild.server.Buildings.ItemType;
+import com.meeple.citybuild.server.Buildings.RawMaterial;
+import com.meeple.citybuild.server.Buildings.RawNutritian;
+
+/**
+ * Every {@link Recipe} a building can run. The index of a recipe is saved with the buildings running it, new recipes must be added at the end.
+ */
+public class Recipes {
+
+	private static final List<Recipe> all = new ArrayList<>();
+
+	public static final Recipe woodcutter = add(new Recipe.Builder("Woodcutter", 20).output(Resources.id(RawMaterial.Wood), 2));
+	public static final Recipe quarry = add(new Recipe.Builder("Quarry", 30).output(Resources.id(RawMaterial.Stone), 2));
+	public static final Recipe mine = add(new Recipe.Builder("Mine", 40).output(Resources.id(RawMaterial.Metal), 1));
+	public static final Recipe fiberFarm = add(new Recipe.Builder("Fiber farm", 25).output(Resources.id(RawMaterial.Fiber), 3));
+	public static final Recipe hunter = add(new Recipe.Builder("Hunter", 30).output(Resources.id(RawNutritian.Meat), 2));
+	public static final Recipe orchard = add(new Recipe.Builder("Orchard", 25).output(Resources.id(RawNutritian.Fruit), 3));
+	public static final Recipe vegetableFarm = add(new Recipe.Builder("Vegetable farm", 25).output(Resources.id(RawNutritian.Vegtable), 3));
+	public static final Recipe mushroomCave = add(new Recipe.Builder("Mushroom cave", 35).output(Resources.id(RawNutritian.Fungi), 2));
+	public static final Recipe kitchen = add(new Recipe.Builder("Kitchen", 20)
+		.input(Resources.id(RawNutritian.Meat), 1)
+		.input(Resources.id(RawNutritian.Vegtable), 1)
+		.output(Resources.id(ItemType.Food, ItemQuality.Medium), 2));
+	public static final Recipe brewery = add(new Recipe.Builder("Brewery", 30)
+		.input(Resources.id(RawNutritian.Fruit), 2)
+		.output(Resources.id(ItemType.Drink, ItemQuality.Low), 2));
+	public static final Recipe tailor = add(new Recipe.Builder("Tailor", 40)
+		.input(Resources.id(RawMaterial.Fiber), 3)
+		.output(Resources.id(ItemType.Clothing, ItemQuality.Low), 1));
+	/**
+	 * people living in a house, scaled by the residents
+	 */
+	public static final Recipe housing = add(new Recipe.Builder("Housing", 100)
+		.input(Resources.id(ItemType.Food, ItemQuality.Medium), 1)
+		.input(Resources.id(ItemType.Drink, ItemQuality.Low), 1));
+
+	private static Recipe add(Recipe.Builder builder) {
+		Recipe recipe = builder.build(all.size());
+		all.add(recipe);
+		return recipe;
+	}
+
+	/**
+	 * @return every recipe, indexed by {@link Recipe#id}
+	 */
+	public static Recipe[] values() {
+		return all.toArray(new Recipe[0]);
+	}
+}
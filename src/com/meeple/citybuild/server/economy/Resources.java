@@ -0,0 +1,51 @@
+package com.meeple.citybuild.server.economy;
+
+import com.meeple.citybuild.server.Buildings.ItemQuality;
+import com.meeple.citybuild.server.Buildings.ItemType;
+import com.meeple.citybuild.server.Buildings.RawMaterial;
+import com.meeple.citybuild.server.Buildings.RawNutritian;
+
+/**
+ * Numbers every kind of resource so stock can be kept in flat arrays indexed by resource id. <br>
+ * Raw materials come first, then raw nutrition, then every item type at every quality. Ids are saved, new kinds must be added at the end.
+ */
+public class Resources {
+
+	private static final RawMaterial[] materials = RawMaterial.values();
+	private static final RawNutritian[] nutritians = RawNutritian.values();
+	private static final ItemType[] itemTypes = ItemType.values();
+	private static final ItemQuality[] qualities = ItemQuality.values();
+
+	private static final int firstNutritian = materials.length;
+	private static final int firstItem = firstNutritian + nutritians.length;
+	/**
+	 * number of resource ids
+	 */
+	public static final int count = firstItem + itemTypes.length * qualities.length;
+
+	public static int id(RawMaterial material) {
+		return material.ordinal();
+	}
+
+	public static int id(RawNutritian nutritian) {
+		return firstNutritian + nutritian.ordinal();
+	}
+
+	public static int id(ItemType type, ItemQuality quality) {
+		return firstItem + type.ordinal() * qualities.length + quality.ordinal();
+	}
+
+	/**
+	 * @return readable name of the resource, eg "Wood" or "Medium Food"
+	 */
+	public static String name(int id) {
+		if (id < firstNutritian) {
+			return materials[id].name();
+		}
+		if (id < firstItem) {
+			return nutritians[id - firstNutritian].name();
+		}
+		int item = id - firstItem;
+		return qualities[item % qualities.length].name() + " " + itemTypes[item / qualities.length].name();
+	}
+}
@@ -0,0 +1,146 @@
+package com.meeple.citybuild.server.entity;
+
+import java.util.Arrays;
+
+/**
+ * Table of every entity with exactly the same set of components. <br>
+ * Each component is a primitive column indexed by row, so a query walks contiguous arrays instead of chasing objects.
+ * Rows are kept packed, removing an entity moves the last row into its place. <br>
+ * The columns are replaced when the table grows, so do not hold on to them across structural changes to the {@link EntityStore}.
+ */
+public class Archetype {
+
+	public final int mask;
+	/**
+	 * position in {@link EntityStore} archetype list
+	 */
+	final int index;
+	private int size = 0;
+	private int[] ids;
+	private final float[][] floatColumns = new float[Component.values.length][];
+	private final int[][] intColumns = new int[Component.values.length][];
+
+	Archetype(int mask, int index) {
+		this.mask = mask;
+		this.index = index;
+		int capacity = 16;
+		ids = new int[capacity];
+		for (Component component : Component.values) {
+			if (component.in(mask)) {
+				if (component.floats > 0) {
+					floatColumns[component.ordinal()] = new float[capacity * component.floats];
+				} else {
+					intColumns[component.ordinal()] = new int[capacity * component.ints];
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return number of entities in the table
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean has(Component component) {
+		return component.in(mask);
+	}
+
+	/**
+	 * @return entity id of the row
+	 */
+	public int id(int row) {
+		return ids[row];
+	}
+
+	/**
+	 * @return the float column of the component, {@link Component#floats} values per row, or null if the table does not have it
+	 */
+	public float[] floats(Component component) {
+		return floatColumns[component.ordinal()];
+	}
+
+	/**
+	 * @return the int column of the component, or null if the table does not have it
+	 */
+	public int[] ints(Component component) {
+		return intColumns[component.ordinal()];
+	}
+
+	/**
+	 * Adds a row for the entity with floats zeroed and ints set to -1
+	 * @return the row
+	 */
+	int add(int id) {
+		if (size == ids.length) {
+			grow(size * 2);
+		}
+		int row = size++;
+		ids[row] = id;
+		for (Component component : Component.values) {
+			float[] f = floatColumns[component.ordinal()];
+			if (f != null) {
+				Arrays.fill(f, row * component.floats, (row + 1) * component.floats, 0f);
+			}
+			int[] i = intColumns[component.ordinal()];
+			if (i != null) {
+				Arrays.fill(i, row * component.ints, (row + 1) * component.ints, -1);
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * Removes the row by moving the last row into it
+	 * @return id of the entity moved into the row, or -1 if the removed row was the last
+	 */
+	int remove(int row) {
+		int last = --size;
+		if (row == last) {
+			return -1;
+		}
+		ids[row] = ids[last];
+		for (Component component : Component.values) {
+			float[] f = floatColumns[component.ordinal()];
+			if (f != null) {
+				System.arraycopy(f, last * component.floats, f, row * component.floats, component.floats);
+			}
+			int[] i = intColumns[component.ordinal()];
+			if (i != null) {
+				System.arraycopy(i, last * component.ints, i, row * component.ints, component.ints);
+			}
+		}
+		return ids[row];
+	}
+
+	/**
+	 * Copies the components both tables have from the row to the row of the other table
+	 */
+	void copyTo(int row, Archetype target, int targetRow) {
+		int common = mask & target.mask;
+		for (Component component : Component.values) {
+			if (component.in(common)) {
+				int o = component.ordinal();
+				if (component.floats > 0) {
+					System.arraycopy(floatColumns[o], row * component.floats, target.floatColumns[o], targetRow * component.floats, component.floats);
+				} else {
+					System.arraycopy(intColumns[o], row * component.ints, target.intColumns[o], targetRow * component.ints, component.ints);
+				}
+			}
+		}
+	}
+
+	private void grow(int capacity) {
+		ids = Arrays.copyOf(ids, capacity);
+		for (Component component : Component.values) {
+			int o = component.ordinal();
+			if (floatColumns[o] != null) {
+				floatColumns[o] = Arrays.copyOf(floatColumns[o], capacity * component.floats);
+			}
+			if (intColumns[o] != null) {
+				intColumns[o] = Arrays.copyOf(intColumns[o], capacity * component.ints);
+			}
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.meeple.citybuild.server.entity;
+
+/**
+ * The components an entity can have, each stored as a primitive column of its {@link Archetype}. <br>
+ * Float components store {@link #floats} values per entity next to each other, int components a single value.
+ */
+public enum Component {
+	/**
+	 * world position x, y, z
+	 */
+	Position(3, 0),
+	/**
+	 * rotation around x, y, z
+	 */
+	Rotation(3, 0),
+	/**
+	 * world units per second along x, y, z
+	 */
+	Velocity(3, 0),
+	/**
+	 * ID of the building the entity belongs to, eg its home. -1 when it has none
+	 */
+	Owner(0, 1),
+	/**
+	 * ID of the building the entity works at. -1 when it has none
+	 */
+	Job(0, 1);
+
+	public final int floats;
+	public final int ints;
+	public final int mask;
+
+	private Component(int floats, int ints) {
+		this.floats = floats;
+		this.ints = ints;
+		this.mask = 1 << ordinal();
+	}
+
+	static final Component[] values = values();
+
+	/**
+	 * @return the mask of all the components
+	 */
+	public static int mask(Component... components) {
+		int mask = 0;
+		for (Component component : components) {
+			mask |= component.mask;
+		}
+		return mask;
+	}
+
+	public boolean in(int mask) {
+		return (mask & this.mask) != 0;
+	}
+}
@@ -0,0 +1,464 @@
+package com.meeple.citybuild.server.entity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.joml.Vector3f;
+
+/**
+ * Entities of a level stored by archetype, see {@link Archetype}. <br>
+ * Entities are identified by a stable int id that does not change as the entity moves between tables, ids of destroyed entities are reused. <br>
+ * Creating, destroying and changing the components of entities is only done from the level thread, synchronized on the store so a save
+ * can capture it from another thread. Queries and the component accessors do not lock and must not run at the same time as such changes.
+ */
+public class EntityStore {
+
+	/**
+	 * Visits a range of rows of an archetype
+	 */
+	public static interface Query {
+		public void visit(Archetype archetype, int from, int to);
+	}
+
+	/**
+	 * rows handed to one task by the parallel queries
+	 */
+	public static int rowsPerTask = 4096;
+
+	/**
+	 * every entity with a {@link Component#Position}, see {@link #updateGrid()}
+	 */
+	public final SpatialGrid grid = new SpatialGrid();
+
+	private final Map<Integer, Archetype> byMask = new HashMap<>();
+	/**
+	 * every archetype, replaced on change so queries can iterate it without locking
+	 */
+	private volatile Archetype[] archetypes = new Archetype[0];
+
+	/**
+	 * archetype index of each id, -1 if the id is not in use
+	 */
+	private int[] archetypeOf = new int[0];
+	private int[] rowOf = new int[0];
+	private int nextId = 0;
+	private int[] free = new int[16];
+	private int freeCount = 0;
+	private boolean freeDirty = false;
+	private volatile int count = 0;
+	/**
+	 * bumped by every change, see {@link #changeCount()}
+	 */
+	private volatile long changes = 0;
+
+	/**
+	 * @return a count bumped by every change to the entities or their components. The same count means nothing changed in between
+	 */
+	public long changeCount() {
+		return changes;
+	}
+
+	/**
+	 * Counts a change made straight to the columns by a query, {@link EntitySystem}s that write are counted by {@link #run(ForkJoinPool, EntitySystem...)}
+	 */
+	public void changed() {
+		changes++;
+	}
+
+	/**
+	 * @return number of live entities
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return one more than the largest id handed out so far
+	 */
+	public int idLimit() {
+		return nextId;
+	}
+
+	public boolean isAlive(int id) {
+		return id >= 0 && id < nextId && archetypeOf[id] >= 0;
+	}
+
+	/**
+	 * @return component mask of the entity
+	 */
+	public int getMask(int id) {
+		return archetype(id).mask;
+	}
+
+	/**
+	 * @return the archetype the entity is stored in, valid until the next structural change
+	 */
+	public Archetype getArchetype(int id) {
+		return archetype(id);
+	}
+
+	/**
+	 * @return row of the entity in its {@link #getArchetype(int)}, valid until the next structural change
+	 */
+	public int getRow(int id) {
+		archetype(id);
+		return rowOf[id];
+	}
+
+	private Archetype archetype(int id) {
+		if (!isAlive(id)) {
+			throw new IllegalArgumentException("No entity " + id);
+		}
+		return archetypes[archetypeOf[id]];
+	}
+
+	private Archetype archetypeFor(int mask) {
+		Archetype archetype = byMask.get(mask);
+		if (archetype == null) {
+			archetype = new Archetype(mask, archetypes.length);
+			byMask.put(mask, archetype);
+			Archetype[] grown = Arrays.copyOf(archetypes, archetypes.length + 1);
+			grown[archetype.index] = archetype;
+			archetypes = grown;
+		}
+		return archetype;
+	}
+
+	/**
+	 * Creates an entity with the components, floats zeroed and ints -1
+	 * @param mask of the components, see {@link Component#mask(Component...)}
+	 * @return id of the new entity
+	 */
+	public synchronized int create(int mask) {
+		if (freeDirty) {
+			rebuildFree();
+		}
+		int id;
+		if (freeCount > 0) {
+			id = free[--freeCount];
+		} else {
+			id = nextId++;
+			ensureIds(nextId);
+		}
+		place(id, archetypeFor(mask));
+		return id;
+	}
+
+	/**
+	 * Creates an entity with a given id, used when loading a save so ids stay the same
+	 * @param id that is not in use
+	 * @param mask of the components
+	 */
+	public synchronized void restore(int id, int mask) {
+		if (id < 0 || isAlive(id)) {
+			throw new IllegalArgumentException("Entity id " + id + " is already in use");
+		}
+		if (id >= nextId) {
+			ensureIds(id + 1);
+			for (int i = nextId; i < id; i++) {
+				archetypeOf[i] = -1;
+			}
+			nextId = id + 1;
+		}
+		place(id, archetypeFor(mask));
+		freeDirty = true;
+	}
+
+	private void place(int id, Archetype archetype) {
+		archetypeOf[id] = archetype.index;
+		rowOf[id] = archetype.add(id);
+		count++;
+		changes++;
+		if (archetype.has(Component.Position)) {
+			grid.update(id, 0, 0, 0);
+		}
+	}
+
+	private void ensureIds(int size) {
+		if (size > archetypeOf.length) {
+			int capacity = Math.max(size, archetypeOf.length * 2);
+			int old = archetypeOf.length;
+			archetypeOf = Arrays.copyOf(archetypeOf, capacity);
+			rowOf = Arrays.copyOf(rowOf, capacity);
+			Arrays.fill(archetypeOf, old, capacity, -1);
+		}
+	}
+
+	private void rebuildFree() {
+		freeCount = 0;
+		for (int id = nextId - 1; id >= 0; id--) {
+			if (archetypeOf[id] < 0) {
+				pushFree(id);
+			}
+		}
+		freeDirty = false;
+	}
+
+	private void pushFree(int id) {
+		if (freeCount == free.length) {
+			free = Arrays.copyOf(free, freeCount * 2);
+		}
+		free[freeCount++] = id;
+	}
+
+	public synchronized void destroy(int id) {
+		Archetype archetype = archetype(id);
+		unplace(id, archetype);
+		grid.remove(id);
+		archetypeOf[id] = -1;
+		count--;
+		changes++;
+		if (!freeDirty) {
+			pushFree(id);
+		}
+	}
+
+	private void unplace(int id, Archetype archetype) {
+		int moved = archetype.remove(rowOf[id]);
+		if (moved >= 0) {
+			rowOf[moved] = rowOf[id];
+		}
+	}
+
+	/**
+	 * Adds the components to the entity, moving it to the archetype for its new set of components
+	 */
+	public synchronized void addComponents(int id, int mask) {
+		move(id, archetype(id).mask | mask);
+	}
+
+	/**
+	 * Removes the components from the entity, moving it to the archetype for its new set of components
+	 */
+	public synchronized void removeComponents(int id, int mask) {
+		move(id, archetype(id).mask & ~mask);
+	}
+
+	private void move(int id, int mask) {
+		Archetype from = archetype(id);
+		if (from.mask == mask) {
+			return;
+		}
+		Archetype to = archetypeFor(mask);
+		int row = rowOf[id];
+		int newRow = to.add(id);
+		from.copyTo(row, to, newRow);
+		unplace(id, from);
+		archetypeOf[id] = to.index;
+		rowOf[id] = newRow;
+		changes++;
+		if (!to.has(Component.Position)) {
+			grid.remove(id);
+		} else if (!from.has(Component.Position)) {
+			grid.update(id, 0, 0, 0);
+		}
+	}
+
+	public Vector3f getPosition(int id, Vector3f dest) {
+		return get3(id, Component.Position, dest);
+	}
+
+	public void setPosition(int id, float x, float y, float z) {
+		set3(id, Component.Position, x, y, z);
+		grid.update(id, x, y, z);
+	}
+
+	public Vector3f getRotation(int id, Vector3f dest) {
+		return get3(id, Component.Rotation, dest);
+	}
+
+	public void setRotation(int id, float x, float y, float z) {
+		set3(id, Component.Rotation, x, y, z);
+	}
+
+	public Vector3f getVelocity(int id, Vector3f dest) {
+		return get3(id, Component.Velocity, dest);
+	}
+
+	public void setVelocity(int id, float x, float y, float z) {
+		set3(id, Component.Velocity, x, y, z);
+	}
+
+	public int getOwner(int id) {
+		return getInt(id, Component.Owner);
+	}
+
+	public void setOwner(int id, int building) {
+		setInt(id, Component.Owner, building);
+	}
+
+	public int getJob(int id) {
+		return getInt(id, Component.Job);
+	}
+
+	public void setJob(int id, int building) {
+		setInt(id, Component.Job, building);
+	}
+
+	private float[] column(Archetype archetype, Component component, int id) {
+		float[] column = archetype.floats(component);
+		if (column == null) {
+			throw new IllegalArgumentException("Entity " + id + " has no " + component);
+		}
+		return column;
+	}
+
+	private Vector3f get3(int id, Component component, Vector3f dest) {
+		Archetype archetype = archetype(id);
+		float[] column = column(archetype, component, id);
+		int i = rowOf[id] * 3;
+		return dest.set(column[i], column[i + 1], column[i + 2]);
+	}
+
+	private void set3(int id, Component component, float x, float y, float z) {
+		Archetype archetype = archetype(id);
+		float[] column = column(archetype, component, id);
+		int i = rowOf[id] * 3;
+		column[i] = x;
+		column[i + 1] = y;
+		column[i + 2] = z;
+		changes++;
+	}
+
+	private int getInt(int id, Component component) {
+		int[] column = archetype(id).ints(component);
+		if (column == null) {
+			throw new IllegalArgumentException("Entity " + id + " has no " + component);
+		}
+		return column[rowOf[id]];
+	}
+
+	private void setInt(int id, Component component, int value) {
+		int[] column = archetype(id).ints(component);
+		if (column == null) {
+			throw new IllegalArgumentException("Entity " + id + " has no " + component);
+		}
+		column[rowOf[id]] = value;
+		changes++;
+	}
+
+	/**
+	 * Brings the {@link #grid} up to date with positions written straight to the columns, eg by an {@link EntitySystem}.
+	 * Only entities that moved to another cell are relinked
+	 */
+	public void updateGrid() {
+		forEach(Component.Position.mask, (archetype, from, to) -> {
+			float[] position = archetype.floats(Component.Position);
+			for (int row = from; row < to; row++) {
+				grid.refresh(archetype.id(row), position[row * 3], position[row * 3 + 1], position[row * 3 + 2]);
+			}
+		});
+	}
+
+	/**
+	 * @return every archetype that has all the components of the mask
+	 */
+	public List<Archetype> archetypes(int required) {
+		List<Archetype> result = new ArrayList<>();
+		for (Archetype archetype : archetypes) {
+			if ((archetype.mask & required) == required && archetype.size() > 0) {
+				result.add(archetype);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Visits every non empty archetype with all the components of the mask, one call per archetype covering all its rows
+	 */
+	public void forEach(int required, Query query) {
+		for (Archetype archetype : archetypes) {
+			if ((archetype.mask & required) == required && archetype.size() > 0) {
+				query.visit(archetype, 0, archetype.size());
+			}
+		}
+	}
+
+	/**
+	 * Like {@link #forEach(int, Query)} but the rows are split into ranges of {@link #rowsPerTask} visited in parallel
+	 */
+	public void forEachParallel(int required, ForkJoinPool pool, Query query) {
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		for (Archetype archetype : archetypes(required)) {
+			split(archetype, query, tasks);
+		}
+		invoke(pool, tasks);
+	}
+
+	/**
+	 * Runs the systems over the entities. <br>
+	 * Systems are taken in order and grouped into batches whose systems do not write anything another in the batch uses,
+	 * each batch runs all its systems in parallel over all their archetypes. A system that conflicts with an earlier one runs in a later batch.
+	 */
+	public void run(ForkJoinPool pool, EntitySystem... systems) {
+		List<EntitySystem> batch = new ArrayList<>();
+		for (EntitySystem system : systems) {
+			if (system.writes() != 0) {
+				changes++;
+			}
+			for (EntitySystem other : batch) {
+				if (conflicts(system, other)) {
+					runBatch(pool, batch);
+					batch.clear();
+					break;
+				}
+			}
+			batch.add(system);
+		}
+		runBatch(pool, batch);
+	}
+
+	static boolean conflicts(EntitySystem a, EntitySystem b) {
+		return (a.writes() & (b.reads() | b.writes())) != 0 || (b.writes() & a.reads()) != 0;
+	}
+
+	private void runBatch(ForkJoinPool pool, List<EntitySystem> batch) {
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		for (EntitySystem system : batch) {
+			for (Archetype archetype : archetypes(system.reads() | system.writes())) {
+				split(archetype, system::run, tasks);
+			}
+		}
+		invoke(pool, tasks);
+	}
+
+	private static void split(Archetype archetype, Query query, List<ForkJoinTask<?>> tasks) {
+		int size = archetype.size();
+		for (int from = 0; from < size; from += rowsPerTask) {
+			int start = from;
+			int end = Math.min(size, from + rowsPerTask);
+			tasks.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					query.visit(archetype, start, end);
+				}
+			});
+		}
+	}
+
+	private static void invoke(ForkJoinPool pool, List<ForkJoinTask<?>> tasks) {
+		if (tasks.isEmpty()) {
+			return;
+		}
+		if (tasks.size() == 1) {
+			tasks.get(0).invoke();
+			return;
+		}
+		pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+	}
+}
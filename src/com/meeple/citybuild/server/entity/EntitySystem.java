@@ -0,0 +1,25 @@
+package com.meeple.citybuild.server.entity;
+
+/**
+ * Work done over every entity that has the components the system uses, see {@link EntityStore#run(java.util.concurrent.ForkJoinPool, EntitySystem...)}. <br>
+ * Systems that do not write any component another system reads or writes run at the same time.
+ */
+public interface EntitySystem {
+
+	/**
+	 * @return mask of the components only read
+	 */
+	public int reads();
+
+	/**
+	 * @return mask of the components written
+	 */
+	public int writes();
+
+	/**
+	 * Runs over a range of rows of an archetype that has every component in {@link #reads()} and {@link #writes()}.
+	 * Called for disjoint ranges from several threads at once
+	 */
+	public void run(Archetype archetype, int from, int to);
+
+}
@@ -0,0 +1,293 @@
+package com.meeple.citybuild.server.entity;
+
+import java.util.Arrays;
+
+import com.meeple.citybuild.server.LevelData;
+
+/**
+ * Uniform grid over the x/y plane of the level holding the ids of every entity with a {@link Component#Position}. <br>
+ * Cells are {@link #cellTiles} tiles wide so a chunk is covered by a whole number of cells. Only occupied cells exist,
+ * looked up in an open addressed table by their packed coordinates, and emptied cells are kept to be reused. <br>
+ * The grid keeps its own copy of each position, refreshed by {@link EntityStore#updateGrid()}, and entities are only relinked when they change cell.
+ * Queries write the ids found into buffers given by the caller and do not allocate. <br>
+ * Like the {@link EntityStore} it belongs to the grid is changed by the level thread only and queries must not run at the same time as changes.
+ */
+public class SpatialGrid {
+
+	/**
+	 * width of a cell in tiles
+	 */
+	public static final int cellTiles = 4;
+	public static final float cellSize = cellTiles * LevelData.tileSize;
+	public static final int chunkCells = LevelData.chunkSize / cellTiles;
+
+	private static class Cell {
+		final int x, y;
+		int[] ids = new int[8];
+		int size = 0;
+
+		Cell(int x, int y) {
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	private Cell[] table = new Cell[256];
+	private int cellCount = 0;
+	/**
+	 * bounds of every cell ever created, used to stop a nearest search that runs out of entities
+	 */
+	private int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+
+	/**
+	 * per id: the cell it is linked in or null, its index in the cell and its position when it was last updated
+	 */
+	private Cell[] cellOf = new Cell[0];
+	private int[] slotOf = new int[0];
+	private float[] positions = new float[0];
+	private int size = 0;
+
+	/**
+	 * @return number of entities in the grid
+	 */
+	public int size() {
+		return size;
+	}
+
+	public static int cell(float world) {
+		return (int) Math.floor(world / cellSize);
+	}
+
+	private static int hash(int x, int y) {
+		int h = x * 0x9E3779B1 + y * 0x85EBCA77;
+		return h ^ (h >>> 15);
+	}
+
+	private Cell find(int x, int y) {
+		int mask = table.length - 1;
+		for (int i = hash(x, y) & mask;; i = (i + 1) & mask) {
+			Cell cell = table[i];
+			if (cell == null || (cell.x == x && cell.y == y)) {
+				return cell;
+			}
+		}
+	}
+
+	private Cell findOrCreate(int x, int y) {
+		Cell cell = find(x, y);
+		if (cell != null) {
+			return cell;
+		}
+		if ((cellCount + 1) * 2 > table.length) {
+			Cell[] old = table;
+			table = new Cell[old.length * 2];
+			for (Cell c : old) {
+				if (c != null) {
+					insert(c);
+				}
+			}
+		}
+		cell = new Cell(x, y);
+		insert(cell);
+		cellCount++;
+		minX = Math.min(minX, x);
+		minY = Math.min(minY, y);
+		maxX = Math.max(maxX, x);
+		maxY = Math.max(maxY, y);
+		return cell;
+	}
+
+	private void insert(Cell cell) {
+		int mask = table.length - 1;
+		int i = hash(cell.x, cell.y) & mask;
+		while (table[i] != null) {
+			i = (i + 1) & mask;
+		}
+		table[i] = cell;
+	}
+
+	private void ensureIds(int size) {
+		if (size > cellOf.length) {
+			int capacity = Math.max(size, cellOf.length * 2);
+			cellOf = Arrays.copyOf(cellOf, capacity);
+			slotOf = Arrays.copyOf(slotOf, capacity);
+			positions = Arrays.copyOf(positions, capacity * 3);
+		}
+	}
+
+	/**
+	 * Adds the entity or moves it to the position, relinking it only if it changed cell
+	 */
+	void update(int id, float x, float y, float z) {
+		ensureIds(id + 1);
+		int p = id * 3;
+		positions[p] = x;
+		positions[p + 1] = y;
+		positions[p + 2] = z;
+		int cx = cell(x);
+		int cy = cell(y);
+		Cell current = cellOf[id];
+		if (current != null) {
+			if (current.x == cx && current.y == cy) {
+				return;
+			}
+			unlink(id, current);
+		} else {
+			size++;
+		}
+		Cell cell = findOrCreate(cx, cy);
+		if (cell.size == cell.ids.length) {
+			cell.ids = Arrays.copyOf(cell.ids, cell.size * 2);
+		}
+		slotOf[id] = cell.size;
+		cell.ids[cell.size++] = id;
+		cellOf[id] = cell;
+	}
+
+	/**
+	 * Same as {@link #update(int, float, float, float)} but skips entities whose position has not changed
+	 */
+	void refresh(int id, float x, float y, float z) {
+		int p = id * 3;
+		if (id < cellOf.length && cellOf[id] != null && positions[p] == x && positions[p + 1] == y && positions[p + 2] == z) {
+			return;
+		}
+		update(id, x, y, z);
+	}
+
+	void remove(int id) {
+		if (id < cellOf.length && cellOf[id] != null) {
+			unlink(id, cellOf[id]);
+			cellOf[id] = null;
+			size--;
+		}
+	}
+
+	private void unlink(int id, Cell cell) {
+		int slot = slotOf[id];
+		int last = --cell.size;
+		if (slot != last) {
+			int moved = cell.ids[last];
+			cell.ids[slot] = moved;
+			slotOf[moved] = slot;
+		}
+	}
+
+	private float distanceSq(int id, float x, float y, float z) {
+		int p = id * 3;
+		float dx = positions[p] - x;
+		float dy = positions[p + 1] - y;
+		float dz = positions[p + 2] - z;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * Finds every entity inside the sphere
+	 * @param result filled with the ids found, as many as fit
+	 * @return number of entities found, may be more than the length of result
+	 */
+	public int radius(float x, float y, float z, float radius, int[] result) {
+		float radiusSq = radius * radius;
+		int found = 0;
+		int fromX = cell(x - radius), toX = cell(x + radius);
+		int fromY = cell(y - radius), toY = cell(y + radius);
+		for (int cx = fromX; cx <= toX; cx++) {
+			for (int cy = fromY; cy <= toY; cy++) {
+				Cell cell = find(cx, cy);
+				if (cell == null) {
+					continue;
+				}
+				int[] ids = cell.ids;
+				for (int i = 0; i < cell.size; i++) {
+					if (distanceSq(ids[i], x, y, z) <= radiusSq) {
+						if (found < result.length) {
+							result[found] = ids[i];
+						}
+						found++;
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Finds every entity inside the box, bounds inclusive
+	 * @param result filled with the ids found, as many as fit
+	 * @return number of entities found, may be more than the length of result
+	 */
+	public int box(float minX, float minY, float minZ, float maxX, float maxY, float maxZ, int[] result) {
+		int found = 0;
+		for (int cx = cell(minX); cx <= cell(maxX); cx++) {
+			for (int cy = cell(minY); cy <= cell(maxY); cy++) {
+				Cell cell = find(cx, cy);
+				if (cell == null) {
+					continue;
+				}
+				int[] ids = cell.ids;
+				for (int i = 0; i < cell.size; i++) {
+					int p = ids[i] * 3;
+					float px = positions[p], py = positions[p + 1], pz = positions[p + 2];
+					if (px >= minX && px <= maxX && py >= minY && py <= maxY && pz >= minZ && pz <= maxZ) {
+						if (found < result.length) {
+							result[found] = ids[i];
+						}
+						found++;
+					}
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Finds the entities closest to the point, searching rings of cells outwards until no closer entity can be left
+	 * @param result filled with the ids of the nearest entities, closest first. Its length is the number searched for
+	 * @param distancesSq at least as long as result, filled with the squared distance of each entity found
+	 * @return number of entities found, less than the length of result only if the grid holds fewer
+	 */
+	public int nearest(float x, float y, float z, int[] result, float[] distancesSq) {
+		int k = result.length;
+		if (k == 0 || size == 0) {
+			return 0;
+		}
+		int found = 0;
+		int centreX = cell(x), centreY = cell(y);
+		//rings beyond this cover no cell that was ever created
+		int maxRing = Math.max(Math.max(centreX - minX, maxX - centreX), Math.max(centreY - minY, maxY - centreY));
+		for (int ring = 0; ring <= maxRing; ring++) {
+			for (int cx = centreX - ring; cx <= centreX + ring; cx++) {
+				//only the border of the ring, the inside was searched already
+				int step = (cx == centreX - ring || cx == centreX + ring) ? 1 : Math.max(1, ring * 2);
+				for (int cy = centreY - ring; cy <= centreY + ring; cy += step) {
+					Cell cell = find(cx, cy);
+					if (cell == null) {
+						continue;
+					}
+					for (int i = 0; i < cell.size; i++) {
+						int id = cell.ids[i];
+						float d = distanceSq(id, x, y, z);
+						if (found == k && d >= distancesSq[k - 1]) {
+							continue;
+						}
+						//insert into the sorted results, dropping the furthest when full
+						int j = found < k ? found++ : k - 1;
+						while (j > 0 && distancesSq[j - 1] > d) {
+							result[j] = result[j - 1];
+							distancesSq[j] = distancesSq[j - 1];
+							j--;
+						}
+						result[j] = id;
+						distancesSq[j] = d;
+					}
+				}
+			}
+			//anything in the next ring is at least this far away in the plane
+			float reach = ring * cellSize;
+			if (found == k && distancesSq[k - 1] <= reach * reach) {
+				break;
+			}
+		}
+		return found;
+	}
+}
@@ -0,0 +1,118 @@
+package com.meeple.citybuild.server.gen;
+
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.WorldGenerator;
+import com.meeple.citybuild.server.WorldGenerator.TerrainType;
+
+/**
+ * Terrain from layered simplex noise. <br>
+ * <ul>
+ * 	<li>elevation - fractal noise scaled to {@link #maxHeight}, everything under {@link #seaLevel} is flooded to a flat water surface forming seas and lakes</li>
+ * 	<li>rivers - the zero crossings of a separate noise field are carved into the land as narrow water channels</li>
+ * 	<li>moisture - picks the biome of dry land, {@link TerrainType#Sand} for dry land and beaches, {@link TerrainType#Grass} otherwise</li>
+ * </ul>
+ * Each field is evaluated a chunk row at a time into primitive arrays rather than per tile, 
+ * the slowly changing moisture and river fields only every {@link #sampleStride} tiles.
+ */
+public class NoiseTerrainGenerator implements TerrainGenerator {
+
+	/**
+	 * noise units per tile of the elevation, smaller gives larger features
+	 */
+	public double elevationScale = 1 / 256.0;
+	public int elevationOctaves = 5;
+	public double lacunarity = 2.0;
+	public double gain = 0.5;
+	public int maxHeight = 400;
+	public int seaLevel = 150;
+	/**
+	 * height above sea level that is still beach
+	 */
+	public int beachHeight = 6;
+
+	public double moistureScale = 1 / 512.0;
+	public int moistureOctaves = 3;
+	/**
+	 * land with moisture under this is sand
+	 */
+	public double dryMoisture = -0.35;
+
+	public double riverScale = 1 / 384.0;
+	public int riverOctaves = 3;
+	/**
+	 * how close to a zero crossing of the river noise is river
+	 */
+	public double riverWidth = 0.025;
+	/**
+	 * how far the middle of a river is carved below the land around it
+	 */
+	public int riverDepth = 12;
+	/**
+	 * tiles between samples of the moisture and river fields, which are interpolated in between as they change slowly
+	 */
+	public int sampleStride = 4;
+
+	/**
+	 * Noise fields for one seed, built once and reused for every chunk of that seed
+	 */
+	private static class Fields {
+		final long seed;
+		final SimplexNoise elevation, moisture, river;
+
+		Fields(long seed) {
+			this.seed = seed;
+			elevation = new SimplexNoise(WorldGenerator.chunkSeed(seed, 0, 1));
+			moisture = new SimplexNoise(WorldGenerator.chunkSeed(seed, 0, 2));
+			river = new SimplexNoise(WorldGenerator.chunkSeed(seed, 0, 3));
+		}
+	}
+
+	private volatile Fields fields;
+
+	private Fields fields(long seed) {
+		Fields f = fields;
+		if (f == null || f.seed != seed) {
+			f = new Fields(seed);
+			fields = f;
+		}
+		return f;
+	}
+
+	@Override
+	public void generate(Chunk chunk, long seed) {
+		Fields f = fields(seed);
+		int size = LevelData.chunkSize;
+		double[] elevation = new double[size];
+		double[] moisture = new double[size];
+		double[] river = new double[size];
+		double worldY = (double) chunk.chunkY * size;
+
+		for (int tx = 0; tx < size; tx++) {
+			double worldX = (double) chunk.chunkX * size + tx;
+			f.elevation.fractalRow(worldX * elevationScale, worldY * elevationScale, elevationScale, size, elevationOctaves, lacunarity, gain, elevation);
+			f.moisture.fractalRow(worldX * moistureScale, worldY * moistureScale, moistureScale, size, sampleStride, moistureOctaves, lacunarity, gain, moisture);
+			f.river.fractalRow(worldX * riverScale, worldY * riverScale, riverScale, size, sampleStride, riverOctaves, lacunarity, gain, river);
+
+			int row = LevelData.tileIndex(tx, 0);
+			for (int ty = 0; ty < size; ty++) {
+				int height = (int) ((elevation[ty] + 1) * 0.5 * maxHeight);
+				TerrainType terrain;
+				double riverDistance = Math.abs(river[ty]);
+				if (height < seaLevel) {
+					terrain = TerrainType.Water;
+					height = seaLevel;
+				} else if (riverDistance < riverWidth) {
+					terrain = TerrainType.Water;
+					height = Math.max(seaLevel, height - (int) ((1 - riverDistance / riverWidth) * riverDepth) - 1);
+				} else if (height < seaLevel + beachHeight || moisture[ty] < dryMoisture) {
+					terrain = TerrainType.Sand;
+				} else {
+					terrain = TerrainType.Grass;
+				}
+				chunk.setTerrain(row + ty, terrain);
+				chunk.setHeight(row + ty, height);
+			}
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package com.meeple.citybuild.server.gen;
+
+import java.util.SplittableRandom;
+
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.WorldGenerator;
+import com.meeple.citybuild.server.WorldGenerator.TerrainType;
+
+/**
+ * The original generator, grass everywhere at a random height of 0 to 4 per tile. Handy for tests that want flat ground.
+ */
+public class RandomTerrainGenerator implements TerrainGenerator {
+
+	@Override
+	public void generate(Chunk chunk, long seed) {
+		SplittableRandom random = new SplittableRandom(WorldGenerator.chunkSeed(seed, chunk.chunkX, chunk.chunkY));
+		for (int index = 0; index < LevelData.chunkTiles; index++) {
+			chunk.setTerrain(index, TerrainType.Grass);
+			chunk.setHeight(index, random.nextInt(5));
+		}
+	}
+}
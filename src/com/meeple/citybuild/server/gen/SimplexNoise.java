@@ -0,0 +1,159 @@
+package com.meeple.citybuild.server.gen;
+
+import java.util.SplittableRandom;
+
+/**
+ * Seeded 2D simplex noise, based on Stefan Gustavson's public domain reference implementation. <br>
+ * Output is roughly in [-1, 1]. {@link #fractalRow(double, double, double, int, int, double, double, double[])} evaluates
+ * a whole row of samples per octave so the inner loop stays on primitives.
+ */
+public class SimplexNoise {
+
+	private static final double F2 = 0.5 * (Math.sqrt(3.0) - 1.0);
+	private static final double G2 = (3.0 - Math.sqrt(3.0)) / 6.0;
+	private static final double[] gradX = { 1, -1, 1, -1, 1, -1, 0, 0 };
+	private static final double[] gradY = { 1, 1, -1, -1, 0, 0, 1, -1 };
+	/**
+	 * Moves each octave to a different part of the noise so the octaves do not line up at the origin
+	 */
+	private static final double octaveOffset = 71.37;
+
+	private final int[] perm = new int[512];
+
+	public SimplexNoise(long seed) {
+		int[] p = new int[256];
+		for (int i = 0; i < p.length; i++) {
+			p[i] = i;
+		}
+		SplittableRandom random = new SplittableRandom(seed);
+		for (int i = p.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int t = p[i];
+			p[i] = p[j];
+			p[j] = t;
+		}
+		for (int i = 0; i < perm.length; i++) {
+			perm[i] = p[i & 255];
+		}
+	}
+
+	private static int fastFloor(double x) {
+		int xi = (int) x;
+		return x < xi ? xi - 1 : xi;
+	}
+
+	/**
+	 * @return noise at the point, roughly in [-1, 1]
+	 */
+	public double noise(double x, double y) {
+		double s = (x + y) * F2;
+		int i = fastFloor(x + s);
+		int j = fastFloor(y + s);
+		double t = (i + j) * G2;
+		double x0 = x - (i - t);
+		double y0 = y - (j - t);
+
+		int i1, j1;
+		if (x0 > y0) {
+			i1 = 1;
+			j1 = 0;
+		} else {
+			i1 = 0;
+			j1 = 1;
+		}
+		double x1 = x0 - i1 + G2;
+		double y1 = y0 - j1 + G2;
+		double x2 = x0 - 1.0 + 2.0 * G2;
+		double y2 = y0 - 1.0 + 2.0 * G2;
+
+		int ii = i & 255;
+		int jj = j & 255;
+		double n = 0;
+		double t0 = 0.5 - x0 * x0 - y0 * y0;
+		if (t0 > 0) {
+			int g = perm[ii + perm[jj]] & 7;
+			t0 *= t0;
+			n += t0 * t0 * (gradX[g] * x0 + gradY[g] * y0);
+		}
+		double t1 = 0.5 - x1 * x1 - y1 * y1;
+		if (t1 > 0) {
+			int g = perm[ii + i1 + perm[jj + j1]] & 7;
+			t1 *= t1;
+			n += t1 * t1 * (gradX[g] * x1 + gradY[g] * y1);
+		}
+		double t2 = 0.5 - x2 * x2 - y2 * y2;
+		if (t2 > 0) {
+			int g = perm[ii + 1 + perm[jj + 1]] & 7;
+			t2 *= t2;
+			n += t2 * t2 * (gradX[g] * x2 + gradY[g] * y2);
+		}
+		return 70.0 * n;
+	}
+
+	/**
+	 * Fractal (fBm) noise at a single point, the sum of the octaves normalised back to roughly [-1, 1]
+	 */
+	public double fractal(double x, double y, int octaves, double lacunarity, double gain) {
+		double sum = 0, amplitude = 1, frequency = 1, norm = 0;
+		for (int o = 0; o < octaves; o++) {
+			double offset = o * octaveOffset;
+			sum += amplitude * noise(x * frequency + offset, y * frequency + offset);
+			norm += amplitude;
+			amplitude *= gain;
+			frequency *= lacunarity;
+		}
+		return sum / norm;
+	}
+
+	/**
+	 * Fractal noise for {@code count} points starting at (x, y) and stepping along y, written into {@code out}. <br>
+	 * Matches calling {@link #fractal(double, double, int, double, double)} per point, up to rounding.
+	 */
+	public void fractalRow(double x, double y, double step, int count, int octaves, double lacunarity, double gain, double[] out) {
+		for (int i = 0; i < count; i++) {
+			out[i] = 0;
+		}
+		double amplitude = 1, frequency = 1, norm = 0;
+		for (int o = 0; o < octaves; o++) {
+			double offset = o * octaveOffset;
+			double sx = x * frequency + offset;
+			double sy = y * frequency + offset;
+			double sstep = step * frequency;
+			for (int i = 0; i < count; i++) {
+				out[i] += amplitude * noise(sx, sy + i * sstep);
+			}
+			norm += amplitude;
+			amplitude *= gain;
+			frequency *= lacunarity;
+		}
+		double scale = 1 / norm;
+		for (int i = 0; i < count; i++) {
+			out[i] *= scale;
+		}
+	}
+
+	/**
+	 * Like {@link #fractalRow(double, double, double, int, int, double, double, double[])} but only evaluates every {@code stride}th point
+	 * and interpolates linearly in between. Good for low frequency fields where the detail between samples is lost anyway.
+	 */
+	public void fractalRow(double x, double y, double step, int count, int stride, int octaves, double lacunarity, double gain, double[] out) {
+		if (stride <= 1) {
+			fractalRow(x, y, step, count, octaves, lacunarity, gain, out);
+			return;
+		}
+		double previous = fractal(x, y, octaves, lacunarity, gain);
+		out[0] = previous;
+		double inverseStride = 1.0 / stride;
+		for (int start = 0; start < count - 1; start += stride) {
+			int end = start + stride;
+			double next = fractal(x, y + end * step, octaves, lacunarity, gain);
+			for (int i = 1; i < stride && start + i < count; i++) {
+				out[start + i] = previous + (next - previous) * (i * inverseStride);
+			}
+			if (end < count) {
+				out[end] = next;
+			}
+			previous = next;
+		}
+	}
+}
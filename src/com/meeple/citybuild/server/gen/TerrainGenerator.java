@@ -0,0 +1,18 @@
+package com.meeple.citybuild.server.gen;
+
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.WorldGenerator;
+
+/**
+ * Fills in the terrain type and height of every tile of a new chunk, plugged into {@link WorldGenerator#terrain}. <br>
+ * Chunks are generated in parallel in no particular order, so the result must only depend on the seed and the chunk index 
+ * and implementations must be safe to call from several threads at once.
+ */
+public interface TerrainGenerator {
+
+	/**
+	 * @param chunk to fill, {@link Chunk#chunkX} and {@link Chunk#chunkY} give its place in the world
+	 * @param seed world seed
+	 */
+	public void generate(Chunk chunk, long seed);
+}
@@ -0,0 +1,106 @@
+package com.meeple.citybuild.server.net;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct buffers for packets, reused instead of allocated for every packet. <br>
+ * Direct buffers are written to a socket as they are, a heap buffer is first copied into a temporary direct buffer by the JDK.
+ * Allocating direct memory is slow though, so buffers are kept in free lists by power of two size from {@link #minBytes} up to
+ * {@link Protocol#maxPacket} and handed out again once released. <br>
+ * A {@link PooledBuffer} is reference counted so the same packet can be queued for several clients, it goes back to the pool when
+ * the last of them has written it.
+ */
+public class BufferPool {
+
+	public static final int minBytes = 256;
+	private static final int minShift = Integer.numberOfTrailingZeros(minBytes);
+
+	/**
+	 * buffers kept in each size class, more than this are left to the garbage collector
+	 */
+	public int maxFree = 256;
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private final Queue<PooledBuffer>[] free = new Queue[Integer.numberOfTrailingZeros(Protocol.maxPacket) - minShift + 1];
+	private final AtomicInteger[] freeCounts = new AtomicInteger[free.length];
+
+	public final AtomicLong allocated = new AtomicLong();
+	public final AtomicLong reused = new AtomicLong();
+
+	public BufferPool() {
+		for (int i = 0; i < free.length; i++) {
+			free[i] = new ConcurrentLinkedQueue<>();
+			freeCounts[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * A buffer of the pool, cleared and with a reference held by the caller
+	 */
+	public static class PooledBuffer {
+		public final ByteBuffer buffer;
+		private final BufferPool pool;
+		private final int sizeClass;
+		private final AtomicInteger references = new AtomicInteger();
+
+		private PooledBuffer(BufferPool pool, int sizeClass) {
+			this.pool = pool;
+			this.sizeClass = sizeClass;
+			this.buffer = ByteBuffer.allocateDirect(minBytes << sizeClass);
+		}
+
+		/**
+		 * Adds a reference, call once for each extra place the buffer is queued
+		 */
+		public PooledBuffer retain() {
+			references.incrementAndGet();
+			return this;
+		}
+
+		/**
+		 * Drops a reference, the buffer goes back to the pool when there are none left and must not be used afterwards
+		 */
+		public void release() {
+			int left = references.decrementAndGet();
+			if (left == 0) {
+				pool.free(this);
+			} else if (left < 0) {
+				throw new IllegalStateException("Buffer released more times than it was retained");
+			}
+		}
+	}
+
+	/**
+	 * @param bytes the buffer must hold, at most {@link Protocol#maxPacket}
+	 * @return a cleared buffer of at least the capacity
+	 */
+	public PooledBuffer acquire(int bytes) {
+		if (bytes > Protocol.maxPacket) {
+			throw new IllegalArgumentException("Packets are at most " + Protocol.maxPacket + " bytes, not " + bytes);
+		}
+		int sizeClass = Math.max(0, 32 - Integer.numberOfLeadingZeros(Math.max(1, bytes) - 1) - minShift);
+		PooledBuffer pooled = free[sizeClass].poll();
+		if (pooled != null) {
+			freeCounts[sizeClass].decrementAndGet();
+			reused.incrementAndGet();
+		} else {
+			pooled = new PooledBuffer(this, sizeClass);
+			allocated.incrementAndGet();
+		}
+		pooled.buffer.clear();
+		pooled.references.set(1);
+		return pooled;
+	}
+
+	private void free(PooledBuffer pooled) {
+		if (freeCounts[pooled.sizeClass].incrementAndGet() <= maxFree) {
+			free[pooled.sizeClass].add(pooled);
+		} else {
+			freeCounts[pooled.sizeClass].decrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package com.meeple.citybuild.server.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+import com.meeple.citybuild.server.GameManager;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.LevelData.Chunk.Tile;
+import com.meeple.citybuild.server.WorldGenerator.Tiles;
+import com.meeple.citybuild.server.net.BufferPool.PooledBuffer;
+import com.meeple.citybuild.server.save.ChunkCodec;
+
+/**
+ * Sends the tiles of the level to the clients of a {@link DedicatedServer} that asked for them. <br>
+ * A client is sent every resident chunk when it joins, as a {@link Protocol#chunk}. From then on only tiles that change are sent. Every
+ * tile changed through the {@link GameManager} setters, by commands or by the simulation, is marked in a bitset of its chunk. After each tick
+ * the marked tiles of a chunk are encoded once into a section of a pooled buffer, and the same section is queued for every client.
+ * The only thing encoded for each client is the few bytes of the {@link Protocol#deltas} header in front of its sections. <br>
+ * A chunk with more than {@link #fullChunkTiles} changed tiles is sent whole instead, which is smaller by then. Chunks that become resident
+ * after a client joined are sent whole the first time they are seen. <br>
+ * Everything but marking tiles runs on the level thread.
+ */
+public class ChunkReplicator {
+
+	/**
+	 * changed tiles of a chunk in one tick above which the chunk is sent whole instead of as a section
+	 */
+	static int fullChunkTiles = 512;
+	/**
+	 * ticks between looking for chunks that became resident
+	 */
+	static int sweepTicks = 20;
+
+	final Queue<ClientConnection> joining = new ConcurrentLinkedQueue<>();
+
+	private final LevelData level;
+	private final DedicatedServer server;
+	private final BufferPool pool;
+	/**
+	 * chunk key to the changed tiles, one bit per tile index
+	 */
+	private final Map<Long, long[]> dirty = new ConcurrentHashMap<>();
+	private final Consumer<Tile> editListener = this::changed;
+	/**
+	 * keys of every chunk a client was sent
+	 */
+	private final Set<Long> known = new HashSet<>();
+	private int residentCount = -1;
+	private long ticks = 0;
+
+	public volatile long chunksSent = 0;
+	public volatile long sectionsSent = 0;
+	public volatile long tilesSent = 0;
+	/**
+	 * chunks and sections encoded, each is sent to any number of clients
+	 */
+	public volatile long encoded = 0;
+
+	ChunkReplicator(LevelData level, DedicatedServer server, BufferPool pool) {
+		this.level = level;
+		this.server = server;
+		this.pool = pool;
+		level.tileEditListeners.add(editListener);
+	}
+
+	/**
+	 * Marks the tile to be sent. Called from whichever thread edited it, chunk systems edit from the threads of the chunk tick pool
+	 */
+	private void changed(Tile tile) {
+		Chunk chunk = tile.getChunk();
+		long[] bits = dirty.computeIfAbsent(LevelData.chunkKey(chunk.chunkX, chunk.chunkY), (k) -> new long[LevelData.chunkTiles / 64]);
+		int index = tile.getIndex();
+		synchronized (bits) {
+			bits[index >>> 6] |= 1L << index;
+		}
+	}
+
+	/**
+	 * Sends the tiles changed since the last call and every resident chunk to clients that just joined.
+	 * Call from the level thread after the tick, when nothing else is editing tiles
+	 */
+	void tick(long tick, Collection<ClientConnection> clients) {
+		ticks++;
+		List<ClientConnection> targets = new ArrayList<>();
+		for (ClientConnection client : clients) {
+			if (client.joined && !client.dropped) {
+				targets.add(client);
+			}
+		}
+		if (targets.isEmpty() && joining.isEmpty()) {
+			dirty.clear();
+			return;
+		}
+
+		//everything encoded this tick, the encoders reference is released once it is queued for every client
+		Map<Long, PooledBuffer> encodedChunks = new HashMap<>();
+		List<Chunk> whole = new ArrayList<>();
+		List<Long> sectionKeys = new ArrayList<>();
+		List<PooledBuffer> sections = new ArrayList<>();
+		List<Integer> sectionTiles = new ArrayList<>();
+		Set<Long> changed = new HashSet<>();
+		for (Iterator<Map.Entry<Long, long[]>> it = dirty.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Long, long[]> entry = it.next();
+			it.remove();
+			Chunk chunk = level.chunks.get(entry.getKey());
+			if (chunk == null) {
+				//unloaded since, it is saved as it was sent
+				continue;
+			}
+			changed.add(entry.getKey());
+			long[] bits = entry.getValue();
+			int count = 0;
+			for (long word : bits) {
+				count += Long.bitCount(word);
+			}
+			if (count > fullChunkTiles) {
+				whole.add(chunk);
+			} else {
+				sectionKeys.add(entry.getKey());
+				sections.add(encodeSection(chunk, bits, count));
+				sectionTiles.add(count);
+			}
+		}
+		List<Chunk> appeared = new ArrayList<>();
+		if (level.chunks.size() != residentCount || ticks % sweepTicks == 0) {
+			residentCount = level.chunks.size();
+			for (Chunk chunk : level.chunks.values()) {
+				long key = LevelData.chunkKey(chunk.chunkX, chunk.chunkY);
+				if (!known.contains(key) && !changed.contains(key)) {
+					appeared.add(chunk);
+				}
+			}
+		}
+
+		for (ClientConnection client : targets) {
+			for (Chunk chunk : appeared) {
+				if (!client.chunks.contains(LevelData.chunkKey(chunk.chunkX, chunk.chunkY))) {
+					sendChunk(client, chunk, encodedChunks);
+				}
+			}
+			for (Chunk chunk : whole) {
+				sendChunk(client, chunk, encodedChunks);
+			}
+			sendSections(tick, client, sectionKeys, sections, sectionTiles, encodedChunks);
+		}
+
+		ClientConnection client;
+		while ((client = joining.poll()) != null) {
+			if (client.dropped) {
+				continue;
+			}
+			for (Chunk chunk : level.chunks.values()) {
+				sendChunk(client, chunk, encodedChunks);
+			}
+			client.joined = true;
+		}
+
+		for (PooledBuffer buffer : encodedChunks.values()) {
+			buffer.release();
+		}
+		for (PooledBuffer buffer : sections) {
+			buffer.release();
+		}
+	}
+
+	/**
+	 * Queues the deltas packets of the client, only the sections of chunks it has. Sections of chunks it was never sent are sent as
+	 * the whole chunk instead
+	 */
+	private void sendSections(long tick, ClientConnection client, List<Long> keys, List<PooledBuffer> sections, List<Integer> tiles,
+		Map<Long, PooledBuffer> encodedChunks) {
+		List<PooledBuffer> mine = new ArrayList<>();
+		for (int i = 0; i < sections.size(); i++) {
+			Long key = keys.get(i);
+			if (client.chunks.contains(key)) {
+				mine.add(sections.get(i));
+				tilesSent += tiles.get(i);
+			} else {
+				Chunk chunk = level.chunks.get(key);
+				if (chunk != null) {
+					sendChunk(client, chunk, encodedChunks);
+				}
+			}
+		}
+		int first = 0;
+		while (first < mine.size()) {
+			//as many sections as fit in one packet
+			int length = 1 + 8 + 2, last = first;
+			while (last < mine.size() && last - first < 0xFFFF && length + mine.get(last).buffer.remaining() <= Protocol.maxPacket) {
+				length += mine.get(last).buffer.remaining();
+				last++;
+			}
+			PooledBuffer header = pool.acquire(Protocol.headerBytes + 8 + 2);
+			ByteBuffer buffer = header.buffer;
+			buffer.putInt(length);
+			buffer.put(Protocol.deltas);
+			buffer.putLong(tick);
+			buffer.putShort((short) (last - first));
+			buffer.flip();
+			server.queue(client, header);
+			header.release();
+			for (int i = first; i < last; i++) {
+				server.queue(client, mine.get(i));
+			}
+			sectionsSent += last - first;
+			first = last;
+		}
+	}
+
+	/**
+	 * Queues the whole chunk for the client, encoding it if it was not already this tick
+	 */
+	private void sendChunk(ClientConnection client, Chunk chunk, Map<Long, PooledBuffer> encodedChunks) {
+		long key = LevelData.chunkKey(chunk.chunkX, chunk.chunkY);
+		PooledBuffer packet = encodedChunks.get(key);
+		if (packet == null) {
+			packet = encodeChunk(chunk);
+			encodedChunks.put(key, packet);
+		}
+		server.queue(client, packet);
+		client.chunks.add(key);
+		known.add(key);
+		chunksSent++;
+	}
+
+	private PooledBuffer encodeChunk(Chunk chunk) {
+		PooledBuffer packet = pool.acquire(Protocol.headerBytes + 8 + ChunkCodec.maxBytes);
+		ByteBuffer buffer = packet.buffer;
+		int start = Protocol.begin(buffer, Protocol.chunk);
+		buffer.putInt(chunk.chunkX);
+		buffer.putInt(chunk.chunkY);
+		chunk.writePacked(buffer);
+		Protocol.end(buffer, start);
+		buffer.flip();
+		encoded++;
+		return packet;
+	}
+
+	private PooledBuffer encodeSection(Chunk chunk, long[] bits, int count) {
+		PooledBuffer section = pool.acquire(Protocol.sectionBytes + count * Protocol.tileBytes);
+		ByteBuffer buffer = section.buffer;
+		buffer.putInt(chunk.chunkX);
+		buffer.putInt(chunk.chunkY);
+		buffer.putShort((short) count);
+		for (int w = 0; w < bits.length; w++) {
+			long word = bits[w];
+			while (word != 0) {
+				int index = w << 6 | Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+				Tiles type = chunk.getType(index);
+				buffer.putShort((short) index);
+				buffer.put((byte) chunk.getTerrain(index).ordinal());
+				buffer.put((byte) (type == null ? 0 : type.ordinal() + 1));
+				buffer.putShort((short) chunk.getHeight(index));
+				buffer.putInt(chunk.getBuildingID(index));
+			}
+		}
+		buffer.flip();
+		encoded++;
+		return section;
+	}
+
+	void close() {
+		level.tileEditListeners.remove(editListener);
+	}
+}
@@ -0,0 +1,92 @@
+package com.meeple.citybuild.server.net;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.meeple.citybuild.server.net.BufferPool.PooledBuffer;
+
+/**
+ * A client of a {@link DedicatedServer}. Read and written by the network thread only, except for {@link #output} which
+ * the level thread adds to and the fields marked as the level threads.
+ */
+class ClientConnection {
+	/**
+	 * most buffers handed to one gathering write
+	 */
+	static final int gatherLimit = 64;
+
+	/**
+	 * Bytes waiting to be written, a view of a packet of its own so the same packet can be queued for several clients
+	 */
+	static class Outgoing {
+		final ByteBuffer data;
+		/**
+		 * released once the data is written, null for buffers that are not pooled
+		 */
+		final PooledBuffer owner;
+
+		Outgoing(ByteBuffer data, PooledBuffer owner) {
+			this.data = data;
+			this.owner = owner;
+		}
+	}
+
+	final int id;
+	final SocketChannel channel;
+	final SelectionKey key;
+	final String address;
+	/**
+	 * bytes read but not yet handled, in write mode between reads
+	 */
+	final ByteBuffer input = ByteBuffer.allocate(16 * 1024);
+	/**
+	 * waiting to be written, in order
+	 */
+	final Queue<Outgoing> output = new ConcurrentLinkedQueue<>();
+	final AtomicLong queuedBytes = new AtomicLong();
+	final ByteBuffer[] gather = new ByteBuffer[gatherLimit];
+
+	/**
+	 * set once the client said hello with the right version
+	 */
+	volatile boolean welcomed = false;
+	/**
+	 * the client asked to be sent the world
+	 */
+	volatile boolean replicate = false;
+	/**
+	 * close the connection once {@link #output} is written
+	 */
+	boolean closing = false;
+	/**
+	 * set by the level thread when the client fell too far behind, the network thread closes it
+	 */
+	volatile boolean dropped = false;
+
+	/**
+	 * level thread: set once the client was sent every resident chunk
+	 */
+	boolean joined = false;
+	/**
+	 * level thread: keys of the chunks the client was sent
+	 */
+	final Set<Long> chunks = new HashSet<>();
+
+	ClientConnection(int id, SocketChannel channel, SelectionKey key) {
+		this.id = id;
+		this.channel = channel;
+		this.key = key;
+		this.address = String.valueOf(channel.socket().getRemoteSocketAddress());
+	}
+
+	@Override
+	public String toString() {
+		return "client " + id + " (" + address + ")";
+	}
+}
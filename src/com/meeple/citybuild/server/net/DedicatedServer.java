@@ -0,0 +1,434 @@
+package com.meeple.citybuild.server.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.CityGameManager;
+import com.meeple.citybuild.server.GameManager;
+import com.meeple.citybuild.server.HeadlessMain;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.WorldGenerator;
+import com.meeple.citybuild.server.net.BufferPool.PooledBuffer;
+import com.meeple.citybuild.server.net.ClientConnection.Outgoing;
+import com.meeple.shared.Delta;
+
+/**
+ * Serves a level to clients over TCP. The level and its tick loop stay on the server, clients send {@link Protocol#edit}s
+ * and are sent a {@link Protocol#tick} after every tick. <br>
+ * All socket work is done by one network thread with a non blocking {@link Selector}: accepting, reading and handling packets and writing.
+ * Edits read from a client are submitted straight to the levels {@link LevelData#commands}, which is lock free, so the level thread
+ * never waits on a client. After each tick the level thread encodes the tick packet once, queues the same bytes for every client and
+ * wakes the network thread, which is all a tick costs per client. Clients that asked for the world are sent it by the {@link #replication}
+ * the same way. A client that stops reading is dropped once {@link #maxQueuedBytes} are waiting for it, rather than holding memory for it. <br>
+ * Packets are encoded into direct buffers from the {@link #pool} and each client is written with gathering writes of everything
+ * queued for it, so the bytes of a packet are only ever written once, by the encoder, on the way to the socket. <br>
+ * Single player runs the same server bound to the loopback address. Run this class for a dedicated server process. <br>
+ * Usage: DedicatedServer [port] [save file | world radius] [seed]
+ */
+public class DedicatedServer {
+	private static Logger logger = Logger.getLogger(DedicatedServer.class);
+
+	/**
+	 * bytes waiting to be written to a client before it is dropped, big enough for every resident chunk sent when it joins
+	 */
+	public static long maxQueuedBytes = 64l * 1024 * 1024;
+
+	private final LevelData level;
+	private final ServerSocketChannel serverChannel;
+	private final Selector selector;
+	private final Thread thread;
+	private final Map<Integer, ClientConnection> clients = new ConcurrentHashMap<>();
+	private volatile boolean running = true;
+	private int nextID = 1;
+	private long ticks = 0;
+
+	public final BufferPool pool = new BufferPool();
+	public final ChunkReplicator replication;
+
+	public final AtomicLong bytesIn = new AtomicLong();
+	public final AtomicLong bytesOut = new AtomicLong();
+	public volatile long editsIn = 0;
+	/**
+	 * clients dropped for not reading
+	 */
+	public volatile long dropped = 0;
+
+	/**
+	 * Binds the address and starts the network thread
+	 * @param address to listen on, port 0 for any free port
+	 */
+	public DedicatedServer(LevelData level, InetSocketAddress address) throws IOException {
+		this.level = level;
+		this.replication = new ChunkReplicator(level, this, pool);
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.bind(address);
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException err) {
+			serverChannel.close();
+			selector.close();
+			replication.close();
+			throw err;
+		}
+		this.thread = new Thread(this::run, "Server Network");
+		thread.setDaemon(true);
+		thread.start();
+		logger.info("Serving level " + (level.name == null ? "of seed " + level.seed : level.name) + " on " + getAddress());
+	}
+
+	/**
+	 * @return address the server is listening on, with the port it was given if bound to port 0
+	 */
+	public InetSocketAddress getAddress() {
+		return (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+	}
+
+	/**
+	 * @return clients that have been welcomed and are still connected
+	 */
+	public int clientCount() {
+		int count = 0;
+		for (ClientConnection client : clients.values()) {
+			if (client.welcomed) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Sends the tick and the tiles that changed in it to every client. Call from the level thread at the end of each tick
+	 */
+	public void tick() {
+		ticks++;
+		replication.tick(ticks, clients.values());
+		if (clients.isEmpty()) {
+			return;
+		}
+		PooledBuffer packet = pool.acquire(Protocol.headerBytes + 8 + 8 + 4);
+		ByteBuffer buffer = packet.buffer;
+		int start = Protocol.begin(buffer, Protocol.tick);
+		buffer.putLong(ticks);
+		buffer.putLong(level.activeTime);
+		buffer.putInt((int) Math.min(Integer.MAX_VALUE, level.scheduler.lastTickNanos / 1000));
+		Protocol.end(buffer, start);
+		buffer.flip();
+		broadcast(packet);
+		packet.release();
+	}
+
+	/**
+	 * Queues the packet for every welcomed client and wakes the network thread to write it. The packet is not copied, it must not be
+	 * changed afterwards. The callers reference is left for it to release
+	 * @param packet ready to read
+	 */
+	public void broadcast(PooledBuffer packet) {
+		for (ClientConnection client : clients.values()) {
+			if (client.welcomed) {
+				queue(client, packet);
+			}
+		}
+		selector.wakeup();
+	}
+
+	/**
+	 * Queues a view of the packet for the client, holding a reference to it until it is written
+	 */
+	void queue(ClientConnection client, PooledBuffer packet) {
+		queue(client, new Outgoing(packet.buffer.duplicate(), packet));
+	}
+
+	private void queue(ClientConnection client, ByteBuffer packet) {
+		queue(client, new Outgoing(packet, null));
+	}
+
+	private void queue(ClientConnection client, Outgoing outgoing) {
+		if (client.dropped) {
+			return;
+		}
+		if (client.queuedBytes.addAndGet(outgoing.data.remaining()) > maxQueuedBytes) {
+			client.dropped = true;
+			return;
+		}
+		if (outgoing.owner != null) {
+			//referenced before the network thread can write and release it
+			outgoing.owner.retain();
+		}
+		client.output.add(outgoing);
+	}
+
+	private void run() {
+		try {
+			while (running) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						ClientConnection client = (ClientConnection) key.attachment();
+						try {
+							if (key.isReadable()) {
+								read(client);
+							}
+						} catch (IOException err) {
+							disconnect(client, err.getMessage());
+						}
+					}
+				}
+				for (ClientConnection client : clients.values()) {
+					try {
+						if (client.dropped) {
+							dropped++;
+							logger.warn("Dropping " + client + ", it has " + client.queuedBytes.get() + " bytes it has not read");
+							disconnect(client, null);
+						} else {
+							write(client);
+						}
+					} catch (IOException err) {
+						disconnect(client, err.getMessage());
+					}
+				}
+			}
+		} catch (IOException err) {
+			logger.error("Server network thread failed, clients are disconnected", err);
+		} finally {
+			for (ClientConnection client : clients.values()) {
+				disconnect(client, "server closed");
+			}
+			try {
+				serverChannel.close();
+				selector.close();
+			} catch (IOException err) {
+				logger.warn("IO Exception while closing the server", err);
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			ClientConnection client = new ClientConnection(nextID++, channel, key);
+			key.attach(client);
+			clients.put(client.id, client);
+			logger.info("Accepted " + client);
+		}
+	}
+
+	private void read(ClientConnection client) throws IOException {
+		ByteBuffer input = client.input;
+		int read = client.channel.read(input);
+		if (read < 0) {
+			disconnect(client, "closed by the client");
+			return;
+		}
+		bytesIn.addAndGet(read);
+		input.flip();
+		try {
+			while (input.remaining() >= 4 && !client.closing) {
+				int length = input.getInt(input.position());
+				if (length < 1 || length > input.capacity() - 4) {
+					throw new IOException("bad packet length " + length);
+				}
+				if (input.remaining() < 4 + length) {
+					break;
+				}
+				int end = input.position() + 4 + length;
+				ByteBuffer packet = input.duplicate();
+				packet.position(input.position() + 4).limit(end);
+				input.position(end);
+				handle(client, packet.get(), packet);
+			}
+		} catch (BufferUnderflowException err) {
+			throw new IOException("packet shorter than its contents");
+		} finally {
+			input.compact();
+		}
+	}
+
+	private void handle(ClientConnection client, byte type, ByteBuffer packet) throws IOException {
+		if (type == Protocol.hello) {
+			int version = packet.getInt();
+			if (client.welcomed || client.closing) {
+				throw new IOException("said hello twice");
+			}
+			if (version != Protocol.version) {
+				logger.info("Refusing " + client + ", protocol version " + version + " is not " + Protocol.version);
+				queue(client, Protocol.refusal("Server is running protocol version " + Protocol.version + ", not " + version));
+				client.closing = true;
+				return;
+			}
+			client.replicate = (packet.get() & Protocol.flagReplicate) != 0;
+			ByteBuffer welcome = ByteBuffer.allocate(Protocol.headerBytes + 4 + 4 + 8 + 8);
+			int start = Protocol.begin(welcome, Protocol.welcome);
+			welcome.putInt(client.id);
+			welcome.putInt(level.scheduler.getTickRate());
+			welcome.putLong(level.seed);
+			welcome.putLong(level.activeTime);
+			Protocol.end(welcome, start);
+			welcome.flip();
+			//queued before the client is welcomed so it is the first packet the client gets
+			queue(client, welcome);
+			client.welcomed = true;
+			if (client.replicate) {
+				replication.joining.add(client);
+			}
+		} else if (type == Protocol.edit && client.welcomed) {
+			level.commands.submit(Protocol.getEdit(packet));
+			editsIn++;
+		} else {
+			throw new IOException("unexpected packet " + type);
+		}
+	}
+
+	/**
+	 * Writes as much of the queued output as the socket takes, up to {@link ClientConnection#gatherLimit} buffers at a time,
+	 * waiting for the socket to be writable again if it did not take it all
+	 */
+	private void write(ClientConnection client) throws IOException {
+		ByteBuffer[] gather = client.gather;
+		while (!client.output.isEmpty()) {
+			int count = 0;
+			for (Outgoing outgoing : client.output) {
+				gather[count++] = outgoing.data;
+				if (count == gather.length) {
+					break;
+				}
+			}
+			long written = client.channel.write(gather, 0, count);
+			bytesOut.addAndGet(written);
+			client.queuedBytes.addAndGet(-written);
+			boolean full = gather[count - 1].hasRemaining();
+			Arrays.fill(gather, 0, count, null);
+			Outgoing outgoing;
+			while ((outgoing = client.output.peek()) != null && !outgoing.data.hasRemaining()) {
+				client.output.poll();
+				if (outgoing.owner != null) {
+					outgoing.owner.release();
+				}
+			}
+			if (full) {
+				client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+		if (client.closing) {
+			disconnect(client, null);
+		} else if ((client.key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+			client.key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	private void disconnect(ClientConnection client, String reason) {
+		if (clients.remove(client.id) == null) {
+			return;
+		}
+		client.key.cancel();
+		try {
+			client.channel.close();
+		} catch (IOException err) {
+			logger.trace("IO Exception while closing " + client, err);
+		}
+		//anything the level thread still queues for it is left to the garbage collector
+		Outgoing outgoing;
+		while ((outgoing = client.output.poll()) != null) {
+			if (outgoing.owner != null) {
+				outgoing.owner.release();
+			}
+		}
+		logger.info("Disconnected " + client + (reason == null ? "" : ": " + reason));
+	}
+
+	/**
+	 * Disconnects every client and stops the network thread
+	 */
+	public void close() {
+		running = false;
+		selector.wakeup();
+		try {
+			thread.join(1000);
+		} catch (InterruptedException err) {
+			Thread.currentThread().interrupt();
+		}
+		replication.close();
+	}
+
+	/**
+	 * Runs the level loop of a {@link CityGameManager} on the current thread like {@link GameManager#startGame(LevelData)},
+	 * sending every tick to the clients of the server. The server is closed when the level ends
+	 */
+	public static void startGame(LevelData level, DedicatedServer server) {
+		GameManager.startGame(level, new CityGameManager(level) {
+
+			@Override
+			public void levelTick(Delta delta) {
+				super.levelTick(delta);
+				server.tick();
+			}
+
+			@Override
+			public void levelClosed() {
+				super.levelClosed();
+				server.close();
+			}
+		});
+	}
+
+	public static void main(String[] args) throws IOException {
+		HeadlessMain.setupLogger();
+
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : Protocol.defaultPort;
+		LevelData level;
+		if (args.length > 1 && new File(args[1]).isFile()) {
+			level = GameManager.loadLevel(new File(args[1]));
+			if (level == null) {
+				return;
+			}
+		} else {
+			WorldGenerator generator = new WorldGenerator();
+			if (args.length > 1) {
+				generator.radius = Integer.parseInt(args[1]);
+			}
+			long seed = args.length > 2 ? Long.parseLong(args[2]) : System.currentTimeMillis();
+			level = GameManager.newGame(generator, seed);
+		}
+		DedicatedServer server = new DedicatedServer(level, new InetSocketAddress(port));
+		Thread levelThread = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			//let the level thread save on the way out
+			GameManager.quitGame(level);
+			try {
+				levelThread.join(30_000);
+			} catch (InterruptedException err) {
+				Thread.currentThread().interrupt();
+			}
+		}, "Server Shutdown"));
+		GameManager.resumeGame(level);
+		startGame(level, server);
+	}
+}
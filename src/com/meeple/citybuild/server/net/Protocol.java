@@ -0,0 +1,130 @@
+package com.meeple.citybuild.server.net;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.command.TileEdit;
+import com.meeple.citybuild.server.save.ChunkCodec;
+
+/**
+ * Packets between a {@link DedicatedServer} and its clients. <br>
+ * Every packet is framed as an int length of the rest of the packet, a byte packet type and the payload, all big endian.
+ * A packet longer than {@link #maxPacket} is a protocol error and closes the connection. <br>
+ * A client opens with {@link #hello} and the server answers with {@link #welcome} or {@link #refused}.
+ * After that the client sends {@link #edit}s and the server sends a {@link #tick} after every tick of the level. <br>
+ * A client that asked for {@link #flagReplicate} is also sent the world: each chunk once as a {@link #chunk} in the packed form of
+ * {@link ChunkCodec}, then only the tiles that changed, as one {@link #deltas} packet per tick.
+ */
+public class Protocol {
+
+	/**
+	 * bumped whenever a packet changes, clients of another version are refused
+	 */
+	public static final int version = 2;
+	public static final int defaultPort = 27460;
+	/**
+	 * length and type
+	 */
+	public static final int headerBytes = 5;
+	public static final int maxPacket = 1 << 20;
+
+	/**
+	 * client to server: int protocol version, byte flags
+	 */
+	public static final byte hello = 1;
+	/**
+	 * server to client: int client id, int tick rate, long seed, long active time
+	 */
+	public static final byte welcome = 2;
+	/**
+	 * server to client: u16 length and the UTF-8 reason. The server closes the connection after it
+	 */
+	public static final byte refused = 3;
+	/**
+	 * client to server: one {@link TileEdit}, see {@link #putEdit(ByteBuffer, TileEdit)}
+	 */
+	public static final byte edit = 4;
+	/**
+	 * server to client: long tick, long active time, int milliseconds per tick in microseconds
+	 */
+	public static final byte tick = 5;
+	/**
+	 * server to client: int chunk x, int chunk y and the tiles written by {@link Chunk#writePacked(ByteBuffer)}
+	 */
+	public static final byte chunk = 6;
+	/**
+	 * server to client: long tick, u16 section count, then per section int chunk x, int chunk y, u16 tile count and per tile
+	 * u16 index, byte terrain ordinal, byte type (0 for none, otherwise the ordinal plus one), short height and int building handle.
+	 * Only sent for chunks the client was sent a {@link #chunk} of
+	 */
+	public static final byte deltas = 7;
+
+	/**
+	 * hello flag asking to be sent the world
+	 */
+	public static final byte flagReplicate = 1;
+
+	public static final int editBytes = 4 + 4 + 2 + 1 + 4;
+	public static final int sectionBytes = 4 + 4 + 2;
+	public static final int tileBytes = 2 + 1 + 1 + 2 + 4;
+
+	/**
+	 * Writes the header of a packet, the length is filled in by {@link #end(ByteBuffer, int)}
+	 * @return position of the packet start to pass to {@link #end(ByteBuffer, int)}
+	 */
+	public static int begin(ByteBuffer buffer, byte type) {
+		int start = buffer.position();
+		buffer.putInt(0);
+		buffer.put(type);
+		return start;
+	}
+
+	/**
+	 * Fills in the length of the packet started at the position
+	 */
+	public static void end(ByteBuffer buffer, int start) {
+		buffer.putInt(start, buffer.position() - start - 4);
+	}
+
+	public static void putEdit(ByteBuffer buffer, TileEdit edit) {
+		buffer.putInt(edit.chunkX);
+		buffer.putInt(edit.chunkY);
+		buffer.putShort((short) edit.index);
+		buffer.put(edit.field);
+		buffer.putInt(edit.value);
+	}
+
+	public static TileEdit getEdit(ByteBuffer buffer) {
+		int chunkX = buffer.getInt();
+		int chunkY = buffer.getInt();
+		int index = buffer.getShort() & 0xFFFF;
+		byte field = buffer.get();
+		int value = buffer.getInt();
+		return new TileEdit(chunkX, chunkY, index, field, value);
+	}
+
+	public static void putString(ByteBuffer buffer, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		buffer.putShort((short) bytes.length);
+		buffer.put(bytes);
+	}
+
+	public static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return a packet refusing the client with the reason, ready to write
+	 */
+	public static ByteBuffer refusal(String reason) {
+		ByteBuffer buffer = ByteBuffer.allocate(headerBytes + 2 + reason.length() * 3);
+		int start = begin(buffer, refused);
+		putString(buffer, reason);
+		end(buffer, start);
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -0,0 +1,191 @@
+package com.meeple.citybuild.server.path;
+
+import java.util.Arrays;
+
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.WorldGenerator.TerrainType;
+
+/**
+ * One chunk of the abstract graph searched by the {@link Pathfinder}. <br>
+ * Holds a copy of which tiles of the chunk can be walked on, the portals where a path can cross into a neighbouring chunk
+ * and the walking distance between every pair of portals inside the chunk. <br>
+ * Clusters never change once built, an edit to the chunk builds a new one. A search holds on to the clusters it used so
+ * it can tell later whether its path is still valid.
+ */
+public class Cluster {
+
+	static final int size = LevelData.chunkSize;
+	/**
+	 * portals are placed at both ends of an entrance at least this wide, narrower ones get one in the middle
+	 */
+	static final int wideEntrance = 6;
+	/**
+	 * steps to the neighbouring tile in the order of the sides, +x, -x, +y, -y
+	 */
+	static final int[] sideX = { 1, -1, 0, 0 };
+	static final int[] sideY = { 0, 0, 1, -1 };
+
+	public final int chunkX, chunkY;
+	/**
+	 * walkable tiles, bit y of long x
+	 */
+	final long[] walkable;
+	/**
+	 * local tile index of each portal, see {@link LevelData#tileIndex(int, int)}
+	 */
+	final int[] portals;
+	/**
+	 * side of the chunk each portal crosses, index into {@link #sideX}
+	 */
+	final byte[] portalSides;
+	/**
+	 * tiles walked between portal i and j at [i * portals + j], -1 if one can not be reached from the other inside the chunk
+	 */
+	final int[] distances;
+
+	private Cluster(int chunkX, int chunkY, long[] walkable, int[] portals, byte[] portalSides, int[] distances) {
+		this.chunkX = chunkX;
+		this.chunkY = chunkY;
+		this.walkable = walkable;
+		this.portals = portals;
+		this.portalSides = portalSides;
+		this.distances = distances;
+	}
+
+	/**
+	 * Reads which tiles of the chunk can be walked on, land that is not water
+	 * @return bit y of long x is set for walkable tile x, y
+	 */
+	static long[] walkable(Chunk chunk) {
+		long[] walkable = new long[size];
+		for (int x = 0; x < size; x++) {
+			long bits = 0;
+			for (int y = 0; y < size; y++) {
+				TerrainType terrain = chunk.getTerrain(LevelData.tileIndex(x, y));
+				if (terrain != TerrainType.Empty && terrain != TerrainType.Water) {
+					bits |= 1L << y;
+				}
+			}
+			walkable[x] = bits;
+		}
+		return walkable;
+	}
+
+	public boolean isWalkable(int x, int y) {
+		return (walkable[x] & (1L << y)) != 0;
+	}
+
+	/**
+	 * Builds the cluster, placing portals on the sides shared with the neighbours given
+	 * @param neighbours walkable tiles of the neighbouring chunks in the order of the sides, null where there is no chunk
+	 * @param scratch reused for the searches between portals
+	 */
+	static Cluster build(int chunkX, int chunkY, long[] walkable, long[][] neighbours, LocalSearch scratch) {
+		int[] portals = new int[16];
+		byte[] sides = new byte[16];
+		int count = 0;
+		for (int side = 0; side < 4; side++) {
+			long[] other = neighbours[side];
+			if (other == null) {
+				continue;
+			}
+			int run = 0;
+			for (int i = 0; i <= size; i++) {
+				boolean open = i < size && crossable(walkable, other, side, i);
+				if (open) {
+					run++;
+					continue;
+				}
+				if (run > 0) {
+					int start = i - run;
+					int end = i - 1;
+					if (count + 2 > portals.length) {
+						portals = Arrays.copyOf(portals, portals.length * 2);
+						sides = Arrays.copyOf(sides, sides.length * 2);
+					}
+					if (run >= wideEntrance) {
+						portals[count] = borderTile(side, start);
+						sides[count++] = (byte) side;
+						portals[count] = borderTile(side, end);
+						sides[count++] = (byte) side;
+					} else {
+						portals[count] = borderTile(side, (start + end) / 2);
+						sides[count++] = (byte) side;
+					}
+					run = 0;
+				}
+			}
+		}
+		portals = Arrays.copyOf(portals, count);
+		sides = Arrays.copyOf(sides, count);
+
+		int[] distances = new int[count * count];
+		Arrays.fill(distances, -1);
+		for (int i = 0; i < count; i++) {
+			scratch.flood(walkable, portals[i]);
+			for (int j = 0; j < count; j++) {
+				distances[i * count + j] = scratch.distance(portals[j]);
+			}
+		}
+		return new Cluster(chunkX, chunkY, walkable, portals, sides, distances);
+	}
+
+	/**
+	 * @return true if the i-th tile along the side and the tile across it in the neighbour can both be walked on
+	 */
+	private static boolean crossable(long[] walkable, long[] other, int side, int i) {
+		int index = borderTile(side, i);
+		int x = index / size, y = index % size;
+		int ox = (x + sideX[side] + size) % size, oy = (y + sideY[side] + size) % size;
+		return (walkable[x] & (1L << y)) != 0 && (other[ox] & (1L << oy)) != 0;
+	}
+
+	/**
+	 * @return local index of the i-th tile along the side
+	 */
+	static int borderTile(int side, int i) {
+		switch (side) {
+			case 0:
+				return LevelData.tileIndex(size - 1, i);
+			case 1:
+				return LevelData.tileIndex(0, i);
+			case 2:
+				return LevelData.tileIndex(i, size - 1);
+			default:
+				return LevelData.tileIndex(i, 0);
+		}
+	}
+
+	/**
+	 * @return chunk key of the neighbour the portal crosses into
+	 */
+	long acrossKey(int portal) {
+		int side = portalSides[portal];
+		return LevelData.chunkKey(chunkX + sideX[side], chunkY + sideY[side]);
+	}
+
+	/**
+	 * @param across the neighbour the portal crosses into
+	 * @return the portal of the neighbour it crosses into, or -1 if the neighbour has none there
+	 */
+	int acrossPortal(int portal, Cluster across) {
+		int side = portalSides[portal];
+		int index = portals[portal];
+		int x = Math.floorMod(index / size + sideX[side], size);
+		int y = Math.floorMod(index % size + sideY[side], size);
+		return across.portalAt(LevelData.tileIndex(x, y), side ^ 1);
+	}
+
+	/**
+	 * @return the portal at the local tile index crossing the side, or -1 if there is none
+	 */
+	int portalAt(int index, int side) {
+		for (int i = 0; i < portals.length; i++) {
+			if (portals[i] == index && portalSides[i] == side) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,308 @@
+package com.meeple.citybuild.server.path;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.meeple.citybuild.server.LevelData;
+
+/**
+ * Distance to one destination and the direction to walk towards it from every tile, shared by any number of agents. <br>
+ * The distance from the destination to every portal of the {@link Pathfinder} graph is found first with one search over the portals.
+ * The tiles of a chunk are only filled in the first time a tile of that chunk is sampled, spreading out from its portals,
+ * after which sampling is an array lookup. <br>
+ * When the graph changes the portal distances are worked out again and only the chunks whose cluster or portal distances
+ * changed are dropped, every other chunk keeps its tiles.
+ */
+public class FlowField {
+
+	public static final int none = -1;
+
+	/**
+	 * The tiles of one chunk, never changed once built
+	 */
+	private static class ChunkField {
+		/**
+		 * tiles to the destination, -1 if it can not be reached
+		 */
+		final int[] distance;
+		/**
+		 * side to step to, see {@link FlowField#stepX(int)}, {@link FlowField#none} at the destination or when it can not be reached
+		 */
+		final byte[] direction;
+
+		ChunkField(int[] distance, byte[] direction) {
+			this.distance = distance;
+			this.direction = direction;
+		}
+	}
+
+	private static final ChunkField unreachable;
+	static {
+		int[] distance = new int[LevelData.chunkTiles];
+		byte[] direction = new byte[LevelData.chunkTiles];
+		Arrays.fill(distance, -1);
+		Arrays.fill(direction, (byte) none);
+		unreachable = new ChunkField(distance, direction);
+	}
+
+	/**
+	 * A graph with the distance to each portal of each cluster, and the chunks built from it so far
+	 */
+	private static class State {
+		final Map<Long, Cluster> graph;
+		final Map<Long, int[]> portalDistances;
+		final Map<Long, ChunkField> chunks = new ConcurrentHashMap<>();
+
+		State(Map<Long, Cluster> graph, Map<Long, int[]> portalDistances) {
+			this.graph = graph;
+			this.portalDistances = portalDistances;
+		}
+	}
+
+	public final int toX, toY;
+	private volatile State state;
+	/**
+	 * chunks built in total, and rebuilt after a change to the graph
+	 */
+	public volatile int chunksBuilt = 0;
+
+	FlowField(int toX, int toY, Map<Long, Cluster> graph) {
+		this.toX = toX;
+		this.toY = toY;
+		update(graph);
+	}
+
+	public static int stepX(int direction) {
+		return direction == none ? 0 : Cluster.sideX[direction];
+	}
+
+	public static int stepY(int direction) {
+		return direction == none ? 0 : Cluster.sideY[direction];
+	}
+
+	/**
+	 * @return side of the tile to step to next, {@link #stepX(int)} and {@link #stepY(int)} give the step. {@link #none} at the destination or if it can not be reached
+	 */
+	public int direction(int x, int y) {
+		return chunk(x, y).direction[tileIndex(x, y)];
+	}
+
+	/**
+	 * @return tiles from the tile to the destination, -1 if it can not be reached
+	 */
+	public int distance(int x, int y) {
+		return chunk(x, y).distance[tileIndex(x, y)];
+	}
+
+	private static int tileIndex(int x, int y) {
+		return LevelData.tileIndex(Math.floorMod(x, Cluster.size), Math.floorMod(y, Cluster.size));
+	}
+
+	private ChunkField chunk(int x, int y) {
+		State state = this.state;
+		long key = LevelData.chunkKey(Math.floorDiv(x, Cluster.size), Math.floorDiv(y, Cluster.size));
+		ChunkField field = state.chunks.get(key);
+		if (field == null) {
+			field = state.chunks.computeIfAbsent(key, (k) -> build(state, k));
+		}
+		return field;
+	}
+
+	/**
+	 * Works out the portal distances on the new graph, keeping the chunks that are not affected
+	 */
+	synchronized void update(Map<Long, Cluster> graph) {
+		State old = this.state;
+		if (old != null && old.graph == graph) {
+			return;
+		}
+		State next = new State(graph, portalDistances(graph));
+		if (old != null) {
+			for (Map.Entry<Long, ChunkField> entry : old.chunks.entrySet()) {
+				long key = entry.getKey();
+				if (old.graph.get(key) == graph.get(key) && Arrays.equals(old.portalDistances.get(key), next.portalDistances.get(key))) {
+					next.chunks.put(key, entry.getValue());
+				}
+			}
+		}
+		this.state = next;
+	}
+
+	/**
+	 * Dijkstra from the destination over the portals of the graph
+	 * @return distance of each portal of each reached cluster, -1 for portals not reached
+	 */
+	private Map<Long, int[]> portalDistances(Map<Long, Cluster> graph) {
+		Cluster goal = graph.get(LevelData.chunkKey(Math.floorDiv(toX, Cluster.size), Math.floorDiv(toY, Cluster.size)));
+		if (goal == null || !goal.isWalkable(Math.floorMod(toX, Cluster.size), Math.floorMod(toY, Cluster.size))) {
+			return Collections.emptyMap();
+		}
+		Map<Long, int[]> distances = new HashMap<>();
+		//entries are cluster, portal and distance, stale entries are skipped when popped
+		PriorityQueue<long[]> open = new PriorityQueue<>((a, b) -> Long.compare(a[2], b[2]));
+		Map<Long, Cluster> byKey = new HashMap<>();
+		LocalSearch local = new LocalSearch();
+		local.flood(goal.walkable, tileIndex(toX, toY));
+		for (int i = 0; i < goal.portals.length; i++) {
+			int d = local.distance(goal.portals[i]);
+			if (d >= 0) {
+				relax(distances, byKey, open, goal, i, d);
+			}
+		}
+		while (!open.isEmpty()) {
+			long[] entry = open.poll();
+			Cluster cluster = byKey.get(entry[0]);
+			int portal = (int) entry[1];
+			int g = (int) entry[2];
+			if (distances.get(entry[0])[portal] != g) {
+				continue;
+			}
+			int portals = cluster.portals.length;
+			for (int j = 0; j < portals; j++) {
+				int d = cluster.distances[portal * portals + j];
+				if (j != portal && d >= 0) {
+					relax(distances, byKey, open, cluster, j, g + d);
+				}
+			}
+			Cluster across = graph.get(cluster.acrossKey(portal));
+			if (across != null) {
+				int other = cluster.acrossPortal(portal, across);
+				if (other >= 0) {
+					relax(distances, byKey, open, across, other, g + 1);
+				}
+			}
+		}
+		return distances;
+	}
+
+	private static void relax(Map<Long, int[]> distances, Map<Long, Cluster> byKey, PriorityQueue<long[]> open, Cluster cluster, int portal, int g) {
+		long key = LevelData.chunkKey(cluster.chunkX, cluster.chunkY);
+		int[] d = distances.get(key);
+		if (d == null) {
+			d = new int[cluster.portals.length];
+			Arrays.fill(d, -1);
+			distances.put(key, d);
+			byKey.put(key, cluster);
+		}
+		if (d[portal] < 0 || g < d[portal]) {
+			d[portal] = g;
+			open.add(new long[] { key, portal, g });
+		}
+	}
+
+	/**
+	 * @return distance of the portal on the other side of the chunk side the portal crosses, -1 if there is none or it was not reached
+	 */
+	private static int acrossDistance(State state, Cluster cluster, int portal) {
+		long key = cluster.acrossKey(portal);
+		Cluster across = state.graph.get(key);
+		int[] distances = state.portalDistances.get(key);
+		if (across == null || distances == null) {
+			return -1;
+		}
+		int other = cluster.acrossPortal(portal, across);
+		return other < 0 ? -1 : distances[other];
+	}
+
+	/**
+	 * Fills in the tiles of the chunk with a breadth first search starting from each portal at its distance, and the destination if it is in the chunk
+	 */
+	private ChunkField build(State state, long key) {
+		Cluster cluster = state.graph.get(key);
+		int[] seeds = state.portalDistances.get(key);
+		boolean hasGoal = cluster != null && LevelData.chunkKey(Math.floorDiv(toX, Cluster.size), Math.floorDiv(toY, Cluster.size)) == key
+			&& cluster.isWalkable(Math.floorMod(toX, Cluster.size), Math.floorMod(toY, Cluster.size));
+		if (cluster == null || (seeds == null && !hasGoal)) {
+			return unreachable;
+		}
+		int tiles = LevelData.chunkTiles;
+		int size = Cluster.size;
+		int[] distance = new int[tiles];
+		Arrays.fill(distance, -1);
+		//seeds in order of distance, as distance << 32 | tile
+		long[] seeded = new long[(seeds == null ? 0 : seeds.length) + 1];
+		int n = 0;
+		if (hasGoal) {
+			seeded[n++] = tileIndex(toX, toY);
+		}
+		if (seeds != null) {
+			for (int i = 0; i < seeds.length; i++) {
+				if (seeds[i] >= 0) {
+					seeded[n++] = ((long) seeds[i] << 32) | cluster.portals[i];
+				}
+			}
+		}
+		Arrays.sort(seeded, 0, n);
+
+		//breadth first one distance at a time, adding each seed when its distance is reached
+		int[] current = new int[tiles];
+		int[] next = new int[tiles];
+		int currentSize = 0, seed = 0;
+		int step = n > 0 ? (int) (seeded[0] >>> 32) : 0;
+		while (currentSize > 0 || seed < n) {
+			if (currentSize == 0) {
+				step = Math.max(step, (int) (seeded[seed] >>> 32));
+			}
+			while (seed < n && (int) (seeded[seed] >>> 32) == step) {
+				int tile = (int) seeded[seed++];
+				if (distance[tile] < 0) {
+					distance[tile] = step;
+					current[currentSize++] = tile;
+				}
+			}
+			int nextSize = 0;
+			for (int i = 0; i < currentSize; i++) {
+				int index = current[i];
+				int x = index / size, y = index % size;
+				for (int side = 0; side < 4; side++) {
+					int nx = x + Cluster.sideX[side], ny = y + Cluster.sideY[side];
+					if (nx < 0 || ny < 0 || nx >= size || ny >= size || !cluster.isWalkable(nx, ny)) {
+						continue;
+					}
+					int t = LevelData.tileIndex(nx, ny);
+					if (distance[t] < 0) {
+						distance[t] = step + 1;
+						next[nextSize++] = t;
+					}
+				}
+			}
+			int[] swap = current;
+			current = next;
+			next = swap;
+			currentSize = nextSize;
+			step++;
+		}
+
+		byte[] direction = new byte[tiles];
+		for (int index = 0; index < tiles; index++) {
+			direction[index] = (byte) none;
+			int d = distance[index];
+			if (d <= 0) {
+				continue;
+			}
+			int x = index / size, y = index % size;
+			for (int side = 0; side < 4; side++) {
+				int nx = x + Cluster.sideX[side], ny = y + Cluster.sideY[side];
+				if (nx >= 0 && ny >= 0 && nx < size && ny < size && distance[LevelData.tileIndex(nx, ny)] == d - 1) {
+					direction[index] = (byte) side;
+					break;
+				}
+			}
+			if (direction[index] == none && seeds != null) {
+				//a portal reached from across the side of the chunk. A corner can be a portal on two sides, only one leads closer
+				for (int i = 0; i < seeds.length; i++) {
+					if (cluster.portals[i] == index && seeds[i] == d && acrossDistance(state, cluster, i) == d - 1) {
+						direction[index] = cluster.portalSides[i];
+						break;
+					}
+				}
+			}
+		}
+		chunksBuilt++;
+		return new ChunkField(distance, direction);
+	}
+}
@@ -0,0 +1,94 @@
+package com.meeple.citybuild.server.path;
+
+import java.util.Arrays;
+
+import com.meeple.citybuild.server.LevelData;
+
+/**
+ * Breadth first search over the tiles of a single {@link Cluster}, stepping to the four neighbouring tiles. <br>
+ * Every step costs the same so the first time a tile is reached is along a shortest path. The arrays are kept between
+ * searches and marked with a stamp instead of being cleared, so each thread keeps one and reuses it.
+ */
+class LocalSearch {
+
+	private static final int tiles = LevelData.chunkTiles;
+	private static final int size = Cluster.size;
+
+	private final int[] distance = new int[tiles];
+	private final int[] parent = new int[tiles];
+	private final int[] seen = new int[tiles];
+	private final int[] queue = new int[tiles];
+	private int stamp = 0;
+
+	/**
+	 * Finds the distance from the start to every walkable tile of the cluster, read with {@link #distance(int)}
+	 */
+	void flood(long[] walkable, int start) {
+		search(walkable, start, -1);
+	}
+
+	/**
+	 * @return tiles walked from the start of the last search, -1 if it was not reached
+	 */
+	int distance(int index) {
+		return seen[index] == stamp ? distance[index] : -1;
+	}
+
+	/**
+	 * Searches from the start until the goal is reached
+	 * @return tiles walked, -1 if the goal can not be reached inside the cluster
+	 */
+	int search(long[] walkable, int start, int goal) {
+		if (++stamp == 0) {
+			Arrays.fill(seen, 0);
+			stamp = 1;
+		}
+		if (!walkable(walkable, start)) {
+			return -1;
+		}
+		int head = 0, tail = 0;
+		queue[tail++] = start;
+		seen[start] = stamp;
+		distance[start] = 0;
+		parent[start] = -1;
+		while (head < tail) {
+			int index = queue[head++];
+			if (index == goal) {
+				return distance[index];
+			}
+			int x = index / size, y = index % size;
+			for (int side = 0; side < 4; side++) {
+				int nx = x + Cluster.sideX[side], ny = y + Cluster.sideY[side];
+				if (nx < 0 || ny < 0 || nx >= size || ny >= size) {
+					continue;
+				}
+				int next = LevelData.tileIndex(nx, ny);
+				if (seen[next] != stamp && (walkable[nx] & (1L << ny)) != 0) {
+					seen[next] = stamp;
+					distance[next] = distance[index] + 1;
+					parent[next] = index;
+					queue[tail++] = next;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Writes the tiles from the start of the last search to the tile, excluding the start
+	 * @param index tile reached by the last search
+	 * @param path to append to
+	 */
+	void appendPath(int index, int chunkX, int chunkY, Path.Builder path) {
+		int steps = distance[index];
+		int at = path.reserve(steps);
+		for (int i = steps - 1; i >= 0; i--) {
+			path.set(at + i, chunkX * size + index / size, chunkY * size + index % size);
+			index = parent[index];
+		}
+	}
+
+	private static boolean walkable(long[] walkable, int index) {
+		return (walkable[index / size] & (1L << (index % size))) != 0;
+	}
+}
@@ -0,0 +1,96 @@
+package com.meeple.citybuild.server.path;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.meeple.citybuild.server.LevelData;
+
+/**
+ * Result of a path request. Tiles are in level wide tile coordinates, chunk index * {@link LevelData#chunkSize} + tile inside the chunk. <br>
+ * The path starts with the tile after the start and ends on the goal, an empty path that was found means the start is the goal.
+ */
+public class Path {
+
+	public final int fromX, fromY, toX, toY;
+	public final boolean found;
+	/**
+	 * x, y of each tile
+	 */
+	private final int[] tiles;
+	/**
+	 * clusters the path was found in, the path is only valid while they are still the clusters of the graph
+	 */
+	final Cluster[] clusters;
+
+	Path(int fromX, int fromY, int toX, int toY, boolean found, int[] tiles, Cluster[] clusters) {
+		this.fromX = fromX;
+		this.fromY = fromY;
+		this.toX = toX;
+		this.toY = toY;
+		this.found = found;
+		this.tiles = tiles;
+		this.clusters = clusters;
+	}
+
+	static Path notFound(int fromX, int fromY, int toX, int toY) {
+		return new Path(fromX, fromY, toX, toY, false, new int[0], new Cluster[0]);
+	}
+
+	/**
+	 * @return number of tiles walked
+	 */
+	public int length() {
+		return tiles.length / 2;
+	}
+
+	public int getX(int step) {
+		return tiles[step * 2];
+	}
+
+	public int getY(int step) {
+		return tiles[step * 2 + 1];
+	}
+
+	boolean isValid(Map<Long, Cluster> graph) {
+		for (Cluster cluster : clusters) {
+			if (graph.get(LevelData.chunkKey(cluster.chunkX, cluster.chunkY)) != cluster) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Collects the tiles of a path as it is refined
+	 */
+	static class Builder {
+		private int[] tiles = new int[128];
+		private int size = 0;
+
+		/**
+		 * Makes room for the tiles
+		 * @return step of the first tile reserved
+		 */
+		int reserve(int steps) {
+			if ((size + steps) * 2 > tiles.length) {
+				tiles = Arrays.copyOf(tiles, Math.max(tiles.length * 2, (size + steps) * 2));
+			}
+			int at = size;
+			size += steps;
+			return at;
+		}
+
+		void set(int step, int x, int y) {
+			tiles[step * 2] = x;
+			tiles[step * 2 + 1] = y;
+		}
+
+		void add(int x, int y) {
+			set(reserve(1), x, y);
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(tiles, size * 2);
+		}
+	}
+}
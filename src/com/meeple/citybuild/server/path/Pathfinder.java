@@ -0,0 +1,533 @@
+package com.meeple.citybuild.server.path;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.LevelData.Chunk.Tile;
+import com.meeple.shared.utils.FrameUtils;
+
+/**
+ * Finds walking paths between tiles across the level with hierarchical A* (HPA*). <br>
+ * Each chunk is a {@link Cluster} with portals on its sides and the distances between them worked out in advance,
+ * so a long path is searched over the portals and only refined tile by tile inside the chunks it passes through. <br>
+ * The level thread calls {@link #tick()} which copies the walkable tiles of chunks that were added or edited
+ * (see {@link LevelData#tileEditListeners}) and rebuilds their clusters on the worker pool. Only the edited cluster is rebuilt,
+ * and its neighbours only if walkability along the side they share changed. Searches always see a complete graph,
+ * it is replaced as a whole once a rebuild is done. <br>
+ * Requests are batched and searched on the worker pool, their callbacks run on the level thread in a later tick,
+ * so the tick never waits on a search. Found paths are cached until a cluster they pass through is rebuilt.
+ */
+public class Pathfinder {
+	private static Logger logger = Logger.getLogger(Pathfinder.class);
+
+	public static int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	/**
+	 * requests searched one after another by a single task
+	 */
+	public int requestsPerTask = 8;
+	/**
+	 * most chunks whose walkable tiles are copied in one tick, spreads the work of a new level over several ticks
+	 */
+	public int chunksPerTick = 16;
+	public int maxCached = 4096;
+	/**
+	 * flow fields kept, the least recently used is dropped when there are more
+	 */
+	public int maxFlowFields = 32;
+
+	private static class Request {
+		final int fromX, fromY, toX, toY;
+		final Consumer<Path> callback;
+		Path result;
+
+		Request(int fromX, int fromY, int toX, int toY, Consumer<Path> callback) {
+			this.fromX = fromX;
+			this.fromY = fromY;
+			this.toX = toX;
+			this.toY = toY;
+			this.callback = callback;
+		}
+	}
+
+	/**
+	 * A portal reached by the abstract search, or the goal when {@link #cluster} is null
+	 */
+	private static class Node {
+		final Cluster cluster;
+		final int portal;
+		final int g, f;
+		final Node parent;
+
+		Node(Cluster cluster, int portal, int g, int f, Node parent) {
+			this.cluster = cluster;
+			this.portal = portal;
+			this.g = g;
+			this.f = f;
+			this.parent = parent;
+		}
+
+		int tileX() {
+			return cluster.chunkX * Cluster.size + cluster.portals[portal] / Cluster.size;
+		}
+
+		int tileY() {
+			return cluster.chunkY * Cluster.size + cluster.portals[portal] % Cluster.size;
+		}
+	}
+
+	private final LevelData level;
+	private final ExecutorService workers;
+	private final ThreadLocal<LocalSearch> localSearch = ThreadLocal.withInitial(LocalSearch::new);
+	/**
+	 * every built cluster by chunk key, never changed once published
+	 */
+	private volatile Map<Long, Cluster> graph = Collections.emptyMap();
+	private final AtomicBoolean rebuilding = new AtomicBoolean();
+
+	/**
+	 * chunks edited or unloaded, from any thread
+	 */
+	private final Queue<Long> edited = new ConcurrentLinkedQueue<>();
+	/**
+	 * level thread only: chunks the graph knows about, chunks waiting to be copied and copies waiting for a rebuild, null for a removed chunk
+	 */
+	private final Set<Long> known = new HashSet<>();
+	private final Set<Long> dirty = new LinkedHashSet<>();
+	private final Map<Long, long[]> copied = new HashMap<>();
+
+	private final Queue<Request> requests = new ConcurrentLinkedQueue<>();
+	private final Queue<Request> completed = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final Map<Long, Path> cache;
+	private final Map<Long, FlowField> flowFields;
+
+	public final AtomicLong searches = new AtomicLong();
+	public final AtomicLong cacheHits = new AtomicLong();
+	public final AtomicLong clustersBuilt = new AtomicLong();
+	public volatile long lastRebuildNanos = 0;
+
+	private final Consumer<Tile> editListener = (tile) -> {
+		edited.add(LevelData.chunkKey(tile.getChunk().chunkX, tile.getChunk().chunkY));
+	};
+	private final Consumer<Chunk> unloadListener = (chunk) -> {
+		edited.add(LevelData.chunkKey(chunk.chunkX, chunk.chunkY));
+	};
+
+	public Pathfinder(LevelData level) {
+		this.level = level;
+		AtomicInteger threadCount = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(threads, (r) -> {
+			Thread t = new Thread(r, "Pathfinder-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		this.cache = Collections.synchronizedMap(new LinkedHashMap<Long, Path>(256, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Path> eldest) {
+				return size() > maxCached;
+			}
+		});
+		this.flowFields = Collections.synchronizedMap(new LinkedHashMap<Long, FlowField>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, FlowField> eldest) {
+				return size() > maxFlowFields;
+			}
+		});
+		level.tileEditListeners.add(editListener);
+		level.chunkUnloadListeners.add(unloadListener);
+	}
+
+	/**
+	 * Asks for a path between two tiles in level wide tile coordinates. Can be called from any thread.
+	 * @param callback given the path on the level thread during a later {@link #tick()}
+	 */
+	public void request(int fromX, int fromY, int toX, int toY, Consumer<Path> callback) {
+		pending.incrementAndGet();
+		requests.add(new Request(fromX, fromY, toX, toY, callback));
+	}
+
+	/**
+	 * @return requests not yet handed back
+	 */
+	public int pending() {
+		return pending.get();
+	}
+
+	/**
+	 * @return number of chunks in the graph
+	 */
+	public int clusterCount() {
+		return graph.size();
+	}
+
+	/**
+	 * @return true while there are chunks whose changes have not made it into the graph yet
+	 */
+	public boolean isRebuilding() {
+		return rebuilding.get() || !dirty.isEmpty() || !copied.isEmpty() || !edited.isEmpty();
+	}
+
+	/**
+	 * Picks up changes to the chunks, hands the waiting requests to the workers and runs the callbacks of finished ones.
+	 * Call from the level thread once per tick.
+	 */
+	public void tick() {
+		if (level.chunks.size() != known.size()) {
+			level.chunks.forEach((x, y, chunk) -> {
+				long key = LevelData.chunkKey(x, y);
+				if (known.add(key)) {
+					dirty.add(key);
+				}
+			});
+		}
+		Long key;
+		while ((key = edited.poll()) != null) {
+			dirty.add(key);
+		}
+		int count = 0;
+		for (Iterator<Long> it = dirty.iterator(); it.hasNext() && count < chunksPerTick; count++) {
+			key = it.next();
+			it.remove();
+			Chunk chunk = level.chunks.get(key);
+			if (chunk == null) {
+				known.remove(key);
+				copied.put(key, null);
+			} else {
+				copied.put(key, Cluster.walkable(chunk));
+			}
+		}
+		if (!copied.isEmpty() && rebuilding.compareAndSet(false, true)) {
+			Map<Long, long[]> changed = new HashMap<>(copied);
+			copied.clear();
+			workers.execute(() -> {
+				try {
+					rebuild(changed);
+				} catch (RuntimeException err) {
+					logger.error("Failed to rebuild the path graph", err);
+				} finally {
+					rebuilding.set(false);
+				}
+			});
+		}
+
+		List<Request> batch = null;
+		Request request;
+		while ((request = requests.poll()) != null) {
+			if (batch == null) {
+				batch = new ArrayList<>(requestsPerTask);
+			}
+			batch.add(request);
+			if (batch.size() == requestsPerTask) {
+				submit(batch);
+				batch = null;
+			}
+		}
+		if (batch != null) {
+			submit(batch);
+		}
+
+		while ((request = completed.poll()) != null) {
+			pending.decrementAndGet();
+			request.callback.accept(request.result);
+		}
+	}
+
+	private void submit(List<Request> batch) {
+		workers.execute(() -> {
+			for (Request request : batch) {
+				try {
+					request.result = find(request.fromX, request.fromY, request.toX, request.toY);
+				} catch (RuntimeException err) {
+					logger.error("Path search failed", err);
+					request.result = Path.notFound(request.fromX, request.fromY, request.toX, request.toY);
+				}
+				completed.add(request);
+			}
+		});
+	}
+
+	/**
+	 * Stops the workers and stops listening to the level
+	 */
+	public void close() {
+		level.tileEditListeners.remove(editListener);
+		level.chunkUnloadListeners.remove(unloadListener);
+		workers.shutdownNow();
+	}
+
+	private static long neighbourKey(long key, int side) {
+		return LevelData.chunkKey((int) (key >> 32) + Cluster.sideX[side], (int) key + Cluster.sideY[side]);
+	}
+
+	/**
+	 * @return walkable bits along the side of the chunk
+	 */
+	private static long border(long[] walkable, int side) {
+		switch (side) {
+			case 0:
+				return walkable[Cluster.size - 1];
+			case 1:
+				return walkable[0];
+			default:
+				int bit = side == 2 ? Cluster.size - 1 : 0;
+				long bits = 0;
+				for (int x = 0; x < Cluster.size; x++) {
+					bits |= ((walkable[x] >>> bit) & 1L) << x;
+				}
+				return bits;
+		}
+	}
+
+	/**
+	 * Builds the clusters of the changed chunks, and of their neighbours where the side they share changed, into a new graph
+	 * @param changed walkable tiles of each changed chunk, null for chunks that were removed
+	 */
+	private void rebuild(Map<Long, long[]> changed) {
+		long start = System.nanoTime();
+		Map<Long, Cluster> old = graph;
+		Set<Long> build = new HashSet<>();
+		for (Map.Entry<Long, long[]> entry : changed.entrySet()) {
+			long key = entry.getKey();
+			long[] now = entry.getValue();
+			Cluster before = old.get(key);
+			if (now != null && before != null && Arrays.equals(now, before.walkable)) {
+				//an edit that did not change what can be walked on
+				continue;
+			}
+			if (now != null) {
+				build.add(key);
+			}
+			for (int side = 0; side < 4; side++) {
+				long neighbour = neighbourKey(key, side);
+				if (walkable(neighbour, changed, old) != null && (before == null || now == null || border(before.walkable, side) != border(now, side))) {
+					build.add(neighbour);
+				}
+			}
+		}
+
+		Map<Long, Cluster> next = new HashMap<>(old);
+		for (Map.Entry<Long, long[]> entry : changed.entrySet()) {
+			if (entry.getValue() == null) {
+				next.remove(entry.getKey());
+			}
+		}
+		LocalSearch search = localSearch.get();
+		long[][] neighbours = new long[4][];
+		for (long key : build) {
+			long[] walkable = walkable(key, changed, old);
+			if (walkable == null) {
+				continue;
+			}
+			for (int side = 0; side < 4; side++) {
+				neighbours[side] = walkable(neighbourKey(key, side), changed, old);
+			}
+			next.put(key, Cluster.build((int) (key >> 32), (int) key, walkable, neighbours, search));
+		}
+		graph = next;
+		FlowField[] fields;
+		synchronized (flowFields) {
+			fields = flowFields.values().toArray(new FlowField[0]);
+		}
+		for (FlowField field : fields) {
+			field.update(next);
+		}
+		clustersBuilt.addAndGet(build.size());
+		lastRebuildNanos = System.nanoTime() - start;
+		logger.trace(String.format("Rebuilt %d path clusters in %.2fms, %d clusters", build.size(), lastRebuildNanos / (double) FrameUtils.nanoToMilli, next.size()));
+	}
+
+	private static long[] walkable(long key, Map<Long, long[]> changed, Map<Long, Cluster> old) {
+		if (changed.containsKey(key)) {
+			return changed.get(key);
+		}
+		Cluster cluster = old.get(key);
+		return cluster == null ? null : cluster.walkable;
+	}
+
+	/**
+	 * Gets the flow field towards the tile, for many agents heading to the same place, eg a stockpile. 
+	 * Fields are shared and kept up to date with the graph, the first call for a destination searches the portals on the calling thread.
+	 * Safe to call from any thread
+	 * @return the field towards the tile in level wide tile coordinates
+	 */
+	public FlowField flowField(int toX, int toY) {
+		long key = LevelData.chunkKey(toX, toY);
+		synchronized (flowFields) {
+			FlowField field = flowFields.get(key);
+			if (field == null) {
+				field = new FlowField(toX, toY, graph);
+				flowFields.put(key, field);
+			}
+			field.update(graph);
+			return field;
+		}
+	}
+
+	/**
+	 * Searches for a path straight away on the calling thread, using the cache. Safe to call from any thread
+	 * @return the path, {@link Path#found} is false if there is none in the chunks of the graph
+	 */
+	public Path find(int fromX, int fromY, int toX, int toY) {
+		Map<Long, Cluster> graph = this.graph;
+		long cacheKey = LevelData.chunkKey(fromX, fromY) * 31 + LevelData.chunkKey(toX, toY) * 0x9E3779B97F4A7C15L;
+		Path path = cache.get(cacheKey);
+		if (path != null && path.fromX == fromX && path.fromY == fromY && path.toX == toX && path.toY == toY && path.isValid(graph)) {
+			cacheHits.incrementAndGet();
+			return path;
+		}
+		searches.incrementAndGet();
+		path = search(graph, fromX, fromY, toX, toY);
+		if (path.found) {
+			cache.put(cacheKey, path);
+		}
+		return path;
+	}
+
+	private Path search(Map<Long, Cluster> graph, int fromX, int fromY, int toX, int toY) {
+		int size = Cluster.size;
+		Cluster startCluster = graph.get(LevelData.chunkKey(Math.floorDiv(fromX, size), Math.floorDiv(fromY, size)));
+		Cluster goalCluster = graph.get(LevelData.chunkKey(Math.floorDiv(toX, size), Math.floorDiv(toY, size)));
+		if (startCluster == null || goalCluster == null) {
+			return Path.notFound(fromX, fromY, toX, toY);
+		}
+		int startIndex = LevelData.tileIndex(Math.floorMod(fromX, size), Math.floorMod(fromY, size));
+		int goalIndex = LevelData.tileIndex(Math.floorMod(toX, size), Math.floorMod(toY, size));
+		LocalSearch local = localSearch.get();
+		Path.Builder tiles = new Path.Builder();
+
+		if (startCluster == goalCluster && local.search(startCluster.walkable, startIndex, goalIndex) >= 0) {
+			//paths inside one chunk do not leave it, even if a shorter one would
+			local.appendPath(goalIndex, startCluster.chunkX, startCluster.chunkY, tiles);
+			return new Path(fromX, fromY, toX, toY, true, tiles.toArray(), new Cluster[] { startCluster });
+		}
+
+		int[] toGoal = new int[goalCluster.portals.length];
+		local.flood(goalCluster.walkable, goalIndex);
+		for (int i = 0; i < toGoal.length; i++) {
+			toGoal[i] = local.distance(goalCluster.portals[i]);
+		}
+
+		PriorityQueue<Node> open = new PriorityQueue<>((a, b) -> Integer.compare(a.f, b.f));
+		Map<Long, Node> best = new HashMap<>();
+		local.flood(startCluster.walkable, startIndex);
+		for (int i = 0; i < startCluster.portals.length; i++) {
+			int d = local.distance(startCluster.portals[i]);
+			if (d >= 0) {
+				relax(open, best, startCluster, i, d, null, toX, toY);
+			}
+		}
+		Node goal = null;
+		while (!open.isEmpty()) {
+			Node node = open.poll();
+			if (node.cluster == null) {
+				goal = node;
+				break;
+			}
+			if (best.get(nodeKey(node.cluster, node.portal)) != node) {
+				//a shorter way here was found after this was queued
+				continue;
+			}
+			Cluster cluster = node.cluster;
+			int portal = node.portal;
+			int portals = cluster.portals.length;
+			if (cluster == goalCluster && toGoal[portal] >= 0) {
+				int g = node.g + toGoal[portal];
+				open.add(new Node(null, -1, g, g, node));
+			}
+			for (int j = 0; j < portals; j++) {
+				int d = cluster.distances[portal * portals + j];
+				if (j != portal && d >= 0) {
+					relax(open, best, cluster, j, node.g + d, node, toX, toY);
+				}
+			}
+			Cluster across = graph.get(cluster.acrossKey(portal));
+			if (across != null) {
+				int other = cluster.acrossPortal(portal, across);
+				if (other >= 0) {
+					relax(open, best, across, other, node.g + 1, node, toX, toY);
+				}
+			}
+		}
+		if (goal == null) {
+			return Path.notFound(fromX, fromY, toX, toY);
+		}
+
+		List<Node> route = new ArrayList<>();
+		for (Node node = goal.parent; node != null; node = node.parent) {
+			route.add(node);
+		}
+		Collections.reverse(route);
+		Set<Cluster> used = new LinkedHashSet<>();
+		used.add(startCluster);
+		used.add(goalCluster);
+
+		Node first = route.get(0);
+		local.search(startCluster.walkable, startIndex, startCluster.portals[first.portal]);
+		local.appendPath(startCluster.portals[first.portal], startCluster.chunkX, startCluster.chunkY, tiles);
+		for (int i = 1; i < route.size(); i++) {
+			Node from = route.get(i - 1);
+			Node to = route.get(i);
+			used.add(to.cluster);
+			if (from.cluster == to.cluster) {
+				int target = to.cluster.portals[to.portal];
+				local.search(to.cluster.walkable, from.cluster.portals[from.portal], target);
+				local.appendPath(target, to.cluster.chunkX, to.cluster.chunkY, tiles);
+			} else {
+				tiles.add(to.tileX(), to.tileY());
+			}
+		}
+		Node last = route.get(route.size() - 1);
+		local.search(goalCluster.walkable, goalCluster.portals[last.portal], goalIndex);
+		local.appendPath(goalIndex, goalCluster.chunkX, goalCluster.chunkY, tiles);
+		return new Path(fromX, fromY, toX, toY, true, tiles.toArray(), used.toArray(new Cluster[0]));
+	}
+
+	/**
+	 * @return key of the portal, made from its tile and side as a corner tile can be a portal on two sides
+	 */
+	private static long nodeKey(Cluster cluster, int portal) {
+		int index = cluster.portals[portal];
+		int x = cluster.chunkX * Cluster.size + index / Cluster.size;
+		int y = cluster.chunkY * Cluster.size + index % Cluster.size;
+		return LevelData.chunkKey(x * 4 + cluster.portalSides[portal], y);
+	}
+
+	private static void relax(PriorityQueue<Node> open, Map<Long, Node> best, Cluster cluster, int portal, int g, Node parent, int toX, int toY) {
+		long key = nodeKey(cluster, portal);
+		Node existing = best.get(key);
+		if (existing != null && existing.g <= g) {
+			return;
+		}
+		int x = cluster.chunkX * Cluster.size + cluster.portals[portal] / Cluster.size;
+		int y = cluster.chunkY * Cluster.size + cluster.portals[portal] % Cluster.size;
+		Node node = new Node(cluster, portal, g, g + Math.abs(x - toX) + Math.abs(y - toY), parent);
+		best.put(key, node);
+		open.add(node);
+	}
+}
@@ -0,0 +1,130 @@
+package com.meeple.citybuild.server.save;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.shared.utils.FrameUtils;
+
+/**
+ * Periodically saves the chunks that changed since the last save, and the buildings, entities and economy if any of them changed,
+ * without stopping the level thread. <br>
+ * {@link #tick(File)} is called by the level thread between ticks. When the interval has passed it captures a
+ * {@link SaveSnapshot} (copy-on-write, no tile data is copied) and hands it to a background thread to write. <br>
+ * The time spent capturing the snapshot is the only pause the level thread sees and is recorded in {@link #lastPauseNanos}. <br>
+ * A save also compacts the levels {@link EditJournal}, so one is started early when the journal grows past {@link #journalRecords}.
+ */
+public class AutosaveService implements AutoCloseable {
+	private static Logger logger = Logger.getLogger(AutosaveService.class);
+
+	/**
+	 * nanos between autosaves
+	 */
+	public long intervalNanos = FrameUtils.secondsToNanos(60);
+	/**
+	 * records in the edit journal that start an autosave before the interval has passed
+	 */
+	public long journalRecords = 64 * 1024;
+
+	/**
+	 * total bytes written by all autosaves
+	 */
+	public final AtomicLong bytesWritten = new AtomicLong();
+	public final AtomicInteger autosaves = new AtomicInteger();
+	public volatile long lastBytesWritten = 0;
+	public volatile long lastPauseNanos = 0;
+	public volatile long lastWriteNanos = 0;
+	public volatile int lastChunks = 0;
+
+	private final LevelData level;
+	private final ExecutorService writer = Executors.newSingleThreadExecutor((r) -> {
+		Thread t = new Thread(r, "Autosave");
+		t.setDaemon(true);
+		return t;
+	});
+	private Future<?> pending;
+	private long lastSave = System.nanoTime();
+	/**
+	 * {@link SaveSnapshot#changes} of the last snapshot written, starting from the level as it was loaded
+	 */
+	private volatile long[] savedChanges;
+
+	public AutosaveService(LevelData level) {
+		this.level = level;
+		this.savedChanges = SaveSnapshot.changeCounts(level);
+	}
+
+	/**
+	 * Starts an autosave if the interval has passed and the previous one has finished.
+	 * Must be called from the level thread between ticks.
+	 * @param file level file to save to
+	 */
+	public void tick(File file) {
+		long now = System.nanoTime();
+		EditJournal journal = level.journal;
+		boolean journalFull = journal != null && journal.records() >= journalRecords;
+		if ((now - lastSave < intervalNanos && !journalFull) || (pending != null && !pending.isDone())) {
+			return;
+		}
+		lastSave = now;
+
+		SaveSnapshot snapshot;
+		try {
+			snapshot = LevelSaveSystem.snapshot(level, file);
+		} catch (IOException err) {
+			logger.error("IO Exception while preparing autosave", err);
+			return;
+		}
+		long pause = System.nanoTime() - now;
+		lastPauseNanos = pause;
+		if (snapshot.incremental && snapshot.chunks.isEmpty() && Arrays.equals(snapshot.changes, savedChanges)) {
+			//nothing to write, the tiles are in the regions and everything else is as last saved
+			return;
+		}
+		pending = writer.submit(() -> write(file, snapshot, pause));
+	}
+
+	private void write(File file, SaveSnapshot snapshot, long pause) {
+		long start = System.nanoTime();
+		try {
+			long bytes = LevelSaveSystem.write(file, snapshot);
+			level.saveFile = file;
+			savedChanges = snapshot.changes;
+			lastWriteNanos = System.nanoTime() - start;
+			lastBytesWritten = bytes;
+			lastChunks = snapshot.chunks.size();
+			bytesWritten.addAndGet(bytes);
+			autosaves.incrementAndGet();
+			logger.info(String.format("Autosave #%d: %d chunks, %d bytes, pause %.3fms, write %.2fms",
+				autosaves.get(), lastChunks, bytes,
+				pause / (double) FrameUtils.nanoToMilli,
+				lastWriteNanos / (double) FrameUtils.nanoToMilli));
+		} catch (IOException err) {
+			logger.error("IO Exception while autosaving", err);
+		}
+	}
+
+	/**
+	 * Waits for any running autosave to finish and stops the background thread.
+	 */
+	@Override
+	public void close() {
+		writer.shutdown();
+		try {
+			if (!writer.awaitTermination(30, TimeUnit.SECONDS)) {
+				logger.warn("Autosave did not finish in time");
+			}
+		} catch (InterruptedException err) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package com.meeple.citybuild.server.save;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.meeple.citybuild.server.LevelData;
+
+/**
+ * Compact encoding of a chunks tile arrays, used for the palette save codec and for chunks packed in memory. <br>
+ * The (terrain, type, building) of each tile is stored as an index into a per-chunk palette, bit-packed into longs
+ * using as few bits as the palette needs (none for a uniform chunk). <br>
+ * Heights are run-length encoded, or bit-packed through their own palette when that is smaller,
+ * as generated terrain is usually a few heights scattered at random which does not run-length well. <br>
+ * Layout:
+ * <ol>
+ * 	<li>u16 palette size, then terrain and type bytes and an int building handle per entry</li>
+ * 	<li>u8 bits per index, then the packed indices</li>
+ * 	<li>u8 height mode, then either u16 run count and (short height, u16 length) per run,
+ * or u16 height palette size, a short per entry, u8 bits per index and the packed indices</li>
+ * </ol>
+ * Indices never straddle two longs.
+ */
+public class ChunkCodec {
+
+	static final byte heightModeRuns = 0;
+	static final byte heightModePalette = 1;
+
+	/**
+	 * Largest possible encoding, every tile distinct
+	 */
+	public static final int maxBytes = 2 + LevelData.chunkTiles * 6 + 1 + packedLongs(12) * 8 + 1 + 2 + LevelData.chunkTiles * 4;
+
+	private static final ThreadLocal<Encoder> encoders = ThreadLocal.withInitial(Encoder::new);
+
+	/**
+	 * Encodes the tile arrays into the buffer
+	 * @return bytes written
+	 */
+	public static int encode(byte[] terrain, byte[] type, short[] height, int[] building, ByteBuffer out) {
+		return encoders.get().encode(terrain, type, height, building, out);
+	}
+
+	/**
+	 * Decodes tiles written by {@link #encode(byte[], byte[], short[], int[], ByteBuffer)} into the arrays
+	 * @throws IOException if the data is corrupt
+	 */
+	public static void decode(ByteBuffer in, byte[] terrain, byte[] type, short[] height, int[] building) throws IOException {
+		int tiles = LevelData.chunkTiles;
+		int paletteSize = in.getShort() & 0xFFFF;
+		if (paletteSize == 0 || paletteSize > tiles) {
+			throw new IOException("Corrupt chunk palette size " + paletteSize);
+		}
+		byte[] paletteTerrain = new byte[paletteSize];
+		byte[] paletteType = new byte[paletteSize];
+		int[] paletteBuilding = new int[paletteSize];
+		for (int i = 0; i < paletteSize; i++) {
+			paletteTerrain[i] = in.get();
+			paletteType[i] = in.get();
+			paletteBuilding[i] = in.getInt();
+		}
+		int bits = in.get();
+		if (bits == 0) {
+			Arrays.fill(terrain, paletteTerrain[0]);
+			Arrays.fill(type, paletteType[0]);
+			Arrays.fill(building, paletteBuilding[0]);
+		} else {
+			int perLong = 64 / bits;
+			long mask = (1L << bits) - 1;
+			int index = 0;
+			while (index < tiles) {
+				long word = in.getLong();
+				for (int i = 0; i < perLong && index < tiles; i++, index++) {
+					int entry = (int) (word & mask);
+					word >>>= bits;
+					if (entry >= paletteSize) {
+						throw new IOException("Corrupt chunk palette index " + entry);
+					}
+					terrain[index] = paletteTerrain[entry];
+					type[index] = paletteType[entry];
+					building[index] = paletteBuilding[entry];
+				}
+			}
+		}
+
+		byte mode = in.get();
+		switch (mode) {
+			case heightModeRuns: {
+				int runs = in.getShort() & 0xFFFF;
+				int index = 0;
+				for (int r = 0; r < runs; r++) {
+					short value = in.getShort();
+					int length = in.getShort() & 0xFFFF;
+					if (index + length > tiles) {
+						throw new IOException("Corrupt chunk height run");
+					}
+					Arrays.fill(height, index, index + length, value);
+					index += length;
+				}
+				if (index != tiles) {
+					throw new IOException("Chunk height runs cover " + index + " of " + tiles + " tiles");
+				}
+				break;
+			}
+			case heightModePalette: {
+				int size = in.getShort() & 0xFFFF;
+				short[] heights = new short[size];
+				for (int i = 0; i < size; i++) {
+					heights[i] = in.getShort();
+				}
+				int heightBits = in.get();
+				if (heightBits == 0) {
+					Arrays.fill(height, heights[0]);
+					break;
+				}
+				int perLong = 64 / heightBits;
+				long mask = (1L << heightBits) - 1;
+				int index = 0;
+				while (index < tiles) {
+					long word = in.getLong();
+					for (int i = 0; i < perLong && index < tiles; i++, index++) {
+						int entry = (int) (word & mask);
+						word >>>= heightBits;
+						if (entry >= size) {
+							throw new IOException("Corrupt chunk height palette index " + entry);
+						}
+						height[index] = heights[entry];
+					}
+				}
+				break;
+			}
+			default:
+				throw new IOException("Unknown chunk height mode " + mode);
+		}
+	}
+
+	static int bitsFor(int paletteSize) {
+		return paletteSize <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(paletteSize - 1);
+	}
+
+	static int packedLongs(int bits) {
+		if (bits == 0) {
+			return 0;
+		}
+		int perLong = 64 / bits;
+		return (LevelData.chunkTiles + perLong - 1) / perLong;
+	}
+
+	/**
+	 * Per-thread scratch space so encoding does not allocate
+	 */
+	private static class Encoder {
+		final Palette tilePalette = new Palette();
+		final Palette heightPalette = new Palette();
+		final int[] tileIndices = new int[LevelData.chunkTiles];
+		final int[] heightIndices = new int[LevelData.chunkTiles];
+
+		int encode(byte[] terrain, byte[] type, short[] height, int[] building, ByteBuffer out) {
+			int start = out.position();
+			int tiles = LevelData.chunkTiles;
+
+			tilePalette.clear();
+			for (int i = 0; i < tiles; i++) {
+				tileIndices[i] = tilePalette.indexOf(((long) (terrain[i] & 0xFF) << 40) | ((long) (type[i] & 0xFF) << 32) | (building[i] & 0xFFFFFFFFL));
+			}
+			out.putShort((short) tilePalette.size);
+			for (int i = 0; i < tilePalette.size; i++) {
+				long key = tilePalette.values[i];
+				out.put((byte) (key >> 40));
+				out.put((byte) (key >> 32));
+				out.putInt((int) key);
+			}
+			int bits = bitsFor(tilePalette.size);
+			out.put((byte) bits);
+			pack(tileIndices, bits, out);
+
+			heightPalette.clear();
+			int runs = 1;
+			for (int i = 0; i < tiles; i++) {
+				heightIndices[i] = heightPalette.indexOf(height[i] & 0xFFFF);
+				if (i > 0 && height[i] != height[i - 1]) {
+					runs++;
+				}
+			}
+			int heightBits = bitsFor(heightPalette.size);
+			int runBytes = 2 + runs * 4;
+			int paletteBytes = 2 + heightPalette.size * 2 + 1 + packedLongs(heightBits) * 8;
+			if (runBytes <= paletteBytes) {
+				out.put(heightModeRuns);
+				out.putShort((short) runs);
+				int runStart = 0;
+				for (int i = 1; i <= tiles; i++) {
+					if (i == tiles || height[i] != height[runStart]) {
+						out.putShort(height[runStart]);
+						out.putShort((short) (i - runStart));
+						runStart = i;
+					}
+				}
+			} else {
+				out.put(heightModePalette);
+				out.putShort((short) heightPalette.size);
+				for (int i = 0; i < heightPalette.size; i++) {
+					out.putShort((short) heightPalette.values[i]);
+				}
+				out.put((byte) heightBits);
+				pack(heightIndices, heightBits, out);
+			}
+			return out.position() - start;
+		}
+
+		private static void pack(int[] indices, int bits, ByteBuffer out) {
+			if (bits == 0) {
+				return;
+			}
+			int perLong = 64 / bits;
+			int index = 0;
+			while (index < indices.length) {
+				long word = 0;
+				for (int i = 0; i < perLong && index < indices.length; i++, index++) {
+					word |= ((long) indices[index]) << (i * bits);
+				}
+				out.putLong(word);
+			}
+		}
+	}
+
+	/**
+	 * Open addressing map from a non-negative long key to its insertion order
+	 */
+	private static class Palette {
+		private static final int slots = Integer.highestOneBit(LevelData.chunkTiles) * 4;
+		private final long[] keys = new long[slots];
+		private final int[] order = new int[slots];
+		final long[] values = new long[LevelData.chunkTiles];
+		int size;
+		private long lastKey;
+		private int lastIndex;
+
+		void clear() {
+			Arrays.fill(keys, -1);
+			size = 0;
+			lastKey = -1;
+		}
+
+		int indexOf(long key) {
+			if (key == lastKey) {
+				return lastIndex;
+			}
+			int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - Integer.numberOfTrailingZeros(slots)));
+			while (keys[slot] != -1) {
+				if (keys[slot] == key) {
+					lastKey = key;
+					lastIndex = order[slot];
+					return lastIndex;
+				}
+				slot = (slot + 1) & (slots - 1);
+			}
+			keys[slot] = key;
+			order[slot] = size;
+			values[size] = key;
+			lastKey = key;
+			lastIndex = size;
+			return size++;
+		}
+	}
+}
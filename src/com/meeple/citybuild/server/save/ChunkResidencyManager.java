@@ -0,0 +1,169 @@
+package com.meeple.citybuild.server.save;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.ChunkProvider;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.shared.utils.FrameUtils;
+
+/**
+ * Keeps the resident chunks of a level within a memory budget. <br>
+ * When the budget is exceeded the least recently used chunks (see {@link Chunk#touch()}) are removed from {@link LevelData#chunks}
+ * and {@link LevelData#chunkUnloadListeners} are told so they can release anything built from them, eg meshes. 
+ * Only chunks that are saved and have not been modified since are unloaded, modified chunks become candidates after the next autosave.
+ * Unloaded chunks are paged back in by the {@link ChunkProvider} the next time they are asked for. <br>
+ * Before that, chunks that have been idle for {@link #packIdleNanos} are {@link Chunk#pack() packed} in memory, 
+ * which works for modified and unsaved chunks too.
+ */
+public class ChunkResidencyManager {
+	private static Logger logger = Logger.getLogger(ChunkResidencyManager.class);
+
+	private final LevelData level;
+	/**
+	 * Heap the resident chunks may use, in bytes
+	 */
+	public long budgetBytes;
+	/**
+	 * Chunks accessed more recently than this are never unloaded, so the visible area can not thrash
+	 */
+	public long minIdleNanos = FrameUtils.secondsToNanos(5f);
+	/**
+	 * How often the budget is checked
+	 */
+	public long intervalNanos = FrameUtils.secondsToNanos(1f);
+	/**
+	 * Chunks idle for longer than this are packed, 0 to never pack
+	 */
+	public long packIdleNanos = FrameUtils.secondsToNanos(30f);
+	private long lastCheck = 0;
+
+	/**
+	 * total chunks unloaded
+	 */
+	public final AtomicLong evictions = new AtomicLong();
+	/**
+	 * total chunks packed
+	 */
+	public final AtomicLong packs = new AtomicLong();
+	public volatile int lastEvicted, lastPacked;
+
+	public ChunkResidencyManager(LevelData level, long budgetBytes) {
+		this.level = level;
+		this.budgetBytes = budgetBytes;
+	}
+
+	public int residentChunks() {
+		return level.chunks.size();
+	}
+
+	public long residentBytes() {
+		long[] bytes = new long[1];
+		level.chunks.forEach((x, y, chunk) -> bytes[0] += chunk.memoryBytes());
+		return bytes[0];
+	}
+
+	public int packedChunks() {
+		int[] count = new int[1];
+		level.chunks.forEach((x, y, chunk) -> {
+			if (chunk.isPacked()) {
+				count[0]++;
+			}
+		});
+		return count[0];
+	}
+
+	/**
+	 * @return chunks paged back in since the level was loaded
+	 */
+	public long pagedIn() {
+		ChunkProvider provider = level.chunkProvider;
+		return provider == null ? 0 : provider.loadedCount();
+	}
+
+	/**
+	 * Packs idle chunks and unloads chunks if the budget is still exceeded, once the interval has passed. 
+	 * Call from the level thread between ticks.
+	 * @return number of chunks unloaded
+	 */
+	public int tick() {
+		long now = System.nanoTime();
+		if (now - lastCheck < intervalNanos) {
+			return 0;
+		}
+		lastCheck = now;
+		if (packIdleNanos > 0) {
+			packIdle(now);
+		}
+		long over = residentBytes() - budgetBytes;
+		if (over <= 0 || level.pendingSaves.get() > 0) {
+			return 0;
+		}
+		if (level.chunkProvider == null) {
+			if (level.saveFile == null) {
+				//nothing on disk to page them back from
+				return 0;
+			}
+			level.chunkProvider = new RegionChunkProvider(level, LevelSaveSystem.regionFolder(level.saveFile));
+		}
+
+		List<Chunk> candidates = new ArrayList<>();
+		level.chunks.forEach((x, y, chunk) -> {
+			if (!chunk.modified.get() && now - chunk.lastAccess > minIdleNanos) {
+				candidates.add(chunk);
+			}
+		});
+		Collections.sort(candidates, (c1, c2) -> Long.compare(c1.lastAccess, c2.lastAccess));
+
+		int evicted = 0;
+		for (int i = 0; i < candidates.size() && over > 0; i++) {
+			Chunk chunk = candidates.get(i);
+			if (chunk.modified.get() || now - chunk.lastAccess <= minIdleNanos || !level.chunks.remove(chunk.chunkX, chunk.chunkY, chunk)) {
+				continue;
+			}
+			if (chunk.modified.get()) {
+				//written to while being removed, keep it
+				level.chunks.putIfAbsent(chunk.chunkX, chunk.chunkY, chunk);
+				continue;
+			}
+			evicted++;
+			over -= chunk.memoryBytes();
+			FrameUtils.iterateConsumer(level.chunkUnloadListeners, chunk, false);
+		}
+		lastEvicted = evicted;
+		evictions.addAndGet(evicted);
+		if (evicted > 0) {
+			logger.debug(report());
+		} else {
+			logger.trace("Chunk budget exceeded but no chunk can be unloaded. " + report());
+		}
+		return evicted;
+	}
+
+	private void packIdle(long now) {
+		List<Chunk> idle = new ArrayList<>();
+		level.chunks.forEach((x, y, chunk) -> {
+			if (!chunk.isPacked() && now - chunk.lastAccess > packIdleNanos) {
+				idle.add(chunk);
+			}
+		});
+		int packed = 0;
+		for (Chunk chunk : idle) {
+			if (chunk.pack()) {
+				packed++;
+			}
+		}
+		lastPacked = packed;
+		packs.addAndGet(packed);
+	}
+
+	public String report() {
+		return String.format("Chunks resident %d (%d packed, %.1fMB of %.1fMB), packed %d, unloaded %d (%d last check), paged in %d",
+			residentChunks(), packedChunks(), residentBytes() / 1048576f, budgetBytes / 1048576f, packs.get(), evictions.get(), lastEvicted, pagedIn());
+	}
+}
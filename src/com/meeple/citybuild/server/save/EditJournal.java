@@ -0,0 +1,434 @@
+package com.meeple.citybuild.server.save;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.ChunkProvider;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.WorldGenerator.TerrainType;
+import com.meeple.citybuild.server.WorldGenerator.Tiles;
+import com.meeple.shared.utils.FrameUtils;
+
+/**
+ * Write-ahead log of the tile edits made since the last save, so a crash only loses the last {@link #syncIntervalMillis} of edits. <br>
+ * Every edit is appended as a fixed size record to an in-memory buffer, which a background thread writes to the end of the journal file
+ * and forces to disk periodically. Appending only copies 16 bytes under a short lock so it can stay on while drag-painting. <br>
+ * When a level is loaded the journal is replayed on top of the last full save.
+ * Once a save has written the chunks the records before its {@link #mark()} are dropped with {@link #compact(long, Path)}. <br>
+ * Layout: "PTWL" magic, version, seed of the level, then records of
+ * (int chunk x, int chunk y, u16 tile index, u8 field, u8 check, int value)
+ */
+public class EditJournal implements AutoCloseable {
+	private static Logger logger = Logger.getLogger(EditJournal.class);
+
+	/**
+	 * "PTWL"
+	 */
+	private static final int magic = 0x5054574C;
+	static final int version = 1;
+	static final int headerBytes = 16;
+	static final int recordBytes = 16;
+	public static final String extension = ".wal";
+	private static final String tempExt = ".tmp";
+	private static final int bufferRecords = 4096;
+	private static final TerrainType[] terrainValues = TerrainType.values();
+	private static final Tiles[] tilesValues = Tiles.values();
+
+	public static final byte fieldTerrain = 1;
+	public static final byte fieldType = 2;
+	public static final byte fieldHeight = 3;
+	public static final byte fieldBuilding = 4;
+
+	/**
+	 * millis between writing the buffered records to the file and forcing them to disk
+	 */
+	public static long syncIntervalMillis = 1000;
+
+	private final long seed;
+	private Path path;
+	private FileChannel channel;
+	/**
+	 * records are appended to front, the sync swaps it with back and writes back to the file
+	 */
+	private ByteBuffer front = ByteBuffer.allocateDirect(bufferRecords * recordBytes);
+	private ByteBuffer back = ByteBuffer.allocateDirect(bufferRecords * recordBytes);
+	private final Object bufferLock = new Object();
+	/**
+	 * records appended since the journal was opened, including the ones already in the file
+	 */
+	private long appended;
+	/**
+	 * record number of the first record in the file
+	 */
+	private long base;
+	private volatile boolean closed = false;
+	private final ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor((r) -> {
+		Thread t = new Thread(r, "Edit journal");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private EditJournal(long seed, Path path, FileChannel channel, long records) {
+		this.seed = seed;
+		this.path = path;
+		this.channel = channel;
+		this.appended = records;
+		this.base = 0;
+		syncer.scheduleWithFixedDelay(() -> {
+			try {
+				sync();
+			} catch (IOException err) {
+				logger.error("IO Exception while syncing edit journal " + this.path, err);
+			}
+		}, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Journal file of the level file
+	 * @param levelFile eg saves/name.sv
+	 * @return eg saves/name.wal
+	 */
+	public static Path journalPath(File levelFile) {
+		String name = levelFile.getName();
+		int ext = name.lastIndexOf('.');
+		if (ext > 0) {
+			name = name.substring(0, ext);
+		}
+		return levelFile.toPath().resolveSibling(name + extension);
+	}
+
+	/**
+	 * Starts an empty journal, discarding any journal already at the path. Used for levels that have never been saved.
+	 * @param level to journal the edits of
+	 * @param path journal file
+	 * @return the journal
+	 * @throws IOException
+	 */
+	public static EditJournal create(LevelData level, Path path) throws IOException {
+		Path parent = path.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		writeHeader(channel, level.seed);
+		channel.force(true);
+		return new EditJournal(level.seed, path, channel, 0);
+	}
+
+	/**
+	 * Replays the journal at the path onto the level and keeps appending to it. <br>
+	 * Chunks that are in the save but not resident are loaded from {@link LevelData#chunkProvider} first.
+	 * Replaying stops at the first torn or corrupt record, which is cut off along with everything after it. <br>
+	 * A missing journal, or one written for a level with a different seed, is started again empty.
+	 * @param level loaded from the last full save
+	 * @param path journal file
+	 * @return the journal
+	 * @throws IOException
+	 */
+	public static EditJournal open(LevelData level, Path path) throws IOException {
+		if (!Files.exists(path)) {
+			return create(level, path);
+		}
+		long start = System.nanoTime();
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(headerBytes);
+			while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+			}
+			header.flip();
+			if (header.remaining() < headerBytes || header.getInt() != magic || header.getInt() > version || header.getLong() != level.seed) {
+				logger.warn("Discarding edit journal that does not belong to the level: " + path);
+				channel.close();
+				return create(level, path);
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocate(bufferRecords * recordBytes);
+			long position = headerBytes;
+			long records = 0;
+			long skipped = 0;
+			boolean valid = true;
+			while (valid) {
+				buffer.clear();
+				int read = channel.read(buffer, position);
+				if (read < recordBytes) {
+					break;
+				}
+				buffer.flip();
+				while (buffer.remaining() >= recordBytes) {
+					int chunkX = buffer.getInt();
+					int chunkY = buffer.getInt();
+					int index = buffer.getShort() & 0xFFFF;
+					byte field = buffer.get();
+					byte check = buffer.get();
+					int value = buffer.getInt();
+					if (check != check(chunkX, chunkY, index, field, value) || index >= LevelData.chunkTiles) {
+						valid = false;
+						break;
+					}
+					if (!apply(level, chunkX, chunkY, index, field, value)) {
+						skipped++;
+					}
+					records++;
+					position += recordBytes;
+				}
+			}
+			if (channel.size() > position) {
+				logger.warn(String.format("Edit journal %s has %d bytes of torn or corrupt records after record %d, cutting them off", path, channel.size() - position, records));
+				channel.truncate(position);
+				channel.force(true);
+			}
+			if (skipped > 0) {
+				logger.warn(skipped + " edits in the journal were for chunks not in the save");
+			}
+			logger.trace(String.format("Replayed %d edits from %s in %.2fms", records, path, (System.nanoTime() - start) / (double) FrameUtils.nanoToMilli));
+			return new EditJournal(level.seed, path, channel, records);
+		} catch (IOException err) {
+			channel.close();
+			throw err;
+		}
+	}
+
+	private static void writeHeader(FileChannel channel, long seed) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(headerBytes);
+		header.putInt(magic);
+		header.putInt(version);
+		header.putLong(seed);
+		header.flip();
+		long position = 0;
+		while (header.hasRemaining()) {
+			position += channel.write(header, position);
+		}
+	}
+
+	/**
+	 * Detects torn and zero-filled records, never 0 for a valid field
+	 */
+	private static byte check(int chunkX, int chunkY, int index, byte field, int value) {
+		int h = chunkX * 0x9E3779B1 ^ chunkY * 0x85EBCA77 ^ index * 0xC2B2AE3D ^ value * 0x27D4EB2F ^ field;
+		h ^= h >>> 16;
+		h ^= h >>> 8;
+		return (byte) ((h & 0x7F) | 0x80);
+	}
+
+	private static boolean apply(LevelData level, int chunkX, int chunkY, int index, byte field, int value) throws IOException {
+		Chunk chunk = level.chunks.get(chunkX, chunkY);
+		if (chunk == null) {
+			ChunkProvider provider = level.chunkProvider;
+			if (provider == null || (chunk = provider.load(chunkX, chunkY)) == null) {
+				return false;
+			}
+		}
+		switch (field) {
+			case fieldTerrain:
+				if (value < 0 || value >= terrainValues.length) {
+					throw new IOException("Unknown terrain " + value + " in edit journal");
+				}
+				chunk.setTerrain(index, terrainValues[value]);
+				break;
+			case fieldType:
+				if (value < 0 || value > tilesValues.length) {
+					throw new IOException("Unknown tile type " + value + " in edit journal");
+				}
+				chunk.setType(index, value == 0 ? null : tilesValues[value - 1]);
+				break;
+			case fieldHeight:
+				chunk.setHeight(index, value);
+				break;
+			case fieldBuilding: {
+				int old = chunk.getBuildingID(index);
+				chunk.setBuildingID(index, value);
+				level.buildings.tileChanged(chunkX, chunkY, old, value);
+				break;
+			}
+			default:
+				throw new IOException("Unknown edit journal field " + field);
+		}
+		chunk.rebake.set(true);
+		return true;
+	}
+
+	public void appendTerrain(Chunk chunk, int index, TerrainType value) {
+		append(chunk.chunkX, chunk.chunkY, index, fieldTerrain, value.ordinal());
+	}
+
+	public void appendType(Chunk chunk, int index, Tiles value) {
+		append(chunk.chunkX, chunk.chunkY, index, fieldType, value == null ? 0 : value.ordinal() + 1);
+	}
+
+	public void appendHeight(Chunk chunk, int index, int value) {
+		append(chunk.chunkX, chunk.chunkY, index, fieldHeight, value);
+	}
+
+	public void appendBuildingID(Chunk chunk, int index, int value) {
+		append(chunk.chunkX, chunk.chunkY, index, fieldBuilding, value);
+	}
+
+	/**
+	 * Appends an edit that has already been applied to the chunk.
+	 * Only blocks on IO when the buffer is full, which the background sync normally prevents.
+	 * @param chunkX chunk index x
+	 * @param chunkY chunk index y
+	 * @param index tile index in the chunk
+	 * @param field one of the field constants
+	 * @param value new value of the field
+	 */
+	public void append(int chunkX, int chunkY, int index, byte field, int value) {
+		while (!closed) {
+			synchronized (bufferLock) {
+				if (front.remaining() >= recordBytes) {
+					front.putInt(chunkX);
+					front.putInt(chunkY);
+					front.putShort((short) index);
+					front.put(field);
+					front.put(check(chunkX, chunkY, index, field, value));
+					front.putInt(value);
+					appended++;
+					return;
+				}
+			}
+			try {
+				sync();
+			} catch (IOException err) {
+				logger.error("IO Exception while writing edit journal " + path + ", edit lost", err);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Position in the journal to pass to {@link #compact(long, Path)} once a save has captured the level.
+	 * Must be taken before the chunks are captured, so every record before the mark is in the save.
+	 * @return number of records appended so far
+	 */
+	public long mark() {
+		synchronized (bufferLock) {
+			return appended;
+		}
+	}
+
+	/**
+	 * @return records in the journal, written or still buffered
+	 */
+	public long records() {
+		synchronized (bufferLock) {
+			return appended - base;
+		}
+	}
+
+	/**
+	 * Writes the buffered records to the end of the file and forces them to disk
+	 * @throws IOException
+	 */
+	public synchronized void sync() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		ByteBuffer write;
+		synchronized (bufferLock) {
+			if (front.position() == 0) {
+				return;
+			}
+			write = front;
+			front = back;
+			back = write;
+		}
+		write.flip();
+		long position = channel.size();
+		while (write.hasRemaining()) {
+			position += channel.write(write, position);
+		}
+		write.clear();
+		channel.force(false);
+	}
+
+	/**
+	 * Drops the records before the mark, as a save has written them into the region files,
+	 * and moves the journal to the path if the level was saved to a different file. <br>
+	 * The remaining records are copied to a new journal file which then replaces the old one.
+	 * @param mark from {@link #mark()} taken before the save captured the chunks
+	 * @param target journal file to continue in, eg {@link #journalPath(File)} of the file saved to
+	 * @throws IOException
+	 */
+	public synchronized void compact(long mark, Path target) throws IOException {
+		if (channel == null) {
+			return;
+		}
+		sync();
+		long start = System.nanoTime();
+		//an older snapshot can finish writing after a newer one
+		mark = Math.max(mark, base);
+		long from = headerBytes + (mark - base) * recordBytes;
+		Path temp = target.resolveSibling(target.getFileName() + tempExt);
+		FileChannel compacted = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long kept;
+		try {
+			writeHeader(compacted, seed);
+			long position = from;
+			long size = channel.size();
+			while (position < size) {
+				position += channel.transferTo(position, size - position, compacted.position(headerBytes + position - from));
+			}
+			kept = (size - from) / recordBytes;
+			compacted.force(true);
+		} finally {
+			compacted.close();
+		}
+		//the old journal is kept open until the new one replaced it, so a failed move leaves the journal as it was
+		try {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException err) {
+			Files.deleteIfExists(temp);
+			throw err;
+		}
+		FileChannel moved = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		channel.close();
+		channel = moved;
+		if (!target.equals(path)) {
+			Files.deleteIfExists(path);
+		}
+		path = target;
+		synchronized (bufferLock) {
+			base = mark;
+		}
+		logger.trace(String.format("Compacted edit journal to %d records in %.2fms", kept, (System.nanoTime() - start) / (double) FrameUtils.nanoToMilli));
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * Writes any buffered records and closes the file. Edits appended afterwards are ignored
+	 */
+	@Override
+	public synchronized void close() {
+		//not shutdownNow, interrupting a sync would close the channel
+		syncer.shutdown();
+		try {
+			sync();
+		} catch (IOException err) {
+			logger.error("IO Exception while syncing edit journal " + path, err);
+		}
+		closed = true;
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException err) {
+				logger.warn("IO Exception while closing edit journal " + path, err);
+			}
+			channel = null;
+		}
+	}
+}
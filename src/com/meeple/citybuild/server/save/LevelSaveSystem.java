@@ -0,0 +1,537 @@
+package com.meeple.citybuild.server.save;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.BuildingRegistry;
+import com.meeple.citybuild.server.Buildings.BuildingInstance;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.economy.Economy;
+import com.meeple.citybuild.server.economy.Recipe;
+import com.meeple.citybuild.server.economy.Recipes;
+import com.meeple.citybuild.server.entity.Archetype;
+import com.meeple.citybuild.server.entity.Component;
+import com.meeple.citybuild.server.entity.EntityStore;
+import com.meeple.citybuild.server.save.SaveSnapshot.ChunkEntry;
+import com.meeple.shared.utils.FrameUtils;
+
+/**
+ * Reads and writes levels in the binary save format. <br>
+ * A save is made of the level file (eg saves/name.sv) holding the level wide data,
+ * and a folder next to it (saves/name/) holding the chunks grouped into {@link RegionFile}s. <br>
+ * The level file starts with a fixed size {@link SaveHeader} summarising the save, so it can be listed without loading it. <br>
+ * Every file starts with a magic number and a version so old saves can still be read after the format changes.
+ */
+public class LevelSaveSystem {
+	private static Logger logger = Logger.getLogger(LevelSaveSystem.class);
+
+	/**
+	 * "PTSV"
+	 */
+	static final int magic = 0x50545356;
+	static final int version = 1;
+	public static final String extension = ".sv";
+
+	/**
+	 * Chunk record codec, raw tile arrays
+	 */
+	static final byte codecRaw = 0;
+	/**
+	 * Chunk record codec, {@link ChunkCodec} palette and run-length encoding
+	 */
+	static final byte codecPalette = 1;
+	private static final int scratchBytes = 1 + Math.max(LevelData.rawBytes, ChunkCodec.maxBytes);
+	private static final String tempExt = ".tmp";
+
+	/**
+	 * Folder holding the region files of the level file
+	 * @param levelFile eg saves/name.sv
+	 * @return eg saves/name/
+	 */
+	public static Path regionFolder(File levelFile) {
+		String name = levelFile.getName();
+		int ext = name.lastIndexOf('.');
+		if (ext > 0) {
+			name = name.substring(0, ext);
+		}
+		return levelFile.toPath().resolveSibling(name);
+	}
+
+	/**
+	 * Captures the level for saving into the file. Call from the level thread between ticks. <br>
+	 * If the level was last loaded from or saved to the same file only the modified chunks are captured. <br>
+	 * A paged level being saved to a new file has its regions copied over first, 
+	 * as the chunks that were never paged in are only in the old regions.
+	 * @param level to capture
+	 * @param file level file the snapshot will be written to
+	 * @return the snapshot to pass to {@link #write(File, SaveSnapshot)}
+	 * @throws IOException if the regions of a paged level could not be copied
+	 */
+	public static SaveSnapshot snapshot(LevelData level, File file) throws IOException {
+		if (level.chunkProvider != null && level.saveFile != null && !file.equals(level.saveFile)) {
+			moveProvider(level, file);
+		}
+		return SaveSnapshot.take(level, file.equals(level.saveFile) && Files.isDirectory(regionFolder(file)));
+	}
+
+	/**
+	 * Copies the regions of the current save to the folder of the new file and pages from there from now on
+	 */
+	private static synchronized void moveProvider(LevelData level, File file) throws IOException {
+		Path source = regionFolder(level.saveFile);
+		Path target = regionFolder(file);
+		Files.createDirectories(target);
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(target, "*" + RegionFile.extension)) {
+			for (Path path : stream) {
+				Files.delete(path);
+			}
+		}
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(source, "*" + RegionFile.extension)) {
+			for (Path path : stream) {
+				Path copy = target.resolve(path.getFileName());
+				Files.copy(path, copy, StandardCopyOption.REPLACE_EXISTING);
+				//the write that follows only forces the regions it changes, the journal moves to this save after it
+				try (FileChannel channel = FileChannel.open(copy, StandardOpenOption.WRITE)) {
+					channel.force(true);
+				}
+			}
+		}
+		level.chunkProvider.close();
+		level.chunkProvider = new RegionChunkProvider(level, target);
+		level.saveFile = file;
+	}
+
+	/**
+	 * Writes the whole level to the file and its region folder.
+	 * @param level to save
+	 * @param file level file to write
+	 * @throws IOException
+	 */
+	public static void save(LevelData level, File file) throws IOException {
+		write(file, snapshot(level, file));
+		level.saveFile = file;
+	}
+
+	/**
+	 * Writes a snapshot taken with {@link #snapshot(LevelData, File)}. <br>
+	 * Only one write runs at a time so the autosave and a manual save can not interleave in the same files. <br>
+	 * Every snapshot taken must be passed here, as chunks are not unloaded until all snapshots are written. 
+	 * Once written the edits the snapshot captured are dropped from the levels {@link EditJournal}. 
+	 * Every region file is forced to the disk before that, as the journal is all that holds those edits until then. 
+	 * If the write fails the captured chunks are flagged as modified again.
+	 * @param file level file to write
+	 * @param snapshot to write
+	 * @return bytes written
+	 * @throws IOException
+	 */
+	public static synchronized long write(File file, SaveSnapshot snapshot) throws IOException {
+		long start = System.nanoTime();
+		try {
+			Path folder = regionFolder(file);
+			Files.createDirectories(folder);
+			Map<Long, List<ChunkEntry>> byRegion = new HashMap<>();
+			for (ChunkEntry entry : snapshot.chunks) {
+				long key = LevelData.chunkKey(RegionFile.regionCoord(entry.x), RegionFile.regionCoord(entry.y));
+				List<ChunkEntry> list = byRegion.get(key);
+				if (list == null) {
+					list = new ArrayList<>();
+					byRegion.put(key, list);
+				}
+				list.add(entry);
+			}
+
+			long bytes = snapshot.incremental ? writeModifiedRegions(folder, byRegion) : writeAllRegions(folder, byRegion);
+			if (snapshot.provider != null) {
+				snapshot.provider.refresh();
+			}
+			List<long[]> regions = listRegions(folder);
+			bytes += writeLevelFile(snapshot, header(snapshot, file, folder, regions), file.toPath(), regions);
+			if (snapshot.journal != null) {
+				snapshot.journal.compact(snapshot.journalMark, EditJournal.journalPath(file));
+			}
+			logger.trace(String.format("Saved %d chunks in %d regions (%d bytes) in %.2fms", snapshot.chunks.size(), byRegion.size(), bytes, (System.nanoTime() - start) / (double) FrameUtils.nanoToMilli));
+			return bytes;
+		} catch (IOException err) {
+			snapshot.markUnsaved();
+			throw err;
+		} finally {
+			snapshot.finished();
+		}
+	}
+
+	/**
+	 * Rewrites every region from scratch, removing any region that is not part of the snapshot
+	 */
+	private static long writeAllRegions(Path folder, Map<Long, List<ChunkEntry>> byRegion) throws IOException {
+		ByteBuffer scratch = ByteBuffer.allocateDirect(scratchBytes);
+		long bytes = 0;
+		List<String> written = new ArrayList<>();
+		for (Entry<Long, List<ChunkEntry>> entry : byRegion.entrySet()) {
+			String regionName = RegionFile.fileName((int) (entry.getKey() >> 32), (int) (long) entry.getKey());
+			Path temp = folder.resolve(regionName + tempExt);
+			try (RegionFile region = RegionFile.create(temp)) {
+				for (ChunkEntry chunk : entry.getValue()) {
+					bytes += writeChunk(region, RegionFile.localIndex(chunk.x, chunk.y), chunk.frozen, scratch);
+				}
+				region.force();
+			}
+			bytes += RegionFile.headerBytes;
+			Files.move(temp, folder.resolve(regionName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			written.add(regionName);
+		}
+
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "*" + RegionFile.extension)) {
+			for (Path path : stream) {
+				if (!written.contains(path.getFileName().toString())) {
+					Files.delete(path);
+				}
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Appends the captured chunks to their existing regions, compacting any region that has become mostly unused records
+	 */
+	private static long writeModifiedRegions(Path folder, Map<Long, List<ChunkEntry>> byRegion) throws IOException {
+		ByteBuffer scratch = ByteBuffer.allocateDirect(scratchBytes);
+		long bytes = 0;
+		for (Entry<Long, List<ChunkEntry>> entry : byRegion.entrySet()) {
+			Path path = folder.resolve(RegionFile.fileName((int) (entry.getKey() >> 32), (int) (long) entry.getKey()));
+			boolean compact;
+			try (RegionFile region = RegionFile.openOrCreate(path)) {
+				for (ChunkEntry chunk : entry.getValue()) {
+					bytes += writeChunk(region, RegionFile.localIndex(chunk.x, chunk.y), chunk.frozen, scratch);
+				}
+				region.force();
+				bytes += 8 * entry.getValue().size();
+				compact = region.wastedBytes() > region.size() / 2;
+			}
+			if (compact) {
+				bytes += compact(path);
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Rewrites the region without its unreferenced records
+	 * @return bytes written
+	 */
+	static long compact(Path path) throws IOException {
+		Path temp = path.resolveSibling(path.getFileName() + tempExt);
+		long bytes;
+		try (RegionFile source = RegionFile.open(path, false); RegionFile target = RegionFile.create(temp)) {
+			for (int local = 0; local < RegionFile.regionChunks; local++) {
+				ByteBuffer record = source.readChunk(local);
+				if (record != null) {
+					target.writeChunk(local, record);
+				}
+			}
+			target.force();
+			bytes = target.size();
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return bytes;
+	}
+
+	private static List<long[]> listRegions(Path folder) throws IOException {
+		List<long[]> regions = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "r.*" + RegionFile.extension)) {
+			for (Path path : stream) {
+				String[] parts = path.getFileName().toString().split("\\.");
+				try {
+					regions.add(new long[] { Integer.parseInt(parts[1]), Integer.parseInt(parts[2]) });
+				} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+					logger.warn("Ignoring unexpected file in save folder: " + path);
+				}
+			}
+		}
+		return regions;
+	}
+
+	/**
+	 * Summarises the save for its header. The chunks are counted from the regions rather than the level, as a paged level does not hold all of them
+	 */
+	private static SaveHeader header(SaveSnapshot snapshot, File file, Path folder, List<long[]> regions) throws IOException {
+		SaveHeader previous = null;
+		if (snapshot.incremental && file.exists()) {
+			try {
+				previous = SaveHeader.read(file);
+			} catch (IOException err) {
+				logger.warn("Could not read the previous header of " + file + ", redrawing the thumbnail: " + err.getMessage());
+			}
+		}
+		SaveHeader header = new SaveHeader();
+		header.name = snapshot.name;
+		header.seed = snapshot.seed;
+		header.activeTime = snapshot.activeTime;
+		header.savedAt = System.currentTimeMillis();
+		int population = 0;
+		for (int people : snapshot.buildingPeople) {
+			population += people;
+		}
+		header.population = population;
+		header.scanRegions(folder, regions);
+		header.renderThumbnail(snapshot, previous, folder);
+		return header;
+	}
+
+	/**
+	 * Writes the chunk with the palette codec, or raw in the rare case that is smaller
+	 */
+	static int writeChunk(RegionFile region, int localIndex, Chunk chunk, ByteBuffer scratch) throws IOException {
+		scratch.clear();
+		scratch.put(codecPalette);
+		if (chunk.writePacked(scratch) >= LevelData.rawBytes) {
+			scratch.clear();
+			scratch.put(codecRaw);
+			chunk.writeTo(scratch);
+		}
+		scratch.flip();
+		int bytes = scratch.remaining();
+		region.writeChunk(localIndex, scratch);
+		return bytes;
+	}
+
+	static Chunk readChunk(LevelData level, ByteBuffer record, int chunkX, int chunkY) throws IOException {
+		byte codec = record.get();
+		Chunk chunk = level.new Chunk(chunkX, chunkY);
+		switch (codec) {
+			case codecRaw:
+				chunk.readFrom(record);
+				break;
+			case codecPalette:
+				chunk.readPacked(record);
+				break;
+			default:
+				throw new IOException("Unknown chunk codec " + codec + " for chunk [" + chunkX + ", " + chunkY + "]");
+		}
+		chunk.modified.set(false);
+		return chunk;
+	}
+
+	private static long writeLevelFile(SaveSnapshot snapshot, SaveHeader header, Path path, List<long[]> regions) throws IOException {
+		byte[] name = snapshot.name == null ? new byte[0] : snapshot.name.getBytes(StandardCharsets.UTF_8);
+		int buildings = snapshot.buildingHandles.length;
+		int entities = snapshot.entityIDs.length;
+		int economy = snapshot.economyHandles.length;
+
+		int size = SaveHeader.bytes + 2 + name.length + 8 + 8 + 4 + 4 + regions.size() * 8 + 4 + buildings * 10 + snapshot.buildingChunks.length * 4
+			+ 4 + entities * 5 + snapshot.entityFloats.length * 4 + snapshot.entityInts.length * 4
+			+ 4 + economy * 15 + snapshot.economyStock.length / 2 * 5;
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		header.write(buffer);
+		buffer.putShort((short) name.length);
+		buffer.put(name);
+		buffer.putLong(snapshot.seed);
+		buffer.putLong(snapshot.activeTime);
+		buffer.putInt(header.chunkCount);
+		buffer.putInt(regions.size());
+		for (long[] region : regions) {
+			buffer.putInt((int) region[0]);
+			buffer.putInt((int) region[1]);
+		}
+		buffer.putInt(buildings);
+		int footprint = 0;
+		for (int b = 0; b < buildings; b++) {
+			buffer.putInt(snapshot.buildingHandles[b]);
+			buffer.putInt(snapshot.buildingPeople[b]);
+			int chunks = snapshot.buildingChunkCounts[b];
+			buffer.putShort((short) chunks);
+			for (int end = footprint + chunks * 3; footprint < end; footprint++) {
+				buffer.putInt(snapshot.buildingChunks[footprint]);
+			}
+		}
+		buffer.putInt(entities);
+		int f = 0, i = 0;
+		for (int e = 0; e < entities; e++) {
+			int mask = snapshot.entityMasks[e];
+			buffer.putInt(snapshot.entityIDs[e]);
+			buffer.put((byte) mask);
+			for (Component component : Component.values()) {
+				if (component.in(mask)) {
+					for (int c = 0; c < component.floats; c++) {
+						buffer.putFloat(snapshot.entityFloats[f++]);
+					}
+					for (int c = 0; c < component.ints; c++) {
+						buffer.putInt(snapshot.entityInts[i++]);
+					}
+				}
+			}
+		}
+		buffer.putInt(economy);
+		int stock = 0;
+		for (int b = 0; b < economy; b++) {
+			buffer.putInt(snapshot.economyHandles[b]);
+			buffer.putShort((short) snapshot.economyRecipes[b]);
+			buffer.putInt(snapshot.economyScales[b]);
+			buffer.putInt(snapshot.economyProgress[b]);
+			int resources = snapshot.economyStockCounts[b];
+			buffer.put((byte) resources);
+			for (int r = 0; r < resources; r++) {
+				buffer.put((byte) snapshot.economyStock[stock++]);
+				buffer.putInt(snapshot.economyStock[stock++]);
+			}
+		}
+		buffer.flip();
+
+		Path temp = path.resolveSibling(path.getFileName() + tempExt);
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return size;
+	}
+
+	private static void readBuildings(BuildingRegistry registry, ByteBuffer buffer) {
+		int buildingCount = buffer.getInt();
+		for (int i = 0; i < buildingCount; i++) {
+			BuildingInstance building = new BuildingInstance();
+			int handle = buffer.getInt();
+			building.currentPeople = buffer.getInt();
+			registry.restore(handle, building);
+			int chunks = buffer.getShort() & 0xFFFF;
+			for (int c = 0; c < chunks; c++) {
+				registry.restoreTiles(handle, buffer.getInt(), buffer.getInt(), buffer.getInt());
+			}
+		}
+	}
+
+	private static void readEconomy(Economy economy, ByteBuffer buffer) throws IOException {
+		Recipe[] recipes = Recipes.values();
+		int count = buffer.getInt();
+		for (int b = 0; b < count; b++) {
+			int handle = buffer.getInt();
+			int recipe = buffer.getShort();
+			int scale = buffer.getInt();
+			int progress = buffer.getInt();
+			if (recipe < 0 || recipe >= recipes.length) {
+				throw new IOException("Unknown recipe " + recipe + " for building " + handle);
+			}
+			economy.restore(handle, recipes[recipe], scale, progress);
+			int resources = buffer.get() & 0xFF;
+			for (int r = 0; r < resources; r++) {
+				economy.addStock(handle, buffer.get(), buffer.getInt());
+			}
+		}
+		economy.publishTotals();
+	}
+
+	private static void readEntities(EntityStore store, ByteBuffer buffer) {
+		int entityCount = buffer.getInt();
+		for (int i = 0; i < entityCount; i++) {
+			int id = buffer.getInt();
+			int mask = buffer.get() & 0xFF;
+			store.restore(id, mask);
+			Archetype archetype = store.getArchetype(id);
+			int row = store.getRow(id);
+			for (Component component : Component.values()) {
+				if (component.in(mask)) {
+					for (int c = 0; c < component.floats; c++) {
+						archetype.floats(component)[row * component.floats + c] = buffer.getFloat();
+					}
+					for (int c = 0; c < component.ints; c++) {
+						archetype.ints(component)[row * component.ints + c] = buffer.getInt();
+					}
+				}
+			}
+		}
+		store.updateGrid();
+	}
+
+	/**
+	 * Reads the level file. <br>
+	 * A paged level starts without any chunks and gets a {@link RegionChunkProvider} to load them as they are asked for, 
+	 * otherwise every chunk is read before returning.
+	 * @param file level file to read
+	 * @param paged only read the level file and page the chunks in on demand
+	 * @return the level
+	 * @throws IOException if any file is missing, corrupt or from a newer version
+	 */
+	public static LevelData load(File file, boolean paged) throws IOException {
+		long start = System.nanoTime();
+		LevelData level = new LevelData();
+		List<long[]> regions = new ArrayList<>();
+		int chunkCount;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			//not mapped, see RegionFile
+			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					throw new IOException("Unexpected end of save file: " + file);
+				}
+			}
+			buffer.flip();
+			if (buffer.remaining() < 8 || buffer.getInt() != magic) {
+				throw new IOException("Not a save file: " + file);
+			}
+			int fileVersion = buffer.getInt();
+			if (fileVersion > version) {
+				throw new IOException("Save version " + fileVersion + " is newer than supported version " + version + ": " + file);
+			}
+			buffer.position(SaveHeader.bytes);
+			byte[] name = new byte[buffer.getShort() & 0xFFFF];
+			buffer.get(name);
+			level.name = new String(name, StandardCharsets.UTF_8);
+			level.seed = buffer.getLong();
+			level.random = new Random(level.seed);
+			level.activeTime = buffer.getLong();
+			chunkCount = buffer.getInt();
+			int regionCount = buffer.getInt();
+			for (int i = 0; i < regionCount; i++) {
+				regions.add(new long[] { buffer.getInt(), buffer.getInt() });
+			}
+			readBuildings(level.buildings, buffer);
+			readEntities(level.entities, buffer);
+			readEconomy(level.economy, buffer);
+		}
+
+		Path folder = regionFolder(file);
+		level.saveFile = file;
+		if (paged) {
+			level.chunkProvider = new RegionChunkProvider(level, folder);
+			logger.trace(String.format("Opened %d chunks in %d regions for paging in %.2fms", chunkCount, regions.size(), (System.nanoTime() - start) / (double) FrameUtils.nanoToMilli));
+			return level;
+		}
+		chunkCount = 0;
+		for (long[] region : regions) {
+			int regionX = (int) region[0];
+			int regionY = (int) region[1];
+			try (RegionFile regionFile = RegionFile.open(folder.resolve(RegionFile.fileName(regionX, regionY)), false)) {
+				for (int local = 0; local < RegionFile.regionChunks; local++) {
+					ByteBuffer record = regionFile.readChunk(local);
+					if (record != null) {
+						int chunkX = RegionFile.chunkX(regionX, local);
+						int chunkY = RegionFile.chunkY(regionY, local);
+						level.chunks.put(chunkX, chunkY, readChunk(level, record, chunkX, chunkY));
+						chunkCount++;
+					}
+				}
+			}
+		}
+		logger.trace(String.format("Loaded %d chunks in %d regions in %.2fms", chunkCount, regions.size(), (System.nanoTime() - start) / (double) FrameUtils.nanoToMilli));
+		return level;
+	}
+
+}
@@ -0,0 +1,180 @@
+package com.meeple.citybuild.server.save;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.ChunkProvider;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+
+/**
+ * Pages chunks in from the region files of a save. <br>
+ * Requests are served by a small pool of IO threads which read the chunk from its region file and decode it
+ * and add it to {@link LevelData#chunks}. <br>
+ * Region files are only used while holding the read side of {@link #regionLock}, so {@link #refresh()} waits for the reads in progress
+ * before closing them.
+ */
+public class RegionChunkProvider implements ChunkProvider {
+	private static Logger logger = Logger.getLogger(RegionChunkProvider.class);
+	private static final int ioThreads = 2;
+
+	private final LevelData level;
+	private final Path folder;
+	private final Map<Long, RegionFile> regions = new ConcurrentHashMap<>();
+	private final Set<Long> missingRegions = ConcurrentHashMap.newKeySet();
+	private final Set<Long> pending = ConcurrentHashMap.newKeySet();
+	private final ReadWriteLock regionLock = new ReentrantReadWriteLock();
+	private final ExecutorService io;
+	/**
+	 * number of chunks paged in
+	 */
+	public final AtomicLong loaded = new AtomicLong();
+
+	public RegionChunkProvider(LevelData level, Path folder) {
+		this.level = level;
+		this.folder = folder;
+		AtomicInteger threadCount = new AtomicInteger();
+		this.io = Executors.newFixedThreadPool(ioThreads, (r) -> {
+			Thread t = new Thread(r, "Chunk IO-" + threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Call while holding the read lock, and keep holding it while the region is used
+	 */
+	private RegionFile region(int chunkX, int chunkY) throws IOException {
+		int regionX = RegionFile.regionCoord(chunkX);
+		int regionY = RegionFile.regionCoord(chunkY);
+		long key = LevelData.chunkKey(regionX, regionY);
+		RegionFile region = regions.get(key);
+		if (region == null && !missingRegions.contains(key)) {
+			synchronized (this) {
+				region = regions.get(key);
+				if (region == null && !missingRegions.contains(key)) {
+					Path path = folder.resolve(RegionFile.fileName(regionX, regionY));
+					if (Files.exists(path)) {
+						region = RegionFile.open(path, false);
+						regions.put(key, region);
+					} else {
+						missingRegions.add(key);
+					}
+				}
+			}
+		}
+		return region;
+	}
+
+	@Override
+	public boolean exists(int chunkX, int chunkY) {
+		regionLock.readLock().lock();
+		try {
+			RegionFile region = region(chunkX, chunkY);
+			return region != null && region.hasChunk(RegionFile.localIndex(chunkX, chunkY));
+		} catch (IOException err) {
+			logger.error("IO Exception while reading region of chunk [" + chunkX + ", " + chunkY + "]", err);
+			return false;
+		} finally {
+			regionLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void request(int chunkX, int chunkY) {
+		long key = LevelData.chunkKey(chunkX, chunkY);
+		if (pending.contains(key) || !exists(chunkX, chunkY)) {
+			return;
+		}
+		if (pending.add(key)) {
+			io.execute(() -> {
+				try {
+					load(chunkX, chunkY);
+				} catch (IOException err) {
+					logger.error("IO Exception while paging in chunk [" + chunkX + ", " + chunkY + "]", err);
+				} finally {
+					pending.remove(key);
+				}
+			});
+		}
+	}
+
+	@Override
+	public boolean isPending(int chunkX, int chunkY) {
+		return pending.contains(LevelData.chunkKey(chunkX, chunkY));
+	}
+
+	@Override
+	public Chunk load(int chunkX, int chunkY) throws IOException {
+		Chunk chunk = level.chunks.get(chunkX, chunkY);
+		if (chunk != null) {
+			return chunk;
+		}
+		ByteBuffer record;
+		regionLock.readLock().lock();
+		try {
+			RegionFile region = region(chunkX, chunkY);
+			if (region == null) {
+				return null;
+			}
+			record = region.readChunk(RegionFile.localIndex(chunkX, chunkY));
+		} finally {
+			regionLock.readLock().unlock();
+		}
+		if (record == null) {
+			return null;
+		}
+		chunk = LevelSaveSystem.readChunk(level, record, chunkX, chunkY);
+		Chunk existing = level.chunks.putIfAbsent(chunkX, chunkY, chunk);
+		if (existing != null) {
+			return existing;
+		}
+		loaded.incrementAndGet();
+		return chunk;
+	}
+
+	@Override
+	public long loadedCount() {
+		return loaded.get();
+	}
+
+	@Override
+	public void refresh() {
+		regionLock.writeLock().lock();
+		try {
+			for (Iterator<RegionFile> i = regions.values().iterator(); i.hasNext();) {
+				RegionFile region = i.next();
+				i.remove();
+				try {
+					region.close();
+				} catch (IOException err) {
+					logger.warn("IO Exception while closing region " + region.getPath(), err);
+				}
+			}
+			missingRegions.clear();
+		} finally {
+			regionLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		io.shutdownNow();
+		refresh();
+	}
+
+}
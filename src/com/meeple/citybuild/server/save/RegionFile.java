@@ -0,0 +1,268 @@
+package com.meeple.citybuild.server.save;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A region file holds a {@link #regionSize} x {@link #regionSize} block of chunks. <br>
+ * The file starts with a fixed header and an offset table with one (offset, length) entry per chunk slot,
+ * followed by the chunk records. New records are always appended and the table entry is swapped to point at them,
+ * so a single chunk can be rewritten without touching the rest of the file. <br>
+ * Records are read with positional reads into heap buffers. The file is not memory mapped, as a mapping can not be released before
+ * it is garbage collected and the save replaces region files while they are open.
+ */
+public class RegionFile implements Closeable {
+
+	/**
+	 * Chunks per side of a region
+	 */
+	public static final int regionSize = 16;
+	public static final int regionChunks = regionSize * regionSize;
+	public static final String extension = ".rgn";
+
+	/**
+	 * "PRGN"
+	 */
+	private static final int magic = 0x5052474E;
+	private static final int version = 1;
+	private static final int tableOffset = 8;
+	static final int headerBytes = tableOffset + regionChunks * 8;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final int[] offsets = new int[regionChunks];
+	private final int[] lengths = new int[regionChunks];
+	private boolean tableDirty = false;
+	private long end;
+
+	private RegionFile(Path path, FileChannel channel) {
+		this.path = path;
+		this.channel = channel;
+	}
+
+	/**
+	 * Creates a new empty region file, replacing any file at the path.
+	 * @param path to create
+	 * @return writable region file
+	 * @throws IOException
+	 */
+	public static RegionFile create(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		RegionFile region = new RegionFile(path, channel);
+		region.end = headerBytes;
+		region.tableDirty = true;
+		region.flush();
+		return region;
+	}
+
+	/**
+	 * Opens an existing region file and reads its offset table.
+	 * @param path to open
+	 * @param write whether chunks will be written to the file
+	 * @return opened region file
+	 * @throws IOException if the file is missing or is not a region file
+	 */
+	public static RegionFile open(Path path, boolean write) throws IOException {
+		FileChannel channel = write
+			? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+			: FileChannel.open(path, StandardOpenOption.READ);
+		RegionFile region = new RegionFile(path, channel);
+		try {
+			region.readTable();
+		} catch (IOException err) {
+			channel.close();
+			throw err;
+		}
+		return region;
+	}
+
+	/**
+	 * Opens the region file if it exists, otherwise creates it.
+	 */
+	public static RegionFile openOrCreate(Path path) throws IOException {
+		if (Files.exists(path)) {
+			return open(path, true);
+		}
+		return create(path);
+	}
+
+	private void readTable() throws IOException {
+		end = channel.size();
+		if (end < headerBytes) {
+			throw new IOException("Region file too small: " + path);
+		}
+		ByteBuffer header = ByteBuffer.allocate(headerBytes);
+		while (header.hasRemaining()) {
+			if (channel.read(header, header.position()) < 0) {
+				throw new IOException("Unexpected end of region file: " + path);
+			}
+		}
+		header.flip();
+		if (header.getInt() != magic) {
+			throw new IOException("Not a region file: " + path);
+		}
+		int fileVersion = header.getInt();
+		if (fileVersion > version) {
+			throw new IOException("Region file version " + fileVersion + " is newer than supported version " + version + ": " + path);
+		}
+		for (int i = 0; i < regionChunks; i++) {
+			offsets[i] = header.getInt();
+			lengths[i] = header.getInt();
+		}
+	}
+
+	public static int regionCoord(int chunk) {
+		return chunk >> 4;
+	}
+
+	/**
+	 * @return the slot of the chunk inside its region
+	 */
+	public static int localIndex(int chunkX, int chunkY) {
+		return (chunkX & (regionSize - 1)) * regionSize + (chunkY & (regionSize - 1));
+	}
+
+	public static int chunkX(int regionX, int localIndex) {
+		return regionX * regionSize + localIndex / regionSize;
+	}
+
+	public static int chunkY(int regionY, int localIndex) {
+		return regionY * regionSize + localIndex % regionSize;
+	}
+
+	public static String fileName(int regionX, int regionY) {
+		return "r." + regionX + "." + regionY + extension;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public boolean hasChunk(int localIndex) {
+		return lengths[localIndex] > 0;
+	}
+
+	/**
+	 * @return number of chunk slots in use
+	 */
+	public int chunkCount() {
+		int count = 0;
+		for (int i = 0; i < regionChunks; i++) {
+			if (lengths[i] > 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Reads the chunk record.
+	 * @param localIndex slot of the chunk
+	 * @return buffer holding just the record, or null if the slot is empty
+	 * @throws IOException if the record runs past the end of the file
+	 */
+	public ByteBuffer readChunk(int localIndex) throws IOException {
+		int offset, length;
+		synchronized (this) {
+			offset = offsets[localIndex];
+			length = lengths[localIndex];
+		}
+		if (length <= 0) {
+			return null;
+		}
+		ByteBuffer record = ByteBuffer.allocate(length);
+		while (record.hasRemaining()) {
+			//positional reads do not move the channel, so chunks are read by several IO threads at once
+			if (channel.read(record, offset + record.position()) < 0) {
+				throw new IOException("Chunk record past the end of region file: " + path);
+			}
+		}
+		record.flip();
+		return record;
+	}
+
+	/**
+	 * Appends the record to the end of the file and points the slot at it. <br>
+	 * The offset table is only written on {@link #flush()}, and neither is durable before {@link #force()}.
+	 * @param localIndex slot of the chunk
+	 * @param record buffer between position and limit is written
+	 * @throws IOException
+	 */
+	public synchronized void writeChunk(int localIndex, ByteBuffer record) throws IOException {
+		int length = record.remaining();
+		long position = end;
+		while (record.hasRemaining()) {
+			position += channel.write(record, position);
+		}
+		offsets[localIndex] = (int) end;
+		lengths[localIndex] = length;
+		end = position;
+		tableDirty = true;
+	}
+
+	/**
+	 * @return bytes in the file that are no longer referenced by the table
+	 */
+	public long wastedBytes() {
+		long used = headerBytes;
+		for (int i = 0; i < regionChunks; i++) {
+			used += lengths[i];
+		}
+		return end - used;
+	}
+
+	public long size() {
+		return end;
+	}
+
+	/**
+	 * Writes the header and offset table if any chunk has been written since the last flush.
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		if (!tableDirty) {
+			return;
+		}
+		ByteBuffer header = ByteBuffer.allocate(headerBytes);
+		header.putInt(magic);
+		header.putInt(version);
+		for (int i = 0; i < regionChunks; i++) {
+			header.putInt(offsets[i]);
+			header.putInt(lengths[i]);
+		}
+		header.flip();
+		long position = 0;
+		while (header.hasRemaining()) {
+			position += channel.write(header, position);
+		}
+		tableDirty = false;
+	}
+
+	/**
+	 * Flushes the offset table and forces the file to the disk, so the chunks written survive a crash of the OS. <br>
+	 * The records are forced before the table is written, so the table on disk never points at records that are not.
+	 * @throws IOException
+	 */
+	public synchronized void force() throws IOException {
+		if (tableDirty) {
+			channel.force(false);
+			flush();
+		}
+		channel.force(true);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
+	}
+
+}
@@ -0,0 +1,330 @@
+package com.meeple.citybuild.server.save;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.WorldGenerator.TerrainType;
+import com.meeple.citybuild.server.save.SaveSnapshot.ChunkEntry;
+import com.meeple.shared.utils.FrameUtils;
+
+/**
+ * Fixed size summary at the start of every level file, so a save can be described without reading any more of it. <br>
+ * {@link #read(File)} does a single positioned read of {@link #bytes} bytes, which is all the main menu needs to list saves. <br>
+ * Layout: magic and version (shared with the rest of the level file), u16 name length and up to {@link #nameBytes} bytes of name,
+ * seed, active time, saved at millis, chunk count, population, chunk bounds, u8 thumbnail size and the thumbnail, padded to {@link #bytes}. <br>
+ * The thumbnail is a {@link #thumbnailSize} square heightmap sampled over the chunk bounds, see {@link #thumbnailPixel(TerrainType, int)}.
+ */
+public class SaveHeader {
+	private static Logger logger = Logger.getLogger(SaveHeader.class);
+
+	/**
+	 * size of the header, the level data starts after it
+	 */
+	public static final int bytes = 2048;
+	static final int nameBytes = 96;
+	public static final int thumbnailSize = 32;
+	/**
+	 * height mapped to the top of the thumbnail range
+	 */
+	public static final int thumbnailMaxHeight = 512;
+	/**
+	 * thumbnail pixel of an area without chunks
+	 */
+	public static final int pixelNone = 0;
+	public static final int pixelWater = 1;
+	/**
+	 * first pixel value used for land, the rest of the range is the height
+	 */
+	public static final int pixelLand = 2;
+
+	/**
+	 * the level file the header was read from
+	 */
+	public File file;
+	public int version;
+	public String name;
+	public long seed;
+	public long activeTime;
+	/**
+	 * {@link System#currentTimeMillis()} when the save was written
+	 */
+	public long savedAt;
+	public int chunkCount;
+	/**
+	 * people in all buildings, -1 if the save does not record it
+	 */
+	public int population = -1;
+	public int minChunkX, minChunkY, maxChunkX, maxChunkY;
+	/**
+	 * row major, y rows of x pixels. null if the save has no thumbnail
+	 */
+	public byte[] thumbnail;
+
+	/**
+	 * Reads the header of the level file with one positioned read
+	 * @param file level file
+	 * @return the header
+	 * @throws IOException if the file is missing or not a save
+	 */
+	public static SaveHeader read(File file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(bytes);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+			}
+		}
+		buffer.flip();
+		if (buffer.remaining() < 8 || buffer.getInt() != LevelSaveSystem.magic) {
+			throw new IOException("Not a save file: " + file);
+		}
+		SaveHeader header = new SaveHeader();
+		header.file = file;
+		header.version = buffer.getInt();
+		if (header.version > LevelSaveSystem.version) {
+			throw new IOException("Save version " + header.version + " is newer than supported version " + LevelSaveSystem.version + ": " + file);
+		}
+		header.name = readName(buffer, file);
+		buffer.position(10 + nameBytes);
+		header.seed = buffer.getLong();
+		header.activeTime = buffer.getLong();
+		header.savedAt = buffer.getLong();
+		header.chunkCount = buffer.getInt();
+		header.population = buffer.getInt();
+		header.minChunkX = buffer.getInt();
+		header.minChunkY = buffer.getInt();
+		header.maxChunkX = buffer.getInt();
+		header.maxChunkY = buffer.getInt();
+		int size = buffer.get() & 0xFF;
+		if (size == thumbnailSize) {
+			header.thumbnail = new byte[size * size];
+			buffer.get(header.thumbnail);
+		}
+		return header;
+	}
+
+	private static String readName(ByteBuffer buffer, File file) throws IOException {
+		int length = buffer.getShort() & 0xFFFF;
+		if (length > buffer.remaining()) {
+			throw new IOException("Save name is longer than the header: " + file);
+		}
+		byte[] name = new byte[length];
+		buffer.get(name);
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads the headers of every level file in the folder, skipping any that can not be read
+	 * @param folder eg saves/
+	 * @return headers, most recently saved first
+	 */
+	public static List<SaveHeader> list(File folder) {
+		long start = System.nanoTime();
+		List<SaveHeader> headers = new ArrayList<>();
+		if (!folder.isDirectory()) {
+			return headers;
+		}
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder.toPath(), "*" + LevelSaveSystem.extension)) {
+			for (Path path : stream) {
+				try {
+					headers.add(read(path.toFile()));
+				} catch (IOException err) {
+					logger.warn("Skipping unreadable save " + path + ": " + err.getMessage());
+				}
+			}
+		} catch (IOException err) {
+			logger.error("IO Exception while listing saves in " + folder, err);
+		}
+		headers.sort((a, b) -> Long.compare(b.savedAt, a.savedAt));
+		logger.trace(String.format("Read %d save headers in %.2fms", headers.size(), (System.nanoTime() - start) / (double) FrameUtils.nanoToMilli));
+		return headers;
+	}
+
+	/**
+	 * Writes the header, {@link #bytes} bytes in total
+	 * @param buffer to write to
+	 */
+	void write(ByteBuffer buffer) {
+		int start = buffer.position();
+		buffer.putInt(LevelSaveSystem.magic);
+		buffer.putInt(LevelSaveSystem.version);
+		byte[] nameData = truncate(name == null ? "" : name);
+		buffer.putShort((short) nameData.length);
+		buffer.put(nameData);
+		buffer.position(start + 10 + nameBytes);
+		buffer.putLong(seed);
+		buffer.putLong(activeTime);
+		buffer.putLong(savedAt);
+		buffer.putInt(chunkCount);
+		buffer.putInt(population);
+		buffer.putInt(minChunkX);
+		buffer.putInt(minChunkY);
+		buffer.putInt(maxChunkX);
+		buffer.putInt(maxChunkY);
+		if (thumbnail == null) {
+			buffer.put((byte) 0);
+		} else {
+			buffer.put((byte) thumbnailSize);
+			buffer.put(thumbnail);
+		}
+		buffer.position(start + bytes);
+	}
+
+	/**
+	 * Cuts the name to fit the header without splitting a character. The full name is still in the level data
+	 */
+	private static byte[] truncate(String name) {
+		byte[] data = name.getBytes(StandardCharsets.UTF_8);
+		if (data.length <= nameBytes) {
+			return data;
+		}
+		int length = nameBytes;
+		while (length > 0 && (data[length] & 0xC0) == 0x80) {
+			length--;
+		}
+		byte[] cut = new byte[length];
+		System.arraycopy(data, 0, cut, 0, length);
+		return cut;
+	}
+
+	/**
+	 * Finds the number and bounds of the chunks in the regions of the save
+	 */
+	void scanRegions(Path folder, List<long[]> regions) throws IOException {
+		chunkCount = 0;
+		minChunkX = minChunkY = Integer.MAX_VALUE;
+		maxChunkX = maxChunkY = Integer.MIN_VALUE;
+		for (long[] region : regions) {
+			int regionX = (int) region[0];
+			int regionY = (int) region[1];
+			try (RegionFile regionFile = RegionFile.open(folder.resolve(RegionFile.fileName(regionX, regionY)), false)) {
+				for (int local = 0; local < RegionFile.regionChunks; local++) {
+					if (regionFile.hasChunk(local)) {
+						int x = RegionFile.chunkX(regionX, local);
+						int y = RegionFile.chunkY(regionY, local);
+						minChunkX = Math.min(minChunkX, x);
+						minChunkY = Math.min(minChunkY, y);
+						maxChunkX = Math.max(maxChunkX, x);
+						maxChunkY = Math.max(maxChunkY, y);
+						chunkCount++;
+					}
+				}
+			}
+		}
+		if (chunkCount == 0) {
+			minChunkX = minChunkY = maxChunkX = maxChunkY = 0;
+		}
+	}
+
+	/**
+	 * Samples the thumbnail at the centre of each pixel. <br>
+	 * Pixels on chunks the snapshot captured are taken from the snapshot. The rest are kept from the previous header
+	 * when it covered the same bounds, as those chunks have not changed, otherwise they are decoded from the regions.
+	 * @param snapshot being written
+	 * @param previous header of the save being written over, or null
+	 * @param folder region folder, already holding the snapshot chunks
+	 */
+	void renderThumbnail(SaveSnapshot snapshot, SaveHeader previous, Path folder) throws IOException {
+		if (chunkCount == 0) {
+			thumbnail = null;
+			return;
+		}
+		Map<Long, Chunk> captured = new HashMap<>();
+		for (ChunkEntry entry : snapshot.chunks) {
+			captured.put(LevelData.chunkKey(entry.x, entry.y), entry.frozen);
+		}
+		boolean reuse = previous != null && previous.thumbnail != null && previous.thumbnail.length == thumbnailSize * thumbnailSize
+			&& previous.minChunkX == minChunkX && previous.minChunkY == minChunkY && previous.maxChunkX == maxChunkX && previous.maxChunkY == maxChunkY;
+
+		//square pixels over the longer side
+		long span = (long) Math.max(maxChunkX - minChunkX + 1, maxChunkY - minChunkY + 1) * LevelData.chunkSize;
+		Map<Long, Chunk> paged = new HashMap<>();
+		Map<Long, RegionFile> regions = new HashMap<>();
+		LevelData scratch = new LevelData();
+		thumbnail = new byte[thumbnailSize * thumbnailSize];
+		try {
+			for (int py = 0; py < thumbnailSize; py++) {
+				for (int px = 0; px < thumbnailSize; px++) {
+					int pixel = px + py * thumbnailSize;
+					long tx = (long) minChunkX * LevelData.chunkSize + (2 * px + 1) * span / (2 * thumbnailSize);
+					long ty = (long) minChunkY * LevelData.chunkSize + (2 * py + 1) * span / (2 * thumbnailSize);
+					int chunkX = (int) Math.floorDiv(tx, (long) LevelData.chunkSize);
+					int chunkY = (int) Math.floorDiv(ty, (long) LevelData.chunkSize);
+					if (chunkX > maxChunkX || chunkY > maxChunkY) {
+						continue;
+					}
+					long key = LevelData.chunkKey(chunkX, chunkY);
+					Chunk chunk = captured.get(key);
+					if (chunk == null) {
+						if (reuse) {
+							thumbnail[pixel] = previous.thumbnail[pixel];
+							continue;
+						}
+						chunk = paged.get(key);
+						if (chunk == null && !paged.containsKey(key)) {
+							chunk = readChunk(folder, regions, scratch, chunkX, chunkY);
+							paged.put(key, chunk);
+						}
+						if (chunk == null) {
+							continue;
+						}
+					}
+					int index = LevelData.tileIndex((int) Math.floorMod(tx, (long) LevelData.chunkSize), (int) Math.floorMod(ty, (long) LevelData.chunkSize));
+					thumbnail[pixel] = (byte) thumbnailPixel(chunk.getTerrain(index), chunk.getHeight(index));
+				}
+			}
+		} finally {
+			for (RegionFile region : regions.values()) {
+				region.close();
+			}
+		}
+	}
+
+	private static Chunk readChunk(Path folder, Map<Long, RegionFile> regions, LevelData level, int chunkX, int chunkY) throws IOException {
+		int regionX = RegionFile.regionCoord(chunkX);
+		int regionY = RegionFile.regionCoord(chunkY);
+		long key = LevelData.chunkKey(regionX, regionY);
+		RegionFile region = regions.get(key);
+		if (region == null) {
+			Path path = folder.resolve(RegionFile.fileName(regionX, regionY));
+			if (!Files.exists(path)) {
+				return null;
+			}
+			region = RegionFile.open(path, false);
+			regions.put(key, region);
+		}
+		ByteBuffer record = region.readChunk(RegionFile.localIndex(chunkX, chunkY));
+		return record == null ? null : LevelSaveSystem.readChunk(level, record, chunkX, chunkY);
+	}
+
+	/**
+	 * @return {@link #pixelWater} for water, otherwise the height scaled into the range from {@link #pixelLand} to 255
+	 */
+	public static int thumbnailPixel(TerrainType terrain, int height) {
+		if (terrain == TerrainType.Water) {
+			return pixelWater;
+		}
+		int clamped = Math.max(0, Math.min(thumbnailMaxHeight, height));
+		return pixelLand + clamped * (255 - pixelLand) / thumbnailMaxHeight;
+	}
+
+	/**
+	 * @return the thumbnail pixel, unsigned, or {@link #pixelNone} if there is no thumbnail
+	 */
+	public int getPixel(int x, int y) {
+		return thumbnail == null ? pixelNone : thumbnail[x + y * thumbnailSize] & 0xFF;
+	}
+}
@@ -0,0 +1,263 @@
+package com.meeple.citybuild.server.save;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.meeple.citybuild.server.BuildingRegistry;
+import com.meeple.citybuild.server.ChunkProvider;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.economy.Economy;
+import com.meeple.citybuild.server.economy.Resources;
+import com.meeple.citybuild.server.entity.Archetype;
+import com.meeple.citybuild.server.entity.Component;
+import com.meeple.citybuild.server.entity.EntityStore;
+
+/**
+ * Everything needed to write a save, captured on the level thread so it can be written from another thread. <br>
+ * Chunks are captured with {@link Chunk#snapshot()} so taking the snapshot does not copy any tile data.
+ */
+public class SaveSnapshot {
+
+	public static class ChunkEntry {
+		public final int x, y;
+		/**
+		 * the chunk in the level, only used to flag it as modified again if the write fails
+		 */
+		final Chunk live;
+		final Chunk frozen;
+
+		ChunkEntry(int x, int y, Chunk live, Chunk frozen) {
+			this.x = x;
+			this.y = y;
+			this.live = live;
+			this.frozen = frozen;
+		}
+	}
+
+	String name;
+	long seed;
+	long activeTime;
+	int[] buildingHandles;
+	int[] buildingPeople;
+	/**
+	 * number of chunks each building covers tiles of, and chunk x, chunk y and tiles covered of each, building after building
+	 */
+	int[] buildingChunkCounts;
+	int[] buildingChunks;
+	/**
+	 * id and component mask of each entity
+	 */
+	int[] entityIDs;
+	int[] entityMasks;
+	/**
+	 * float then int values of the components of every entity in {@link Component} order, entity after entity
+	 */
+	float[] entityFloats;
+	int[] entityInts;
+	/**
+	 * handle, recipe, scale and progress of each building in the economy
+	 */
+	int[] economyHandles;
+	int[] economyRecipes;
+	int[] economyScales;
+	int[] economyProgress;
+	/**
+	 * number of resources each building has in stock, and resource id and amount of each, building after building
+	 */
+	int[] economyStockCounts;
+	int[] economyStock;
+	/**
+	 * change counts of the buildings, entities and economy when captured, see {@link #changeCounts(LevelData)}
+	 */
+	long[] changes;
+	/**
+	 * true if only modified chunks were captured and the save is written on top of an existing one
+	 */
+	boolean incremental;
+	final List<ChunkEntry> chunks = new ArrayList<>();
+	/**
+	 * provider paging from the files being written, told to refresh once the write is done
+	 */
+	ChunkProvider provider;
+	/**
+	 * {@link LevelData#pendingSaves} of the level, counted down once the snapshot is written
+	 */
+	AtomicInteger pendingSaves;
+	/**
+	 * journal of the level and its {@link EditJournal#mark()} from before the chunks were captured, 
+	 * the records up to the mark are dropped once the snapshot is written
+	 */
+	EditJournal journal;
+	long journalMark;
+
+	/**
+	 * Captures the level. Should be called from the level thread between ticks.
+	 * @param level to capture
+	 * @param modifiedOnly only capture chunks flagged as modified since their last snapshot
+	 * @return the snapshot
+	 */
+	public static SaveSnapshot take(LevelData level, boolean modifiedOnly) {
+		SaveSnapshot snapshot = new SaveSnapshot();
+		snapshot.name = level.name;
+		snapshot.seed = level.seed;
+		snapshot.activeTime = level.activeTime;
+		snapshot.incremental = modifiedOnly;
+		snapshot.changes = changeCounts(level);
+		snapshot.provider = level.chunkProvider;
+		snapshot.pendingSaves = level.pendingSaves;
+		snapshot.journal = level.journal;
+		if (snapshot.journal != null) {
+			snapshot.journalMark = snapshot.journal.mark();
+		}
+		level.chunks.forEach((x, y, chunk) -> {
+			if (!modifiedOnly || chunk.modified.get()) {
+				snapshot.chunks.add(new ChunkEntry(x, y, chunk, chunk.snapshot()));
+			}
+		});
+		if (!snapshot.chunks.isEmpty()) {
+			snapshot.pendingSaves.incrementAndGet();
+		}
+		synchronized (level.buildings) {
+			BuildingRegistry registry = level.buildings;
+			int count = registry.size();
+			snapshot.buildingHandles = new int[count];
+			snapshot.buildingPeople = new int[count];
+			snapshot.buildingChunkCounts = new int[count];
+			int[] footprints = new int[count * 3];
+			long[] keys = new long[4];
+			int b = 0, c = 0;
+			for (int slot = 0; slot < registry.slotLimit(); slot++) {
+				int handle = registry.handleAt(slot);
+				if (handle == BuildingRegistry.none) {
+					continue;
+				}
+				snapshot.buildingHandles[b] = handle;
+				snapshot.buildingPeople[b] = registry.get(handle).currentPeople;
+				int chunks = registry.chunksOf(handle, keys);
+				if (chunks > keys.length) {
+					keys = new long[chunks * 2];
+					registry.chunksOf(handle, keys);
+				}
+				if (c + chunks * 3 > footprints.length) {
+					footprints = Arrays.copyOf(footprints, Math.max(footprints.length * 2, c + chunks * 3));
+				}
+				for (int i = 0; i < chunks; i++) {
+					int chunkX = (int) (keys[i] >> 32), chunkY = (int) keys[i];
+					footprints[c++] = chunkX;
+					footprints[c++] = chunkY;
+					footprints[c++] = registry.tilesIn(handle, chunkX, chunkY);
+				}
+				snapshot.buildingChunkCounts[b++] = chunks;
+			}
+			snapshot.buildingChunks = Arrays.copyOf(footprints, c);
+		}
+		synchronized (level.entities) {
+			EntityStore store = level.entities;
+			int count = store.size();
+			snapshot.entityIDs = new int[count];
+			snapshot.entityMasks = new int[count];
+			int floats = 0, ints = 0;
+			int e = 0;
+			for (int id = 0; id < store.idLimit(); id++) {
+				if (store.isAlive(id)) {
+					int mask = store.getMask(id);
+					snapshot.entityIDs[e] = id;
+					snapshot.entityMasks[e] = mask;
+					for (Component component : Component.values()) {
+						if (component.in(mask)) {
+							floats += component.floats;
+							ints += component.ints;
+						}
+					}
+					e++;
+				}
+			}
+			snapshot.entityFloats = new float[floats];
+			snapshot.entityInts = new int[ints];
+			int f = 0, i = 0;
+			for (e = 0; e < count; e++) {
+				int id = snapshot.entityIDs[e];
+				Archetype archetype = store.getArchetype(id);
+				int row = store.getRow(id);
+				for (Component component : Component.values()) {
+					if (archetype.has(component)) {
+						if (component.floats > 0) {
+							System.arraycopy(archetype.floats(component), row * component.floats, snapshot.entityFloats, f, component.floats);
+							f += component.floats;
+						} else {
+							System.arraycopy(archetype.ints(component), row * component.ints, snapshot.entityInts, i, component.ints);
+							i += component.ints;
+						}
+					}
+				}
+			}
+		}
+		synchronized (level.economy) {
+			Economy economy = level.economy;
+			int count = economy.size();
+			snapshot.economyHandles = new int[count];
+			snapshot.economyRecipes = new int[count];
+			snapshot.economyScales = new int[count];
+			snapshot.economyProgress = new int[count];
+			snapshot.economyStockCounts = new int[count];
+			int[] stock = new int[count * 4];
+			int b = 0, s = 0;
+			for (int slot = 0; slot < economy.slotLimit(); slot++) {
+				int handle = economy.handleAt(slot);
+				if (handle == BuildingRegistry.none) {
+					continue;
+				}
+				snapshot.economyHandles[b] = handle;
+				snapshot.economyRecipes[b] = economy.getRecipe(handle).id;
+				snapshot.economyScales[b] = economy.getScale(handle);
+				snapshot.economyProgress[b] = economy.getProgress(handle);
+				int start = s;
+				for (int r = 0; r < Resources.count; r++) {
+					int amount = economy.getStock(handle, r);
+					if (amount != 0) {
+						if (s + 2 > stock.length) {
+							stock = Arrays.copyOf(stock, stock.length * 2 + 2);
+						}
+						stock[s++] = r;
+						stock[s++] = amount;
+					}
+				}
+				snapshot.economyStockCounts[b++] = (s - start) / 2;
+			}
+			snapshot.economyStock = Arrays.copyOf(stock, s);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @return the change counts of everything saved besides the chunks, equal counts mean none of it changed in between
+	 */
+	static long[] changeCounts(LevelData level) {
+		return new long[] { level.buildings.changeCount(), level.entities.changeCount(), level.economy.changeCount() };
+	}
+
+	public int getChunkCount() {
+		return chunks.size();
+	}
+
+	/**
+	 * Called once the snapshot has been written or failed to write
+	 */
+	void finished() {
+		if (!chunks.isEmpty()) {
+			pendingSaves.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Flags every captured chunk as modified again, used when writing the snapshot failed.
+	 */
+	public void markUnsaved() {
+		for (ChunkEntry entry : chunks) {
+			entry.live.modified.set(true);
+		}
+	}
+}
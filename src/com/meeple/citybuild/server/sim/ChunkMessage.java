@@ -0,0 +1,13 @@
+package com.meeple.citybuild.server.sim;
+
+import com.meeple.citybuild.server.LevelData.Chunk;
+
+/**
+ * A change to another chunk, sent with {@link ChunkTickContext#send(int, int, ChunkMessage)} and applied once every chunk has ticked. <br>
+ * Messages to the same chunk are applied one at a time in a fixed order, messages to different chunks in parallel.
+ */
+public interface ChunkMessage {
+
+	public void apply(Chunk target);
+
+}
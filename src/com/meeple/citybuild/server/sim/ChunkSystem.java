@@ -0,0 +1,29 @@
+package com.meeple.citybuild.server.sim;
+
+import com.meeple.citybuild.server.LevelData.Chunk;
+
+/**
+ * A piece of simulation that runs per chunk, see {@link ChunkTickExecutor}. <br>
+ * While ticking a chunk a system may write only to that chunk. It may read the chunk and its 8 neighbours through
+ * {@link ChunkTickContext#neighbour(int, int)}, and must send any change to another chunk as a {@link ChunkMessage}.
+ * Randomness must come from {@link ChunkTickContext#random()} so the result does not depend on the thread count.
+ */
+public interface ChunkSystem {
+
+	/**
+	 * Called on the level thread before any chunk is ticked, eg to share out work between the chunks
+	 * @param tick number of the tick about to run, see {@link ChunkTickContext#getTick()}
+	 */
+	public default void prepare(long tick) {
+	}
+
+	public void tick(ChunkTickContext context, Chunk chunk);
+
+	/**
+	 * Called on the level thread once every chunk was ticked and every message delivered, eg to make changes outside the chunks
+	 * @param tick number of the tick that ran
+	 */
+	public default void finish(long tick) {
+	}
+
+}
@@ -0,0 +1,97 @@
+package com.meeple.citybuild.server.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.WorldGenerator;
+import com.meeple.shared.Delta;
+
+/**
+ * What a {@link ChunkSystem} can see while ticking one chunk. Only used by the thread ticking that chunk.
+ */
+public class ChunkTickContext {
+
+	/**
+	 * A message waiting to be delivered to its chunk
+	 */
+	static class Envelope {
+		final int chunkX, chunkY;
+		final ChunkMessage message;
+
+		Envelope(int chunkX, int chunkY, ChunkMessage message) {
+			this.chunkX = chunkX;
+			this.chunkY = chunkY;
+			this.message = message;
+		}
+	}
+
+	public final LevelData level;
+	public final Chunk chunk;
+	private final Delta delta;
+	private final long tick;
+	private SplittableRandom random;
+	/**
+	 * messages sent by this chunk this tick, null until the first
+	 */
+	List<Envelope> outbox;
+
+	ChunkTickContext(LevelData level, Chunk chunk, Delta delta, long tick) {
+		this.level = level;
+		this.chunk = chunk;
+		this.delta = delta;
+		this.tick = tick;
+	}
+
+	/**
+	 * @return the fixed delta of the tick
+	 */
+	public Delta getDelta() {
+		return delta;
+	}
+
+	/**
+	 * @return number of the tick, counted by the executor
+	 */
+	public long getTick() {
+		return tick;
+	}
+
+	/**
+	 * Chunks next to this one are never ticked at the same time as it, so they can be read safely. They must not be written
+	 * @param dx -1, 0 or 1
+	 * @param dy -1, 0 or 1
+	 * @return the neighbouring chunk or null if it is not resident
+	 */
+	public Chunk neighbour(int dx, int dy) {
+		if (dx < -1 || dx > 1 || dy < -1 || dy > 1) {
+			throw new IllegalArgumentException("Only the 8 neighbouring chunks can be read: " + dx + ", " + dy);
+		}
+		return level.chunks.get(chunk.chunkX + dx, chunk.chunkY + dy);
+	}
+
+	/**
+	 * Random numbers for this chunk and tick, the same whichever thread ticks the chunk
+	 */
+	public SplittableRandom random() {
+		if (random == null) {
+			random = new SplittableRandom(WorldGenerator.chunkSeed(level.seed + tick * 0x9E3779B97F4A7C15L, chunk.chunkX, chunk.chunkY));
+		}
+		return random;
+	}
+
+	/**
+	 * Queues a change to a chunk, applied after every chunk has ticked. Messages to chunks that are not resident are dropped
+	 * @param chunkX target chunk index x
+	 * @param chunkY target chunk index y
+	 * @param message change to apply
+	 */
+	public void send(int chunkX, int chunkY, ChunkMessage message) {
+		if (outbox == null) {
+			outbox = new ArrayList<>();
+		}
+		outbox.add(new Envelope(chunkX, chunkY, message));
+	}
+}
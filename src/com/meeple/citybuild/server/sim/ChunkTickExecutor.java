@@ -0,0 +1,206 @@
+package com.meeple.citybuild.server.sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.sim.ChunkTickContext.Envelope;
+import com.meeple.shared.Delta;
+import com.meeple.shared.utils.CollectionSuppliers;
+
+/**
+ * Ticks the {@link ChunkSystem}s over every resident chunk in parallel on a fork/join pool. <br>
+ * Chunks are coloured in a 2x2 checkerboard by the parity of their index and the four colours are ticked one after another.
+ * No two chunks of the same colour are neighbours, so while a chunk is ticked its neighbours are not being written
+ * and can be read without locking. <br>
+ * Changes to other chunks are sent as {@link ChunkMessage}s and delivered after the last phase, grouped by target and
+ * applied in the order of the chunk that sent them, so the result is the same for any number of threads.
+ */
+public class ChunkTickExecutor {
+
+	/**
+	 * Systems run on each chunk, in order
+	 */
+	public final List<ChunkSystem> systems = new CollectionSuppliers.ListSupplier<ChunkSystem>().get();
+	public ForkJoinPool pool = ForkJoinPool.commonPool();
+	/**
+	 * chunks ticked by a single task before it is not split any further
+	 */
+	public int chunksPerTask = 2;
+
+	public volatile long lastTickNanos = 0;
+	public volatile int lastChunks = 0;
+	public volatile int lastMessages = 0;
+	/**
+	 * messages sent to chunks that were not resident
+	 */
+	public final AtomicLong droppedMessages = new AtomicLong();
+
+	private final LevelData level;
+	private long tick = 0;
+	private static final Comparator<ChunkTickContext> byChunk = (a, b) -> Long.compare(LevelData.chunkKey(a.chunk.chunkX, a.chunk.chunkY), LevelData.chunkKey(b.chunk.chunkX, b.chunk.chunkY));
+
+	public ChunkTickExecutor(LevelData level) {
+		this.level = level;
+	}
+
+	/**
+	 * Ticks every system over every resident chunk. Call from the level thread
+	 * @param delta of the tick
+	 */
+	public void tick(Delta delta) {
+		ChunkSystem[] active;
+		synchronized (systems) {
+			active = systems.toArray(new ChunkSystem[0]);
+		}
+		long thisTick = tick++;
+		if (active.length == 0) {
+			return;
+		}
+		long start = System.nanoTime();
+		for (ChunkSystem system : active) {
+			system.prepare(thisTick);
+		}
+
+		List<List<ChunkTickContext>> colours = new ArrayList<>(4);
+		for (int i = 0; i < 4; i++) {
+			colours.add(new ArrayList<>());
+		}
+		level.chunks.forEach((x, y, chunk) -> {
+			colours.get((x & 1) | ((y & 1) << 1)).add(new ChunkTickContext(level, chunk, delta, thisTick));
+		});
+
+		int chunks = 0;
+		List<ChunkTickContext[]> phases = new ArrayList<>(4);
+		for (List<ChunkTickContext> colour : colours) {
+			ChunkTickContext[] phase = colour.toArray(new ChunkTickContext[0]);
+			//the map iterates in hash order, sort so messages are delivered in the same order every run
+			Arrays.sort(phase, byChunk);
+			if (phase.length > 0) {
+				pool.invoke(new PhaseTask(phase, active, 0, phase.length));
+			}
+			phases.add(phase);
+			chunks += phase.length;
+		}
+
+		lastMessages = deliver(phases);
+		for (ChunkSystem system : active) {
+			system.finish(thisTick);
+		}
+		lastChunks = chunks;
+		lastTickNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * Groups the sent messages by target chunk in sending order and applies each group on the pool
+	 * @return number of messages sent
+	 */
+	private int deliver(List<ChunkTickContext[]> phases) {
+		Map<Long, List<ChunkMessage>> byTarget = new HashMap<>();
+		List<Long> targets = new ArrayList<>();
+		int count = 0;
+		for (ChunkTickContext[] phase : phases) {
+			for (ChunkTickContext context : phase) {
+				if (context.outbox == null) {
+					continue;
+				}
+				for (Envelope envelope : context.outbox) {
+					long key = LevelData.chunkKey(envelope.chunkX, envelope.chunkY);
+					List<ChunkMessage> list = byTarget.get(key);
+					if (list == null) {
+						list = new ArrayList<>();
+						byTarget.put(key, list);
+						targets.add(key);
+					}
+					list.add(envelope.message);
+					count++;
+				}
+			}
+		}
+		if (count > 0) {
+			long[] keys = new long[targets.size()];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = targets.get(i);
+			}
+			pool.invoke(new DeliverTask(keys, byTarget, 0, keys.length));
+		}
+		return count;
+	}
+
+	/**
+	 * Splits the chunks of one colour in half until small enough to tick directly
+	 */
+	private class PhaseTask extends RecursiveAction {
+		private static final long serialVersionUID = 2806467135604567911L;
+		final ChunkTickContext[] contexts;
+		final ChunkSystem[] active;
+		final int from, to;
+
+		PhaseTask(ChunkTickContext[] contexts, ChunkSystem[] active, int from, int to) {
+			this.contexts = contexts;
+			this.active = active;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= chunksPerTask) {
+				for (int i = from; i < to; i++) {
+					ChunkTickContext context = contexts[i];
+					for (ChunkSystem system : active) {
+						system.tick(context, context.chunk);
+					}
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new PhaseTask(contexts, active, from, mid), new PhaseTask(contexts, active, mid, to));
+			}
+		}
+	}
+
+	/**
+	 * Applies the messages of a range of target chunks, each chunk by one thread
+	 */
+	private class DeliverTask extends RecursiveAction {
+		private static final long serialVersionUID = -6101385931446146271L;
+		final long[] keys;
+		final Map<Long, List<ChunkMessage>> byTarget;
+		final int from, to;
+
+		DeliverTask(long[] keys, Map<Long, List<ChunkMessage>> byTarget, int from, int to) {
+			this.keys = keys;
+			this.byTarget = byTarget;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= chunksPerTask) {
+				for (int i = from; i < to; i++) {
+					Chunk target = level.chunks.get(keys[i]);
+					List<ChunkMessage> messages = byTarget.get(keys[i]);
+					if (target == null) {
+						droppedMessages.addAndGet(messages.size());
+						continue;
+					}
+					for (ChunkMessage message : messages) {
+						message.apply(target);
+					}
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new DeliverTask(keys, byTarget, from, mid), new DeliverTask(keys, byTarget, mid, to));
+			}
+		}
+	}
+}
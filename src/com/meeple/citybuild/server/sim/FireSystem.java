@@ -0,0 +1,403 @@
+package com.meeple.citybuild.server.sim;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.meeple.citybuild.server.BuildingRegistry;
+import com.meeple.citybuild.server.GameManager;
+import com.meeple.citybuild.server.LevelData;
+import com.meeple.citybuild.server.LevelData.Chunk;
+import com.meeple.citybuild.server.LevelData.Chunk.Tile;
+import com.meeple.citybuild.server.WorldGenerator.TerrainType;
+import com.meeple.citybuild.server.WorldGenerator.Tiles;
+
+/**
+ * Fire spreading across the tiles of the level. <br>
+ * Each chunk that has ever burnt keeps three bitsets of its tiles: flammable, burning and burnt. A tick only visits the burning tiles,
+ * each one may set its four neighbours alight and may burn out, leaving the tile burnt so it does not catch fire again until it is built on.
+ * Chunks without anything burning are skipped, so a fire costs the same however big the level is. Fire crossing into another chunk
+ * is sent as a {@link ChunkMessage}. A building tile that burns out loses its type, see {@link GameManager#setType(LevelData, Tile, Tiles)},
+ * and after the tick its building handle. A building left without any tiles is removed, see {@link #finish(long)}. <br>
+ * Fires break out in a random building about once every {@link #outbreakTicks}, and are started elsewhere with {@link #ignite(Chunk, int)}. <br>
+ * How easily a tile catches is set per tile type in {@link #typeIgnition}, so a wooden tent goes up faster than a house and a mine not at all,
+ * and bare ground by its terrain. <br>
+ * At most {@link #tilesPerTick} burning tiles are worked on in a tick. When a fire is bigger than that the chunks take turns,
+ * and a chunk with more burning tiles than its share carries on where it stopped on its next turn.
+ * All randomness comes from {@link ChunkTickContext#random()}, so the same seed burns the same way on any number of threads. <br>
+ * Fire is not saved, a loaded level starts without any and its burnt tiles can catch fire again.
+ */
+public class FireSystem implements ChunkSystem {
+
+	private static final int words = LevelData.chunkTiles / 64;
+
+	/**
+	 * chance out of 256 per tick that a tile of each type catches from one burning neighbour, indexed by ordinal. 0 never burns
+	 */
+	public static final int[] typeIgnition = new int[Tiles.values().length];
+	/**
+	 * chance out of 256 per tick that a tile without a type catches from one burning neighbour, by terrain
+	 */
+	public static final int[] terrainIgnition = new int[TerrainType.values().length];
+	static {
+		typeIgnition[Tiles.Tent.ordinal()] = 160;
+		typeIgnition[Tiles.House.ordinal()] = 96;
+		typeIgnition[Tiles.CropFarm.ordinal()] = 64;
+		typeIgnition[Tiles.MeatFarm.ordinal()] = 48;
+		typeIgnition[Tiles.Kitchens.ordinal()] = 64;
+		typeIgnition[Tiles.WaterWheel.ordinal()] = 32;
+		typeIgnition[Tiles.TreeFarm.ordinal()] = 128;
+		terrainIgnition[TerrainType.Grass.ordinal()] = 40;
+	}
+	/**
+	 * chance out of 256 per tick that a burning tile burns out
+	 */
+	public static int burnOutChance = 24;
+
+	/**
+	 * ticks between fires breaking out in a random building on average, 0 for none
+	 */
+	public int outbreakTicks = 20 * 60 * 10;
+
+	/**
+	 * most burning tiles worked on in one tick over the whole level
+	 */
+	public int tilesPerTick = 16384;
+	/**
+	 * burning tiles a chunk may work on in a tick even when the budget is shared between many chunks, chunks past the budget wait for a later tick
+	 */
+	public int minTilesPerChunk = 512;
+
+	/**
+	 * burning tiles and chunks with at least one as of the start of the last tick
+	 */
+	public volatile int burning = 0;
+	public volatile int burningChunks = 0;
+	/**
+	 * burning tiles worked on in the last tick
+	 */
+	public volatile int lastProcessed = 0;
+	public volatile long outbreaks = 0;
+	/**
+	 * buildings removed once all their tiles burnt out
+	 */
+	public volatile long buildingsLost = 0;
+
+	private static class ChunkFire {
+		final long[] flammable = new long[words];
+		final long[] burning = new long[words];
+		final long[] burnt = new long[words];
+		/**
+		 * tiles set alight by this chunk this tick, only burning from the next tick
+		 */
+		final long[] ignited = new long[words];
+		int burningCount;
+		/**
+		 * tile the next turn starts from
+		 */
+		int cursor;
+		/**
+		 * burning tiles the chunk may work on this tick, set by {@link FireSystem#prepare(long)}
+		 */
+		int budget;
+
+		ChunkFire(Chunk chunk) {
+			for (int index = 0; index < LevelData.chunkTiles; index++) {
+				if (ignition(chunk, index) > 0) {
+					flammable[index >>> 6] |= 1L << index;
+				}
+			}
+		}
+
+		boolean catchFire(int index) {
+			long bit = 1L << index;
+			int word = index >>> 6;
+			if ((flammable[word] & bit) == 0 || ((burning[word] | burnt[word]) & bit) != 0) {
+				return false;
+			}
+			burning[word] |= bit;
+			burningCount++;
+			return true;
+		}
+	}
+
+	private final LevelData level;
+	private final Map<Long, ChunkFire> fires = new ConcurrentHashMap<>();
+	private final AtomicInteger processed = new AtomicInteger();
+	/**
+	 * chunk the next tick starts sharing out from
+	 */
+	private long nextKey = Long.MIN_VALUE;
+	/**
+	 * building tiles that burnt out this tick, their handles are cleared on the level thread by {@link #finish(long)}
+	 */
+	private final Queue<Tile> burntBuildings = new ConcurrentLinkedQueue<>();
+	private final SplittableRandom outbreakRandom;
+
+	private final Consumer<Tile> editListener = (tile) -> {
+		ChunkFire fire = fires.get(LevelData.chunkKey(tile.getChunk().chunkX, tile.getChunk().chunkY));
+		if (fire != null) {
+			int index = tile.getIndex();
+			if (tile.getType() != null || tile.getBuildingID() != BuildingRegistry.none) {
+				//built on again, burning out only ever leaves bare ground
+				fire.burnt[index >>> 6] &= ~(1L << index);
+			}
+			if (ignition(tile.getChunk(), index) > 0) {
+				fire.flammable[index >>> 6] |= 1L << index;
+			} else {
+				fire.flammable[index >>> 6] &= ~(1L << index);
+			}
+		}
+	};
+	private final Consumer<Chunk> unloadListener = (chunk) -> {
+		fires.remove(LevelData.chunkKey(chunk.chunkX, chunk.chunkY));
+	};
+
+	public FireSystem(LevelData level) {
+		this.level = level;
+		this.outbreakRandom = new SplittableRandom(level.seed);
+		level.tileEditListeners.add(editListener);
+		level.chunkUnloadListeners.add(unloadListener);
+	}
+
+	/**
+	 * Stops listening to the level
+	 */
+	public void close() {
+		level.tileEditListeners.remove(editListener);
+		level.chunkUnloadListeners.remove(unloadListener);
+	}
+
+	/**
+	 * @return chance out of 256 per tick that the tile catches from one burning neighbour
+	 */
+	public static int ignition(Chunk chunk, int index) {
+		Tiles type = chunk.getType(index);
+		return type != null ? typeIgnition[type.ordinal()] : terrainIgnition[chunk.getTerrain(index).ordinal()];
+	}
+
+	/**
+	 * Sets the tile alight. Call from the level thread between ticks
+	 * @return false if the tile can not burn, is already burning or has burnt
+	 */
+	public boolean ignite(Chunk chunk, int index) {
+		return fire(chunk).catchFire(index);
+	}
+
+	public boolean isBurning(Chunk chunk, int index) {
+		ChunkFire fire = fires.get(LevelData.chunkKey(chunk.chunkX, chunk.chunkY));
+		return fire != null && (fire.burning[index >>> 6] & (1L << index)) != 0;
+	}
+
+	public boolean isBurnt(Chunk chunk, int index) {
+		ChunkFire fire = fires.get(LevelData.chunkKey(chunk.chunkX, chunk.chunkY));
+		return fire != null && (fire.burnt[index >>> 6] & (1L << index)) != 0;
+	}
+
+	private ChunkFire fire(Chunk chunk) {
+		return fires.computeIfAbsent(LevelData.chunkKey(chunk.chunkX, chunk.chunkY), (key) -> new ChunkFire(chunk));
+	}
+
+	/**
+	 * Shares {@link #tilesPerTick} out between the burning chunks in turn, in order of their key so the turns do not depend on the map order
+	 */
+	@Override
+	public void prepare(long tick) {
+		if (outbreakTicks > 0 && outbreakRandom.nextInt(outbreakTicks) == 0) {
+			breakOut();
+		}
+		lastProcessed = processed.getAndSet(0);
+		long[] keys = new long[fires.size()];
+		int count = 0, total = 0;
+		for (Map.Entry<Long, ChunkFire> entry : fires.entrySet()) {
+			ChunkFire fire = entry.getValue();
+			fire.budget = 0;
+			if (fire.burningCount > 0 && count < keys.length) {
+				keys[count++] = entry.getKey();
+				total += fire.burningCount;
+			}
+		}
+		burning = total;
+		burningChunks = count;
+		if (count == 0) {
+			return;
+		}
+		Arrays.sort(keys, 0, count);
+		int share = Math.max(minTilesPerChunk, tilesPerTick / count);
+		int remaining = tilesPerTick;
+		//carry on from the chunk after the last one that had a turn
+		int first = Arrays.binarySearch(keys, 0, count, nextKey);
+		first = first < 0 ? -first - 1 : first;
+		for (int i = 0; i < count && remaining > 0; i++) {
+			int at = (first + i) % count;
+			ChunkFire fire = fires.get(keys[at]);
+			fire.budget = Math.min(remaining, Math.min(share, fire.burningCount));
+			remaining -= fire.budget;
+			nextKey = keys[(at + 1) % count];
+		}
+	}
+
+	/**
+	 * Sets a tile of a random building alight
+	 */
+	private void breakOut() {
+		BuildingRegistry buildings = level.buildings;
+		if (buildings.size() == 0) {
+			return;
+		}
+		int handle = buildings.handleAt(outbreakRandom.nextInt(buildings.slotLimit()));
+		long[] keys = new long[4];
+		int chunks = Math.min(keys.length, buildings.chunksOf(handle, keys));
+		if (chunks == 0) {
+			//a free slot or a building without tiles, this tick goes without
+			return;
+		}
+		long key = keys[outbreakRandom.nextInt(chunks)];
+		Chunk chunk = level.chunks.get(key);
+		if (chunk == null) {
+			return;
+		}
+		int start = outbreakRandom.nextInt(LevelData.chunkTiles);
+		for (int i = 0; i < LevelData.chunkTiles; i++) {
+			int index = (start + i) % LevelData.chunkTiles;
+			if (chunk.getBuildingID(index) == handle) {
+				if (ignite(chunk, index)) {
+					outbreaks++;
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Clears the handle of the building tiles that burnt out, removing the buildings left without any tiles
+	 */
+	@Override
+	public void finish(long tick) {
+		BuildingRegistry buildings = level.buildings;
+		Tile tile;
+		while ((tile = burntBuildings.poll()) != null) {
+			int handle = tile.getBuildingID();
+			if (handle == BuildingRegistry.none) {
+				continue;
+			}
+			GameManager.setBuildingID(level, tile, BuildingRegistry.none);
+			if (buildings.isValid(handle) && buildings.chunksOf(handle, new long[0]) == 0) {
+				GameManager.removeBuilding(level, handle);
+				buildingsLost++;
+			}
+		}
+	}
+
+	@Override
+	public void tick(ChunkTickContext context, Chunk chunk) {
+		ChunkFire fire = fires.get(LevelData.chunkKey(chunk.chunkX, chunk.chunkY));
+		if (fire == null || fire.budget == 0) {
+			return;
+		}
+		SplittableRandom random = context.random();
+		int budget = fire.budget;
+		int cursor = fire.cursor;
+		int firstWord = cursor >>> 6;
+		int done = 0;
+		boolean damaged = false;
+		//the first word is visited again at the end for the tiles before the cursor
+		for (int n = 0; n <= words && done < budget; n++) {
+			int word = (firstWord + n) % words;
+			long bits = fire.burning[word];
+			if (n == 0) {
+				bits &= -1L << cursor;
+			} else if (n == words) {
+				bits &= ~(-1L << cursor);
+			}
+			while (bits != 0 && done < budget) {
+				int index = word << 6 | Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				damaged |= burn(context, chunk, fire, random, index);
+				done++;
+				cursor = index + 1;
+			}
+		}
+		fire.cursor = cursor % LevelData.chunkTiles;
+		if (damaged) {
+			chunk.rebake.set(true);
+		}
+		for (int word = 0; word < words; word++) {
+			long ignited = fire.ignited[word] & ~fire.burning[word] & ~fire.burnt[word];
+			fire.burning[word] |= ignited;
+			fire.burningCount += Long.bitCount(ignited);
+			fire.ignited[word] = 0;
+		}
+		processed.addAndGet(done);
+	}
+
+	/**
+	 * @return true if a building tile burnt out
+	 */
+	private boolean burn(ChunkTickContext context, Chunk chunk, ChunkFire fire, SplittableRandom random, int index) {
+		int size = LevelData.chunkSize;
+		int x = index / size, y = index % size;
+		spread(context, chunk, fire, random, x - 1, y);
+		spread(context, chunk, fire, random, x + 1, y);
+		spread(context, chunk, fire, random, x, y - 1);
+		spread(context, chunk, fire, random, x, y + 1);
+		if (random.nextInt(256) < burnOutChance) {
+			long bit = 1L << index;
+			fire.burning[index >>> 6] &= ~bit;
+			fire.burningCount--;
+			boolean damaged = false;
+			if (chunk.getType(index) != null) {
+				GameManager.setType(level, chunk.getTile(x, y), null);
+				damaged = true;
+			}
+			//only after the type is cleared, as the edit listener unmarks tiles that still have a building
+			fire.burnt[index >>> 6] |= bit;
+			if (chunk.getBuildingID(index) != BuildingRegistry.none) {
+				burntBuildings.add(chunk.getTile(x, y));
+			}
+			return damaged;
+		}
+		return false;
+	}
+
+	/**
+	 * Maybe sets the tile alight, x and y may be just outside the chunk
+	 */
+	private void spread(ChunkTickContext context, Chunk chunk, ChunkFire fire, SplittableRandom random, int x, int y) {
+		int size = LevelData.chunkSize;
+		if (x >= 0 && x < size && y >= 0 && y < size) {
+			int index = LevelData.tileIndex(x, y);
+			int word = index >>> 6;
+			long bit = 1L << index;
+			if ((fire.flammable[word] & bit) != 0 && ((fire.burning[word] | fire.burnt[word] | fire.ignited[word]) & bit) == 0
+				&& random.nextInt(256) < ignition(chunk, index)) {
+				fire.ignited[word] |= bit;
+			}
+			return;
+		}
+		int dx = x < 0 ? -1 : x >= size ? 1 : 0;
+		int dy = y < 0 ? -1 : y >= size ? 1 : 0;
+		Chunk neighbour = context.neighbour(dx, dy);
+		if (neighbour == null) {
+			return;
+		}
+		int index = LevelData.tileIndex(x - dx * size, y - dy * size);
+		int chance = ignition(neighbour, index);
+		if (chance == 0) {
+			return;
+		}
+		//neighbours are not ticked at the same time as this chunk so their fire can be read
+		ChunkFire other = fires.get(LevelData.chunkKey(neighbour.chunkX, neighbour.chunkY));
+		if (other != null && ((other.burning[index >>> 6] | other.burnt[index >>> 6]) & (1L << index)) != 0) {
+			return;
+		}
+		if (random.nextInt(256) < chance) {
+			context.send(neighbour.chunkX, neighbour.chunkY, (target) -> fire(target).catchFire(index));
+		}
+	}
+}
@@ -270,6 +270,26 @@ public class ShaderProgramSystem {
 		program.VAOs.add(vao);
 	}
 
+	/**
+	 * Removes the VAO from the shader program and deletes it and all of its VBOs from the GPU<br>
+	 * The VAO can be loaded again with {@link #loadVAO(GLContext, ShaderProgram, VAO)}
+	 * @param program the VAO was loaded into
+	 * @param vao to delete
+	 */
+	public static void unloadVAO(GLContext glContext, ShaderProgram program, VAO vao) {
+		program.VAOs.remove(vao);
+		for (BufferObject vbo : vao.VBOs) {
+			if (vbo.VBOID != ShaderProgram.NULL) {
+				glContext.deleteBuffer(vbo.VBOID);
+				vbo.VBOID = ShaderProgram.NULL;
+			}
+		}
+		if (vao.VAOID != ShaderProgram.NULL) {
+			glContext.deleteVertexArray(vao.VAOID);
+			vao.VAOID = ShaderProgram.NULL;
+		}
+	}
+
 	/**
 	 * generates buffer id and attaches to program. <br>
 	 * also writes the buffer data into a OGL stream<br>
@@ -169,7 +169,20 @@ public interface ClientWindowSystem {
 		public int index = 0;
 		public String name;
 		public boolean playable = true;
-		//nkimage
+		/**
+		 * save file to load, null for levels that are not saves
+		 */
+		public File file;
+		/**
+		 * one line summary shown under the name, eg play time and population
+		 */
+		public String details;
+		/**
+		 * square heightmap of {@link #thumbnailSize} pixels per side, null if there is none. 
+		 * See {@link com.meeple.citybuild.server.save.SaveHeader} for the pixel values
+		 */
+		public byte[] thumbnail;
+		public int thumbnailSize;
 	}
 
 	//shortcut finals: